@@ -35,6 +35,44 @@ package org.opennms.core.ipc.sink.api;
  */
 public interface AsyncPolicy {
 
+    /**
+     * The mechanism used to hand off messages to the background threads.
+     */
+    enum DispatchMode {
+        /**
+         * Each message is submitted as a task to a thread pool.
+         */
+        THREAD_POOL,
+        /**
+         * Messages are published to a pre-allocated ring buffer and are
+         * dispatched in batches by the background threads.
+         */
+        RING_BUFFER
+    }
+
+    /**
+     * The strategy used by the background threads to wait for messages
+     * when using {@link DispatchMode#RING_BUFFER}.
+     */
+    enum WaitStrategy {
+        /**
+         * Park the threads on a lock, lowest CPU usage.
+         */
+        BLOCKING,
+        /**
+         * Spin, then yield, then sleep. A compromise between latency and CPU usage.
+         */
+        SLEEPING,
+        /**
+         * Spin, then yield. Low latency, at the cost of CPU usage.
+         */
+        YIELDING,
+        /**
+         * Spin continuously. Lowest latency, dedicates one core per thread.
+         */
+        BUSY_SPIN
+    }
+
     /**
      * Maximum number of messages that can be queued awaiting
      * for dispatch.
@@ -66,4 +104,23 @@ public interface AsyncPolicy {
      * should block when the queue is full
      */
     boolean isBlockWhenFull();
+
+    /**
+     * The mechanism used to hand off messages to the background threads.
+     *
+     * @return dispatch mode
+     */
+    default DispatchMode getDispatchMode() {
+        return DispatchMode.THREAD_POOL;
+    }
+
+    /**
+     * The strategy used by the background threads to wait for
+     * messages when using {@link DispatchMode#RING_BUFFER}.
+     *
+     * @return wait strategy
+     */
+    default WaitStrategy getWaitStrategy() {
+        return WaitStrategy.BLOCKING;
+    }
 }
@@ -28,6 +28,8 @@
 
 package org.opennms.core.ipc.sink.api;
 
+import java.util.Collection;
+
 /**
  * Used to synchronously dispatch messages.
  *
@@ -39,4 +41,18 @@ public interface SyncDispatcher<S extends Message> extends AutoCloseable {
 
     void send(S message);
 
+    /**
+     * Sends all of the given messages.
+     *
+     * Implementations may override this to handle the
+     * messages more efficiently than one at a time.
+     *
+     * @param messages the messages to send
+     */
+    default void sendAll(Collection<S> messages) {
+        for (S message : messages) {
+            send(message);
+        }
+    }
+
 }
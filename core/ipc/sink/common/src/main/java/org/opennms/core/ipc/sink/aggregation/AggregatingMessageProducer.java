@@ -28,6 +28,8 @@
 
 package org.opennms.core.ipc.sink.aggregation;
 
+import java.util.Collection;
+
 import org.opennms.core.ipc.sink.api.Message;
 import org.opennms.core.ipc.sink.api.SinkModule;
 import org.opennms.core.ipc.sink.api.SyncDispatcher;
@@ -55,6 +57,13 @@ public abstract class AggregatingMessageProducer<S extends Message, T extends Me
         }
     }
 
+    @Override
+    public void sendAll(Collection<S> messages) {
+        for (T bucket : aggregator.aggregateAll(messages)) {
+            dispatch(bucket);
+        }
+    }
+
     public abstract void dispatch(T message);
 
     @Override
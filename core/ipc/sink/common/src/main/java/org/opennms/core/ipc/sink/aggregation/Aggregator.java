@@ -28,9 +28,13 @@
 
 package org.opennms.core.ipc.sink.aggregation;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.Timer;
@@ -132,28 +136,72 @@ public class Aggregator<S extends Message, T extends Message> implements AutoClo
         final Lock lock = lockStripes.get(key);
         try {
             lock.lock();
-            // Obtain the bucket, creating a new one if it doesn't already exist
-            Bucket bucket = buckets.get(key);
-            if (bucket == null) {
-                bucket = new Bucket();
-                buckets.put(key, bucket);
-            }
-
-            // Accumulate into the bucket
-            T accumulator = bucket.accumulate(message);
-            if (accumulator != null) {
-                // The bucket is ready to be dispatched
-                buckets.remove(key);
-                return accumulator;
-            } else {
-                // The bucket is NOT ready to be dispatched
-                return null;
-            }
+            return accumulate(key, message);
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * Aggregates all of the given messages, and returns the buckets
+     * that are ready to be dispatched.
+     *
+     * Messages are grouped by key first, so that each bucket only
+     * needs to be locked once per call.
+     *
+     * @param messages the messages to aggregate
+     * @return the buckets that are ready to be dispatched, may be empty
+     */
+    public List<T> aggregateAll(Collection<S> messages) {
+        // Group the messages by key, preserving their order
+        final Map<Object, List<S>> messagesByKey = new LinkedHashMap<>();
+        for (S message : messages) {
+            messagesByKey.computeIfAbsent(aggregationPolicy.key(message), k -> new ArrayList<>()).add(message);
+        }
+
+        final List<T> messagesReadyForDispatch = new ArrayList<>(0);
+        for (Map.Entry<Object, List<S>> entry : messagesByKey.entrySet()) {
+            final Object key = entry.getKey();
+            final Lock lock = lockStripes.get(key);
+            try {
+                lock.lock();
+                for (S message : entry.getValue()) {
+                    final T accumulator = accumulate(key, message);
+                    if (accumulator != null) {
+                        messagesReadyForDispatch.add(accumulator);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return messagesReadyForDispatch;
+    }
+
+    /**
+     * Accumulates the message in the bucket with the given key.
+     * The lock for the key must be held by the caller.
+     */
+    private T accumulate(Object key, S message) {
+        // Obtain the bucket, creating a new one if it doesn't already exist
+        Bucket bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new Bucket();
+            buckets.put(key, bucket);
+        }
+
+        // Accumulate into the bucket
+        T accumulator = bucket.accumulate(message);
+        if (accumulator != null) {
+            // The bucket is ready to be dispatched
+            buckets.remove(key);
+            return accumulator;
+        } else {
+            // The bucket is NOT ready to be dispatched
+            return null;
+        }
+    }
+
     @Override
     public void run() {
         final List<T> messagesReadyForDispatch = new LinkedList<>();
@@ -28,14 +28,19 @@
 
 package org.opennms.core.ipc.sink.common;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Objects;
 
 import org.opennms.core.ipc.sink.aggregation.AggregatingMessageProducer;
 import org.opennms.core.ipc.sink.api.AsyncDispatcher;
+import org.opennms.core.ipc.sink.api.AsyncPolicy;
 import org.opennms.core.ipc.sink.api.Message;
 import org.opennms.core.ipc.sink.api.MessageDispatcherFactory;
 import org.opennms.core.ipc.sink.api.SinkModule;
 import org.opennms.core.ipc.sink.api.SyncDispatcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer.Context;
@@ -46,7 +51,9 @@ import com.codahale.metrics.Timer.Context;
  *
  * Different types of dispatchers are created based on whether or not the module is using aggregation.
  *
- * Asynchronous dispatchers use a queue and a thread pool to delegate to a suitable synchronous dispatcher.
+ * Asynchronous dispatchers use a queue and a thread pool, or a ring buffer, depending on the module's
+ * {@link AsyncPolicy}, to delegate to a suitable synchronous dispatcher. These can optionally spill
+ * messages to a journal on disk when the queue is full, see {@link JournalingAsyncDispatcher}.
  *
  * @author jwhite
  *
@@ -54,6 +61,8 @@ import com.codahale.metrics.Timer.Context;
  */
 public abstract class AbstractMessageDispatcherFactory<W> implements MessageDispatcherFactory {
 
+    private static final Logger LOG = LoggerFactory.getLogger(AbstractMessageDispatcherFactory.class);
+
     public abstract <S extends Message, T extends Message> void dispatch(SinkModule<S, T> module, W metadata, T message);
 
     private final MetricRegistry metrics = new MetricRegistry();
@@ -94,7 +103,31 @@ public abstract class AbstractMessageDispatcherFactory<W> implements MessageDisp
         Objects.requireNonNull(module.getAsyncPolicy(), "module must have an AsyncPolicy");
         final DispatcherState<W,S,T> state = new DispatcherState<>(this, module);
         final SyncDispatcher<S> syncDispatcher = createSyncDispatcher(state);
-        return new AsyncDispatcherImpl<>(state, module.getAsyncPolicy(), syncDispatcher);
+        final AsyncPolicy asyncPolicy = module.getAsyncPolicy();
+        final AsyncDispatcher<S> asyncDispatcher;
+        if (asyncPolicy.getDispatchMode() == AsyncPolicy.DispatchMode.RING_BUFFER) {
+            asyncDispatcher = new RingBufferAsyncDispatcherImpl<>(state, asyncPolicy, syncDispatcher);
+        } else {
+            asyncDispatcher = new AsyncDispatcherImpl<>(state, asyncPolicy, syncDispatcher);
+        }
+
+        final String journalDirectory = System.getProperty(JournalingAsyncDispatcher.JOURNAL_DIRECTORY_SYS_PROP);
+        if (journalDirectory == null) {
+            return asyncDispatcher;
+        }
+        final SpillJournal journal;
+        try {
+            journal = new SpillJournal(Paths.get(journalDirectory, module.getId()),
+                    Integer.getInteger(JournalingAsyncDispatcher.JOURNAL_SEGMENT_SIZE_SYS_PROP, JournalingAsyncDispatcher.DEFAULT_JOURNAL_SEGMENT_SIZE),
+                    Long.getLong(JournalingAsyncDispatcher.JOURNAL_MAX_SIZE_SYS_PROP, JournalingAsyncDispatcher.DEFAULT_JOURNAL_MAX_SIZE));
+        } catch (IOException e) {
+            LOG.error("Failed to open the journal for module {} in {}. Messages will not be spilled to disk.", module.getId(), journalDirectory, e);
+            return asyncDispatcher;
+        }
+        return new JournalingAsyncDispatcher<>(state, asyncPolicy, asyncDispatcher, journal,
+                message -> timedDispatch(state, message),
+                Integer.getInteger(JournalingAsyncDispatcher.JOURNAL_REPLAY_THREADS_SYS_PROP, asyncPolicy.getNumThreads()),
+                Integer.getInteger(JournalingAsyncDispatcher.JOURNAL_REPLAY_BATCH_SIZE_SYS_PROP, JournalingAsyncDispatcher.DEFAULT_JOURNAL_REPLAY_BATCH_SIZE));
     }
 
     protected <S extends Message, T extends Message> SyncDispatcher<S> createSyncDispatcher(DispatcherState<W,S,T> state) {
@@ -0,0 +1,359 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.core.ipc.sink.common;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.joda.time.Duration;
+import org.opennms.core.concurrent.LogPreservingThreadFactory;
+import org.opennms.core.ipc.sink.api.AggregationPolicy;
+import org.opennms.core.ipc.sink.api.AsyncDispatcher;
+import org.opennms.core.ipc.sink.api.AsyncPolicy;
+import org.opennms.core.ipc.sink.api.Message;
+import org.opennms.core.ipc.sink.api.SinkModule;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.swrve.ratelimitedlogger.RateLimitedLog;
+
+/**
+ * An {@link AsyncDispatcher} that spills messages to a {@link SpillJournal} once the queue
+ * of the delegate dispatcher is full, instead of blocking the caller or dropping them.
+ *
+ * Spilled messages are replayed in batches, in the order in which they were spilled. The
+ * messages of a batch are dispatched directly and concurrently by a pool of replay threads,
+ * as many as the {@link AsyncPolicy} uses by default, and the next batch is only started once
+ * all of the messages of the current one were dispatched. Messages that fail to be dispatched
+ * (i.e. while the broker is unreachable) are retried with an increasing delay, without
+ * dispatching the other messages of the batch again. New messages are spilled as long as the
+ * journal is not empty, so that they are not dispatched ahead of the ones that are waiting to
+ * be replayed; since the replay threads take over the work of the delegate's threads while
+ * this is the case, the journal drains as fast as the queue would.
+ *
+ * Messages are stored in their marshalled form. Messages of modules that use aggregation
+ * are stored as single element buckets.
+ *
+ * The futures of spilled messages are resolved once the message was written to the journal.
+ * When the journal is full, messages are handed to the delegate if the {@link AsyncPolicy}
+ * blocks when full, and discarded otherwise.
+ */
+public class JournalingAsyncDispatcher<W, S extends Message, T extends Message> implements AsyncDispatcher<S> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JournalingAsyncDispatcher.class);
+
+    /**
+     * System property used to enable the journal, the journal of each module
+     * is stored in a sub-directory of this directory.
+     */
+    public static final String JOURNAL_DIRECTORY_SYS_PROP = "org.opennms.ipc.sink.journal.directory";
+
+    /**
+     * System property used to override the default segment size, in bytes.
+     */
+    public static final String JOURNAL_SEGMENT_SIZE_SYS_PROP = "org.opennms.ipc.sink.journal.segmentSize";
+
+    public static final int DEFAULT_JOURNAL_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * System property used to override the default maximum disk usage of the journal of each module, in bytes.
+     */
+    public static final String JOURNAL_MAX_SIZE_SYS_PROP = "org.opennms.ipc.sink.journal.maxSize";
+
+    public static final long DEFAULT_JOURNAL_MAX_SIZE = 1024L * 1024L * 1024L;
+
+    /**
+     * System property used to override the number of threads that replay the journal of each
+     * module, defaults to the number of threads of the module's {@link AsyncPolicy}.
+     */
+    public static final String JOURNAL_REPLAY_THREADS_SYS_PROP = "org.opennms.ipc.sink.journal.replayThreads";
+
+    /**
+     * System property used to override the maximum number of messages replayed in a batch.
+     */
+    public static final String JOURNAL_REPLAY_BATCH_SIZE_SYS_PROP = "org.opennms.ipc.sink.journal.replayBatchSize";
+
+    public static final int DEFAULT_JOURNAL_REPLAY_BATCH_SIZE = 256;
+
+    private static final long MIN_RETRY_DELAY_MS = 100;
+
+    private static final long MAX_RETRY_DELAY_MS = 30000;
+
+    private final RateLimitedLog rateLimittedLogger = RateLimitedLog
+            .withRateLimit(LOG)
+            .maxRate(5).every(Duration.standardSeconds(30))
+            .build();
+
+    private final SinkModule<S, T> module;
+
+    private final AsyncDispatcher<S> delegate;
+
+    private final SpillJournal journal;
+
+    private final Consumer<T> dispatcher;
+
+    private final int queueSize;
+
+    private final boolean blockWhenFull;
+
+    private final Counter spilledCounter;
+
+    private final Counter replayedCounter;
+
+    private final Counter discardedCounter;
+
+    private final int replayBatchSize;
+
+    private final Object replayLock = new Object();
+
+    private final ExecutorService replayExecutor;
+
+    private final ExecutorService replayThreads;
+
+    private volatile boolean closed = false;
+
+    public JournalingAsyncDispatcher(DispatcherState<W,S,T> state, AsyncPolicy asyncPolicy, AsyncDispatcher<S> delegate,
+            SpillJournal journal, Consumer<T> dispatcher) {
+        this(state, asyncPolicy, delegate, journal, dispatcher, asyncPolicy.getNumThreads(), DEFAULT_JOURNAL_REPLAY_BATCH_SIZE);
+    }
+
+    public JournalingAsyncDispatcher(DispatcherState<W,S,T> state, AsyncPolicy asyncPolicy, AsyncDispatcher<S> delegate,
+            SpillJournal journal, Consumer<T> dispatcher, int numReplayThreads, int replayBatchSize) {
+        Objects.requireNonNull(state);
+        Objects.requireNonNull(asyncPolicy);
+        if (numReplayThreads < 1) {
+            throw new IllegalArgumentException("numReplayThreads must be strictly positive");
+        }
+        if (replayBatchSize < 1) {
+            throw new IllegalArgumentException("replayBatchSize must be strictly positive");
+        }
+        this.module = state.getModule();
+        this.delegate = Objects.requireNonNull(delegate);
+        this.journal = Objects.requireNonNull(journal);
+        this.dispatcher = Objects.requireNonNull(dispatcher);
+        queueSize = asyncPolicy.getQueueSize();
+        blockWhenFull = asyncPolicy.isBlockWhenFull();
+        this.replayBatchSize = replayBatchSize;
+
+        final MetricRegistry metrics = state.getMetrics();
+        spilledCounter = metrics.counter(MetricRegistry.name(module.getId(), "journal", "spilled"));
+        replayedCounter = metrics.counter(MetricRegistry.name(module.getId(), "journal", "replayed"));
+        discardedCounter = metrics.counter(MetricRegistry.name(module.getId(), "journal", "discarded"));
+        metrics.register(MetricRegistry.name(module.getId(), "journal", "size"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return journal.size();
+            }
+        });
+        metrics.register(MetricRegistry.name(module.getId(), "journal", "disk-usage"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return journal.getDiskUsage();
+            }
+        });
+
+        replayThreads = Executors.newFixedThreadPool(numReplayThreads,
+                new LogPreservingThreadFactory("OpenNMS.Sink.JournalReplay." + module.getId(), numReplayThreads));
+        replayExecutor = Executors.newSingleThreadExecutor(
+                new LogPreservingThreadFactory("OpenNMS.Sink.JournalReplayBatch." + module.getId(), 1));
+        replayExecutor.execute(this::replay);
+    }
+
+    @Override
+    public CompletableFuture<S> send(S message) {
+        if (journal.isEmpty() && delegate.getQueueSize() < queueSize) {
+            return delegate.send(message);
+        }
+
+        try {
+            if (journal.append(module.marshal(toBucket(message)).getBytes(StandardCharsets.UTF_8))) {
+                spilledCounter.inc();
+                synchronized (replayLock) {
+                    replayLock.notifyAll();
+                }
+                return CompletableFuture.completedFuture(message);
+            }
+        } catch (Throwable t) {
+            rateLimittedLogger.warn("Failed to spill message for module {} to the journal.", module.getId(), t);
+        }
+
+        if (blockWhenFull) {
+            return delegate.send(message);
+        }
+        discardedCounter.inc();
+        final CompletableFuture<S> future = new CompletableFuture<>();
+        future.completeExceptionally(new RejectedExecutionException("Queue and journal are full, message discarded."));
+        return future;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T toBucket(S message) {
+        final AggregationPolicy<S,T> aggregationPolicy = module.getAggregationPolicy();
+        if (aggregationPolicy == null) {
+            // Modules that do not use an AggregationPolicy must have the same types for S and T
+            return (T)message;
+        }
+        return aggregationPolicy.aggregate(null, message);
+    }
+
+    private void replay() {
+        while (!closed) {
+            final List<byte[]> records = journal.peek(replayBatchSize);
+            if (records.isEmpty()) {
+                synchronized (replayLock) {
+                    try {
+                        if (!closed && journal.isEmpty()) {
+                            replayLock.wait(1000);
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                continue;
+            }
+
+            final List<T> buckets = new ArrayList<>(records.size());
+            for (final byte[] record : records) {
+                try {
+                    buckets.add(module.unmarshal(new String(record, StandardCharsets.UTF_8)));
+                } catch (Throwable t) {
+                    LOG.warn("Discarding journaled message for module {} that could not be unmarshalled.", module.getId(), t);
+                    buckets.add(null);
+                    discardedCounter.inc();
+                }
+            }
+
+            final int numReplayed = replay(buckets);
+            // When closed, the messages that follow the first one that was not dispatched are replayed again on the next start
+            journal.remove(numReplayed);
+            if (numReplayed < buckets.size()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Dispatches the messages concurrently, retrying the ones that failed until all of them were dispatched
+     * or the dispatcher is closed.
+     *
+     * @param buckets the messages to dispatch, <code>null</code> elements are skipped
+     * @return the number of leading messages that were dispatched (or skipped)
+     */
+    private int replay(List<T> buckets) {
+        long retryDelayMs = MIN_RETRY_DELAY_MS;
+        final boolean[] dispatched = new boolean[buckets.size()];
+        while (true) {
+            final List<Future<?>> futures = new ArrayList<>(buckets.size());
+            for (int i = 0; i < buckets.size(); i++) {
+                final T bucket = buckets.get(i);
+                if (bucket == null || dispatched[i]) {
+                    futures.add(null);
+                    continue;
+                }
+                try {
+                    futures.add(replayThreads.submit(() -> {
+                        dispatcher.accept(bucket);
+                        replayedCounter.inc();
+                    }));
+                } catch (RejectedExecutionException e) {
+                    // closed
+                    futures.add(null);
+                }
+            }
+
+            Throwable failure = null;
+            for (int i = 0; i < futures.size(); i++) {
+                final Future<?> future = futures.get(i);
+                if (future == null) {
+                    continue;
+                }
+                try {
+                    future.get();
+                    dispatched[i] = true;
+                } catch (ExecutionException e) {
+                    failure = e.getCause();
+                } catch (InterruptedException e) {
+                    return countLeadingDispatched(buckets, dispatched);
+                }
+            }
+            if (closed) {
+                return countLeadingDispatched(buckets, dispatched);
+            } else if (failure == null) {
+                return buckets.size();
+            }
+
+            rateLimittedLogger.warn("Failed to replay journaled messages for module {}, retrying in {}ms.", module.getId(), retryDelayMs, failure);
+            try {
+                Thread.sleep(retryDelayMs);
+            } catch (InterruptedException e) {
+                return countLeadingDispatched(buckets, dispatched);
+            }
+            retryDelayMs = Math.min(retryDelayMs * 2, MAX_RETRY_DELAY_MS);
+        }
+    }
+
+    private static int countLeadingDispatched(List<?> buckets, boolean[] dispatched) {
+        int count = 0;
+        while (count < dispatched.length && (dispatched[count] || buckets.get(count) == null)) {
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public int getQueueSize() {
+        return delegate.getQueueSize() + (int)Math.min(Integer.MAX_VALUE, journal.size());
+    }
+
+    @Override
+    public void close() throws Exception {
+        closed = true;
+        replayExecutor.shutdownNow();
+        replayThreads.shutdownNow();
+        replayExecutor.awaitTermination(MAX_RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
+        replayThreads.awaitTermination(MAX_RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
+        // Messages that were not replayed yet remain in the journal, and are replayed on the next start
+        journal.close();
+        delegate.close();
+    }
+}
@@ -0,0 +1,251 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.core.ipc.sink.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.core.concurrent.LogPreservingThreadFactory;
+import org.opennms.core.ipc.sink.api.AsyncDispatcher;
+import org.opennms.core.ipc.sink.api.AsyncPolicy;
+import org.opennms.core.ipc.sink.api.Message;
+import org.opennms.core.ipc.sink.api.SyncDispatcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.lmax.disruptor.BlockingWaitStrategy;
+import com.lmax.disruptor.BusySpinWaitStrategy;
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.EventTranslatorTwoArg;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.SleepingWaitStrategy;
+import com.lmax.disruptor.TimeoutException;
+import com.lmax.disruptor.WaitStrategy;
+import com.lmax.disruptor.YieldingWaitStrategy;
+import com.lmax.disruptor.dsl.Disruptor;
+import com.lmax.disruptor.dsl.ProducerType;
+
+/**
+ * An {@link AsyncDispatcher} that publishes the messages to a pre-allocated ring buffer
+ * instead of submitting a task per message to a thread pool.
+ *
+ * Each of the background threads handles an equal share of the slots, and hands the messages
+ * it has accumulated to the {@link SyncDispatcher} in batches, which lets the
+ * {@link org.opennms.core.ipc.sink.aggregation.AggregatingMessageProducer} aggregate them
+ * with fewer lock acquisitions.
+ *
+ * The capacity of the ring buffer is the queue size of the {@link AsyncPolicy} rounded up
+ * to the next power of 2.
+ */
+public class RingBufferAsyncDispatcherImpl<W, S extends Message, T extends Message> implements AsyncDispatcher<S> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RingBufferAsyncDispatcherImpl.class);
+
+    /**
+     * Maximum number of messages handed to the {@link SyncDispatcher} at once.
+     */
+    protected static final int MAX_BATCH_SIZE = 1024;
+
+    private static final long SHUTDOWN_TIMEOUT_MS = 30000;
+
+    private final SyncDispatcher<S> syncDispatcher;
+
+    private final boolean blockWhenFull;
+
+    private final ExecutorService executor;
+
+    private final Disruptor<MessageHolder<S>> disruptor;
+
+    private final RingBuffer<MessageHolder<S>> ringBuffer;
+
+    private final Counter droppedCounter;
+
+    private final Histogram batchSizeHistogram;
+
+    private final Timer queueLatencyTimer;
+
+    private static class MessageHolder<S> {
+        private S message;
+        private CompletableFuture<S> future;
+        private long enqueuedNanos;
+    }
+
+    private final EventTranslatorTwoArg<MessageHolder<S>, S, CompletableFuture<S>> translator = (holder, sequence, message, future) -> {
+        holder.message = message;
+        holder.future = future;
+        holder.enqueuedNanos = System.nanoTime();
+    };
+
+    public RingBufferAsyncDispatcherImpl(DispatcherState<W,S,T> state, AsyncPolicy asyncPolicy, SyncDispatcher<S> syncDispatcher) {
+        Objects.requireNonNull(state);
+        Objects.requireNonNull(asyncPolicy);
+        this.syncDispatcher = Objects.requireNonNull(syncDispatcher);
+        blockWhenFull = asyncPolicy.isBlockWhenFull();
+
+        final String moduleId = state.getModule().getId();
+        final MetricRegistry metrics = state.getMetrics();
+        droppedCounter = metrics.counter(MetricRegistry.name(moduleId, "dropped"));
+        batchSizeHistogram = metrics.histogram(MetricRegistry.name(moduleId, "batch-size"));
+        queueLatencyTimer = metrics.timer(MetricRegistry.name(moduleId, "queue-latency"));
+
+        final int numThreads = Math.max(1, asyncPolicy.getNumThreads());
+        executor = Executors.newFixedThreadPool(numThreads,
+                new LogPreservingThreadFactory("OpenNMS.Sink.AsyncDispatcher." + moduleId, numThreads));
+        disruptor = new Disruptor<>(MessageHolder::new, getRingBufferSize(asyncPolicy.getQueueSize()),
+                executor, ProducerType.MULTI, getWaitStrategy(asyncPolicy.getWaitStrategy()));
+
+        @SuppressWarnings("unchecked")
+        final EventHandler<MessageHolder<S>>[] handlers = new EventHandler[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            handlers[i] = new BatchingHandler(i, numThreads);
+        }
+        disruptor.handleEventsWith(handlers);
+        ringBuffer = disruptor.start();
+
+        metrics.register(MetricRegistry.name(moduleId, "queue-size"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return getQueueSize();
+            }
+        });
+    }
+
+    private static int getRingBufferSize(int queueSize) {
+        int ringBufferSize = 1;
+        while (ringBufferSize < queueSize) {
+            ringBufferSize <<= 1;
+        }
+        return ringBufferSize;
+    }
+
+    private static WaitStrategy getWaitStrategy(AsyncPolicy.WaitStrategy waitStrategy) {
+        switch (waitStrategy != null ? waitStrategy : AsyncPolicy.WaitStrategy.BLOCKING) {
+        case SLEEPING:
+            return new SleepingWaitStrategy();
+        case YIELDING:
+            return new YieldingWaitStrategy();
+        case BUSY_SPIN:
+            return new BusySpinWaitStrategy();
+        case BLOCKING:
+        default:
+            return new BlockingWaitStrategy();
+        }
+    }
+
+    /**
+     * Accumulates the messages in the slots assigned to this handler,
+     * and dispatches them once the end of a batch is reached.
+     */
+    private class BatchingHandler implements EventHandler<MessageHolder<S>> {
+        private final int ordinal;
+        private final int numHandlers;
+        private final List<S> messages = new ArrayList<>();
+        private final List<CompletableFuture<S>> futures = new ArrayList<>();
+
+        private BatchingHandler(int ordinal, int numHandlers) {
+            this.ordinal = ordinal;
+            this.numHandlers = numHandlers;
+        }
+
+        @Override
+        public void onEvent(MessageHolder<S> holder, long sequence, boolean endOfBatch) {
+            if (sequence % numHandlers == ordinal) {
+                queueLatencyTimer.update(System.nanoTime() - holder.enqueuedNanos, TimeUnit.NANOSECONDS);
+                messages.add(holder.message);
+                futures.add(holder.future);
+                // Release the references held by the slot
+                holder.message = null;
+                holder.future = null;
+            }
+            if ((endOfBatch && !messages.isEmpty()) || messages.size() >= MAX_BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            batchSizeHistogram.update(messages.size());
+            try {
+                syncDispatcher.sendAll(messages);
+                for (int i = 0; i < messages.size(); i++) {
+                    futures.get(i).complete(messages.get(i));
+                }
+            } catch (Throwable t) {
+                LOG.warn("An error occurred while dispatching {} messages.", messages.size(), t);
+                for (CompletableFuture<S> future : futures) {
+                    future.completeExceptionally(t);
+                }
+            } finally {
+                messages.clear();
+                futures.clear();
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<S> send(S message) {
+        final CompletableFuture<S> future = new CompletableFuture<>();
+        if (blockWhenFull) {
+            ringBuffer.publishEvent(translator, message, future);
+        } else if (!ringBuffer.tryPublishEvent(translator, message, future)) {
+            droppedCounter.inc();
+            future.completeExceptionally(new RejectedExecutionException("Ring buffer is full, message rejected."));
+        }
+        return future;
+    }
+
+    @Override
+    public int getQueueSize() {
+        return (int)(ringBuffer.getBufferSize() - ringBuffer.remainingCapacity());
+    }
+
+    @Override
+    public void close() throws Exception {
+        try {
+            // Dispatch the messages that are still in the ring buffer
+            disruptor.shutdown(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            LOG.warn("Timed out while draining the ring buffer, {} messages will not be dispatched.", getQueueSize());
+            disruptor.halt();
+        }
+        executor.shutdown();
+        syncDispatcher.close();
+    }
+}
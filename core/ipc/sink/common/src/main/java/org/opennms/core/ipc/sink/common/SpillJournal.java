@@ -0,0 +1,338 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.core.ipc.sink.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only journal of records, stored in a series of fixed-size memory-mapped segments.
+ *
+ * Records are read back in the order in which they were appended. The read position of each segment
+ * is stored in the segment's header, so that records which were already consumed are not replayed
+ * after a restart. Segments are deleted once all of their records have been consumed.
+ *
+ * Disk usage is bounded by the maximum number of segments, appends are refused once it is reached.
+ *
+ * Each segment is laid out as:
+ * <pre>
+ * [int readOffset] ([int length][byte[length] record])* [int 0]
+ * </pre>
+ *
+ * All of the methods are synchronized, the journal is meant to absorb overflow, not to be on the hot path.
+ */
+public class SpillJournal implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SpillJournal.class);
+
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    private static final int HEADER_SIZE = Integer.BYTES;
+
+    private final Path directory;
+
+    private final int segmentSize;
+
+    private final int maxSegments;
+
+    private final Deque<Segment> segments = new ArrayDeque<>();
+
+    private long nextSegmentId = 0;
+
+    private long numRecords = 0;
+
+    private static class Segment {
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        private int readOffset;
+        private int writeOffset;
+
+        private Segment(Path path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+        }
+
+        private boolean isFullyRead() {
+            return readOffset >= writeOffset;
+        }
+    }
+
+    /**
+     * Opens the journal in the given directory, creating the directory if
+     * it does not exist, and recovering any existing segments.
+     *
+     * @param directory the directory in which the segments are stored
+     * @param segmentSize the size of a segment, in bytes
+     * @param maxSize the maximum disk usage of the journal, in bytes
+     * @throws IOException if the directory or the existing segments could not be opened
+     */
+    public SpillJournal(Path directory, int segmentSize, long maxSize) throws IOException {
+        this.directory = Objects.requireNonNull(directory);
+        if (segmentSize <= HEADER_SIZE + Integer.BYTES) {
+            throw new IllegalArgumentException("segmentSize is too small: " + segmentSize);
+        }
+        this.segmentSize = segmentSize;
+        this.maxSegments = (int)Math.max(1, Math.min(Integer.MAX_VALUE, maxSize / segmentSize));
+
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    private void recover() throws IOException {
+        final List<Long> ids = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                final String fileName = path.getFileName().toString();
+                try {
+                    ids.add(Long.parseLong(fileName.substring(0, fileName.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    LOG.warn("Ignoring unexpected file in journal directory: {}", path);
+                }
+            }
+        }
+        ids.sort(null);
+
+        for (Long id : ids) {
+            final Segment segment = map(id);
+            final int readOffset = segment.buffer.getInt(0);
+            segment.readOffset = readOffset < HEADER_SIZE ? HEADER_SIZE : readOffset;
+
+            // Find the end of the segment, and count the records that were not consumed yet
+            int offset = HEADER_SIZE;
+            while (offset + Integer.BYTES <= segmentSize) {
+                final int length = segment.buffer.getInt(offset);
+                if (length <= 0 || offset + Integer.BYTES + length > segmentSize) {
+                    break;
+                }
+                if (offset >= segment.readOffset) {
+                    numRecords++;
+                }
+                offset += Integer.BYTES + length;
+            }
+            segment.writeOffset = offset;
+            segment.readOffset = Math.min(segment.readOffset, segment.writeOffset);
+            nextSegmentId = id + 1;
+
+            if (segment.isFullyRead()) {
+                delete(segment);
+            } else {
+                segments.addLast(segment);
+            }
+        }
+        if (numRecords > 0) {
+            LOG.info("Recovered {} records in {} segments from journal in {}.", numRecords, segments.size(), directory);
+        }
+    }
+
+    private Segment map(long id) throws IOException {
+        final Path path = directory.resolve(id + SEGMENT_SUFFIX);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping remains valid after the channel is closed
+            return new Segment(path, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+        }
+    }
+
+    private void delete(Segment segment) {
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            LOG.warn("Failed to delete journal segment {}.", segment.path, e);
+        }
+    }
+
+    /**
+     * Appends the record to the journal.
+     *
+     * @param record the record
+     * @return <code>true</code> if the record was appended, <code>false</code> if
+     * the journal is full, or the record does not fit in a segment
+     * @throws IOException if a new segment could not be created
+     */
+    public synchronized boolean append(byte[] record) throws IOException {
+        final int recordSize = Integer.BYTES + record.length;
+        // Always leave room for the trailing zero length
+        if (HEADER_SIZE + recordSize + Integer.BYTES > segmentSize) {
+            return false;
+        }
+
+        Segment tail = segments.peekLast();
+        if (tail == null || tail.writeOffset + recordSize + Integer.BYTES > segmentSize) {
+            // Rotate
+            if (segments.size() >= maxSegments) {
+                return false;
+            }
+            tail = map(nextSegmentId++);
+            tail.readOffset = HEADER_SIZE;
+            tail.writeOffset = HEADER_SIZE;
+            tail.buffer.putInt(0, HEADER_SIZE);
+            segments.addLast(tail);
+        }
+
+        // Write the payload before the length, so that a partially written record is never read back
+        final int offset = tail.writeOffset;
+        final ByteBuffer payload = tail.buffer.duplicate();
+        payload.position(offset + Integer.BYTES);
+        payload.put(record);
+        tail.buffer.putInt(offset + recordSize, 0);
+        tail.buffer.putInt(offset, record.length);
+        tail.writeOffset += recordSize;
+        numRecords++;
+        return true;
+    }
+
+    /**
+     * Retrieves, but does not consume, the oldest record in the journal.
+     *
+     * @return the oldest record, or <code>null</code> if the journal is empty
+     */
+    public synchronized byte[] peek() {
+        final Segment head = getHead();
+        if (head == null) {
+            return null;
+        }
+        return read(head, head.readOffset);
+    }
+
+    /**
+     * Retrieves, but does not consume, the oldest records in the journal.
+     *
+     * @param maxRecords the maximum number of records to retrieve
+     * @return the oldest records, in order, or an empty list if the journal is empty
+     */
+    public synchronized List<byte[]> peek(int maxRecords) {
+        final List<byte[]> records = new ArrayList<>();
+        getHead();
+        for (Segment segment : segments) {
+            int offset = segment.readOffset;
+            while (offset < segment.writeOffset) {
+                if (records.size() >= maxRecords) {
+                    return records;
+                }
+                final byte[] record = read(segment, offset);
+                records.add(record);
+                offset += Integer.BYTES + record.length;
+            }
+        }
+        return records;
+    }
+
+    private static byte[] read(Segment segment, int offset) {
+        final int length = segment.buffer.getInt(offset);
+        final byte[] record = new byte[length];
+        final ByteBuffer payload = segment.buffer.duplicate();
+        payload.position(offset + Integer.BYTES);
+        payload.get(record);
+        return record;
+    }
+
+    /**
+     * Consumes the oldest record in the journal.
+     *
+     * @return <code>true</code> if a record was consumed, <code>false</code> if the journal is empty
+     */
+    public synchronized boolean remove() {
+        final Segment head = getHead();
+        if (head == null) {
+            return false;
+        }
+        head.readOffset += Integer.BYTES + head.buffer.getInt(head.readOffset);
+        head.buffer.putInt(0, head.readOffset);
+        numRecords--;
+        if (head.isFullyRead()) {
+            segments.removeFirst();
+            delete(head);
+        }
+        return true;
+    }
+
+    /**
+     * Consumes the oldest records in the journal.
+     *
+     * @param count the number of records to consume
+     * @return the number of records that were consumed
+     */
+    public synchronized int remove(int count) {
+        int removed = 0;
+        while (removed < count && remove()) {
+            removed++;
+        }
+        return removed;
+    }
+
+    private Segment getHead() {
+        Segment head = segments.peekFirst();
+        while (head != null && head.isFullyRead()) {
+            segments.removeFirst();
+            delete(head);
+            head = segments.peekFirst();
+        }
+        return head;
+    }
+
+    public synchronized boolean isEmpty() {
+        return numRecords == 0;
+    }
+
+    /**
+     * @return the number of records that have not been consumed yet
+     */
+    public synchronized long size() {
+        return numRecords;
+    }
+
+    /**
+     * @return the disk space used by the segments, in bytes
+     */
+    public synchronized long getDiskUsage() {
+        return (long)segments.size() * segmentSize;
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+        segments.clear();
+    }
+}
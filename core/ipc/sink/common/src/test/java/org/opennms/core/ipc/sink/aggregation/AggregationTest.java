@@ -109,6 +109,20 @@ public class AggregationTest {
         }
     }
 
+    @Test
+    public void aggregateBatchWithoutInterval() throws Exception {
+        SinkModuleWithAggregateNoInterval aggregatingSinkModule = new SinkModuleWithAggregateNoInterval();
+        try(SyncDispatcher<UDPPacket> dispatcher = capturingMessageDispatcherFactory.createSyncDispatcher(aggregatingSinkModule)) {
+            final List<UDPPacket> packets = new ArrayList<>();
+            for (byte i = 0; i < 10 * COMPLETION_SIZE + 1; i++) {
+                packets.add(new UDPPacket(localhost, ByteBuffer.wrap(new byte[]{(byte)i})));
+            }
+            dispatcher.sendAll(packets);
+            // The messages should have been aggregated, leaving the last one in the bucket
+            assertEquals(10, dispatchedMessages.size());
+        }
+    }
+
     @Test
     public void aggregateWithInterval() throws Exception {
         SinkModuleWithAggregateAndInterval aggregatingSinkModule = new SinkModuleWithAggregateAndInterval();
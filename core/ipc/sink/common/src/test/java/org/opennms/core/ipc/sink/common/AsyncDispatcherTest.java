@@ -33,6 +33,7 @@ import static java.util.concurrent.TimeUnit.MINUTES;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.greaterThan;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import static org.mockito.Mockito.*;
@@ -202,4 +203,67 @@ public class AsyncDispatcherTest {
 
         asyncDispatcher.close();
     }
+
+    @Test(timeout=3*60*1000)
+    public void testRingBufferRejectedWhenFull() throws Exception {
+        // The ring buffer is sized to the next power of 2
+        final int ringBufferSize = 64;
+        when(module.getAsyncPolicy()).thenReturn(new AsyncPolicy() {
+            @Override
+            public int getQueueSize() {
+                return ringBufferSize;
+            }
+
+            @Override
+            public int getNumThreads() {
+                return 1;
+            }
+
+            @Override
+            public boolean isBlockWhenFull() {
+                return false;
+            }
+
+            @Override
+            public DispatchMode getDispatchMode() {
+                return DispatchMode.RING_BUFFER;
+            }
+        });
+        final AsyncDispatcher<MyMessage> asyncDispatcher = threadLockingDispatcherFactory.createAsyncDispatcher(module);
+        assertTrue(asyncDispatcher instanceof RingBufferAsyncDispatcherImpl);
+
+        final AtomicBoolean allThreadsLocked = new AtomicBoolean(false);
+        ThreadLockingSyncDispatcher<MyMessage> threadLockingSyncDispatcher = threadLockingDispatcherFactory.getThreadLockingSyncDispatcher();
+        threadLockingSyncDispatcher.waitForThreads(1).thenRun(() -> {
+            allThreadsLocked.set(true);
+        });
+
+        // Slots are only released once the batch they are part of was dispatched,
+        // so the locked thread keeps the whole ring buffer occupied
+        final List<CompletableFuture<MyMessage>> futures = new ArrayList<>();
+        for (int i = 0; i < ringBufferSize; i++) {
+            futures.add(asyncDispatcher.send(new MyMessage()));
+        }
+        await().atMost(1, MINUTES).until(() -> allThreadsLocked.get());
+        assertEquals(ringBufferSize, asyncDispatcher.getQueueSize());
+
+        // The next dispatch should return a failed future
+        CompletableFuture<MyMessage> future = asyncDispatcher.send(new MyMessage());
+        assertTrue("future should have failed!", future.isCompletedExceptionally());
+
+        // Release the threads!
+        threadLockingSyncDispatcher.release();
+        // Wait for the queue to be drained
+        await().atMost(1, MINUTES).until(() -> asyncDispatcher.getQueueSize(), equalTo(0));
+        await().atMost(1, MINUTES).until(() -> threadLockingDispatcherFactory.getNumMessageDispatched(),
+                equalTo(ringBufferSize));
+
+        // All of our futures should be successfully resolved
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[]{})).get();
+        for (CompletableFuture<MyMessage> f : futures) {
+            assertFalse(f.isCompletedExceptionally());
+        }
+
+        asyncDispatcher.close();
+    }
 }
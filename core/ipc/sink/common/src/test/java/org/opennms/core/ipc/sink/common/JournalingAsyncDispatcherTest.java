@@ -0,0 +1,334 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.core.ipc.sink.common;
+
+import static com.jayway.awaitility.Awaitility.await;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.opennms.core.ipc.sink.api.AsyncDispatcher;
+import org.opennms.core.ipc.sink.api.AsyncPolicy;
+import org.opennms.core.ipc.sink.api.Message;
+import org.opennms.core.ipc.sink.api.SinkModule;
+
+@RunWith(MockitoJUnitRunner.class)
+public class JournalingAsyncDispatcherTest {
+
+    private static final int QUEUE_SIZE = 10;
+
+    private static final int SEGMENT_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Mock
+    private SinkModule<MyMessage, MyMessage> module;
+
+    private static class MyMessage implements Message {
+        private final int id;
+
+        private MyMessage(int id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * An async dispatcher whose queue size is set by the test.
+     */
+    private static class StubAsyncDispatcher implements AsyncDispatcher<MyMessage> {
+        private final List<MyMessage> sent = Collections.synchronizedList(new ArrayList<>());
+        private volatile int queueSize = QUEUE_SIZE;
+
+        @Override
+        public CompletableFuture<MyMessage> send(MyMessage message) {
+            sent.add(message);
+            return CompletableFuture.completedFuture(message);
+        }
+
+        @Override
+        public int getQueueSize() {
+            return queueSize;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Records the replayed messages, and fails while the broker is down.
+     */
+    private static class RecordingDispatcher implements Consumer<MyMessage> {
+        private final List<Integer> dispatched = Collections.synchronizedList(new ArrayList<>());
+        private final Map<Integer, AtomicInteger> attempts = new ConcurrentHashMap<>();
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicInteger maxActive = new AtomicInteger();
+        private volatile boolean brokerDown = false;
+        private volatile int failuresPerMessage = 0;
+        private volatile long dispatchTimeMs = 0;
+
+        @Override
+        public void accept(MyMessage message) {
+            final int attempt = attempts.computeIfAbsent(message.id, id -> new AtomicInteger()).incrementAndGet();
+            if (brokerDown || attempt <= failuresPerMessage) {
+                throw new IllegalStateException("broker down");
+            }
+            final int nowActive = active.incrementAndGet();
+            maxActive.accumulateAndGet(nowActive, Math::max);
+            try {
+                Thread.sleep(dispatchTimeMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                active.decrementAndGet();
+            }
+            dispatched.add(message.id);
+        }
+    }
+
+    private final StubAsyncDispatcher delegate = new StubAsyncDispatcher();
+
+    private final RecordingDispatcher dispatcher = new RecordingDispatcher();
+
+    private DispatcherState<Void, MyMessage, MyMessage> state;
+
+    private JournalingAsyncDispatcher<Void, MyMessage, MyMessage> journalingDispatcher;
+
+    @Before
+    public void setUp() {
+        when(module.getId()).thenReturn("test");
+        when(module.marshal(any(MyMessage.class))).thenAnswer(invocation -> Integer.toString(((MyMessage)invocation.getArguments()[0]).id));
+        when(module.unmarshal(anyString())).thenAnswer(invocation -> new MyMessage(Integer.parseInt((String)invocation.getArguments()[0])));
+        state = new DispatcherState<>(new AbstractMessageDispatcherFactory<Void>() {
+            @Override
+            public <S extends Message, T extends Message> void dispatch(SinkModule<S, T> module, Void metadata, T message) {
+                throw new IllegalStateException();
+            }
+        }, module);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (journalingDispatcher != null) {
+            journalingDispatcher.close();
+        }
+    }
+
+    @Test(timeout=60000)
+    public void messagesAreSpilledOnlyWhenTheQueueIsFull() throws Exception {
+        dispatcher.brokerDown = true;
+        delegate.queueSize = 0;
+        create(newJournal(16 * SEGMENT_SIZE), 1, 8, true);
+
+        assertTrue(journalingDispatcher.send(new MyMessage(0)).isDone());
+        assertEquals(1, delegate.sent.size());
+
+        delegate.queueSize = QUEUE_SIZE;
+        final CompletableFuture<MyMessage> future = journalingDispatcher.send(new MyMessage(1));
+        assertTrue(future.isDone());
+        assertFalse(future.isCompletedExceptionally());
+        assertEquals(1, delegate.sent.size());
+        assertEquals(QUEUE_SIZE + 1, journalingDispatcher.getQueueSize());
+
+        // New messages keep going to the journal until it was drained, even if the queue has room
+        delegate.queueSize = 0;
+        journalingDispatcher.send(new MyMessage(2));
+        assertEquals(1, delegate.sent.size());
+        assertEquals(2, getCount("spilled"));
+    }
+
+    @Test(timeout=60000)
+    public void spilledMessagesAreReplayedInOrder() throws Exception {
+        dispatcher.brokerDown = true;
+        create(newJournal(16 * SEGMENT_SIZE), 1, 8, true);
+
+        for (int i = 0; i < 100; i++) {
+            journalingDispatcher.send(new MyMessage(i));
+        }
+        delegate.queueSize = 0;
+        for (int i = 100; i < 110; i++) {
+            journalingDispatcher.send(new MyMessage(i));
+        }
+        assertEquals(0, delegate.sent.size());
+        assertEquals(110, getCount("spilled"));
+
+        // The broker is back
+        dispatcher.brokerDown = false;
+        await().atMost(1, MINUTES).until(() -> journalingDispatcher.getQueueSize(), equalTo(0));
+
+        final List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 110; i++) {
+            expected.add(i);
+        }
+        assertEquals(expected, dispatcher.dispatched);
+        assertEquals(110, getCount("replayed"));
+
+        // Once the journal was drained, messages go to the queue again
+        journalingDispatcher.send(new MyMessage(110));
+        assertEquals(1, delegate.sent.size());
+    }
+
+    @Test(timeout=60000)
+    public void replayDispatchesConcurrently() throws Exception {
+        // Messages left over from a previous run are replayed on start
+        final SpillJournal journal = newJournal(16 * SEGMENT_SIZE);
+        for (int i = 0; i < 16; i++) {
+            assertTrue(journal.append(Integer.toString(i).getBytes(StandardCharsets.UTF_8)));
+        }
+        dispatcher.dispatchTimeMs = 50;
+        delegate.queueSize = 0;
+        create(journal, 4, 16, true);
+
+        await().atMost(1, MINUTES).until(() -> dispatcher.dispatched.size(), equalTo(16));
+        assertEquals(4, dispatcher.maxActive.get());
+        await().atMost(1, MINUTES).until(() -> journalingDispatcher.getQueueSize(), equalTo(0));
+    }
+
+    @Test(timeout=60000)
+    public void onlyFailedMessagesAreReplayedAgain() throws Exception {
+        dispatcher.failuresPerMessage = 2;
+        create(newJournal(16 * SEGMENT_SIZE), 4, 16, true);
+
+        for (int i = 0; i < 40; i++) {
+            journalingDispatcher.send(new MyMessage(i));
+        }
+        assertEquals(40, getCount("spilled"));
+        delegate.queueSize = 0;
+        await().atMost(1, MINUTES).until(() -> dispatcher.dispatched.size(), equalTo(40));
+        await().atMost(1, MINUTES).until(() -> journalingDispatcher.getQueueSize(), equalTo(0));
+
+        assertEquals(40, new HashSet<>(dispatcher.dispatched).size());
+        for (int i = 0; i < 40; i++) {
+            assertEquals(3, dispatcher.attempts.get(i).get());
+        }
+        assertEquals(40, getCount("replayed"));
+    }
+
+    @Test(timeout=60000)
+    public void messagesAreDiscardedWhenTheJournalIsFull() throws Exception {
+        dispatcher.brokerDown = true;
+        create(newJournal(SEGMENT_SIZE), 1, 8, false);
+
+        CompletableFuture<MyMessage> future;
+        int numSent = 0;
+        do {
+            future = journalingDispatcher.send(new MyMessage(numSent++));
+        } while (!future.isCompletedExceptionally());
+
+        assertEquals(numSent - 1, getCount("spilled"));
+        assertEquals(1, getCount("discarded"));
+        assertEquals(0, delegate.sent.size());
+    }
+
+    @Test(timeout=60000)
+    public void messagesAreQueuedWhenTheJournalIsFullAndThePolicyBlocks() throws Exception {
+        dispatcher.brokerDown = true;
+        create(newJournal(SEGMENT_SIZE), 1, 8, true);
+
+        int numSent = 0;
+        while (delegate.sent.isEmpty()) {
+            assertFalse(journalingDispatcher.send(new MyMessage(numSent++)).isCompletedExceptionally());
+        }
+        assertEquals(numSent - 1, getCount("spilled"));
+        assertEquals(0, getCount("discarded"));
+    }
+
+    @Test(timeout=60000)
+    public void messagesThatWereNotReplayedAreKeptOnClose() throws Exception {
+        dispatcher.brokerDown = true;
+        create(newJournal(16 * SEGMENT_SIZE), 2, 8, true);
+        for (int i = 0; i < 20; i++) {
+            journalingDispatcher.send(new MyMessage(i));
+        }
+        journalingDispatcher.close();
+        journalingDispatcher = null;
+
+        try (SpillJournal journal = newJournal(16 * SEGMENT_SIZE)) {
+            assertEquals(20, journal.size());
+            assertEquals("0", new String(journal.peek(), StandardCharsets.UTF_8));
+        }
+    }
+
+    private SpillJournal newJournal(long maxSize) throws Exception {
+        final Path directory = tempFolder.getRoot().toPath().resolve("journal");
+        return new SpillJournal(directory, SEGMENT_SIZE, maxSize);
+    }
+
+    private void create(SpillJournal journal, int numReplayThreads, int replayBatchSize, boolean blockWhenFull) {
+        final AsyncPolicy asyncPolicy = new AsyncPolicy() {
+            @Override
+            public int getQueueSize() {
+                return QUEUE_SIZE;
+            }
+
+            @Override
+            public int getNumThreads() {
+                return numReplayThreads;
+            }
+
+            @Override
+            public boolean isBlockWhenFull() {
+                return blockWhenFull;
+            }
+        };
+        journalingDispatcher = new JournalingAsyncDispatcher<>(state, asyncPolicy, delegate, journal, dispatcher,
+                numReplayThreads, replayBatchSize);
+    }
+
+    private long getCount(String name) {
+        return state.getMetrics().counter("test.journal." + name).getCount();
+    }
+}
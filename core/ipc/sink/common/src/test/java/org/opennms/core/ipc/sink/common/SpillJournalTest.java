@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.core.ipc.sink.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SpillJournalTest {
+
+    private static final int SEGMENT_SIZE = 1024;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void canAppendAndConsumeInOrder() throws Exception {
+        try (SpillJournal journal = new SpillJournal(tempFolder.getRoot().toPath(), SEGMENT_SIZE, 16 * SEGMENT_SIZE)) {
+            assertTrue(journal.isEmpty());
+            assertNull(journal.peek());
+            assertFalse(journal.remove());
+
+            // Enough records to span multiple segments
+            for (int i = 0; i < 500; i++) {
+                assertTrue(journal.append(record(i)));
+            }
+            assertEquals(500, journal.size());
+            assertTrue(journal.getDiskUsage() > SEGMENT_SIZE);
+
+            for (int i = 0; i < 500; i++) {
+                assertArrayEquals(record(i), journal.peek());
+                // Peeking does not consume
+                assertArrayEquals(record(i), journal.peek());
+                assertTrue(journal.remove());
+            }
+            assertTrue(journal.isEmpty());
+            assertNull(journal.peek());
+            // Consumed segments are deleted
+            assertEquals(0, journal.getDiskUsage());
+        }
+    }
+
+    @Test
+    public void refusesAppendsWhenFull() throws Exception {
+        try (SpillJournal journal = new SpillJournal(tempFolder.getRoot().toPath(), SEGMENT_SIZE, 2 * SEGMENT_SIZE)) {
+            int numAppended = 0;
+            while (journal.append(record(numAppended))) {
+                numAppended++;
+            }
+            assertTrue(numAppended > 0);
+            assertEquals(2 * SEGMENT_SIZE, journal.getDiskUsage());
+
+            // Records that do not fit in a segment are refused
+            assertFalse(journal.append(new byte[SEGMENT_SIZE]));
+
+            // Consuming the first segment makes room for a new one
+            while (journal.getDiskUsage() == 2 * SEGMENT_SIZE) {
+                assertTrue(journal.remove());
+            }
+            assertTrue(journal.append(record(numAppended)));
+        }
+    }
+
+    @Test
+    public void canRecoverUnconsumedRecords() throws Exception {
+        final Path directory = tempFolder.getRoot().toPath();
+        try (SpillJournal journal = new SpillJournal(directory, SEGMENT_SIZE, 16 * SEGMENT_SIZE)) {
+            for (int i = 0; i < 200; i++) {
+                assertTrue(journal.append(record(i)));
+            }
+            for (int i = 0; i < 50; i++) {
+                assertTrue(journal.remove());
+            }
+        }
+
+        try (SpillJournal journal = new SpillJournal(directory, SEGMENT_SIZE, 16 * SEGMENT_SIZE)) {
+            assertEquals(150, journal.size());
+            assertTrue(journal.append(record(200)));
+            for (int i = 50; i <= 200; i++) {
+                assertArrayEquals(record(i), journal.peek());
+                assertTrue(journal.remove());
+            }
+            assertTrue(journal.isEmpty());
+        }
+    }
+
+    @Test
+    public void canPeekAndConsumeInBatches() throws Exception {
+        try (SpillJournal journal = new SpillJournal(tempFolder.getRoot().toPath(), SEGMENT_SIZE, 16 * SEGMENT_SIZE)) {
+            assertTrue(journal.peek(10).isEmpty());
+            assertEquals(0, journal.remove(10));
+
+            // Enough records to span multiple segments
+            for (int i = 0; i < 500; i++) {
+                assertTrue(journal.append(record(i)));
+            }
+
+            int next = 0;
+            while (!journal.isEmpty()) {
+                final List<byte[]> records = journal.peek(64);
+                assertEquals(Math.min(64, 500 - next), records.size());
+                for (byte[] record : records) {
+                    assertArrayEquals(record(next++), record);
+                }
+                assertEquals(records.size(), journal.remove(records.size()));
+            }
+            assertEquals(500, next);
+            assertEquals(0, journal.getDiskUsage());
+        }
+    }
+
+    private static byte[] record(int i) {
+        return ("message-" + i).getBytes(StandardCharsets.UTF_8);
+    }
+}
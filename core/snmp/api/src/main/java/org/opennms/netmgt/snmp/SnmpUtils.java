@@ -66,15 +66,25 @@ public abstract class SnmpUtils {
     }
 
     public static SnmpWalker createWalker(SnmpAgentConfig agentConfig, String name, CollectionTracker... trackers) {
-        return getStrategy().createWalker(agentConfig, name, createTooBigTracker(agentConfig, trackers));
+        return createWalker(agentConfig, name, createTooBigTracker(agentConfig, trackers));
     }
 
-    private static TooBigReportingAggregator createTooBigTracker(SnmpAgentConfig agentConfig, CollectionTracker... trackers) {
+    static TooBigReportingAggregator createTooBigTracker(SnmpAgentConfig agentConfig, CollectionTracker... trackers) {
         return new TooBigReportingAggregator(trackers, agentConfig.getAddress());
     }
     
     public static SnmpWalker createWalker(SnmpAgentConfig agentConfig, String name, CollectionTracker tracker) {
-        return getStrategy().createWalker(agentConfig, name, createTooBigTracker(agentConfig, tracker));
+        return createWalker(agentConfig, name, createTooBigTracker(agentConfig, tracker));
+    }
+
+    private static SnmpWalker createWalker(SnmpAgentConfig agentConfig, String name, TooBigReportingAggregator tracker) {
+        if (SnmpWalkCoalescer.isEnabled()) {
+            final SnmpWalker walker = SnmpWalkCoalescer.getInstance().createWalker(agentConfig, name, tracker);
+            if (walker != null) {
+                return walker;
+            }
+        }
+        return getStrategy().createWalker(agentConfig, name, tracker);
     }
 
     private static TooBigReportingAggregator createTooBigTracker(SnmpAgentConfig agentConfig, CollectionTracker tracker) {
@@ -0,0 +1,362 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.snmp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opennms.netmgt.snmp.proxy.WalkRequest;
+import org.opennms.netmgt.snmp.proxy.WalkResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Merges concurrent walks of the same columns on the same agent.
+ *
+ * Pollers, collectors and enlinkd often walk the same tables (i.e. ifTable and
+ * ifXTable) of the same agents at the same time. When a walk is requested
+ * while another walk of the same column, or of a subtree containing it, is
+ * still in progress, the results of the latter are shared instead of issuing
+ * a second SNMP exchange. The columns that are not being walked yet are
+ * fetched together, using a single walker.
+ *
+ * The results are handed to the trackers using
+ * {@link CollectionTracker#handleWalkResponses(List)}, the same way as
+ * for walks proxied through a Minion. Only trackers that walk whole columns
+ * are coalesced; the others are walked as usual.
+ *
+ * Enabled by setting org.opennms.snmp.coalesceWalks to true.
+ */
+public class SnmpWalkCoalescer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SnmpWalkCoalescer.class);
+
+    public static final String ENABLED_PROPERTY = "org.opennms.snmp.coalesceWalks";
+
+    private static final SnmpWalkCoalescer s_instance = new SnmpWalkCoalescer();
+
+    private final Map<ColumnKey, CompletableFuture<List<SnmpResult>>> m_inFlight = new HashMap<>();
+
+    private final AtomicLong m_walks = new AtomicLong();
+
+    private final AtomicLong m_columns = new AtomicLong();
+
+    private final AtomicLong m_columnsShared = new AtomicLong();
+
+    private final AtomicLong m_exchanges = new AtomicLong();
+
+    public static boolean isEnabled() {
+        return Boolean.getBoolean(ENABLED_PROPERTY);
+    }
+
+    public static SnmpWalkCoalescer getInstance() {
+        return s_instance;
+    }
+
+    /**
+     * Creates a walker that shares the results of the walks in progress with the given tracker.
+     *
+     * @return the walker, or null if the tracker cannot be coalesced
+     */
+    public SnmpWalker createWalker(SnmpAgentConfig agentConfig, String name, CollectionTracker tracker) {
+        final List<WalkRequest> requests = tracker.getWalkRequests();
+        if (requests.isEmpty() || requests.stream().anyMatch(r -> r.getInstance() != null)) {
+            return null;
+        }
+        return new CoalescedWalker(agentConfig, name, tracker, requests);
+    }
+
+    /**
+     * @return the number of walks that went through the coalescer
+     */
+    public long getWalks() {
+        return m_walks.get();
+    }
+
+    /**
+     * @return the number of columns requested by these walks
+     */
+    public long getColumns() {
+        return m_columns.get();
+    }
+
+    /**
+     * @return the number of columns that were served from a walk already in progress
+     */
+    public long getColumnsShared() {
+        return m_columnsShared.get();
+    }
+
+    /**
+     * @return the number of walks actually sent to the agents
+     */
+    public long getExchanges() {
+        return m_exchanges.get();
+    }
+
+    /**
+     * @return the number of walks saved by merging them
+     */
+    public long getRequestsSaved() {
+        return m_walks.get() - m_exchanges.get();
+    }
+
+    /**
+     * Returns the results of every requested column, starting a single walk for the ones not in progress yet.
+     */
+    private Map<WalkRequest, CompletableFuture<List<SnmpResult>>> join(SnmpAgentConfig agentConfig, String name, List<WalkRequest> requests) {
+        final Map<WalkRequest, CompletableFuture<List<SnmpResult>>> futures = new LinkedHashMap<>();
+        final Map<SnmpObjId, CompletableFuture<List<SnmpResult>>> started = new LinkedHashMap<>();
+        int maxRepetitions = 1;
+
+        synchronized (m_inFlight) {
+            for (final WalkRequest request : requests) {
+                final SnmpObjId base = request.getBaseOid();
+
+                CompletableFuture<List<SnmpResult>> future = findCovering(agentConfig, base);
+                if (future != null) {
+                    m_columnsShared.incrementAndGet();
+                } else {
+                    future = new CompletableFuture<>();
+                    m_inFlight.put(new ColumnKey(agentConfig, base), future);
+                    started.put(base, future);
+                    maxRepetitions = Math.max(maxRepetitions, request.getMaxRepetitions());
+                }
+                futures.put(request, future);
+            }
+        }
+
+        m_walks.incrementAndGet();
+        m_columns.addAndGet(requests.size());
+        if (!started.isEmpty()) {
+            walk(agentConfig, name, started, maxRepetitions);
+        }
+        LOG.debug("Walking {} of the {} columns requested by {} for {}, the others are already in progress. {} walks saved so far.",
+                started.size(), requests.size(), name, agentConfig.getAddress(), getRequestsSaved());
+        return futures;
+    }
+
+    private CompletableFuture<List<SnmpResult>> findCovering(SnmpAgentConfig agentConfig, SnmpObjId base) {
+        for (int length = base.length(); length > 0; length--) {
+            final SnmpObjId prefix = length == base.length() ? base : base.getPrefix(length);
+            final CompletableFuture<List<SnmpResult>> future = m_inFlight.get(new ColumnKey(agentConfig, prefix));
+            if (future != null) {
+                return future;
+            }
+        }
+        return null;
+    }
+
+    private void walk(SnmpAgentConfig agentConfig, String name, Map<SnmpObjId, CompletableFuture<List<SnmpResult>>> columns, int maxRepetitions) {
+        final Map<SnmpObjId, List<SnmpResult>> results = new HashMap<>();
+        final List<CollectionTracker> trackers = new ArrayList<>(columns.size());
+        for (final SnmpObjId base : columns.keySet()) {
+            final List<SnmpResult> columnResults = new ArrayList<>();
+            results.put(base, columnResults);
+            trackers.add(new ColumnTracker(base, maxRepetitions) {
+                @Override
+                protected void storeResult(SnmpResult res) {
+                    columnResults.add(res);
+                }
+            });
+        }
+
+        m_exchanges.incrementAndGet();
+        final SnmpWalker walker;
+        try {
+            walker = SnmpUtils.getStrategy().createWalker(agentConfig, name,
+                    SnmpUtils.createTooBigTracker(agentConfig, trackers.toArray(new CollectionTracker[trackers.size()])));
+        } catch (RuntimeException e) {
+            completed(agentConfig, columns);
+            columns.values().forEach(f -> f.completeExceptionally(e));
+            throw e;
+        }
+        walker.setCallback((w, t) -> {
+            completed(agentConfig, columns);
+
+            for (final Map.Entry<SnmpObjId, CompletableFuture<List<SnmpResult>>> column : columns.entrySet()) {
+                if (t == null) {
+                    column.getValue().complete(results.get(column.getKey()));
+                } else if (w.timedOut()) {
+                    column.getValue().completeExceptionally(new TimeoutException(w.getErrorMessage()));
+                } else {
+                    column.getValue().completeExceptionally(t);
+                }
+            }
+            w.close();
+        });
+        walker.start();
+    }
+
+    private void completed(SnmpAgentConfig agentConfig, Map<SnmpObjId, CompletableFuture<List<SnmpResult>>> columns) {
+        synchronized (m_inFlight) {
+            for (final Map.Entry<SnmpObjId, CompletableFuture<List<SnmpResult>>> column : columns.entrySet()) {
+                m_inFlight.remove(new ColumnKey(agentConfig, column.getKey()), column.getValue());
+            }
+        }
+    }
+
+    /**
+     * Returns the results under the given base, relative to it.
+     */
+    private static List<SnmpResult> rebase(SnmpObjId base, List<SnmpResult> results) {
+        final List<SnmpResult> rebased = new ArrayList<>();
+        for (final SnmpResult result : results) {
+            if (result.getBase().equals(base)) {
+                rebased.add(result);
+                continue;
+            }
+            final SnmpObjId oid = result.getAbsoluteInstance();
+            if (base.isPrefixOf(oid) && !base.equals(oid)) {
+                rebased.add(new SnmpResult(base, oid.getInstance(base), result.getValue()));
+            }
+        }
+        return rebased;
+    }
+
+    private class CoalescedWalker extends SnmpWalker {
+        private final SnmpAgentConfig m_agentConfig;
+        private final CollectionTracker m_tracker;
+        private final List<WalkRequest> m_requests;
+
+        private CoalescedWalker(SnmpAgentConfig agentConfig, String name, CollectionTracker tracker, List<WalkRequest> requests) {
+            super(agentConfig.getAddress(), name, agentConfig.getMaxVarsPerPdu(), agentConfig.getMaxRepetitions(), tracker);
+            m_agentConfig = agentConfig;
+            m_tracker = tracker;
+            m_requests = requests;
+        }
+
+        @Override
+        public void start() {
+            final Map<WalkRequest, CompletableFuture<List<SnmpResult>>> futures;
+            try {
+                futures = join(m_agentConfig, getName(), m_requests);
+            } catch (Throwable t) {
+                handleFatalError(t);
+                return;
+            }
+
+            CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[futures.size()])).whenComplete((v, ex) -> {
+                if (ex != null) {
+                    final Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+                    if (cause instanceof TimeoutException) {
+                        handleTimeout(cause.getMessage());
+                    } else {
+                        handleError(getName() + ": " + cause.getMessage(), cause);
+                    }
+                    return;
+                }
+
+                try {
+                    final List<WalkResponse> responses = new ArrayList<>(futures.size());
+                    for (final Map.Entry<WalkRequest, CompletableFuture<List<SnmpResult>>> entry : futures.entrySet()) {
+                        final WalkRequest request = entry.getKey();
+                        responses.add(new WalkResponse(rebase(request.getBaseOid(), entry.getValue().join()), request.getCorrelationId()));
+                    }
+                    m_tracker.handleWalkResponses(responses);
+                    handleDone();
+                } catch (Throwable t) {
+                    handleFatalError(t);
+                }
+            });
+        }
+
+        /**
+         * The PDUs are built and sent by the underlying walks, so there is
+         * nothing to build here.
+         */
+        @Override
+        protected WalkerPduBuilder createPduBuilder(int maxVarsPerPdu) {
+            return new WalkerPduBuilder(maxVarsPerPdu) {
+                @Override
+                public void reset() {
+                }
+
+                @Override
+                public void addOid(SnmpObjId snmpObjId) {
+                }
+
+                @Override
+                public void setNonRepeaters(int numNonRepeaters) {
+                }
+
+                @Override
+                public void setMaxRepetitions(int maxRepetitions) {
+                }
+            };
+        }
+
+        @Override
+        protected void sendNextPdu(WalkerPduBuilder pduBuilder) {
+            // The underlying walks send the PDUs, see start()
+        }
+
+        @Override
+        public void close() {
+            // The underlying walks are closed once they complete
+        }
+    }
+
+    private static class ColumnKey {
+        private final SnmpAgentConfig m_agentConfig;
+        private final SnmpObjId m_base;
+
+        private ColumnKey(SnmpAgentConfig agentConfig, SnmpObjId base) {
+            m_agentConfig = agentConfig;
+            m_base = base;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(m_agentConfig, m_base);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof ColumnKey)) {
+                return false;
+            }
+            final ColumnKey other = (ColumnKey) obj;
+            return Objects.equals(m_agentConfig, other.m_agentConfig)
+                    && Objects.equals(m_base, other.m_base);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.snmp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Learns the number of repetitions and of variables per PDU that work best
+ * when walking a given agent.
+ *
+ * Starting from the configured values, the repetitions and the variables per
+ * PDU are raised while the agent keeps answering quickly. The repetitions are
+ * lowered when the round trips get slow, when a request times out or when the
+ * agent answers with a tooBig error; the variables per PDU are only lowered
+ * once the repetitions reached 1. Timeouts never lower the variables per PDU,
+ * since an agent that does not answer at all says nothing about the size of
+ * the requests, and a short outage would otherwise leave it with tiny PDUs.
+ *
+ * The learned profiles are periodically written to a properties file, so
+ * that they survive restarts.
+ *
+ * Enabled by setting org.opennms.snmp.adaptiveWalk to true.
+ */
+public class SnmpWalkProfiles {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SnmpWalkProfiles.class);
+
+    public static final String ENABLED_PROPERTY = "org.opennms.snmp.adaptiveWalk";
+
+    public static final String FILE_PROPERTY = "org.opennms.snmp.adaptiveWalk.profiles";
+
+    public static final String TARGET_RTT_PROPERTY = "org.opennms.snmp.adaptiveWalk.targetRtt";
+
+    public static final String MAX_REPETITIONS_PROPERTY = "org.opennms.snmp.adaptiveWalk.maxRepetitions";
+
+    public static final String MAX_VARS_PER_PDU_PROPERTY = "org.opennms.snmp.adaptiveWalk.maxVarsPerPdu";
+
+    /**
+     * Number of consecutive fast (or slow) responses required before growing (or shrinking) the PDUs.
+     */
+    private static final int GROWTH_STREAK = 3;
+
+    private static final long SAVE_INTERVAL_MS = TimeUnit.MINUTES.toMillis(5);
+
+    private static SnmpWalkProfiles s_instance;
+
+    private final Map<InetAddress, Profile> m_profiles = new ConcurrentHashMap<>();
+
+    private final Path m_file;
+
+    private final long m_targetRttMs;
+
+    private final int m_repetitionsLimit;
+
+    private final int m_varsPerPduLimit;
+
+    private volatile boolean m_dirty = false;
+
+    public static boolean isEnabled() {
+        return Boolean.getBoolean(ENABLED_PROPERTY);
+    }
+
+    public static synchronized SnmpWalkProfiles getInstance() {
+        if (s_instance == null) {
+            s_instance = new SnmpWalkProfiles(getDefaultFile(),
+                    Long.getLong(TARGET_RTT_PROPERTY, 500),
+                    Integer.getInteger(MAX_REPETITIONS_PROPERTY, 100),
+                    Integer.getInteger(MAX_VARS_PER_PDU_PROPERTY, 50));
+            s_instance.load();
+
+            if (s_instance.m_file != null) {
+                final ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor(r -> {
+                    final Thread thread = new Thread(r, "SNMP-Walk-Profile-Saver");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                saver.scheduleWithFixedDelay(s_instance::saveIfDirty, SAVE_INTERVAL_MS, SAVE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+        return s_instance;
+    }
+
+    private static Path getDefaultFile() {
+        final String file = System.getProperty(FILE_PROPERTY);
+        if (file != null) {
+            return Paths.get(file);
+        }
+        final String home = System.getProperty("opennms.home");
+        if (home != null) {
+            return Paths.get(home, "share", "snmp-walk-profiles.properties");
+        }
+        return null;
+    }
+
+    /**
+     * @param file where the profiles are persisted, or null to keep them in memory only
+     * @param targetRttMs round trip time above which the PDUs are shrunk
+     * @param repetitionsLimit upper bound for the learned repetitions
+     * @param varsPerPduLimit upper bound for the learned variables per PDU
+     */
+    public SnmpWalkProfiles(Path file, long targetRttMs, int repetitionsLimit, int varsPerPduLimit) {
+        m_file = file;
+        m_targetRttMs = targetRttMs;
+        m_repetitionsLimit = Math.max(1, repetitionsLimit);
+        m_varsPerPduLimit = Math.max(1, varsPerPduLimit);
+    }
+
+    /**
+     * Returns the profile of the given agent, seeding it with the configured values if the agent is unknown.
+     */
+    public Profile getProfile(InetAddress address, int maxVarsPerPdu, int maxRepetitions) {
+        return m_profiles.computeIfAbsent(address, a -> new Profile(
+                clamp(maxRepetitions, m_repetitionsLimit),
+                clamp(maxVarsPerPdu, m_varsPerPduLimit),
+                0));
+    }
+
+    public void load() {
+        if (m_file == null || !Files.isReadable(m_file)) {
+            return;
+        }
+
+        final Properties props = new Properties();
+        try (InputStream in = Files.newInputStream(m_file)) {
+            props.load(in);
+        } catch (IOException e) {
+            LOG.warn("Failed to read the SNMP walk profiles from {}.", m_file, e);
+            return;
+        }
+
+        for (final String key : props.stringPropertyNames()) {
+            try {
+                final String[] values = props.getProperty(key).split(",");
+                m_profiles.put(InetAddrUtils.addr(key), new Profile(
+                        clamp(Integer.parseInt(values[0].trim()), m_repetitionsLimit),
+                        clamp(Integer.parseInt(values[1].trim()), m_varsPerPduLimit),
+                        Double.parseDouble(values[2].trim())));
+            } catch (RuntimeException e) {
+                LOG.warn("Ignoring invalid SNMP walk profile {}={}.", key, props.getProperty(key));
+            }
+        }
+        LOG.debug("Loaded {} SNMP walk profiles from {}.", m_profiles.size(), m_file);
+    }
+
+    public synchronized void save() throws IOException {
+        if (m_file == null) {
+            return;
+        }
+
+        final Properties props = new Properties();
+        for (final Map.Entry<InetAddress, Profile> entry : m_profiles.entrySet()) {
+            props.setProperty(InetAddrUtils.str(entry.getKey()), entry.getValue().toString());
+        }
+
+        // Write to a temporary file first, so that a crash never leaves a truncated file behind
+        if (m_file.getParent() != null) {
+            Files.createDirectories(m_file.getParent());
+        }
+        final Path tmp = m_file.resolveSibling(m_file.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            props.store(out, "Learned SNMP walk profiles: repetitions, variables per PDU, smoothed round trip time (ms)");
+        }
+        Files.move(tmp, m_file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        m_dirty = false;
+    }
+
+    private void saveIfDirty() {
+        if (!m_dirty) {
+            return;
+        }
+        try {
+            save();
+        } catch (IOException e) {
+            LOG.warn("Failed to write the SNMP walk profiles to {}.", m_file, e);
+        }
+    }
+
+    private static int clamp(int value, int limit) {
+        return Math.max(1, Math.min(value, limit));
+    }
+
+    public class Profile {
+        private int m_maxRepetitions;
+        private int m_maxVarsPerPdu;
+        private double m_smoothedRtt;
+        private int m_streak = 0;
+
+        private Profile(int maxRepetitions, int maxVarsPerPdu, double smoothedRtt) {
+            m_maxRepetitions = maxRepetitions;
+            m_maxVarsPerPdu = maxVarsPerPdu;
+            m_smoothedRtt = smoothedRtt;
+        }
+
+        public synchronized int getMaxRepetitions() {
+            return m_maxRepetitions;
+        }
+
+        public synchronized int getMaxVarsPerPdu() {
+            return m_maxVarsPerPdu;
+        }
+
+        public synchronized double getSmoothedRtt() {
+            return m_smoothedRtt;
+        }
+
+        /**
+         * Records a successful round trip.
+         *
+         * @param rttMs the round trip time
+         * @param full whether the response was as large as the request allowed,
+         *        i.e. whether larger requests would have saved round trips
+         */
+        public synchronized void onResponse(long rttMs, boolean full) {
+            m_smoothedRtt = m_smoothedRtt == 0 ? rttMs : 0.875 * m_smoothedRtt + 0.125 * rttMs;
+
+            // Use streaks in both directions, so that a single outlier does not resize the PDUs
+            if (m_smoothedRtt > m_targetRttMs) {
+                m_streak = Math.min(m_streak, 0);
+                if (--m_streak <= -GROWTH_STREAK) {
+                    m_streak = 0;
+                    shrink(0.75);
+                }
+            } else if (full) {
+                m_streak = Math.max(m_streak, 0);
+                if (++m_streak >= GROWTH_STREAK) {
+                    m_streak = 0;
+                    grow();
+                }
+            }
+            m_dirty = true;
+        }
+
+        public synchronized void onTooBig() {
+            m_streak = 0;
+            shrink(0.5);
+            m_dirty = true;
+        }
+
+        public synchronized void onTimeout() {
+            m_streak = 0;
+            m_maxRepetitions = Math.max(1, m_maxRepetitions / 2);
+            m_dirty = true;
+        }
+
+        private void grow() {
+            if (m_maxRepetitions < m_repetitionsLimit) {
+                m_maxRepetitions = Math.min(m_repetitionsLimit, Math.max(m_maxRepetitions + 1, m_maxRepetitions * 3 / 2));
+            }
+            // The variables grow back on their own, slowly, rather than waiting for the repetitions to reach their limit
+            if (m_maxVarsPerPdu < m_varsPerPduLimit) {
+                m_maxVarsPerPdu++;
+            }
+        }
+
+        private void shrink(double factor) {
+            if (m_maxRepetitions > 1) {
+                m_maxRepetitions = Math.max(1, (int)(m_maxRepetitions * factor));
+            } else {
+                m_maxVarsPerPdu = Math.max(1, (int)(m_maxVarsPerPdu * factor));
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            return m_maxRepetitions + "," + m_maxVarsPerPdu + "," + Math.round(m_smoothedRtt);
+        }
+    }
+}
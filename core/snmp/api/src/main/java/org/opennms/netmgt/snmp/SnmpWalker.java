@@ -58,6 +58,10 @@ public abstract class SnmpWalker implements AutoCloseable {
 
     private SnmpWalkCallback m_callback;
 
+    private final SnmpWalkProfiles.Profile m_profile;
+    private long m_sentAt = 0;
+    private long m_rtt = -1;
+
     protected SnmpWalker(InetAddress address, String name, int maxVarsPerPdu, int maxRepetitions, CollectionTracker tracker) {
         m_address = address;
         m_signal = new CountDownLatch(1);
@@ -65,6 +69,15 @@ public abstract class SnmpWalker implements AutoCloseable {
         m_name = name;
 
         m_tracker = tracker;
+
+        if (SnmpWalkProfiles.isEnabled()) {
+            m_profile = SnmpWalkProfiles.getInstance().getProfile(address, maxVarsPerPdu, maxRepetitions);
+            maxVarsPerPdu = m_profile.getMaxVarsPerPdu();
+            maxRepetitions = m_profile.getMaxRepetitions();
+        } else {
+            m_profile = null;
+        }
+
         m_tracker.setMaxRepetitions(maxRepetitions);
         
         m_maxVarsPerPdu = maxVarsPerPdu;
@@ -96,11 +109,18 @@ public abstract class SnmpWalker implements AutoCloseable {
     }
 
     protected void buildAndSendNextPdu() throws IOException {
+        if (m_profile != null && m_rtt >= 0) {
+            // Only count the responses that allowed the walk to make progress
+            m_profile.onResponse(m_rtt, !m_tracker.isFinished());
+            m_rtt = -1;
+        }
+
         if (m_tracker.isFinished()) {
             handleDone();
         } else {
             m_pduBuilder.reset();
             m_responseProcessor = m_tracker.buildNextPdu(m_pduBuilder);
+            m_sentAt = System.nanoTime();
             sendNextPdu(m_pduBuilder);
         }
     }
@@ -147,6 +167,9 @@ public abstract class SnmpWalker implements AutoCloseable {
     }
     
     protected void handleTimeout(String msg) {
+        if (m_profile != null) {
+            m_profile.onTimeout();
+        }
         m_tracker.setTimedOut(true);
         processError("Timeout retrieving", msg, null);
     }
@@ -208,6 +231,13 @@ public abstract class SnmpWalker implements AutoCloseable {
     
     // processErrors returns true if we need to retry the request and false otherwise
     protected boolean processErrors(int errorStatus, int errorIndex) {
+        if (m_profile != null) {
+            if (ErrorStatus.fromStatus(errorStatus) == ErrorStatus.TOO_BIG) {
+                m_profile.onTooBig();
+            } else if (errorStatus == 0) {
+                m_rtt = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - m_sentAt);
+            }
+        }
         return m_responseProcessor.processErrors(errorStatus, errorIndex);
     }
     
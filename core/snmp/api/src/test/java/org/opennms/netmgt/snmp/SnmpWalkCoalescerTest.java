@@ -0,0 +1,207 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.snmp;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SnmpWalkCoalescerTest {
+
+    private static final SnmpObjId IF_ENTRY = SnmpObjId.get(".1.3.6.1.2.1.2.2.1");
+
+    private static final SnmpObjId IF_DESCR = SnmpObjId.get(".1.3.6.1.2.1.2.2.1.2");
+
+    private static final SnmpObjId IF_TYPE = SnmpObjId.get(".1.3.6.1.2.1.2.2.1.3");
+
+    private final TreeMap<SnmpObjId, SnmpValue> m_agent = new TreeMap<>();
+
+    private final List<MockAgentWalker> m_exchanges = new ArrayList<>();
+
+    private final SnmpAgentConfig m_agentConfig = new SnmpAgentConfig(InetAddrUtils.addr("192.168.1.1"));
+
+    private final SnmpWalkCoalescer m_coalescer = SnmpWalkCoalescer.getInstance();
+
+    @Before
+    public void setUp() {
+        for (int ifIndex = 1; ifIndex <= 3; ifIndex++) {
+            m_agent.put(SnmpObjId.get(IF_DESCR, Integer.toString(ifIndex)), mock(SnmpValue.class));
+            m_agent.put(SnmpObjId.get(IF_TYPE, Integer.toString(ifIndex)), mock(SnmpValue.class));
+        }
+        // Something after the table, to end the walks
+        m_agent.put(SnmpObjId.get(".1.3.6.1.2.1.4.1.0"), mock(SnmpValue.class));
+
+        final SnmpStrategy strategy = mock(SnmpStrategy.class);
+        when(strategy.createWalker(any(SnmpAgentConfig.class), anyString(), any(CollectionTracker.class))).thenAnswer(invocation -> {
+            final SnmpAgentConfig agentConfig = invocation.getArgumentAt(0, SnmpAgentConfig.class);
+            final MockAgentWalker walker = new MockAgentWalker(agentConfig.getAddress(), invocation.getArgumentAt(1, String.class), invocation.getArgumentAt(2, CollectionTracker.class));
+            m_exchanges.add(walker);
+            return walker;
+        });
+        SnmpUtils.setStrategyResolver(() -> strategy);
+        System.setProperty(SnmpWalkCoalescer.ENABLED_PROPERTY, "true");
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty(SnmpWalkCoalescer.ENABLED_PROPERTY);
+        SnmpUtils.unsetStrategyResolver();
+    }
+
+    @Test
+    public void testConcurrentWalksAreMerged() throws Exception {
+        final long exchanges = m_coalescer.getExchanges();
+        final long shared = m_coalescer.getColumnsShared();
+
+        final Map<SnmpObjId, SnmpValue> entries = new TreeMap<>();
+        final Map<SnmpInstId, SnmpValue> descrs = new TreeMap<>();
+
+        try (SnmpWalker entryWalker = SnmpUtils.createWalker(m_agentConfig, "entries", new ColumnTracker(IF_ENTRY) {
+                @Override
+                protected void storeResult(SnmpResult res) {
+                    entries.put(res.getAbsoluteInstance(), res.getValue());
+                }
+            });
+            SnmpWalker descrWalker = SnmpUtils.createWalker(m_agentConfig, "descrs", new ColumnTracker(IF_DESCR) {
+                @Override
+                protected void storeResult(SnmpResult res) {
+                    assertEquals(IF_DESCR, res.getBase());
+                    descrs.put(res.getInstance(), res.getValue());
+                }
+            })) {
+            entryWalker.start();
+            descrWalker.start();
+
+            // The ifDescr column is part of the ifEntry walk in progress
+            assertEquals(1, m_exchanges.size());
+            m_exchanges.get(0).respond();
+
+            entryWalker.waitFor();
+            descrWalker.waitFor();
+            assertEquals(false, entryWalker.failed());
+            assertEquals(false, descrWalker.failed());
+        }
+
+        assertEquals(6, entries.size());
+        assertEquals(3, descrs.size());
+        assertEquals(m_agent.get(SnmpObjId.get(IF_DESCR, "2")), descrs.get(new SnmpInstId(2)));
+        assertEquals(exchanges + 1, m_coalescer.getExchanges());
+        assertEquals(shared + 1, m_coalescer.getColumnsShared());
+
+        // Now that the walk is over, the next one needs its own exchange
+        final List<SnmpValue> types = new ArrayList<>();
+        try (SnmpWalker typeWalker = SnmpUtils.createWalker(m_agentConfig, "types", new ColumnTracker(IF_TYPE) {
+                @Override
+                protected void storeResult(SnmpResult res) {
+                    types.add(res.getValue());
+                }
+            })) {
+            typeWalker.start();
+            assertEquals(2, m_exchanges.size());
+            m_exchanges.get(1).respond();
+            typeWalker.waitFor();
+        }
+        assertEquals(3, types.size());
+    }
+
+    @Test
+    public void testSingleInstancesAreNotCoalesced() {
+        final SnmpWalker walker = SnmpUtils.createWalker(m_agentConfig, "scalar", new SingleInstanceTracker(IF_DESCR, new SnmpInstId(1)));
+        assertEquals(MockAgentWalker.class, walker.getClass());
+    }
+
+    /**
+     * Answers like a GETNEXT, from the values of {@link #m_agent}, but only once {@link #respond()} is called.
+     */
+    private class MockAgentWalker extends SnmpWalker {
+        private final List<SnmpObjId> m_pending = new ArrayList<>();
+
+        private MockAgentWalker(InetAddress address, String name, CollectionTracker tracker) {
+            super(address, name, 10, 1, tracker);
+        }
+
+        @Override
+        protected WalkerPduBuilder createPduBuilder(int maxVarsPerPdu) {
+            return new WalkerPduBuilder(maxVarsPerPdu) {
+                @Override
+                public void reset() {
+                    m_pending.clear();
+                }
+
+                @Override
+                public void addOid(SnmpObjId snmpObjId) {
+                    m_pending.add(snmpObjId);
+                }
+
+                @Override
+                public void setNonRepeaters(int numNonRepeaters) {
+                }
+
+                @Override
+                public void setMaxRepetitions(int maxRepetitions) {
+                }
+            };
+        }
+
+        @Override
+        protected void sendNextPdu(WalkerPduBuilder pduBuilder) {
+            // Wait for respond()
+        }
+
+        private void respond() throws Exception {
+            while (!m_pending.isEmpty()) {
+                final List<SnmpObjId> oids = new ArrayList<>(m_pending);
+                processErrors(0, 0);
+                for (final SnmpObjId oid : oids) {
+                    final Map.Entry<SnmpObjId, SnmpValue> next = m_agent.higherEntry(oid);
+                    processResponse(next.getKey(), next.getValue());
+                }
+                m_pending.clear();
+                buildAndSendNextPdu();
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.snmp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SnmpWalkProfilesTest {
+
+    @Rule
+    public TemporaryFolder m_tempFolder = new TemporaryFolder();
+
+    private final InetAddress m_agent = InetAddrUtils.addr("192.168.1.1");
+
+    @Test
+    public void testGrowsWhileFast() {
+        final SnmpWalkProfiles profiles = new SnmpWalkProfiles(null, 500, 20, 10);
+        final SnmpWalkProfiles.Profile profile = profiles.getProfile(m_agent, 10, 2);
+
+        for (int i = 0; i < 30; i++) {
+            profile.onResponse(10, true);
+        }
+        assertEquals(20, profile.getMaxRepetitions());
+
+        // Responses that complete the walk do not count
+        profile.onTooBig();
+        for (int i = 0; i < 30; i++) {
+            profile.onResponse(10, false);
+        }
+        assertEquals(10, profile.getMaxRepetitions());
+    }
+
+    @Test
+    public void testShrinksOnErrors() {
+        final SnmpWalkProfiles profiles = new SnmpWalkProfiles(null, 500, 100, 10);
+        final SnmpWalkProfiles.Profile profile = profiles.getProfile(m_agent, 10, 8);
+
+        profile.onTooBig();
+        assertEquals(4, profile.getMaxRepetitions());
+        profile.onTimeout();
+        assertEquals(2, profile.getMaxRepetitions());
+        profile.onTimeout();
+        profile.onTimeout();
+        assertEquals(1, profile.getMaxRepetitions());
+        // Timeouts do not shrink the variables per PDU, tooBig errors do
+        assertEquals(10, profile.getMaxVarsPerPdu());
+        profile.onTooBig();
+        assertEquals(1, profile.getMaxRepetitions());
+        assertEquals(5, profile.getMaxVarsPerPdu());
+
+        // A single slow response is tolerated, a streak of them is not
+        final SnmpWalkProfiles.Profile other = profiles.getProfile(InetAddrUtils.addr("192.168.1.2"), 10, 8);
+        other.onResponse(1000, true);
+        assertEquals(8, other.getMaxRepetitions());
+        other.onResponse(1000, true);
+        other.onResponse(1000, true);
+        assertEquals(6, other.getMaxRepetitions());
+    }
+
+    @Test
+    public void testRecoversFromAnOutage() {
+        final SnmpWalkProfiles profiles = new SnmpWalkProfiles(null, 500, 20, 10);
+        final SnmpWalkProfiles.Profile profile = profiles.getProfile(m_agent, 10, 20);
+
+        for (int i = 0; i < 50; i++) {
+            profile.onTimeout();
+        }
+        assertEquals(1, profile.getMaxRepetitions());
+        assertEquals(10, profile.getMaxVarsPerPdu());
+
+        for (int i = 0; i < 30; i++) {
+            profile.onResponse(10, true);
+        }
+        assertEquals(20, profile.getMaxRepetitions());
+    }
+
+    @Test
+    public void testVarsGrowWithTheRepetitions() {
+        final SnmpWalkProfiles profiles = new SnmpWalkProfiles(null, 500, 100, 10);
+        final SnmpWalkProfiles.Profile profile = profiles.getProfile(m_agent, 4, 1);
+
+        for (int i = 0; i < 3; i++) {
+            profile.onResponse(10, true);
+        }
+        assertEquals(2, profile.getMaxRepetitions());
+        assertEquals(5, profile.getMaxVarsPerPdu());
+    }
+
+    @Test
+    public void testPersistence() throws Exception {
+        final Path file = m_tempFolder.getRoot().toPath().resolve("profiles.properties");
+
+        final SnmpWalkProfiles profiles = new SnmpWalkProfiles(file, 500, 100, 10);
+        profiles.getProfile(m_agent, 10, 8).onTooBig();
+        profiles.getProfile(InetAddrUtils.addr("::1"), 7, 3).onResponse(42, true);
+        profiles.save();
+        assertTrue(file.toFile().isFile());
+
+        final SnmpWalkProfiles loaded = new SnmpWalkProfiles(file, 500, 100, 10);
+        loaded.load();
+        assertEquals(4, loaded.getProfile(m_agent, 1, 1).getMaxRepetitions());
+        assertEquals(10, loaded.getProfile(m_agent, 1, 1).getMaxVarsPerPdu());
+        assertEquals(3, loaded.getProfile(InetAddrUtils.addr("::1"), 1, 1).getMaxRepetitions());
+        assertEquals(42.0, loaded.getProfile(InetAddrUtils.addr("::1"), 1, 1).getSmoothedRtt(), 0.1);
+    }
+}
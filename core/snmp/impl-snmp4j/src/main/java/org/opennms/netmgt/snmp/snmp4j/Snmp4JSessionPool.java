@@ -0,0 +1,339 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.snmp.snmp4j;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.snmp4j.MessageDispatcher;
+import org.snmp4j.MessageDispatcherImpl;
+import org.snmp4j.PDU;
+import org.snmp4j.Snmp;
+import org.snmp4j.Target;
+import org.snmp4j.event.ResponseEvent;
+import org.snmp4j.event.ResponseListener;
+import org.snmp4j.mp.MPv1;
+import org.snmp4j.mp.MPv2c;
+import org.snmp4j.transport.DefaultUdpTransportMapping;
+import org.snmp4j.util.MultiThreadedMessageDispatcher;
+import org.snmp4j.util.ThreadPool;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * A small number of long-lived SNMP sessions shared by all of the SNMPv1 and
+ * SNMPv2c requests, instead of opening a new socket and listener thread for
+ * every request.
+ *
+ * Requests to any number of agents are multiplexed over the sessions, and
+ * SNMP4J correlates the responses with the pending requests using their
+ * request IDs. Retries are handled here rather than by SNMP4J, so that they
+ * can be tracked, along with the requests in flight and the timeouts, both
+ * globally and for every agent. The metrics of the least recently used
+ * agents are dropped once more than maxAgentMetrics agents were queried.
+ *
+ * The responses are decoded and handed to the listeners by a pool of
+ * dispatcher threads, so that slow listeners do not hold up the threads
+ * that read from the sockets.
+ *
+ * SNMPv3 requests keep using a dedicated session, since the users are
+ * registered in a USM that is specific to the session.
+ *
+ * Enabled by setting org.opennms.snmp.snmp4j.sessionMode to "shared".
+ */
+public class Snmp4JSessionPool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Snmp4JSessionPool.class);
+
+    public static final String SESSION_MODE_PROPERTY = "org.opennms.snmp.snmp4j.sessionMode";
+
+    public static final String SHARED_SESSION_MODE = "shared";
+
+    public static final String POOL_SIZE_PROPERTY = "org.opennms.snmp.snmp4j.sharedSessions";
+
+    public static final String DISPATCHER_THREADS_PROPERTY = "org.opennms.snmp.snmp4j.dispatcherThreads";
+
+    public static final String MAX_AGENT_METRICS_PROPERTY = "org.opennms.snmp.snmp4j.maxAgentMetrics";
+
+    private static Snmp4JSessionPool s_instance;
+
+    private final Snmp[] m_sessions;
+
+    private final ThreadPool m_dispatcherThreads;
+
+    private final AtomicInteger m_nextSession = new AtomicInteger();
+
+    private final MetricRegistry m_metrics = new MetricRegistry();
+
+    private final Meter m_requests = m_metrics.meter("requests");
+
+    private final Counter m_inFlight = m_metrics.counter("in-flight");
+
+    private final Meter m_retries = m_metrics.meter("retries");
+
+    private final Meter m_timeouts = m_metrics.meter("timeouts");
+
+    /**
+     * The metrics of the most recently used agents, in access order.
+     */
+    private final Map<String, AgentMetrics> m_agents;
+
+    public static boolean isEnabled() {
+        return SHARED_SESSION_MODE.equalsIgnoreCase(System.getProperty(SESSION_MODE_PROPERTY));
+    }
+
+    /**
+     * Whether requests to the given agent should be sent using the shared sessions.
+     */
+    public static boolean isEnabled(Snmp4JAgentConfig agentConfig) {
+        return isEnabled() && !agentConfig.isSnmpV3();
+    }
+
+    public static synchronized Snmp4JSessionPool getInstance() throws IOException {
+        if (s_instance == null) {
+            s_instance = new Snmp4JSessionPool(Integer.getInteger(POOL_SIZE_PROPERTY, 4),
+                                               Integer.getInteger(DISPATCHER_THREADS_PROPERTY, 8),
+                                               Integer.getInteger(MAX_AGENT_METRICS_PROPERTY, 1000));
+        }
+        return s_instance;
+    }
+
+    protected Snmp4JSessionPool(int size, int dispatcherThreads, int maxAgentMetrics) throws IOException {
+        if (size < 1) {
+            throw new IllegalArgumentException("The number of shared sessions must be strictly positive.");
+        }
+        if (dispatcherThreads < 1) {
+            throw new IllegalArgumentException("The number of dispatcher threads must be strictly positive.");
+        }
+
+        m_agents = new LinkedHashMap<String, AgentMetrics>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, AgentMetrics> eldest) {
+                if (size() > maxAgentMetrics) {
+                    eldest.getValue().remove();
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        // One pool of dispatcher threads is shared by all of the sessions
+        m_dispatcherThreads = ThreadPool.create(Snmp4JSessionPool.class.getSimpleName(), dispatcherThreads);
+        m_sessions = new Snmp[size];
+        try {
+            for (int i = 0; i < size; i++) {
+                final MessageDispatcher dispatcher = new MultiThreadedMessageDispatcher(m_dispatcherThreads, new MessageDispatcherImpl());
+                dispatcher.addMessageProcessingModel(new MPv1());
+                dispatcher.addMessageProcessingModel(new MPv2c());
+                m_sessions[i] = new Snmp(dispatcher, new DefaultUdpTransportMapping());
+                m_sessions[i].listen();
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+
+        JmxReporter.forRegistry(m_metrics)
+            .inDomain(Snmp4JSessionPool.class.getPackage().getName())
+            .build()
+            .start();
+
+        LOG.info("Sending SNMPv1 and SNMPv2c requests using {} shared sessions and {} dispatcher threads.", size, dispatcherThreads);
+    }
+
+    /**
+     * Sends the request to the agent, retrying as configured, and notifies the listener
+     * once a response was received or all of the attempts timed out.
+     */
+    public void send(Snmp4JAgentConfig agentConfig, PDU pdu, ResponseListener listener) throws IOException {
+        new PendingRequest(agentConfig, pdu, listener).send();
+    }
+
+    /**
+     * Sends a PDU for which no response is expected, i.e. a trap.
+     */
+    public void send(Snmp4JAgentConfig agentConfig, PDU pdu) throws IOException {
+        m_requests.mark();
+        nextSession().send(pdu, agentConfig.getTarget());
+    }
+
+    public MetricRegistry getMetrics() {
+        return m_metrics;
+    }
+
+    public void close() {
+        for (final Snmp session : m_sessions) {
+            if (session == null) {
+                continue;
+            }
+            try {
+                session.close();
+            } catch (IOException e) {
+                LOG.warn("Failed to close shared SNMP session.", e);
+            }
+        }
+        m_dispatcherThreads.cancel();
+    }
+
+    /**
+     * @return the number of agents whose metrics are currently kept
+     */
+    public int getAgentMetricsCount() {
+        synchronized (m_agents) {
+            return m_agents.size();
+        }
+    }
+
+    private AgentMetrics getAgentMetrics(String agent) {
+        synchronized (m_agents) {
+            AgentMetrics metrics = m_agents.get(agent);
+            if (metrics == null) {
+                metrics = new AgentMetrics(agent);
+                m_agents.put(agent, metrics);
+            }
+            return metrics;
+        }
+    }
+
+    private Snmp nextSession() {
+        return m_sessions[Math.floorMod(m_nextSession.getAndIncrement(), m_sessions.length)];
+    }
+
+    /**
+     * The metrics of a single agent.
+     */
+    private class AgentMetrics {
+        private final Meter m_agentRequests = new Meter();
+        private final Counter m_agentInFlight = new Counter();
+        private final Meter m_agentRetries = new Meter();
+        private final Meter m_agentTimeouts = new Meter();
+
+        /**
+         * Called with the lock on m_agents held.
+         */
+        private AgentMetrics(String agent) {
+            // Replaces the metrics of an earlier entry for the same agent, if any
+            register(agent, "requests", m_agentRequests);
+            register(agent, "in-flight", m_agentInFlight);
+            register(agent, "retries", m_agentRetries);
+            register(agent, "timeouts", m_agentTimeouts);
+        }
+
+        private void register(String agent, String name, Metric metric) {
+            final String fullName = MetricRegistry.name("agents", agent, name);
+            m_metrics.remove(fullName);
+            m_metrics.register(fullName, metric);
+        }
+
+        /**
+         * Called with the lock on m_agents held.
+         */
+        private void remove() {
+            m_metrics.removeMatching((name, metric) -> metric == m_agentRequests
+                    || metric == m_agentInFlight
+                    || metric == m_agentRetries
+                    || metric == m_agentTimeouts);
+        }
+    }
+
+    private class PendingRequest implements ResponseListener {
+        private final Snmp m_session;
+        private final Target m_target;
+        private final PDU m_pdu;
+        private final ResponseListener m_listener;
+        private final String m_agent;
+        private final AgentMetrics m_agentMetrics;
+        private int m_retriesLeft;
+
+        private PendingRequest(Snmp4JAgentConfig agentConfig, PDU pdu, ResponseListener listener) {
+            m_session = nextSession();
+            m_target = agentConfig.getTarget();
+            m_retriesLeft = m_target.getRetries();
+            m_target.setRetries(0);
+            m_pdu = pdu;
+            m_listener = listener;
+            m_agent = agentConfig.getInetAddress().getHostAddress() + "/" + agentConfig.getPort();
+            m_agentMetrics = getAgentMetrics(m_agent);
+        }
+
+        private void send() throws IOException {
+            m_requests.mark();
+            m_agentMetrics.m_agentRequests.mark();
+            m_inFlight.inc();
+            m_agentMetrics.m_agentInFlight.inc();
+            try {
+                m_session.send(m_pdu, m_target, null, this);
+            } catch (IOException | RuntimeException e) {
+                completed();
+                throw e;
+            }
+        }
+
+        @Override
+        public void onResponse(ResponseEvent responseEvent) {
+            // Otherwise SNMP4J keeps the request around
+            m_session.cancel(responseEvent.getRequest(), this);
+            completed();
+
+            if (responseEvent.getResponse() == null && responseEvent.getError() == null) {
+                if (m_retriesLeft-- > 0) {
+                    m_retries.mark();
+                    m_agentMetrics.m_agentRetries.mark();
+                    try {
+                        send();
+                        return;
+                    } catch (IOException | RuntimeException e) {
+                        LOG.warn("Failed to retry SNMP request to {}.", m_agent, e);
+                        m_listener.onResponse(new ResponseEvent(m_session, responseEvent.getPeerAddress(), responseEvent.getRequest(), null, responseEvent.getUserObject(), e));
+                        return;
+                    }
+                }
+                m_timeouts.mark();
+                m_agentMetrics.m_agentTimeouts.mark();
+            }
+            m_listener.onResponse(responseEvent);
+        }
+
+        private void completed() {
+            m_inFlight.dec();
+            m_agentMetrics.m_agentInFlight.dec();
+        }
+    }
+}
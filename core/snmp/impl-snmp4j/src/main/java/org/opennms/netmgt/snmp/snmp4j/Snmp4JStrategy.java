@@ -286,6 +286,11 @@ public class Snmp4JStrategy implements SnmpStrategy {
     }
 
     private void send(Snmp4JAgentConfig agentConfig, PDU pdu, boolean expectResponse, CompletableFuture<SnmpValue[]> future) {
+        if (Snmp4JSessionPool.isEnabled(agentConfig)) {
+            sendShared(agentConfig, pdu, expectResponse, future);
+            return;
+        }
+
         Snmp session;
 
         try {
@@ -344,6 +349,32 @@ public class Snmp4JStrategy implements SnmpStrategy {
         }
     }
 
+    private void sendShared(Snmp4JAgentConfig agentConfig, PDU pdu, boolean expectResponse, CompletableFuture<SnmpValue[]> future) {
+        try {
+            if (expectResponse) {
+                Snmp4JSessionPool.getInstance().send(agentConfig, pdu, new ResponseListener() {
+                    @Override
+                    public void onResponse(ResponseEvent responseEvent) {
+                        try {
+                            future.complete(processResponse(agentConfig, responseEvent));
+                        } catch (IOException e) {
+                            future.completeExceptionally(e);
+                        }
+                    }
+                });
+            } else {
+                Snmp4JSessionPool.getInstance().send(agentConfig, pdu);
+                future.complete(null);
+            }
+        } catch (final IOException e) {
+            LOG.error("send: error during SNMP operation", e);
+            future.completeExceptionally(e);
+        } catch (final RuntimeException e) {
+            LOG.error("send: unexpected error during SNMP operation", e);
+            future.completeExceptionally(e);
+        }
+    }
+
     protected PDU buildPdu(Snmp4JAgentConfig agentConfig, int pduType, SnmpObjId[] oids, SnmpValue[] values) {
         PDU pdu = agentConfig.createPdu(pduType);
         
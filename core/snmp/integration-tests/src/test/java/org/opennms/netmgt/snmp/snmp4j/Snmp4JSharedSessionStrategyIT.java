@@ -0,0 +1,253 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.snmp.snmp4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opennms.netmgt.snmp.ColumnTracker;
+import org.opennms.netmgt.snmp.SnmpAgentConfig;
+import org.opennms.netmgt.snmp.SnmpObjId;
+import org.opennms.netmgt.snmp.SnmpResult;
+import org.opennms.netmgt.snmp.SnmpValue;
+import org.opennms.netmgt.snmp.SnmpWalker;
+import org.snmp4j.PDU;
+import org.snmp4j.event.ResponseEvent;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Runs the tests for the SNMP4J strategy with the requests sent over the
+ * shared sessions of the {@link Snmp4JSessionPool}.
+ */
+public class Snmp4JSharedSessionStrategyIT extends Snmp4JStrategyIT {
+
+    private static final SnmpObjId INT32_OID = SnmpObjId.get(".1.3.5.1.1.3.0");
+
+    private static String s_sessionMode;
+
+    private final Snmp4JStrategy m_strategy = new Snmp4JStrategy();
+
+    private static class CollectingColumnTracker extends ColumnTracker {
+        private final List<SnmpResult> m_results = new ArrayList<>();
+
+        public CollectingColumnTracker(final SnmpObjId base) {
+            super(base);
+        }
+
+        @Override
+        protected void storeResult(final SnmpResult res) {
+            m_results.add(res);
+        }
+    }
+
+    @BeforeClass
+    public static void setUpSharedSessions() {
+        s_sessionMode = System.getProperty(Snmp4JSessionPool.SESSION_MODE_PROPERTY);
+        System.setProperty(Snmp4JSessionPool.SESSION_MODE_PROPERTY, Snmp4JSessionPool.SHARED_SESSION_MODE);
+    }
+
+    @AfterClass
+    public static void tearDownSharedSessions() {
+        if (s_sessionMode == null) {
+            System.clearProperty(Snmp4JSessionPool.SESSION_MODE_PROPERTY);
+        } else {
+            System.setProperty(Snmp4JSessionPool.SESSION_MODE_PROPERTY, s_sessionMode);
+        }
+    }
+
+    @Test
+    public void testGetUsesTheSharedSessions() throws Exception {
+        final long requests = getCount("requests");
+
+        final SnmpValue value = m_strategy.get(getAgentConfig(), INT32_OID);
+
+        assertNotNull(value);
+        assertEquals(42, value.toInt());
+        assertEquals(requests + 1, getCount("requests"));
+        assertEquals(0, Snmp4JSessionPool.getInstance().getMetrics().counter("in-flight").getCount());
+    }
+
+    @Test
+    public void testWalk() throws Exception {
+        final CollectingColumnTracker tracker = new CollectingColumnTracker(SnmpObjId.get(".1.3.5.1.1"));
+        try (final SnmpWalker walker = m_strategy.createWalker(getAgentConfig(), "shared walk", tracker)) {
+            walker.start();
+            walker.waitFor();
+            assertFalse(walker.failed());
+            assertFalse(walker.timedOut());
+        }
+
+        assertEquals(9, tracker.m_results.size());
+        assertEquals(SnmpObjId.get(".1.3.5.1.1.1.0"), tracker.m_results.get(0).getAbsoluteInstance());
+        assertEquals(SnmpObjId.get(".1.3.5.1.1.9.0"), tracker.m_results.get(8).getAbsoluteInstance());
+    }
+
+    @Test
+    public void testWalkTimeout() throws Exception {
+        try (final DatagramSocket blackhole = new DatagramSocket(0, getAgentAddress())) {
+            final SnmpAgentConfig config = getAgentConfig();
+            config.setPort(blackhole.getLocalPort());
+            config.setTimeout(100);
+            config.setRetries(1);
+
+            final CollectingColumnTracker tracker = new CollectingColumnTracker(SnmpObjId.get(".1.3.5.1.1"));
+            try (final SnmpWalker walker = m_strategy.createWalker(config, "shared walk", tracker)) {
+                walker.start();
+                assertTrue(walker.waitFor(TimeUnit.SECONDS.toMillis(10)));
+                assertTrue(walker.timedOut());
+            }
+            assertEquals(0, tracker.m_results.size());
+        }
+    }
+
+    @Test
+    public void testRequestsAreRetriedUntilTheyTimeOut() throws Exception {
+        try (final DatagramSocket blackhole = new DatagramSocket(0, getAgentAddress())) {
+            final SnmpAgentConfig config = getAgentConfig();
+            config.setPort(blackhole.getLocalPort());
+            config.setTimeout(200);
+            config.setRetries(2);
+            final long retries = getCount("retries");
+            final long timeouts = getCount("timeouts");
+
+            assertNull(m_strategy.get(config, INT32_OID));
+
+            assertEquals(retries + 2, getCount("retries"));
+            assertEquals(timeouts + 1, getCount("timeouts"));
+            final String agent = getAgentAddress().getHostAddress() + "/" + blackhole.getLocalPort();
+            assertEquals(1, getCount(MetricRegistry.name("agents", agent, "timeouts")));
+            assertEquals(2, getCount(MetricRegistry.name("agents", agent, "retries")));
+
+            // every attempt was sent
+            blackhole.setSoTimeout(100);
+            int received = 0;
+            try {
+                while (true) {
+                    blackhole.receive(new DatagramPacket(new byte[1500], 1500));
+                    received++;
+                }
+            } catch (final SocketTimeoutException e) {
+                // no more requests
+            }
+            assertEquals(3, received);
+        }
+    }
+
+    @Test
+    public void testLostRequestsAreRetried() throws Exception {
+        try (final DatagramSocket proxy = new DatagramSocket(0, getAgentAddress());
+                final DatagramSocket upstream = new DatagramSocket(0, getAgentAddress())) {
+            // drops the first request, and forwards the next one to the agent
+            final Thread forwarder = new Thread(() -> {
+                try {
+                    final DatagramPacket request = new DatagramPacket(new byte[1500], 1500);
+                    proxy.receive(request);
+                    request.setLength(1500);
+                    proxy.receive(request);
+                    upstream.send(new DatagramPacket(request.getData(), request.getLength(), new InetSocketAddress(getAgentAddress(), getAgentPort())));
+
+                    final DatagramPacket response = new DatagramPacket(new byte[1500], 1500);
+                    upstream.receive(response);
+                    proxy.send(new DatagramPacket(response.getData(), response.getLength(), request.getSocketAddress()));
+                } catch (final Exception e) {
+                    // the sockets were closed
+                }
+            }, "snmp-proxy");
+            forwarder.setDaemon(true);
+            forwarder.start();
+
+            final SnmpAgentConfig config = getAgentConfig();
+            config.setPort(proxy.getLocalPort());
+            config.setTimeout(1000);
+            config.setRetries(1);
+            final long retries = getCount("retries");
+            final long timeouts = getCount("timeouts");
+
+            final SnmpValue value = m_strategy.get(config, INT32_OID);
+
+            assertNotNull(value);
+            assertEquals(42, value.toInt());
+            assertEquals(retries + 1, getCount("retries"));
+            assertEquals(timeouts, getCount("timeouts"));
+        }
+    }
+
+    @Test
+    public void testAgentMetricsAreBounded() throws Exception {
+        final Snmp4JSessionPool pool = new Snmp4JSessionPool(1, 2, 2);
+        try (final DatagramSocket first = new DatagramSocket(0, getAgentAddress());
+                final DatagramSocket second = new DatagramSocket(0, getAgentAddress())) {
+            for (final DatagramSocket socket : new DatagramSocket[] { first, second, null }) {
+                final SnmpAgentConfig config = getAgentConfig();
+                if (socket != null) {
+                    config.setPort(socket.getLocalPort());
+                    config.setTimeout(100);
+                    config.setRetries(0);
+                }
+                final Snmp4JAgentConfig agentConfig = new Snmp4JAgentConfig(config);
+                final PDU pdu = m_strategy.buildPdu(agentConfig, PDU.GET, new SnmpObjId[] { INT32_OID }, null);
+                final CompletableFuture<ResponseEvent> future = new CompletableFuture<>();
+                pool.send(agentConfig, pdu, future::complete);
+                future.get(10, TimeUnit.SECONDS);
+            }
+
+            assertEquals(2, pool.getAgentMetricsCount());
+            final String evicted = MetricRegistry.name("agents", getAgentAddress().getHostAddress() + "/" + first.getLocalPort());
+            final String kept = MetricRegistry.name("agents", getAgentAddress().getHostAddress() + "/" + getAgentPort());
+            for (final String name : pool.getMetrics().getNames()) {
+                assertFalse(name, name.startsWith(evicted + "."));
+            }
+            assertEquals(1, pool.getMetrics().getMeters().get(MetricRegistry.name(kept, "requests")).getCount());
+            assertEquals(8, pool.getMetrics().getNames().stream().filter(name -> name.startsWith("agents.")).count());
+        } finally {
+            pool.close();
+        }
+    }
+
+    private static long getCount(final String name) throws Exception {
+        return Snmp4JSessionPool.getInstance().getMetrics().meter(name).getCount();
+    }
+}
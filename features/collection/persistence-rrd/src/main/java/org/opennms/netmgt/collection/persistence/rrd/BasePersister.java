@@ -39,6 +39,7 @@ import org.opennms.netmgt.collection.api.PersistException;
 import org.opennms.netmgt.collection.api.ServiceParameters;
 import org.opennms.netmgt.dao.api.ResourceStorageDao;
 import org.opennms.netmgt.model.ResourcePath;
+import org.opennms.netmgt.model.ResourceTypeUtils;
 import org.opennms.netmgt.rrd.RrdRepository;
 import org.opennms.netmgt.rrd.RrdStrategy;
 import org.slf4j.Logger;
@@ -57,6 +58,7 @@ public class BasePersister extends AbstractPersister {
     private final RrdStrategy<?, ?> m_rrdStrategy;
     private final ResourceStorageDao m_resourceStorageDao;
     private boolean m_dontReorderAttributes = false;
+    private ResourcePath m_builderPath;
 
     /**
      * <p>Constructor for BasePersister.</p>
@@ -79,6 +81,7 @@ public class BasePersister extends AbstractPersister {
      */
     protected RrdPersistOperationBuilder createBuilder(CollectionResource resource, String name, Set<CollectionAttributeType> attributeTypes) {
         RrdPersistOperationBuilder builder  = new RrdPersistOperationBuilder(getRrdStrategy(), getRepository(), resource, name, m_dontReorderAttributes);
+        m_builderPath = ResourceTypeUtils.getResourcePathWithRepository(getRepository(), resource.getPath());
         if (resource.getTimeKeeper() != null) {
             builder.setTimeKeeper(resource.getTimeKeeper());
         }
@@ -95,6 +98,16 @@ public class BasePersister extends AbstractPersister {
         super.setBuilder(builder);
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public void commitBuilder() {
+        super.commitBuilder();
+        if (m_builderPath != null) {
+            m_resourceStorageDao.metricsPersisted(m_builderPath);
+            m_builderPath = null;
+        }
+    }
+
     @Override
     protected void persistStringAttribute(ResourcePath path, String key, String value) throws PersistException {
         try {
@@ -0,0 +1,54 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.events.api;
+
+import java.util.List;
+
+import org.opennms.netmgt.xml.event.Event;
+
+/**
+ * An {@link EventListener} that is able to receive events in batches.
+ *
+ * When the event IPC manager is dispatching through per-listener ring buffers,
+ * listeners implementing this interface are handed all of the events that are
+ * available in their queue at once instead of being called once per event.
+ * Listeners that only implement {@link EventListener} continue to receive
+ * events one at a time through {@link EventListener#onEvent(Event)}.
+ */
+public interface BatchEventListener extends EventListener {
+
+    /**
+     * Process a batch of sent events. The events are given in the order in
+     * which they were broadcast. The list is only valid for the duration of
+     * the call and must not be retained by the listener.
+     *
+     * @param events a {@link java.util.List} of {@link org.opennms.netmgt.xml.event.Event} objects.
+     */
+    void onEvents(List<Event> events);
+}
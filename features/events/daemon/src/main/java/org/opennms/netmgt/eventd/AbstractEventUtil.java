@@ -51,6 +51,7 @@ import org.springframework.transaction.support.TransactionOperations;
 
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
@@ -384,6 +385,8 @@ public abstract class AbstractEventUtil implements EventUtil {
 
 	private final ExpandableParameterResolverRegistry resolverRegistry = new ExpandableParameterResolverRegistry();
 
+	private final Timer expandTimer;
+
 	public AbstractEventUtil() {
 	    this(null);
 	}
@@ -435,6 +438,27 @@ public abstract class AbstractEventUtil implements EventUtil {
 	                        return eventTemplateCache.stats().averageLoadPenalty();
 	                    }
 	                });
+
+	        registry.register(MetricRegistry.name("eventutil.cache.hitcount"),
+	                new Gauge<Long>() {
+	                    @Override
+	                    public Long getValue() {
+	                        return eventTemplateCache.stats().hitCount();
+	                    }
+	                });
+
+	        registry.register(MetricRegistry.name("eventutil.cache.misscount"),
+	                new Gauge<Long>() {
+	                    @Override
+	                    public Long getValue() {
+	                        return eventTemplateCache.stats().missCount();
+	                    }
+	                });
+
+	        // Track the time spent expanding templates, including any DAO lookups
+	        expandTimer = registry.timer(MetricRegistry.name("eventutil.expand"));
+	    } else {
+	        expandTimer = null;
 	    }
 	}
 
@@ -762,11 +786,18 @@ public abstract class AbstractEventUtil implements EventUtil {
 		try {
 			final EventTemplate eventTemplate = eventTemplateCache.get(input);
 			Supplier<String> expander = () -> eventTemplate.expand(event, decode);
-			if (eventTemplate.requiresTransaction()) {
-				Objects.requireNonNull(transactionOperations);
-				return transactionOperations.execute(session -> expander.get());
-			} else {
-				return expander.get();
+			final Timer.Context context = expandTimer != null ? expandTimer.time() : null;
+			try {
+				if (eventTemplate.requiresTransaction()) {
+					Objects.requireNonNull(transactionOperations);
+					return transactionOperations.execute(session -> expander.get());
+				} else {
+					return expander.get();
+				}
+			} finally {
+				if (context != null) {
+					context.stop();
+				}
 			}
 		} catch (ExecutionException ex) {
 			throw new RuntimeException(ex);
@@ -37,7 +37,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.RejectedExecutionHandler;
@@ -46,6 +48,7 @@ import java.util.concurrent.TimeUnit;
 
 import org.opennms.core.concurrent.LogPreservingThreadFactory;
 import org.opennms.core.logging.Logging;
+import org.opennms.netmgt.events.api.BatchEventListener;
 import org.opennms.netmgt.events.api.EventHandler;
 import org.opennms.netmgt.events.api.EventIpcBroadcaster;
 import org.opennms.netmgt.events.api.EventIpcManager;
@@ -61,7 +64,17 @@ import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
 import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.lmax.disruptor.BlockingWaitStrategy;
+import com.lmax.disruptor.EventTranslatorOneArg;
+import com.lmax.disruptor.LifecycleAware;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.TimeoutException;
+import com.lmax.disruptor.dsl.Disruptor;
+import com.lmax.disruptor.dsl.ProducerType;
 
 /**
  * An implementation of the EventIpcManager interface that can be used to
@@ -75,6 +88,24 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
     
     private static final Logger LOG = LoggerFactory.getLogger(EventIpcManagerDefaultImpl.class);
 
+    /**
+     * Size of the per-listener ring buffers used when no handler queue length
+     * is configured. Ring buffer sizes are always rounded up to a power of 2.
+     */
+    private static final int DEFAULT_RING_BUFFER_SIZE = 8192;
+
+    /**
+     * Upper bound on the number of events handed to a listener in a single
+     * {@link BatchEventListener#onEvents(List)} call.
+     */
+    private static final int MAX_BATCH_SIZE = 256;
+
+    /**
+     * Maximum amount of time to wait for a listener's ring buffer to drain
+     * when the listener is removed.
+     */
+    private static final long RING_BUFFER_SHUTDOWN_TIMEOUT_MS = 5000;
+
     public static class DiscardTrapsAndSyslogEvents implements RejectedExecutionHandler {
         /**
          * Creates a <tt>DiscardOldestPolicy</tt> for the given executor.
@@ -99,19 +130,24 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
     }
 
     /**
-     * Hash table of list of event listeners keyed by event UEI
+     * Hash table of list of event listeners keyed by event UEI.
+     *
+     * The map and the lists it contains are immutable and are replaced as a
+     * whole (copy-on-write) by the synchronized mutators, so that
+     * {@link #broadcastNow(Event)} can read them without locking.
      */
-    private Map<String, List<EventListener>> m_ueiListeners = new HashMap<String, List<EventListener>>();
+    private volatile Map<String, List<EventListener>> m_ueiListeners = Collections.emptyMap();
 
     /**
-     * The list of event listeners interested in all events
+     * The list of event listeners interested in all events. Immutable, see
+     * {@link #m_ueiListeners}.
      */
-    private List<EventListener> m_listeners = new ArrayList<EventListener>();
+    private volatile List<EventListener> m_listeners = Collections.emptyList();
 
     /**
      * Hash table of event listener threads keyed by the listener's id
      */
-    private Map<String, EventListenerExecutor> m_listenerThreads = new HashMap<String, EventListenerExecutor>();
+    private final Map<String, EventListenerDispatcher> m_listenerThreads = new ConcurrentHashMap<String, EventListenerDispatcher>();
 
     /**
      * The thread pool handling the events
@@ -126,13 +162,31 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
 
     private final MetricRegistry m_registry;
 
+    private boolean m_ringBufferDispatch = Boolean.getBoolean("org.opennms.eventd.ringBufferDispatch");
+
+    /**
+     * Queues events for a single listener and delivers them to it
+     * on a dedicated thread.
+     */
+    private interface EventListenerDispatcher {
+        /**
+         * Queues the given event for delivery to the listener.
+         */
+        void addEvent(Event event);
+
+        /**
+         * Stops the execution of this listener.
+         */
+        void stop();
+    }
+
     /**
      * A thread dedicated to each listener. The events meant for each listener
      * is added to an execution queue when the 'sendNow()' is called. The
      * ListenerThread reads events off of this queue and sends them to the
      * appropriate listener.
      */
-    private static class EventListenerExecutor {
+    private static class EventListenerExecutor implements EventListenerDispatcher {
         /**
          * Listener to which this thread is dedicated
          */
@@ -169,6 +223,7 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
             );
         }
 
+        @Override
         public void addEvent(final Event event) {
             m_delegateThread.execute(new Runnable() {
                 @Override
@@ -190,11 +245,163 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
             });
         }
 
-        /**
-         * Stops the execution of this listener.
-         */
+        @Override
+        public void stop() {
+            m_delegateThread.shutdown();
+        }
+    }
+
+    /**
+     * Slot in a listener's ring buffer. Slots are preallocated by the ring
+     * buffer and reused, so broadcasting an event does not allocate.
+     */
+    private static class EventHolder {
+        private Event event;
+        private long enqueuedAt;
+    }
+
+    private static final EventTranslatorOneArg<EventHolder, Event> EVENT_TRANSLATOR = (holder, sequence, event) -> {
+        holder.event = event;
+        holder.enqueuedAt = System.nanoTime();
+    };
+
+    /**
+     * Alternative to the {@link EventListenerExecutor} that queues the events
+     * for each listener in a preallocated multi-producer ring buffer that is
+     * drained by a single thread. Events that are available when the thread
+     * wakes up are delivered together, either through
+     * {@link BatchEventListener#onEvents(List)} or one by one through
+     * {@link EventListener#onEvent(Event)}.
+     *
+     * Like the executor, events are discarded when the listener's queue is full.
+     */
+    private static class EventListenerRingBuffer implements EventListenerDispatcher, com.lmax.disruptor.EventHandler<EventHolder>, LifecycleAware {
+        private final EventListener m_listener;
+
+        private final ExecutorService m_delegateThread;
+
+        private final Disruptor<EventHolder> m_disruptor;
+
+        private final RingBuffer<EventHolder> m_ringBuffer;
+
+        private final List<Event> m_batch = new ArrayList<>(MAX_BATCH_SIZE);
+
+        private final MetricRegistry m_registry;
+
+        private final String m_queuedMetricName;
+
+        private final Timer m_latency;
+
+        private final Histogram m_batchSize;
+
+        private final Meter m_discarded;
+
+        private volatile Thread m_dispatchThread;
+
+        EventListenerRingBuffer(EventListener listener, int ringBufferSize, MetricRegistry registry) {
+            m_listener = listener;
+            m_registry = registry;
+
+            // Preserve the log prefix of the calling thread, see EventListenerExecutor
+            m_delegateThread = Executors.newSingleThreadExecutor(new LogPreservingThreadFactory(m_listener.getName(), 1));
+            m_disruptor = new Disruptor<EventHolder>(
+                    EventHolder::new,
+                    ringBufferSize,
+                    m_delegateThread,
+                    // Events are broadcast from all of the threads in the event handler pool
+                    ProducerType.MULTI,
+                    new BlockingWaitStrategy()
+            );
+            m_disruptor.handleEventsWith(this);
+            m_ringBuffer = m_disruptor.start();
+
+            m_queuedMetricName = MetricRegistry.name("eventlisteners", m_listener.getName(), "queued");
+            m_registry.remove(m_queuedMetricName);
+            m_registry.register(m_queuedMetricName, new Gauge<Long>() {
+                @Override
+                public Long getValue() {
+                    return m_ringBuffer.getBufferSize() - m_ringBuffer.remainingCapacity();
+                }
+            });
+            m_latency = m_registry.timer(MetricRegistry.name("eventlisteners", m_listener.getName(), "latency"));
+            m_batchSize = m_registry.histogram(MetricRegistry.name("eventlisteners", m_listener.getName(), "batchSize"));
+            m_discarded = m_registry.meter(MetricRegistry.name("eventlisteners", m_listener.getName(), "discarded"));
+        }
+
+        @Override
+        public void addEvent(final Event event) {
+            if (!m_ringBuffer.tryPublishEvent(EVENT_TRANSLATOR, event)) {
+                LOG.warn("Listener {}'s event queue is full, discarding event", m_listener.getName());
+                m_discarded.mark();
+            }
+        }
+
+        @Override
+        public void onEvent(EventHolder holder, long sequence, boolean endOfBatch) {
+            m_latency.update(System.nanoTime() - holder.enqueuedAt, TimeUnit.NANOSECONDS);
+            m_batch.add(holder.event);
+            // Release the reference so that the event can be collected
+            holder.event = null;
+
+            if (endOfBatch || m_batch.size() >= MAX_BATCH_SIZE) {
+                dispatch();
+            }
+        }
+
+        private void dispatch() {
+            m_batchSize.update(m_batch.size());
+
+            // Make sure we restore our log4j logging prefix after the listener is called
+            Map<String,String> mdc = Logging.getCopyOfContextMap();
+            try {
+                if (m_listener instanceof BatchEventListener) {
+                    LOG.debug("run: calling onEvents on {} for {} events", m_listener.getName(), m_batch.size());
+                    try {
+                        ((BatchEventListener)m_listener).onEvents(Collections.unmodifiableList(m_batch));
+                    } catch (Throwable t) {
+                        LOG.warn("run: an unexpected error occured during ListenerThread {}", m_listener.getName(), t);
+                    }
+                } else {
+                    for (Event event : m_batch) {
+                        LOG.debug("run: calling onEvent on {} for event {} dbid {} with time {}", m_listener.getName(), event.getUei(), event.getDbid(), event.getTime());
+                        try {
+                            m_listener.onEvent(event);
+                        } catch (Throwable t) {
+                            LOG.warn("run: an unexpected error occured during ListenerThread {}", m_listener.getName(), t);
+                        }
+                    }
+                }
+            } finally {
+                Logging.setContextMap(mdc);
+                m_batch.clear();
+            }
+        }
+
+        @Override
+        public void onStart() {
+            m_dispatchThread = Thread.currentThread();
+        }
+
+        @Override
+        public void onShutdown() {
+            m_dispatchThread = null;
+        }
+
+        @Override
         public void stop() {
+            if (Thread.currentThread() == m_dispatchThread) {
+                // The listener is removing itself, we can't wait for the queue to drain
+                m_disruptor.halt();
+            } else {
+                try {
+                    m_disruptor.shutdown(RING_BUFFER_SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    LOG.warn("Listener {}'s event queue did not drain within {}ms, discarding remaining events", m_listener.getName(), RING_BUFFER_SHUTDOWN_TIMEOUT_MS);
+                    m_disruptor.halt();
+                }
+            }
             m_delegateThread.shutdown();
+            m_registry.remove(m_queuedMetricName);
         }
     }
 
@@ -291,12 +498,16 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
     public void broadcastNow(Event event) {
         LOG.debug("Event ID {} to be broadcasted: {}", event.getDbid(), event.getUei());
 
-        if (m_listeners.isEmpty()) {
+        // Grab the current routing tables, these are never modified in place
+        final List<EventListener> listeners = m_listeners;
+        final Map<String, List<EventListener>> ueiListeners = m_ueiListeners;
+
+        if (listeners.isEmpty()) {
             LOG.debug("No listeners interested in all events");
         }
 
         // Send to listeners interested in receiving all events
-        for (EventListener listener : m_listeners) {
+        for (EventListener listener : listeners) {
             queueEventToListener(event, listener);
         }
 
@@ -311,8 +522,9 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
          */
         Set<EventListener> sentToListeners = new HashSet<EventListener>();
         for (String uei = event.getUei(); uei.length() > 0; ) {
-            if (m_ueiListeners.containsKey(uei)) {
-                for (EventListener listener : m_ueiListeners.get(uei)) {
+            final List<EventListener> listenersForUei = ueiListeners.get(uei);
+            if (listenersForUei != null) {
+                for (EventListener listener : listenersForUei) {
                     if (!sentToListeners.contains(listener)) {
                         queueEventToListener(event, listener);
                         sentToListeners.add(listener);
@@ -337,7 +549,13 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
     }
 
     private void queueEventToListener(Event event, EventListener listener) {
-        m_listenerThreads.get(listener.getName()).addEvent(event);
+        final EventListenerDispatcher listenerThread = m_listenerThreads.get(listener.getName());
+        if (listenerThread == null) {
+            // The listener was removed after we grabbed the routing tables
+            LOG.debug("Listener {} was removed, not queueing event ID {}", listener.getName(), event.getDbid());
+            return;
+        }
+        listenerThread.addEvent(event);
     }
 
     /**
@@ -355,9 +573,7 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
         addMatchAllForListener(listener);
 
         // Since we have a match-all listener, remove any specific UEIs
-        for (String uei : m_ueiListeners.keySet()) {
-            removeUeiForListener(uei, listener);
-        }
+        removeAllUeisForListener(listener);
     }
 
     /**
@@ -454,15 +670,12 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
         
         removeMatchAllForListener(listener);
 
-        for (String uei : m_ueiListeners.keySet()) {
-            removeUeiForListener(uei, listener);
-        }
+        removeAllUeisForListener(listener);
 
         // stop and remove the listener thread for this listener
-        if (m_listenerThreads.containsKey(listener.getName())) {
-            m_listenerThreads.get(listener.getName()).stop();
-
-            m_listenerThreads.remove(listener.getName());
+        final EventListenerDispatcher listenerThread = m_listenerThreads.remove(listener.getName());
+        if (listenerThread != null) {
+            listenerThread.stop();
         }
     }
 
@@ -475,31 +688,82 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
             return;
         }
         
-        EventListenerExecutor listenerThread = new EventListenerExecutor(listener, m_handlerQueueLength);
+        final EventListenerDispatcher listenerThread;
+        if (m_ringBufferDispatch) {
+            listenerThread = new EventListenerRingBuffer(listener, getRingBufferSize(), m_registry);
+        } else {
+            listenerThread = new EventListenerExecutor(listener, m_handlerQueueLength);
+        }
         m_listenerThreads.put(listener.getName(), listenerThread);
     }
 
+    /**
+     * Ring buffer sizes must be a power of 2, so round up the configured
+     * handler queue length.
+     */
+    private int getRingBufferSize() {
+        if (m_handlerQueueLength == null || m_handlerQueueLength < 1) {
+            return DEFAULT_RING_BUFFER_SIZE;
+        }
+        final int size = Integer.highestOneBit(m_handlerQueueLength);
+        return size == m_handlerQueueLength ? size : size << 1;
+    }
+
     /**
      * Add to uei listeners.
      */
     private void addUeiForListener(String uei, EventListener listener) {
-        // Ensure there is a list for this UEI
-        if (!m_ueiListeners.containsKey(uei)) {
-            m_ueiListeners.put(uei, new ArrayList<EventListener>());
-        }
-        
-        List<EventListener> listenersList = m_ueiListeners.get(uei);
-        if (!listenersList.contains(listener)) {
-            listenersList.add(listener);
+        final List<EventListener> listenersList = m_ueiListeners.get(uei);
+        if (listenersList != null && listenersList.contains(listener)) {
+            return;
         }
+
+        final List<EventListener> newListenersList = listenersList == null ? new ArrayList<EventListener>(1) : new ArrayList<EventListener>(listenersList);
+        newListenersList.add(listener);
+
+        final Map<String, List<EventListener>> ueiListeners = new HashMap<String, List<EventListener>>(m_ueiListeners);
+        ueiListeners.put(uei, Collections.unmodifiableList(newListenersList));
+        m_ueiListeners = Collections.unmodifiableMap(ueiListeners);
     }
 
     /**
      * Remove UEI for this listener.
      */
     private void removeUeiForListener(String uei, EventListener listener) {
-        if (m_ueiListeners.containsKey(uei)) {
-            m_ueiListeners.get(uei).remove(listener);
+        final List<EventListener> listenersList = m_ueiListeners.get(uei);
+        if (listenersList == null || !listenersList.contains(listener)) {
+            return;
+        }
+
+        final Map<String, List<EventListener>> ueiListeners = new HashMap<String, List<EventListener>>(m_ueiListeners);
+        putWithoutListener(ueiListeners, uei, listenersList, listener);
+        m_ueiListeners = Collections.unmodifiableMap(ueiListeners);
+    }
+
+    /**
+     * Remove all of the UEIs for this listener, replacing the routing table only once.
+     */
+    private void removeAllUeisForListener(EventListener listener) {
+        final Map<String, List<EventListener>> ueiListeners = new HashMap<String, List<EventListener>>(m_ueiListeners);
+        boolean changed = false;
+        for (Map.Entry<String, List<EventListener>> entry : m_ueiListeners.entrySet()) {
+            if (entry.getValue().contains(listener)) {
+                putWithoutListener(ueiListeners, entry.getKey(), entry.getValue(), listener);
+                changed = true;
+            }
+        }
+        if (changed) {
+            m_ueiListeners = Collections.unmodifiableMap(ueiListeners);
+        }
+    }
+
+    private static void putWithoutListener(Map<String, List<EventListener>> ueiListeners, String uei, List<EventListener> listenersList, EventListener listener) {
+        final List<EventListener> newListenersList = new ArrayList<EventListener>(listenersList);
+        newListenersList.remove(listener);
+        if (newListenersList.isEmpty()) {
+            ueiListeners.remove(uei);
+        } else {
+            ueiListeners.put(uei, Collections.unmodifiableList(newListenersList));
         }
     }
 
@@ -507,14 +771,23 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
      * Add listener to list of listeners listening for all events.
      */
     private boolean addMatchAllForListener(EventListener listener) {
-        return m_listeners.add(listener);
+        final List<EventListener> listeners = new ArrayList<EventListener>(m_listeners);
+        final boolean added = listeners.add(listener);
+        m_listeners = Collections.unmodifiableList(listeners);
+        return added;
     }
 
     /**
      * Remove from list of listeners listening for all events.
      */
     private boolean removeMatchAllForListener(EventListener listener) {
-        return m_listeners.remove(listener);
+        if (!m_listeners.contains(listener)) {
+            return false;
+        }
+        final List<EventListener> listeners = new ArrayList<EventListener>(m_listeners);
+        final boolean removed = listeners.remove(listener);
+        m_listeners = Collections.unmodifiableList(listeners);
+        return removed;
     }
 
     /**
@@ -615,12 +888,30 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
         m_handlerQueueLength = size;
     }
 
+    /**
+     * <p>isRingBufferDispatch</p>
+     *
+     * @return true if events are dispatched to the listeners through ring buffers
+     */
+    public boolean isRingBufferDispatch() {
+        return m_ringBufferDispatch;
+    }
+
+    /**
+     * Dispatch events to the listeners through per-listener ring buffers
+     * instead of per-listener thread pools. Defaults to the value of the
+     * <code>org.opennms.eventd.ringBufferDispatch</code> system property.
+     *
+     * @param ringBufferDispatch a boolean.
+     */
+    public synchronized void setRingBufferDispatch(boolean ringBufferDispatch) {
+        Assert.state(m_listenerThreads.isEmpty(), "ringBufferDispatch property cannot be set after listeners have been added");
+        m_ringBufferDispatch = ringBufferDispatch;
+    }
+
     @Override
     public boolean hasEventListener(final String uei) {
-        if (this.m_ueiListeners.containsKey(uei)) {
-            return this.m_ueiListeners.get(uei).size() > 0;
-        } else {
-            return false;
-        }
+        final List<EventListener> listenersList = m_ueiListeners.get(uei);
+        return listenersList != null && listenersList.size() > 0;
     }
 }
@@ -31,9 +31,13 @@ package org.opennms.netmgt.eventd;
 import java.beans.PropertyDescriptor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -48,18 +52,35 @@ import org.opennms.netmgt.dao.api.AssetRecordDao;
 import org.opennms.netmgt.dao.api.HwEntityDao;
 import org.opennms.netmgt.dao.api.IpInterfaceDao;
 import org.opennms.netmgt.dao.api.NodeDao;
+import org.opennms.netmgt.events.api.EventConstants;
+import org.opennms.netmgt.events.api.EventProcessor;
 import org.opennms.netmgt.model.OnmsAssetRecord;
 import org.opennms.netmgt.model.OnmsHwEntity;
 import org.opennms.netmgt.model.OnmsIpInterface;
 import org.opennms.netmgt.model.OnmsNode;
 import org.opennms.netmgt.xml.event.Event;
+import org.opennms.netmgt.xml.event.Log;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 
-public class EventUtilDaoImpl extends AbstractEventUtil {
+/**
+ * {@link EventUtil} backed by the DAOs.
+ *
+ * Node and asset details are kept in bounded per-node caches, since the same few fields
+ * are looked up again and again while expanding event templates. Nodes that do not exist
+ * are not cached. Entries are invalidated when eventd processes an event that changes the
+ * node (nodeAdded, nodeUpdated, assetInfoChanged, ...), which is done before the event itself
+ * is expanded, and expire after a configurable period as a safety net.
+ */
+public class EventUtilDaoImpl extends AbstractEventUtil implements EventProcessor {
 
     private static final Logger LOG = LoggerFactory.getLogger(EventUtilDaoImpl.class);
 
@@ -83,30 +104,71 @@ public class EventUtilDaoImpl extends AbstractEventUtil {
 
 	private final static Map<String, PropertyDescriptor> hwEntityDescriptorsByName = getDescriptorsForStrings(OnmsHwEntity.class);
 
-    public EventUtilDaoImpl() { }
+    private final static Set<String> NODE_CHANGED_UEIS = new HashSet<>(Arrays.asList(
+            EventConstants.NODE_ADDED_EVENT_UEI,
+            EventConstants.NODE_UPDATED_EVENT_UEI,
+            EventConstants.NODE_LABEL_CHANGED_EVENT_UEI,
+            EventConstants.NODE_INFO_CHANGED_EVENT_UEI,
+            EventConstants.ASSET_INFO_CHANGED_EVENT_UEI,
+            EventConstants.NODE_DELETED_EVENT_UEI
+    ));
+
+    private final Cache<Long, NodeInfo> nodeInfoCache;
+
+    private final LoadingCache<Long, Map<String, String>> assetFieldCache;
+
+    public EventUtilDaoImpl() {
+        this(null);
+    }
 
     public EventUtilDaoImpl(MetricRegistry registry) {
         super(registry);
+
+        // A maximum size of 0 effectively disables the caches
+        final long maximumCacheSize = Long.parseLong(System.getProperty("org.opennms.eventd.nodeCacheSize", "10000"));
+        final long cacheTtl = Long.parseLong(System.getProperty("org.opennms.eventd.nodeCacheTtl", "300"));
+
+        nodeInfoCache = newCacheBuilder(maximumCacheSize, cacheTtl, registry).build();
+        assetFieldCache = newCacheBuilder(maximumCacheSize, cacheTtl, registry).build(new CacheLoader<Long, Map<String, String>>() {
+            @Override
+            public Map<String, String> load(Long nodeId) {
+                return getAssetFields(assetRecordDao.findByNodeId(nodeId.intValue()));
+            }
+        });
+
+        if (registry != null) {
+            registerCacheGauges(registry, "eventutil.nodecache", nodeInfoCache);
+            registerCacheGauges(registry, "eventutil.assetcache", assetFieldCache);
+        }
     }
 
     @Override
     public String getNodeLabel(long nodeId) {
-        return nodeDao.getLabelForId(Integer.valueOf((int)nodeId));
+        return getNodeInfo(nodeId).label;
     }
 
     @Override
     public String getForeignSource(long nodeId) {
-        OnmsNode node = nodeDao.get((int)nodeId);
-        if (node != null) {
-            return node.getForeignSource();
-        }
-        return null;
+        return getNodeInfo(nodeId).foreignSource;
     }
 
     @Override
     public String getForeignId(long nodeId) {
-        OnmsNode node = nodeDao.get((int)nodeId);
-        return node == null ? null : node.getForeignId();
+        return getNodeInfo(nodeId).foreignId;
+    }
+
+    private NodeInfo getNodeInfo(long nodeId) {
+        NodeInfo nodeInfo = nodeInfoCache.getIfPresent(nodeId);
+        if (nodeInfo == null) {
+            final OnmsNode node = nodeDao.get((int)nodeId);
+            if (node == null) {
+                // Don't cache misses, events may reference a node before it was added
+                return NodeInfo.UNKNOWN;
+            }
+            nodeInfo = new NodeInfo(node.getLabel(), node.getForeignSource(), node.getForeignId());
+            nodeInfoCache.put(nodeId, nodeInfo);
+        }
+        return nodeInfo;
     }
 
     @Override
@@ -127,13 +189,7 @@ public class EventUtilDaoImpl extends AbstractEventUtil {
             return null;
         }
         final String assetField = matcher.group(1).toLowerCase();
-
-        OnmsAssetRecord assetRecord = assetRecordDao.findByNodeId((int)nodeId);
-        if (assetRecord == null) {
-            return null;
-        }
-
-        return getStringPropertyByName(assetField, assetRecord, assetDescriptorsByName);
+        return assetFieldCache.getUnchecked(nodeId).get(assetField);
     }
 
     @Override
@@ -222,6 +278,107 @@ public class EventUtilDaoImpl extends AbstractEventUtil {
         return super.expandParms(input, event, decode);
     }
 
+    /**
+     * Drops any cached node and asset details for the given node.
+     *
+     * @param nodeId the node ID
+     */
+    public void invalidateNode(long nodeId) {
+        nodeInfoCache.invalidate(nodeId);
+        assetFieldCache.invalidate(nodeId);
+    }
+
+    /**
+     * Invalidates the cached details of the nodes changed by the events, this
+     * processor must run before the {@link EventExpander} so that the events are
+     * expanded with the new details.
+     */
+    @Override
+    public void process(Log eventLog) {
+        if (eventLog != null && eventLog.getEvents() != null && eventLog.getEvents().getEvent() != null) {
+            for (Event event : eventLog.getEvents().getEvent()) {
+                handleNodeChanged(event);
+            }
+        }
+    }
+
+    public void handleNodeChanged(Event event) {
+        if (event.hasNodeid() && NODE_CHANGED_UEIS.contains(event.getUei())) {
+            LOG.debug("Invalidating cached details for node {} on {}", event.getNodeid(), event.getUei());
+            invalidateNode(event.getNodeid());
+        }
+    }
+
+    private static CacheBuilder<Object, Object> newCacheBuilder(long maximumCacheSize, long cacheTtl, MetricRegistry registry) {
+        final CacheBuilder<Object, Object> cacheBuilder = CacheBuilder.newBuilder()
+                .maximumSize(maximumCacheSize);
+        if (cacheTtl > 0) {
+            cacheBuilder.expireAfterWrite(cacheTtl, TimeUnit.SECONDS);
+        }
+        if (registry != null) {
+            cacheBuilder.recordStats();
+        }
+        return cacheBuilder;
+    }
+
+    private static void registerCacheGauges(MetricRegistry registry, String prefix, Cache<?, ?> cache) {
+        registry.register(MetricRegistry.name(prefix, "size"),
+                new Gauge<Long>() {
+                    @Override
+                    public Long getValue() {
+                        return cache.size();
+                    }
+                });
+
+        registry.register(MetricRegistry.name(prefix, "hitcount"),
+                new Gauge<Long>() {
+                    @Override
+                    public Long getValue() {
+                        return cache.stats().hitCount();
+                    }
+                });
+
+        registry.register(MetricRegistry.name(prefix, "misscount"),
+                new Gauge<Long>() {
+                    @Override
+                    public Long getValue() {
+                        return cache.stats().missCount();
+                    }
+                });
+    }
+
+    /**
+     * Retrieves all of the String properties on the asset record,
+     * keyed by their lower-case name.
+     */
+    private static Map<String, String> getAssetFields(OnmsAssetRecord assetRecord) {
+        if (assetRecord == null) {
+            return Collections.emptyMap();
+        }
+        final Map<String, String> fields = new HashMap<>();
+        for (String name : assetDescriptorsByName.keySet()) {
+            fields.put(name, getStringPropertyByName(name, assetRecord, assetDescriptorsByName));
+        }
+        return Collections.unmodifiableMap(fields);
+    }
+
+    /**
+     * The node details used when expanding event templates.
+     */
+    private static final class NodeInfo {
+        private static final NodeInfo UNKNOWN = new NodeInfo(null, null, null);
+
+        private final String label;
+        private final String foreignSource;
+        private final String foreignId;
+
+        private NodeInfo(String label, String foreignSource, String foreignId) {
+            this.label = label;
+            this.foreignSource = foreignSource;
+            this.foreignId = foreignId;
+        }
+    }
+
     /**
      * Retrieves the property with the given name on the bean.
      *
@@ -50,6 +50,9 @@ import org.opennms.netmgt.events.api.EventDatabaseConstants;
 import org.opennms.netmgt.events.api.EventParameterUtils;
 import org.opennms.netmgt.events.api.EventProcessorException;
 import org.opennms.netmgt.model.OnmsEvent;
+import org.opennms.netmgt.model.OnmsMonitoringSystem;
+import org.opennms.netmgt.model.OnmsNode;
+import org.opennms.netmgt.model.OnmsServiceType;
 import org.opennms.netmgt.model.OnmsSeverity;
 import org.opennms.netmgt.xml.event.Event;
 import org.opennms.netmgt.xml.event.Header;
@@ -133,7 +136,7 @@ public class HibernateEventWriter implements EventWriter {
      * @param logPrefix a {@link java.lang.String} object.
      * @return a boolean.
      */
-    private static boolean checkEventSanityAndDoWeProcess(Event event, String logPrefix) {
+    static boolean checkEventSanityAndDoWeProcess(Event event, String logPrefix) {
         Assert.notNull(event, "event argument must not be null");
 
         /*
@@ -218,6 +221,26 @@ public class HibernateEventWriter implements EventWriter {
         }
     }
 
+    protected OnmsNode getNode(int nodeId) {
+        return nodeDao.get(nodeId);
+    }
+
+    protected OnmsMonitoringSystem getDistPoller(String id) {
+        return distPollerDao.get(id);
+    }
+
+    protected OnmsMonitoringSystem getMonitoringSystem(String id) {
+        return monitoringSystemDao.get(id);
+    }
+
+    protected OnmsMonitoringSystem getLocalSystem() {
+        return distPollerDao.whoami();
+    }
+
+    protected OnmsServiceType getServiceType(String serviceName) {
+        return serviceTypeDao.findByName(serviceName);
+    }
+
     /**
      * Creates OnmsEvent to be inserted afterwards.
      * 
@@ -225,7 +248,41 @@ public class HibernateEventWriter implements EventWriter {
      *                Thrown if a required resource cannot be found in the
      *                properties file.
      */
-    private OnmsEvent createOnmsEvent(final Header eventHeader, final Event event) {
+    OnmsEvent createOnmsEvent(final Header eventHeader, final Event event) {
+        final OnmsEvent ovent = createOnmsEventWithoutReferences(event);
+
+        // nodeID
+        if (event.hasNodeid()) {
+            ovent.setNode(getNode(event.getNodeid().intValue()));
+        }
+
+        // systemId
+
+        // If available, use the header's distPoller
+        if (eventHeader != null && eventHeader.getDpName() != null && !"".equals(eventHeader.getDpName().trim())) {
+            // TODO: Should we also try a look up the value in the MinionDao and LocationMonitorDao here?
+            ovent.setDistPoller(getDistPoller(eventHeader.getDpName()));
+        }
+        // Otherwise, use the event's distPoller
+        if (ovent.getDistPoller() == null && event.getDistPoller() != null && !"".equals(event.getDistPoller().trim())) {
+            ovent.setDistPoller(getMonitoringSystem(event.getDistPoller()));
+        }
+        // And if both are unavailable, use the local system as the event's source system
+        if (ovent.getDistPoller() == null) {
+            ovent.setDistPoller(getLocalSystem());
+        }
+
+        // service
+        ovent.setServiceType(getServiceType(event.getService()));
+
+        return ovent;
+    }
+
+    /**
+     * Creates OnmsEvent with every column but the node, the system and the
+     * service, which are left to the caller.
+     */
+    OnmsEvent createOnmsEventWithoutReferences(final Event event) {
 
         OnmsEvent ovent = new OnmsEvent();
 
@@ -235,11 +292,6 @@ public class HibernateEventWriter implements EventWriter {
         // eventUEI
         ovent.setEventUei(EventDatabaseConstants.format(event.getUei(), EVENT_UEI_FIELD_SIZE));
 
-        // nodeID
-        if (event.hasNodeid()) {
-            ovent.setNode(nodeDao.get(event.getNodeid().intValue()));
-        }
-
         // eventTime
         ovent.setEventTime(event.getTime());
 
@@ -260,28 +312,9 @@ public class HibernateEventWriter implements EventWriter {
             ovent.setIfIndex(null);
         }
 
-        // systemId
-
-        // If available, use the header's distPoller
-        if (eventHeader != null && eventHeader.getDpName() != null && !"".equals(eventHeader.getDpName().trim())) {
-            // TODO: Should we also try a look up the value in the MinionDao and LocationMonitorDao here?
-            ovent.setDistPoller(distPollerDao.get(eventHeader.getDpName()));
-        }
-        // Otherwise, use the event's distPoller
-        if (ovent.getDistPoller() == null && event.getDistPoller() != null && !"".equals(event.getDistPoller().trim())) {
-            ovent.setDistPoller(monitoringSystemDao.get(event.getDistPoller()));
-        }
-        // And if both are unavailable, use the local system as the event's source system
-        if (ovent.getDistPoller() == null) {
-            ovent.setDistPoller(distPollerDao.whoami());
-        }
-
         // eventSnmpHost
         ovent.setEventSnmpHost(EventDatabaseConstants.format(event.getSnmphost(), EVENT_SNMPHOST_FIELD_SIZE));
 
-        // service
-        ovent.setServiceType(serviceTypeDao.findByName(event.getService()));
-
         // eventSnmp
         ovent.setEventSnmp(event.getSnmp() == null ? null : SnmpInfo.format(event.getSnmp(), EVENT_SNMP_FIELD_SIZE));
 
@@ -400,4 +433,12 @@ public class HibernateEventWriter implements EventWriter {
     public void setTransactionManager(TransactionOperations transactionManager) {
         m_transactionManager = transactionManager;
     }
+
+    protected TransactionOperations getTransactionManager() {
+        return m_transactionManager;
+    }
+
+    protected Timer getWriteTimer() {
+        return writeTimer;
+    }
 }
@@ -0,0 +1,416 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.eventd.processor;
+
+import java.sql.Types;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.opennms.core.utils.InetAddressUtils;
+import org.opennms.netmgt.events.api.EventProcessorException;
+import org.opennms.netmgt.model.OnmsEvent;
+import org.opennms.netmgt.model.OnmsMonitoringSystem;
+import org.opennms.netmgt.model.OnmsNode;
+import org.opennms.netmgt.model.OnmsServiceType;
+import org.opennms.netmgt.xml.event.Event;
+import org.opennms.netmgt.xml.event.Events;
+import org.opennms.netmgt.xml.event.Header;
+import org.opennms.netmgt.xml.event.Log;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcOperations;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.codahale.metrics.Timer.Context;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * {@link EventWriter} that inserts events with JDBC batches.
+ *
+ * The logs handed to {@link #process(Log)} by the event handler threads are
+ * queued, and whichever thread finds no write in progress inserts everything
+ * that is queued (up to <code>org.opennms.eventd.jdbcWriter.batchSize</code>
+ * events) in a single transaction. Every call still returns only once its
+ * own events have been committed and their database IDs set, so the
+ * processors that follow in the chain see the same thing as with the
+ * {@link HibernateEventWriter}.
+ *
+ * Event IDs are taken from blocks of
+ * <code>org.opennms.eventd.jdbcWriter.idBlockSize</code> values of the
+ * events sequence, and the IDs of the nodes, services and monitoring systems
+ * that were found are cached for
+ * <code>org.opennms.eventd.jdbcWriter.cacheTtl</code> seconds. Lookups that
+ * find nothing are not cached. If a batch fails on a constraint, i.e.
+ * because a cached node was deleted, the caches are cleared and the logs of
+ * that batch are written one by one through Hibernate.
+ *
+ * This writer is only used when
+ * <code>org.opennms.eventd.jdbcWriter.enabled</code> is set to true, see
+ * {@link #newEventWriter(MetricRegistry)}.
+ */
+public class JdbcEventWriter extends HibernateEventWriter {
+    private static final Logger LOG = LoggerFactory.getLogger(JdbcEventWriter.class);
+
+    private static final String INSERT_SQL = "INSERT INTO events (eventId, eventUei, nodeId, eventTime, eventHost, eventSource, ipAddr, systemId, "
+            + "eventSnmpHost, serviceId, eventSnmp, eventParms, eventCreateTime, eventDescr, eventLogGroup, eventLogMsg, eventSeverity, "
+            + "eventPathOutage, eventCorrelation, eventSuppressedCount, eventOperInstruct, eventAutoAction, eventOperAction, "
+            + "eventOperActionMenuText, eventNotification, eventTTicket, eventTTicketState, eventForward, eventMouseOverText, eventLog, "
+            + "eventDisplay, eventAckUser, eventAckTime, ifIndex) "
+            + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final int[] INSERT_TYPES = new int[] {
+        Types.INTEGER, Types.VARCHAR, Types.INTEGER, Types.TIMESTAMP, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR,
+        Types.VARCHAR, Types.INTEGER, Types.VARCHAR, Types.VARCHAR, Types.TIMESTAMP, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.INTEGER,
+        Types.VARCHAR, Types.VARCHAR, Types.INTEGER, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR,
+        Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.INTEGER, Types.VARCHAR, Types.VARCHAR, Types.CHAR,
+        Types.CHAR, Types.VARCHAR, Types.TIMESTAMP, Types.INTEGER
+    };
+
+    private static final String NEXT_IDS_SQL = "SELECT nextval('eventsNxtId') FROM generate_series(1, ?)";
+
+    /**
+     * The events of one call to {@link #process(Log)}
+     */
+    private static class PendingLog {
+        private final Header m_header;
+        private final List<Event> m_events;
+        private final CompletableFuture<Void> m_written = new CompletableFuture<>();
+
+        private PendingLog(Header header, List<Event> events) {
+            m_header = header;
+            m_events = events;
+        }
+    }
+
+    @Autowired
+    private JdbcOperations m_jdbcTemplate;
+
+    private final int m_batchSize = Integer.getInteger("org.opennms.eventd.jdbcWriter.batchSize", 500);
+    private final int m_idBlockSize = Integer.getInteger("org.opennms.eventd.jdbcWriter.idBlockSize", 100);
+
+    private final Queue<PendingLog> m_queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean m_writing = new AtomicBoolean(false);
+
+    /**
+     * Pre-allocated event IDs, only used by the thread that is writing
+     */
+    private final Deque<Integer> m_ids = new ArrayDeque<>();
+
+    private final Cache<Integer, Integer> m_nodeIds;
+    private final Cache<String, Integer> m_serviceIds;
+    private final Cache<String, String> m_distPollerIds;
+    private final Cache<String, String> m_monitoringSystemIds;
+    private volatile String m_localSystemId;
+
+    private final Timer m_batchTimer;
+    private final Histogram m_batchSizes;
+
+    /**
+     * Creates the event writer selected by
+     * <code>org.opennms.eventd.jdbcWriter.enabled</code>: the
+     * {@link HibernateEventWriter} by default, or a {@link JdbcEventWriter}.
+     */
+    public static HibernateEventWriter newEventWriter(MetricRegistry registry) {
+        if (Boolean.getBoolean("org.opennms.eventd.jdbcWriter.enabled")) {
+            LOG.info("Writing events with JDBC batches");
+            return new JdbcEventWriter(registry);
+        }
+        return new HibernateEventWriter(registry);
+    }
+
+    public JdbcEventWriter(MetricRegistry registry) {
+        super(registry);
+        m_batchTimer = registry.timer("eventlogs.process.batch");
+        m_batchSizes = registry.histogram("eventlogs.process.batch.size");
+
+        final long cacheTtl = Long.getLong("org.opennms.eventd.jdbcWriter.cacheTtl", 60);
+        m_nodeIds = newCache(cacheTtl);
+        m_serviceIds = newCache(cacheTtl);
+        m_distPollerIds = newCache(cacheTtl);
+        m_monitoringSystemIds = newCache(cacheTtl);
+    }
+
+    private static <K, V> Cache<K, V> newCache(long cacheTtl) {
+        return CacheBuilder.newBuilder()
+                .maximumSize(10000)
+                .expireAfterWrite(cacheTtl, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * Only IDs that were found are cached, so that the events of a node or
+     * service that is added later are not written without it.
+     */
+    private static <K, V> V getCached(Cache<K, V> cache, K key, Function<K, V> loader) {
+        V value = cache.getIfPresent(key);
+        if (value == null) {
+            value = loader.apply(key);
+            if (value != null) {
+                cache.put(key, value);
+            }
+        }
+        return value;
+    }
+
+    private Integer getNodeId(int nodeId) {
+        return getCached(m_nodeIds, nodeId, id -> {
+            final OnmsNode node = getNode(id);
+            return node == null ? null : node.getId();
+        });
+    }
+
+    private Integer getServiceId(String serviceName) {
+        if (serviceName == null) {
+            return null;
+        }
+        return getCached(m_serviceIds, serviceName, name -> {
+            final OnmsServiceType serviceType = getServiceType(name);
+            return serviceType == null ? null : serviceType.getId();
+        });
+    }
+
+    /**
+     * Same lookups as {@link HibernateEventWriter#createOnmsEvent(Header, Event)}
+     */
+    private String getSystemId(Header header, Event event) {
+        String systemId = null;
+        if (header != null && header.getDpName() != null && !"".equals(header.getDpName().trim())) {
+            systemId = getCached(m_distPollerIds, header.getDpName(), id -> getId(getDistPoller(id)));
+        }
+        if (systemId == null && event.getDistPoller() != null && !"".equals(event.getDistPoller().trim())) {
+            systemId = getCached(m_monitoringSystemIds, event.getDistPoller(), id -> getId(getMonitoringSystem(id)));
+        }
+        if (systemId == null) {
+            if (m_localSystemId == null) {
+                m_localSystemId = getId(getLocalSystem());
+            }
+            systemId = m_localSystemId;
+        }
+        return systemId;
+    }
+
+    private static String getId(OnmsMonitoringSystem system) {
+        return system == null ? null : system.getId();
+    }
+
+    private void invalidateCaches() {
+        m_nodeIds.invalidateAll();
+        m_serviceIds.invalidateAll();
+        m_distPollerIds.invalidateAll();
+        m_monitoringSystemIds.invalidateAll();
+        m_localSystemId = null;
+    }
+
+    @Override
+    public void process(Log eventLog) throws EventProcessorException {
+        if (eventLog == null || eventLog.getEvents() == null || eventLog.getEvents().getEventCollection() == null) {
+            return;
+        }
+
+        // Find the events in the log that need to be persisted
+        final List<Event> eventsToPersist = eventLog.getEvents().getEventCollection().stream()
+                .filter(e -> checkEventSanityAndDoWeProcess(e, "JdbcEventWriter"))
+                .collect(Collectors.toList());
+
+        // If there are no events to persist, avoid creating a database transaction
+        if (eventsToPersist.isEmpty()) {
+            return;
+        }
+
+        // Time the wait for the batch that contains these events
+        try (Context context = getWriteTimer().time()) {
+            final PendingLog pending = new PendingLog(eventLog.getHeader(), eventsToPersist);
+            m_queue.add(pending);
+            drain();
+            pending.m_written.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EventProcessorException("Interrupted while waiting for events to be written", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof EventProcessorException) {
+                throw (EventProcessorException)e.getCause();
+            }
+            throw new EventProcessorException("Unexpected exception while storing events", e.getCause());
+        }
+    }
+
+    /**
+     * Write the queued logs, unless another thread is already doing so. That
+     * thread checks the queue again after it is done, so nothing queued is
+     * left behind.
+     */
+    private void drain() {
+        while (!m_queue.isEmpty() && m_writing.compareAndSet(false, true)) {
+            try {
+                final List<PendingLog> batch = new ArrayList<>();
+                int events = 0;
+                PendingLog pending;
+                while (events < m_batchSize && (pending = m_queue.poll()) != null) {
+                    batch.add(pending);
+                    events += pending.m_events.size();
+                }
+                if (!batch.isEmpty()) {
+                    write(batch, events);
+                }
+            } finally {
+                m_writing.set(false);
+            }
+        }
+    }
+
+    private void write(List<PendingLog> batch, int eventCount) {
+        final List<Integer> ids = new ArrayList<>(eventCount);
+        try (Context context = m_batchTimer.time()) {
+            getTransactionManager().execute(status -> {
+                insert(batch, eventCount, ids);
+                return null;
+            });
+        } catch (DataIntegrityViolationException e) {
+            LOG.warn("Failed to insert a batch of {} events, writing them one log at a time: {}", eventCount, e.getMessage());
+            invalidateCaches();
+            writeSeparately(batch);
+            return;
+        } catch (Throwable t) {
+            final EventProcessorException e = new EventProcessorException("Unexpected exception while storing a batch of " + eventCount + " events", t);
+            for (final PendingLog pending : batch) {
+                pending.m_written.completeExceptionally(e);
+            }
+            return;
+        }
+
+        // Only hand out the IDs once the events are committed
+        int i = 0;
+        for (final PendingLog pending : batch) {
+            for (final Event event : pending.m_events) {
+                event.setDbid(ids.get(i++));
+            }
+            pending.m_written.complete(null);
+        }
+        m_batchSizes.update(eventCount);
+    }
+
+    private void insert(List<PendingLog> batch, int eventCount, List<Integer> ids) {
+        allocateIds(eventCount);
+
+        final List<Object[]> args = new ArrayList<>(eventCount);
+        for (final PendingLog pending : batch) {
+            for (final Event event : pending.m_events) {
+                LOG.debug("JdbcEventWriter: processing {}, nodeid: {}, ipaddr: {}, serviceid: {}, time: {}", event.getUei(), event.getNodeid(), event.getInterface(), event.getService(), event.getTime());
+                final Integer id = m_ids.poll();
+                ids.add(id);
+                final Integer nodeId = event.hasNodeid() ? getNodeId(event.getNodeid().intValue()) : null;
+                args.add(toRow(id, createOnmsEventWithoutReferences(event), nodeId, getSystemId(pending.m_header, event), getServiceId(event.getService())));
+            }
+        }
+        m_jdbcTemplate.batchUpdate(INSERT_SQL, args, INSERT_TYPES);
+    }
+
+    private void allocateIds(int count) {
+        if (m_ids.size() >= count) {
+            return;
+        }
+        final int needed = Math.max(count - m_ids.size(), m_idBlockSize);
+        m_ids.addAll(m_jdbcTemplate.queryForList(NEXT_IDS_SQL, Integer.class, needed));
+    }
+
+    private void writeSeparately(List<PendingLog> batch) {
+        for (final PendingLog pending : batch) {
+            try {
+                final Events events = new Events();
+                events.setEvent(pending.m_events.toArray(new Event[pending.m_events.size()]));
+                final Log log = new Log();
+                log.setHeader(pending.m_header);
+                log.setEvents(events);
+                super.process(log);
+                pending.m_written.complete(null);
+            } catch (Throwable t) {
+                pending.m_written.completeExceptionally(t);
+            }
+        }
+    }
+
+    private static Object[] toRow(Integer id, OnmsEvent ovent, Integer nodeId, String systemId, Integer serviceId) {
+        return new Object[] {
+            id,
+            ovent.getEventUei(),
+            nodeId,
+            ovent.getEventTime(),
+            ovent.getEventHost(),
+            ovent.getEventSource(),
+            ovent.getIpAddr() == null ? null : InetAddressUtils.str(ovent.getIpAddr()),
+            systemId,
+            ovent.getEventSnmpHost(),
+            serviceId,
+            ovent.getEventSnmp(),
+            ovent.getEventParms(),
+            ovent.getEventCreateTime(),
+            ovent.getEventDescr(),
+            ovent.getEventLogGroup(),
+            ovent.getEventLogMsg(),
+            ovent.getEventSeverity(),
+            ovent.getEventPathOutage(),
+            ovent.getEventCorrelation(),
+            ovent.getEventSuppressedCount(),
+            ovent.getEventOperInstruct(),
+            ovent.getEventAutoAction(),
+            ovent.getEventOperAction(),
+            ovent.getEventOperActionMenuText(),
+            ovent.getEventNotification(),
+            ovent.getEventTTicket(),
+            ovent.getEventTTicketState(),
+            ovent.getEventForward(),
+            ovent.getEventMouseOverText(),
+            ovent.getEventLog(),
+            ovent.getEventDisplay(),
+            ovent.getEventAckUser(),
+            ovent.getEventAckTime(),
+            ovent.getIfIndex()
+        };
+    }
+
+    public void setJdbcTemplate(JdbcOperations jdbcTemplate) {
+        m_jdbcTemplate = jdbcTemplate;
+    }
+}
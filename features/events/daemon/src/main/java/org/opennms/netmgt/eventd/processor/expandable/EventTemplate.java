@@ -32,7 +32,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 import org.opennms.netmgt.eventd.EventUtil;
 import org.opennms.netmgt.xml.event.Event;
@@ -56,6 +55,19 @@ public class EventTemplate implements ExpandableToken {
 
     private static final Pattern WHITESPACE_PATTERN = Pattern.compile(".*\\s(?s).*");
 
+    /**
+     * Buffers larger than this are not kept around after an expansion, so that a
+     * single oversized value does not pin memory on every event processing thread.
+     */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Per-thread expansion buffer. A thread takes the buffer out while it is expanding
+     * and puts it back when done, so nested expansions (i.e. a resolver expanding
+     * another template) simply fall back to a fresh buffer.
+     */
+    private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<>();
+
     private final String input;
 
     private final List<ExpandableToken> tokens = Lists.newArrayList();
@@ -86,8 +98,10 @@ public class EventTemplate implements ExpandableToken {
         while ((tempInp != null) && ((index1 = tempInp.indexOf(PERCENT)) != -1)) {
 
             LOG.debug("checking input {}", tempInp);
-            // copy till first %
-            tokens.add(new ExpandableConstant(tempInp.substring(0, index1)));
+            // copy till first %, there is no point in keeping empty constants around
+            if (index1 > 0) {
+                tokens.add(new ExpandableConstant(tempInp.substring(0, index1)));
+            }
             tempInp = tempInp.substring(index1);
 
             index2 = tempInp.indexOf(PERCENT, 1);
@@ -123,10 +137,33 @@ public class EventTemplate implements ExpandableToken {
 
     @Override
     public String expand(Event event, Map<String, Map<String, String>> decode) {
-        final String collect = tokens.stream()
-                .map(t -> t.expand(event, decode))
-                .collect(Collectors.joining());
-        return collect;
+        // Nothing to concatenate, avoid the copy through the buffer
+        if (tokens.size() == 1) {
+            return tokens.get(0).expand(event, decode);
+        }
+
+        StringBuilder sb = BUFFER.get();
+        if (sb == null) {
+            sb = new StringBuilder(input.length() * 2);
+        } else {
+            BUFFER.set(null);
+        }
+        try {
+            expand(event, decode, sb);
+            return sb.toString();
+        } finally {
+            if (sb.capacity() <= MAX_RETAINED_BUFFER_SIZE) {
+                sb.setLength(0);
+                BUFFER.set(sb);
+            }
+        }
+    }
+
+    @Override
+    public void expand(Event event, Map<String, Map<String, String>> decode, StringBuilder sb) {
+        for (ExpandableToken token : tokens) {
+            token.expand(event, decode, sb);
+        }
     }
 
     // If we find any token which requires a transaction, the template itself requires a transaction as well
@@ -54,6 +54,11 @@ public class ExpandableConstant implements ExpandableToken {
         return token;
     }
 
+    @Override
+    public void expand(Event event, Map<String, Map<String, String>> decode, StringBuilder sb) {
+        sb.append(token);
+    }
+
     @Override
     public boolean requiresTransaction() {
         return false; // no transaction for constants
@@ -65,22 +65,43 @@ public class ExpandableParameter implements ExpandableToken {
 
     @Override
     public String expand(Event event, Map<String, Map<String, String>> decode) {
-        String value = resolver.getValue(token, parsedToken, event, eventUtil);
+        final String value = getValue(event);
+        if (value == null) {
+            return "";
+        }
+        final String decoded = getDecodedValue(value, decode);
+        if (decoded == null) {
+            return value;
+        }
+        return new StringBuilder(decoded.length() + value.length() + 2).append(decoded).append('(').append(value).append(')').toString();
+    }
+
+    @Override
+    public void expand(Event event, Map<String, Map<String, String>> decode, StringBuilder sb) {
+        final String value = getValue(event);
+        if (value == null) {
+            return;
+        }
+        final String decoded = getDecodedValue(value, decode);
+        if (decoded == null) {
+            sb.append(value);
+        } else {
+            sb.append(decoded).append('(').append(value).append(')');
+        }
+    }
+
+    private String getValue(Event event) {
+        final String value = resolver.getValue(token, parsedToken, event, eventUtil);
         LOG.debug("Value of token {}={}", token, value);
+        return value;
+    }
 
-        if (value != null) {
-            if (decode != null && decode.containsKey(token) && decode.get(token).containsKey(value)) {
-                StringBuilder ret = new StringBuilder();
-                ret.append(decode.get(token).get(value));
-                ret.append("(");
-                ret.append(value);
-                ret.append(")");
-                return ret.toString();
-            } else {
-                return value;
-            }
+    private String getDecodedValue(String value, Map<String, Map<String, String>> decode) {
+        if (decode == null) {
+            return null;
         }
-        return "";
+        final Map<String, String> decodeForToken = decode.get(token);
+        return decodeForToken == null ? null : decodeForToken.get(value);
     }
 
     @Override
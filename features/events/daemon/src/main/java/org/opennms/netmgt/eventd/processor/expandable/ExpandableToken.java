@@ -46,6 +46,18 @@ public interface ExpandableToken {
      */
     String expand(Event event, Map<String, Map<String, String>> decode);
 
+    /**
+     * Expands a token and appends the result to the given buffer, avoiding the
+     * intermediate {@link String} where the token allows it.
+     *
+     * @param event An event, to expand the token from. May not be null.
+     * @param decode A Map, to help expanding the token. May be null.
+     * @param sb The buffer to append the expanded token to. May not be null.
+     */
+    default void expand(Event event, Map<String, Map<String, String>> decode, StringBuilder sb) {
+        sb.append(expand(event, decode));
+    }
+
     /**
      * Defines if this {@link ExpandableToken} requires a transaction to be expanded.
      *
@@ -36,6 +36,7 @@ import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicReference;
 
+import org.opennms.netmgt.events.api.BatchEventListener;
 import org.opennms.netmgt.events.api.EventConstants;
 import org.opennms.netmgt.events.api.EventHandler;
 import org.opennms.netmgt.events.api.EventListener;
@@ -503,6 +504,94 @@ public class EventIpcManagerDefaultImplTest extends TestCase {
         assertEquals(Thread.currentThread().getId(), threadRecordingEventHandler.getThreadId());
     }
 
+    public void testRingBufferDispatchToBatchListener() throws Exception {
+        EventIpcManagerDefaultImpl manager = new EventIpcManagerDefaultImpl(m_registry);
+        manager.setEventHandler(m_eventHandler);
+        manager.setHandlerPoolSize(5);
+        manager.setRingBufferDispatch(true);
+        manager.afterPropertiesSet();
+
+        MockBatchEventListener listener = new MockBatchEventListener();
+        manager.addEventListener(listener, "uei.opennms.org/");
+
+        m_mocks.replayAll();
+
+        List<Event> events = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Event e = new EventBuilder("uei.opennms.org/foo", "testRingBufferDispatchToBatchListener").getEvent();
+            events.add(e);
+            manager.broadcastNow(e);
+        }
+        manager.broadcastNow(new EventBuilder("uei.opennms.com/bar", "testRingBufferDispatchToBatchListener").getEvent());
+
+        // Removing the listener drains its queue
+        manager.removeEventListener(listener);
+
+        m_mocks.verifyAll();
+
+        assertEquals("events should be delivered in order", events, listener.getEvents());
+        assertEquals(events.size(), m_registry.getTimers().get("eventlisteners." + listener.getName() + ".latency").getCount());
+        assertFalse("queued gauge should be removed with the listener", m_registry.getGauges().containsKey("eventlisteners." + listener.getName() + ".queued"));
+    }
+
+    public void testRingBufferDispatchToListener() throws Exception {
+        EventIpcManagerDefaultImpl manager = new EventIpcManagerDefaultImpl(m_registry);
+        manager.setEventHandler(m_eventHandler);
+        manager.setHandlerPoolSize(5);
+        manager.setRingBufferDispatch(true);
+        manager.afterPropertiesSet();
+
+        EventBuilder bldr = new EventBuilder("uei.opennms.org/foo", "testRingBufferDispatchToListener");
+        Event e = bldr.getEvent();
+
+        m_mocks.replayAll();
+
+        manager.addEventListener(m_listener);
+        manager.broadcastNow(e);
+        manager.removeEventListener(m_listener);
+
+        m_mocks.verifyAll();
+
+        assertTrue("could not remove broadcasted event--did it make it?", m_listener.getEvents().remove(e));
+    }
+
+    public void testSetRingBufferDispatchAfterAddingListener() throws Exception {
+        ThrowableAnticipator ta = new ThrowableAnticipator();
+        ta.anticipate(new IllegalStateException("ringBufferDispatch property cannot be set after listeners have been added"));
+
+        m_manager.addEventListener(m_listener);
+        try {
+            m_manager.setRingBufferDispatch(true);
+        } catch (Throwable t) {
+            ta.throwableReceived(t);
+        }
+
+        ta.verifyAnticipated();
+    }
+
+    public class MockBatchEventListener implements BatchEventListener {
+        private final List<Event> m_events = new ArrayList<Event>();
+
+        @Override
+        public String getName() {
+            return "excellent";
+        }
+
+        @Override
+        public void onEvent(Event e) {
+            fail("onEvents() should be used to deliver events to batch listeners");
+        }
+
+        @Override
+        public void onEvents(List<Event> events) {
+            m_events.addAll(events);
+        }
+
+        public List<Event> getEvents() {
+            return m_events;
+        }
+    }
+
     public class MockEventListener implements EventListener {
         private List<Event> m_events = new ArrayList<Event>();
         
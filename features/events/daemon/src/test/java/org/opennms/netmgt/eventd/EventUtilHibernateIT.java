@@ -39,14 +39,21 @@ import org.opennms.core.test.db.annotations.JUnitTemporaryDatabase;
 import org.opennms.netmgt.dao.DatabasePopulator;
 import org.opennms.netmgt.dao.api.AssetRecordDao;
 import org.opennms.netmgt.dao.api.HwEntityDao;
+import org.opennms.netmgt.dao.api.NodeDao;
+import org.opennms.netmgt.events.api.EventConstants;
 import org.opennms.netmgt.model.OnmsAssetRecord;
 import org.opennms.netmgt.model.OnmsHwEntity;
 import org.opennms.netmgt.model.OnmsNode;
+import org.opennms.netmgt.model.events.EventBuilder;
 import org.opennms.test.JUnitConfigurationEnvironment;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.transaction.annotation.Transactional;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
 @RunWith(OpenNMSJUnit4ClassRunner.class)
 @ContextConfiguration(locations={
         "classpath:/META-INF/opennms/applicationContext-soa.xml",
@@ -74,6 +81,13 @@ public class EventUtilHibernateIT {
     @Autowired
     private HwEntityDao m_hwEntityDao;
 
+    @Autowired
+    private NodeDao m_nodeDao;
+
+    @Autowired
+    @Qualifier("eventdMetricRegistry")
+    private MetricRegistry m_metricRegistry;
+
     @Before
     public void setUp() throws Exception {
     	m_populator.populateDatabase();
@@ -156,4 +170,40 @@ public class EventUtilHibernateIT {
         hwfield = eventUtilDaoImpl.getHardwareFieldValue("hardware[~%Cha%:entPhysicalDescr]", node1.getId());
         assertEquals("some-physical-d3scr", hwfield);
     }
+
+    @Test
+    public void testNodeCacheInvalidation() {
+        OnmsNode node1 = m_populator.getNode1();
+        assertEquals("node1", eventUtilDaoImpl.getNodeLabel(node1.getId()));
+
+        node1.setLabel("node1-renamed");
+        OnmsAssetRecord asset1 = node1.getAssetRecord();
+        asset1.setAdmin("some-other-adm1n");
+        m_nodeDao.saveOrUpdate(node1);
+
+        // The details are served from the cache until the node is updated
+        assertEquals("node1", eventUtilDaoImpl.getNodeLabel(node1.getId()));
+
+        // Events that do not change nodes are ignored
+        eventUtilDaoImpl.process(new EventBuilder(EventConstants.NODE_DOWN_EVENT_UEI, "test")
+                .setNodeid(node1.getId())
+                .getLog());
+        assertEquals("node1", eventUtilDaoImpl.getNodeLabel(node1.getId()));
+
+        eventUtilDaoImpl.process(new EventBuilder(EventConstants.NODE_LABEL_CHANGED_EVENT_UEI, "test")
+                .setNodeid(node1.getId())
+                .getLog());
+        assertEquals("node1-renamed", eventUtilDaoImpl.getNodeLabel(node1.getId()));
+        assertEquals("some-other-adm1n", eventUtilDaoImpl.getAssetFieldValue("asset[admin]", node1.getId()));
+    }
+
+    @Test
+    public void testUnknownNodesAreNotCached() {
+        final Gauge<?> cacheSize = m_metricRegistry.getGauges().get("eventutil.nodecache.size");
+        final Object sizeBefore = cacheSize.getValue();
+
+        // Events may reference nodes before they were added, so misses must not be cached
+        assertNull(eventUtilDaoImpl.getNodeLabel(Integer.MAX_VALUE));
+        assertEquals(sizeBefore, cacheSize.getValue());
+    }
 }
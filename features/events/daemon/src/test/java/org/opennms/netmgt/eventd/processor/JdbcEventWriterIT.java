@@ -0,0 +1,254 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.eventd.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opennms.core.test.OpenNMSJUnit4ClassRunner;
+import org.opennms.core.test.db.annotations.JUnitTemporaryDatabase;
+import org.opennms.core.utils.InetAddressUtils;
+import org.opennms.netmgt.dao.api.MonitoringLocationDao;
+import org.opennms.netmgt.model.OnmsMonitoringSystem;
+import org.opennms.netmgt.model.events.EventBuilder;
+import org.opennms.netmgt.xml.event.Autoacknowledge;
+import org.opennms.netmgt.xml.event.Autoaction;
+import org.opennms.netmgt.xml.event.Event;
+import org.opennms.netmgt.xml.event.Events;
+import org.opennms.netmgt.xml.event.Forward;
+import org.opennms.netmgt.xml.event.Log;
+import org.opennms.netmgt.xml.event.Operaction;
+import org.opennms.netmgt.xml.event.Snmp;
+import org.opennms.netmgt.xml.event.Tticket;
+import org.opennms.test.JUnitConfigurationEnvironment;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ContextConfiguration;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Writes events with the {@link JdbcEventWriter} and checks the rows against
+ * the ones written by the {@link HibernateEventWriter}.
+ */
+@RunWith(OpenNMSJUnit4ClassRunner.class)
+@ContextConfiguration(locations={
+        "classpath:/META-INF/opennms/applicationContext-soa.xml",
+        "classpath:/META-INF/opennms/applicationContext-dao.xml",
+        "classpath:/META-INF/opennms/applicationContext-commonConfigs.xml",
+        "classpath:/META-INF/opennms/applicationContext-minimal-conf.xml",
+        "classpath*:/META-INF/opennms/component-dao.xml",
+        "classpath*:/META-INF/opennms/component-service.xml",
+        "classpath:/META-INF/opennms/applicationContext-daemon.xml",
+        "classpath:/META-INF/opennms/mockEventIpcManager.xml",
+        "classpath:/META-INF/opennms/applicationContext-eventDaemon.xml"
+})
+@JUnitConfigurationEnvironment
+@JUnitTemporaryDatabase(reuseDatabase=false)
+public class JdbcEventWriterIT {
+
+    @Autowired
+    private EventWriter m_hibernateEventWriter;
+
+    @Autowired
+    private ApplicationContext m_context;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private JdbcEventWriter m_jdbcEventWriter;
+
+    @Before
+    public void setUp() {
+        assertFalse("the Hibernate writer must be the default", m_hibernateEventWriter instanceof JdbcEventWriter);
+
+        m_jdbcEventWriter = new JdbcEventWriter(new MetricRegistry());
+        m_context.getAutowireCapableBeanFactory().autowireBean(m_jdbcEventWriter);
+    }
+
+    private int addNode(String label) {
+        jdbcTemplate.update("INSERT INTO node (location, nodeId, nodeCreateTime, nodeLabel) VALUES ('" + MonitoringLocationDao.DEFAULT_MONITORING_LOCATION_ID + "', nextVal('nodeNxtId'), now(), ?)", label);
+        return jdbcTemplate.queryForInt("SELECT nodeId FROM node WHERE nodeLabel = ?", label);
+    }
+
+    private int addService(String name) {
+        jdbcTemplate.update("INSERT INTO service (serviceId, serviceName) VALUES (nextVal('serviceNxtId'), ?)", name);
+        return jdbcTemplate.queryForInt("SELECT serviceId FROM service WHERE serviceName = ?", name);
+    }
+
+    private Map<String, Object> getRow(int eventId) {
+        return jdbcTemplate.queryForMap("SELECT * FROM events WHERE eventId = ?", eventId);
+    }
+
+    /**
+     * Every column must be the same as with the Hibernate writer, except for
+     * the ID and the times at which the events were stored.
+     */
+    @Test
+    public void testSameColumnsAsHibernateEventWriter() throws Exception {
+        final int nodeId = addNode("node1");
+        jdbcTemplate.update("INSERT INTO ipInterface (nodeId, ipAddr, ipHostname) VALUES (?, ?, ?)", nodeId, "192.168.1.1", "First Interface");
+        final int serviceId = addService("SNMP-JDBC");
+        final String systemId = UUID.randomUUID().toString();
+        jdbcTemplate.update("INSERT INTO monitoringsystems (id, location, type) VALUES (?, 'Test', ?)", systemId, OnmsMonitoringSystem.TYPE_MINION);
+
+        final Event hibernateEvent = createEventWithEveryColumn(nodeId, systemId);
+        m_hibernateEventWriter.process(toLog(hibernateEvent));
+        final Event jdbcEvent = createEventWithEveryColumn(nodeId, systemId);
+        m_jdbcEventWriter.process(toLog(jdbcEvent));
+
+        assertTrue(hibernateEvent.getDbid() > 0);
+        assertTrue(jdbcEvent.getDbid() > 0);
+        assertFalse(hibernateEvent.getDbid().equals(jdbcEvent.getDbid()));
+
+        final Map<String, Object> expected = getRow(hibernateEvent.getDbid());
+        final Map<String, Object> actual = getRow(jdbcEvent.getDbid());
+        assertEquals(Integer.valueOf(nodeId), actual.get("nodeid"));
+        assertEquals(Integer.valueOf(serviceId), actual.get("serviceid"));
+        assertEquals(systemId, actual.get("systemid"));
+        assertEquals("First Interface", actual.get("eventhost"));
+        assertNotNull(actual.get("eventcreatetime"));
+        assertNotNull(actual.get("eventacktime"));
+
+        for (final String column : new String[] { "eventid", "eventcreatetime", "eventacktime" }) {
+            expected.remove(column);
+            actual.remove(column);
+        }
+        assertEquals(expected, actual);
+    }
+
+    /**
+     * Nodes and services that are not found must not be cached, so that the
+     * events that follow their creation reference them.
+     */
+    @Test
+    public void testNodeAndServiceAddedWhileRunning() throws Exception {
+        final long nodeId = jdbcTemplate.queryForLong("SELECT nextVal('nodeNxtId')") + 1;
+
+        final Event before = createEvent(nodeId, "NEW-SERVICE");
+        m_jdbcEventWriter.process(toLog(before));
+        assertNull(getRow(before.getDbid()).get("nodeid"));
+        assertNull(getRow(before.getDbid()).get("serviceid"));
+
+        assertEquals(nodeId, addNode("newNode"));
+        final int serviceId = addService("NEW-SERVICE");
+
+        final Event after = createEvent(nodeId, "NEW-SERVICE");
+        m_jdbcEventWriter.process(toLog(after));
+        assertEquals(Integer.valueOf((int)nodeId), getRow(after.getDbid()).get("nodeid"));
+        assertEquals(Integer.valueOf(serviceId), getRow(after.getDbid()).get("serviceid"));
+    }
+
+    private static Log toLog(Event event) {
+        final Events events = new Events();
+        events.addEvent(event);
+        final Log log = new Log();
+        log.setEvents(events);
+        return log;
+    }
+
+    private static Event createEvent(long nodeId, String service) {
+        final EventBuilder bldr = new EventBuilder("uei.opennms.org/test/jdbcEventWriter", "JdbcEventWriterIT");
+        bldr.setLogDest(HibernateEventWriter.LOG_MSG_DEST_LOG_AND_DISPLAY);
+        bldr.setNodeid(nodeId);
+        bldr.setService(service);
+        return bldr.getEvent();
+    }
+
+    private static Event createEventWithEveryColumn(int nodeId, String systemId) {
+        final EventBuilder bldr = new EventBuilder("uei.opennms.org/test/jdbcEventWriter", "JdbcEventWriterIT", new Date(1000000000000L));
+        bldr.setLogDest(HibernateEventWriter.LOG_MSG_DEST_LOG_ONLY);
+        bldr.setLogMessage("log message");
+        bldr.setNodeid(nodeId);
+        bldr.setInterface(InetAddressUtils.addr("192.168.1.1"));
+        bldr.setHost("192.168.1.1");
+        bldr.setService("SNMP-JDBC");
+        bldr.setIfIndex(7);
+        bldr.setDistPoller(systemId);
+        bldr.setSeverity("Major");
+        bldr.setDescription("description");
+        bldr.addParam("parm1", "value1");
+        bldr.addParam("parm2", "value\u00002");
+
+        final Event event = bldr.getEvent();
+        event.setSnmphost("192.168.1.2");
+        event.addLoggroup("group");
+        event.setPathoutage("path outage");
+        event.setOperinstruct("operator instructions");
+        event.setMouseovertext("mouse over");
+
+        final Snmp snmp = new Snmp();
+        snmp.setId(".1.3.6.1.4.1.5813");
+        snmp.setVersion("v2c");
+        snmp.setGeneric(6);
+        snmp.setSpecific(1);
+        snmp.setCommunity("public");
+        event.setSnmp(snmp);
+
+        final Autoaction autoaction = new Autoaction();
+        autoaction.setContent("auto action");
+        autoaction.setState("on");
+        event.addAutoaction(autoaction);
+
+        final Operaction operaction = new Operaction();
+        operaction.setContent("operator action");
+        operaction.setMenutext("menu");
+        operaction.setState("on");
+        event.addOperaction(operaction);
+
+        final Tticket tticket = new Tticket();
+        tticket.setContent("ticket");
+        tticket.setState("on");
+        event.setTticket(tticket);
+
+        final Forward forward = new Forward();
+        forward.setContent("forward");
+        forward.setMechanism("snmpudp");
+        forward.setState("on");
+        event.addForward(forward);
+
+        final Autoacknowledge autoacknowledge = new Autoacknowledge();
+        autoacknowledge.setContent("admin");
+        autoacknowledge.setState("on");
+        event.setAutoacknowledge(autoacknowledge);
+
+        return event;
+    }
+}
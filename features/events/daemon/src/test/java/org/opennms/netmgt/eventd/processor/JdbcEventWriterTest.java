@@ -0,0 +1,209 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.eventd.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.netmgt.dao.api.DistPollerDao;
+import org.opennms.netmgt.model.OnmsDistPoller;
+import org.opennms.netmgt.model.OnmsEvent;
+import org.opennms.netmgt.model.OnmsMonitoringSystem;
+import org.opennms.netmgt.model.events.EventBuilder;
+import org.opennms.netmgt.xml.event.Event;
+import org.opennms.netmgt.xml.event.Log;
+import org.springframework.jdbc.core.JdbcOperations;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionOperations;
+
+import com.codahale.metrics.MetricRegistry;
+
+public class JdbcEventWriterTest {
+
+    private JdbcEventWriter eventWriter;
+    private TransactionOperations transactionManager;
+    private JdbcOperations jdbcTemplate;
+    private CountDownLatch inTransaction;
+    private CountDownLatch releaseTransaction;
+    private int nextId = 1;
+
+    @Before
+    public void setUp() {
+        System.setProperty("org.opennms.eventd.jdbcWriter.idBlockSize", "10");
+        eventWriter = new JdbcEventWriter(new MetricRegistry()) {
+            @Override
+            OnmsEvent createOnmsEventWithoutReferences(Event event) {
+                final OnmsEvent ovent = new OnmsEvent();
+                ovent.setEventUei(event.getUei());
+                return ovent;
+            }
+
+            @Override
+            protected OnmsMonitoringSystem getLocalSystem() {
+                return new OnmsDistPoller(DistPollerDao.DEFAULT_DIST_POLLER_ID);
+            }
+        };
+
+        transactionManager = mock(TransactionOperations.class);
+        when(transactionManager.execute(any())).thenAnswer(invocation -> {
+            if (inTransaction != null) {
+                inTransaction.countDown();
+                releaseTransaction.await();
+            }
+            return ((TransactionCallback<?>)invocation.getArguments()[0]).doInTransaction(null);
+        });
+        eventWriter.setTransactionManager(transactionManager);
+
+        jdbcTemplate = mock(JdbcOperations.class);
+        when(jdbcTemplate.queryForList(any(String.class), eq(Integer.class), any())).thenAnswer(invocation -> {
+            final int count = (Integer)invocation.getArguments()[2];
+            final List<Integer> ids = IntStream.range(nextId, nextId + count).boxed().collect(Collectors.toList());
+            nextId += count;
+            return ids;
+        });
+        eventWriter.setJdbcTemplate(jdbcTemplate);
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty("org.opennms.eventd.jdbcWriter.idBlockSize");
+    }
+
+    private static Log persistedLog(String uei) {
+        final EventBuilder bldr = new EventBuilder(uei, "testSource");
+        bldr.setLogDest(HibernateEventWriter.LOG_MSG_DEST_LOG_AND_DISPLAY);
+        return bldr.getLog();
+    }
+
+    @Test
+    public void testNoTransactionOpened() throws Exception {
+        eventWriter.process(null);
+        eventWriter.process(new Log());
+
+        final EventBuilder bldr = new EventBuilder("testUei", "testSource");
+        bldr.setLogDest(HibernateEventWriter.LOG_MSG_DEST_DO_NOT_PERSIST);
+        eventWriter.process(bldr.getLog());
+
+        verify(transactionManager, never()).execute(any());
+    }
+
+    /**
+     * Verifies that the IDs are set before process() returns, and that they
+     * come from a single block of the sequence.
+     */
+    @Test
+    public void testIdsAssignedFromBlock() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            final Log log = persistedLog("testUei" + i);
+            eventWriter.process(log);
+            assertEquals(Integer.valueOf(i + 1), log.getEvents().getEvent(0).getDbid());
+        }
+
+        verify(transactionManager, times(5)).execute(any());
+        verify(jdbcTemplate, times(1)).queryForList(any(String.class), eq(Integer.class), eq(10));
+        verify(jdbcTemplate, times(5)).batchUpdate(any(String.class), anyListOf(Object[].class), any(int[].class));
+    }
+
+    /**
+     * Verifies that logs processed while a batch is being written are
+     * grouped in the next batch.
+     */
+    @Test(timeout = 30000)
+    public void testConcurrentLogsAreGrouped() throws Exception {
+        inTransaction = new CountDownLatch(1);
+        releaseTransaction = new CountDownLatch(1);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(5);
+        try {
+            final Log first = persistedLog("first");
+            final Future<?> firstWrite = executor.submit(() -> {
+                eventWriter.process(first);
+                return null;
+            });
+            inTransaction.await();
+
+            final List<Log> others = new ArrayList<>();
+            final List<Future<?>> otherWrites = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                final Log log = persistedLog("other" + i);
+                others.add(log);
+                otherWrites.add(executor.submit(() -> {
+                    eventWriter.process(log);
+                    return null;
+                }));
+            }
+
+            // Give the other threads the time to queue their logs
+            Thread.sleep(500);
+            releaseTransaction.countDown();
+
+            firstWrite.get();
+            for (final Future<?> write : otherWrites) {
+                write.get();
+            }
+
+            verify(transactionManager, times(2)).execute(any());
+
+            final Set<Integer> ids = new HashSet<>();
+            ids.add(first.getEvents().getEvent(0).getDbid());
+            for (final Log log : others) {
+                ids.add(log.getEvents().getEvent(0).getDbid());
+            }
+            assertEquals(5, ids.size());
+            assertTrue(!ids.contains(null));
+        } finally {
+            executor.shutdownNow();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -33,38 +33,26 @@ import static org.opennms.core.utils.InetAddressUtils.str;
 import java.io.UnsupportedEncodingException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.regex.PatternSyntaxException;
+import java.util.Map;
 
 import org.apache.commons.lang.builder.ToStringBuilder;
 import org.opennms.core.utils.InetAddressUtils;
 import org.opennms.netmgt.config.SyslogdConfig;
-import org.opennms.netmgt.config.syslogd.HideMatch;
-import org.opennms.netmgt.config.syslogd.HideMessage;
-import org.opennms.netmgt.config.syslogd.HostaddrMatch;
-import org.opennms.netmgt.config.syslogd.HostnameMatch;
-import org.opennms.netmgt.config.syslogd.ParameterAssignment;
-import org.opennms.netmgt.config.syslogd.ProcessMatch;
-import org.opennms.netmgt.config.syslogd.UeiList;
-import org.opennms.netmgt.config.syslogd.UeiMatch;
 import org.opennms.netmgt.dao.api.AbstractInterfaceToNodeCache;
 import org.opennms.netmgt.model.events.EventBuilder;
 import org.opennms.netmgt.xml.event.Event;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 
 /**
  * This routine does the majority of Syslogd's work.
  * Improvements are most likely to be made.
  * 
- * TODO: This class is sloooow. It needs to be sped up significantly
- * to handle increased syslog volume.
+ * The &lt;ueiMatch&gt; and &lt;hideMatch&gt; rules are evaluated by a
+ * {@link SyslogMatcher} that is compiled once per configuration.
  *
  * @author <a href="mailto:joed@opennms.org">Johan Edstrom</a>
  * @author <a href="mailto:brozow@opennms.org">Mathew Brozowski</a>
@@ -82,19 +70,6 @@ public class ConvertToEvent {
 
     private final Event m_event;
 
-    private static final LoadingCache<String,Pattern> CACHED_PATTERNS = CacheBuilder.newBuilder().build(
-        new CacheLoader<String,Pattern>() {
-            public Pattern load(String expression) {
-                try {
-                    return Pattern.compile(expression, Pattern.MULTILINE);
-                } catch(final PatternSyntaxException e) {
-                    LOG.warn("Failed to compile regex pattern '{}'", expression, e);
-                    return null;
-                }
-            }
-        }
-    );
-
     /**
      * Constructs a new event encapsulation instance based upon the
      * information passed to the method. The passed datagram data is decoded
@@ -142,10 +117,6 @@ public class ConvertToEvent {
             throw new IllegalArgumentException("Config cannot be null");
         }
 
-        final UeiList ueiList = config.getUeiList();
-        final HideMessage hideMessage = config.getHideMessages();
-        final String discardUei = config.getDiscardUei();
-
         final String syslogString;
         if (data.endsWith("\0")) {
             syslogString = data.substring(0, data.length() - 1);
@@ -158,14 +129,16 @@ public class ConvertToEvent {
         }
 
         SyslogParser parser = SyslogParser.getParserInstance(config, syslogString);
-        if (!parser.find()) {
-            throw new MessageDiscardedException("message does not match");
-        }
         SyslogMessage message;
-        try {
+        try (Timer.Context context = SyslogParser.getMetricRegistry().timer(MetricRegistry.name(parser.getClass(), "parse")).time()) {
+            if (!parser.find()) {
+                markFailure(parser);
+                throw new MessageDiscardedException("message does not match");
+            }
             message = parser.parse();
         } catch (final SyslogParserException ex) {
             LOG.debug("Unable to parse '{}'", syslogString, ex);
+            markFailure(parser);
             throw new MessageDiscardedException(ex);
         }
 
@@ -173,6 +146,7 @@ public class ConvertToEvent {
             LOG.debug("got syslog message {}", message);
         }
         if (message == null) {
+            markFailure(parser);
             throw new MessageDiscardedException(String.format("Unable to parse '%s'", syslogString));
         }
         // Build a basic event out of the syslog message
@@ -219,77 +193,15 @@ public class ConvertToEvent {
         * node to match against nodeId.
          */
 
-        Pattern msgPat = null;
-        Matcher msgMat = null;
+        final SyslogMatcher matcher = SyslogMatcher.forConfig(config);
 
         // Time to verify UEI matching.
-
-        final String fullText = message.getFullText();
-        final String matchedText = message.getMatchedMessage();
-
-        final List<UeiMatch> ueiMatch = ueiList == null? null : ueiList.getUeiMatchCollection();
-        if (ueiMatch == null) {
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("No ueiList configured.");
-            }
-        } else {
-            for (final UeiMatch uei : ueiMatch) {
-                final boolean otherStuffMatches = containsIgnoreCase(uei.getFacilityCollection(), facilityTxt) &&
-                                                  containsIgnoreCase(uei.getSeverityCollection(), priorityTxt) &&
-                                                  matchProcess(uei.getProcessMatch(), message.getProcessName()) && 
-                                                  matchHostname(uei.getHostnameMatch(), message.getHostName()) &&
-                                                  matchHostAddr(uei.getHostaddrMatch(), str(hostAddress));
-
-                // Single boolean check is added instead of performing multiple
-                // boolean check for both if and else if which causes a extra time
-                if (otherStuffMatches) {
-                    if (uei.getMatch().getType().equals("substr")) {
-                        if (matchSubstring(discardUei, bldr, matchedText, uei)) {
-                            break;
-                        }
-                    } else if ((uei.getMatch().getType().startsWith("regex"))) {
-                        if (matchRegex(message, uei, bldr, discardUei)) {
-                            break;
-                        }
-                    }
-                }
-            }
-        }
+        matcher.matchUei(message, facilityTxt, priorityTxt, str(hostAddress), bldr);
 
         // Time to verify if we need to hide the message
-        boolean doHide = false;
-        final List<HideMatch> hideMatch = hideMessage == null? null : hideMessage.getHideMatchCollection();
-        if (hideMatch == null) {
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("No hideMessage configured.");
-            }
-        } else {
-            for (final HideMatch hide : hideMatch) {
-                if (hide.getMatch().getType().equals("substr")) {
-                    if (fullText.contains(hide.getMatch().getExpression())) {
-                        // We should hide the message based on this match
-                        doHide = true;
-                    }
-                } else if (hide.getMatch().getType().equals("regex")) {
-                    try {
-                        msgPat = Pattern.compile(hide.getMatch().getExpression(), Pattern.MULTILINE);
-                        msgMat = msgPat.matcher(fullText);
-                    } catch (PatternSyntaxException pse) {
-                        LOG.warn("Failed to compile regex pattern '{}'", hide.getMatch().getExpression(), pse);
-                        msgMat = null;
-                    }
-                    if ((msgMat != null) && (msgMat.find())) {
-                        // We should hide the message based on this match
-                        doHide = true;
-                    }
-                }
-                if (doHide) {
-                    LOG.debug("Hiding syslog message from Event - May contain sensitive data");
-                    message.setMessage(HIDDEN_MESSAGE);
-                    // We want to stop here, no point in checking further hideMatches
-                    break;
-                }
-            }
+        if (matcher.matchHide(message)) {
+            LOG.debug("Hiding syslog message from Event - May contain sensitive data");
+            message.setMessage(HIDDEN_MESSAGE);
         }
 
         // Using parms provides configurability.
@@ -309,146 +221,17 @@ public class ConvertToEvent {
             bldr.addParam("processid", message.getProcessId().toString());
         }
 
-        m_event = bldr.getEvent();
-    }
-
-    private static boolean matchFind(final String expression, final String input, final String context) {
-        final Pattern pat = getPattern(expression);
-        if (pat == null) {
-            LOG.debug("Unable to get pattern for expression '{}' in {} context", expression, context);
-            return false;
-        }
-        final Matcher mat = pat.matcher(input);
-        if (mat != null && mat.find()) return true;
-        return false;
-    }
-    
-    private static boolean matchHostAddr(final HostaddrMatch hostaddrMatch, final String hostAddress) {
-        if (hostaddrMatch == null) return true;
-        if (hostAddress == null) return false;
-        
-        final String expression = hostaddrMatch.getExpression();
-        
-        if (matchFind(expression, hostAddress, "hostaddr-match")) {
-            LOG.trace("Successful regex hostaddr-match for input '{}' against expression '{}'", hostAddress, expression);
-            return true;
-        }
-        return false;
-    }
-    
-    private static boolean matchHostname(final HostnameMatch hostnameMatch, final String hostName) {
-        if (hostnameMatch == null) return true;
-        if (hostName == null) return false;
-        
-        final String expression = hostnameMatch.getExpression();
-        
-        if (matchFind(expression, hostName, "hostname-match")) {
-            LOG.trace("Successful regex hostname-match for input '{}' against expression '{}'", hostName, expression);
-            return true;
-        }
-        return false;
-    }
-
-    private static boolean matchProcess(final ProcessMatch processMatch, final String processName) {
-        if (processMatch == null) return true;
-        if (processName == null) return false;
-
-        final String expression = processMatch.getExpression();
-
-        if (matchFind(expression, processName, "process-match")) {
-            LOG.trace("Successful regex process-match for input '{}' against expression '{}'", processName, expression);
-            return true;
-        }
-        return false;
-    }
-    
-    private static boolean containsIgnoreCase(List<String> collection, String match) {
-         if (collection.size() == 0) return true;
-         for (String string : collection) {
-             if (string.equalsIgnoreCase(match)) return true;
-         }
-         return false;
-    }
-
-    private static Pattern getPattern(final String expression) {
-        return CACHED_PATTERNS.getUnchecked(expression);
-    }
-
-    private static boolean matchSubstring(final String discardUei, final EventBuilder bldr, String message, final UeiMatch uei) throws MessageDiscardedException {
-        boolean doIMatch = false;
-        boolean traceEnabled = LOG.isTraceEnabled();
-        if (message.contains(uei.getMatch().getExpression())) {
-            if (discardUei.equals(uei.getUei())) {
-                if (traceEnabled) LOG.trace("Specified UEI '{}' is same as discard-uei, discarding this message.", uei.getUei());
-                throw new MessageDiscardedException();
-            } else {
-                //We can pass a new UEI on this
-                if (traceEnabled) LOG.trace("Changed the UEI of a Syslogd event, based on substring match, to : {}", uei.getUei());
-                bldr.setUei(uei.getUei());
-                // I think we want to stop processing here so the first
-                // ueiMatch wins, right?
-                doIMatch = true;
+        for (final Map.Entry<String,Map<String,String>> element : message.getStructuredData().entrySet()) {
+            for (final Map.Entry<String,String> parameter : element.getValue().entrySet()) {
+                bldr.addParam(element.getKey() + "." + parameter.getKey(), parameter.getValue());
             }
-        } else {
-            if (traceEnabled) LOG.trace("No substring match for text of a Syslogd event to : {}", uei.getMatch().getExpression());
         }
-        return doIMatch;
-    }
 
-    private static boolean matchRegex(final SyslogMessage message, final UeiMatch uei, final EventBuilder bldr, final String discardUei) throws MessageDiscardedException {
-        boolean traceEnabled = LOG.isTraceEnabled();
-        final String expression = uei.getMatch().getExpression();
-        final Pattern msgPat = getPattern(expression);
-        final Matcher msgMat;
-        if (msgPat == null) {
-            LOG.debug("Unable to create pattern for expression '{}'", expression);
-            return false;
-        } else {
-            final String text;
-            if (message.getMatchedMessage() != null) {
-                text = message.getMatchedMessage();
-            } else {
-                text = message.getFullText();
-            }
-            msgMat = msgPat.matcher(text);
-        }
-        if ((msgMat != null) && (msgMat.find())) {
-            if (discardUei.equals(uei.getUei())) {
-                LOG.debug("Specified UEI '{}' is same as discard-uei, discarding this message.", uei.getUei());
-                throw new MessageDiscardedException();
-            }
+        m_event = bldr.getEvent();
+    }
 
-            // We matched a UEI
-            bldr.setUei(uei.getUei());
-            // Removed check of count in both if condition which is redundant
-            if (msgMat.groupCount() > 0) {
-                if (uei.getMatch().isDefaultParameterMapping()) {
-                    if (traceEnabled) LOG.trace("Doing default parameter mappings for this regex match.");
-                    for (int groupNum = 1; groupNum <= msgMat.groupCount(); groupNum++) {
-                        if (traceEnabled) LOG.trace("Added parm 'group{}' with value '{}' to Syslogd event based on regex match group", groupNum, msgMat.group(groupNum));
-                        bldr.addParam("group"+groupNum, msgMat.group(groupNum));
-                    }
-                }
-
-                if (uei.getParameterAssignmentCount() > 0) {
-                    if (traceEnabled) LOG.trace("Doing user-specified parameter assignments for this regex match.");
-                    for (ParameterAssignment assignment : uei.getParameterAssignmentCollection()) {
-                        String parmName = assignment.getParameterName();
-                        String parmValue = msgMat.group(assignment.getMatchingGroup());
-                        parmValue = parmValue == null ? "" : parmValue;
-                        bldr.addParam(parmName, parmValue);
-                        if (traceEnabled) {
-                            LOG.trace("Added parm '{}' with value '{}' to Syslogd event based on user-specified parameter assignment", parmName, parmValue);
-                        }
-                    }
-                }
-            }
-            // I think we want to stop processing here so the first
-            // ueiMatch wins, right?
-            return true;
-        }
-        if (traceEnabled) LOG.trace("Message '{}' did not regex-match pattern '{}'", message.getMessage(), expression);
-        return false;
+    private static void markFailure(final SyslogParser parser) {
+        SyslogParser.getMetricRegistry().meter(MetricRegistry.name(parser.getClass(), "failures")).mark();
     }
 
     /**
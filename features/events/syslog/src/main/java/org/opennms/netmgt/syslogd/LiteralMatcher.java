@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.syslogd;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Finds which of a fixed set of literal strings occur in a text, with a
+ * single pass over the text regardless of the number of literals
+ * (Aho-Corasick).
+ */
+final class LiteralMatcher {
+
+    private static final int[] NONE = new int[0];
+
+    /**
+     * Sorted transition characters and target states, per state
+     */
+    private final char[][] m_keys;
+    private final int[][] m_targets;
+
+    /**
+     * Longest proper suffix of each state that is also a state
+     */
+    private final int[] m_fail;
+
+    /**
+     * Literals ending in each state, and the nearest state on the fail
+     * chain that ends a literal
+     */
+    private final int[][] m_outputs;
+    private final int[] m_outputLink;
+
+    private final int m_literalCount;
+
+    LiteralMatcher(final List<String> literals) {
+        m_literalCount = literals.size();
+
+        final List<Map<Character,Integer>> gotos = new ArrayList<>();
+        final List<List<Integer>> outputs = new ArrayList<>();
+        gotos.add(new TreeMap<>());
+        outputs.add(new ArrayList<>());
+
+        for (int i = 0; i < literals.size(); i++) {
+            final String literal = literals.get(i);
+            int state = 0;
+            for (int j = 0; j < literal.length(); j++) {
+                final Character c = literal.charAt(j);
+                Integer next = gotos.get(state).get(c);
+                if (next == null) {
+                    next = gotos.size();
+                    gotos.add(new TreeMap<>());
+                    outputs.add(new ArrayList<>());
+                    gotos.get(state).put(c, next);
+                }
+                state = next;
+            }
+            outputs.get(state).add(i);
+        }
+
+        final int states = gotos.size();
+        m_keys = new char[states][];
+        m_targets = new int[states][];
+        m_outputs = new int[states][];
+        for (int s = 0; s < states; s++) {
+            final Map<Character,Integer> transitions = gotos.get(s);
+            m_keys[s] = new char[transitions.size()];
+            m_targets[s] = new int[transitions.size()];
+            int k = 0;
+            for (final Map.Entry<Character,Integer> entry : transitions.entrySet()) {
+                m_keys[s][k] = entry.getKey();
+                m_targets[s][k] = entry.getValue();
+                k++;
+            }
+            m_outputs[s] = outputs.get(s).isEmpty() ? NONE : outputs.get(s).stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        // Breadth-first, so that the fail state of a state is always computed before it
+        m_fail = new int[states];
+        m_outputLink = new int[states];
+        Arrays.fill(m_outputLink, -1);
+        final Deque<Integer> queue = new ArrayDeque<>();
+        for (final int child : m_targets[0]) {
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            final int state = queue.poll();
+            for (int k = 0; k < m_keys[state].length; k++) {
+                final char c = m_keys[state][k];
+                final int child = m_targets[state][k];
+                int fail = m_fail[state];
+                while (fail != 0 && next(fail, c) < 0) {
+                    fail = m_fail[fail];
+                }
+                final int failTarget = next(fail, c);
+                m_fail[child] = failTarget < 0 ? 0 : failTarget;
+                m_outputLink[child] = m_outputs[m_fail[child]].length > 0 ? m_fail[child] : m_outputLink[m_fail[child]];
+                queue.add(child);
+            }
+        }
+    }
+
+    private int next(final int state, final char c) {
+        final int k = Arrays.binarySearch(m_keys[state], c);
+        return k < 0 ? -1 : m_targets[state][k];
+    }
+
+    int getLiteralCount() {
+        return m_literalCount;
+    }
+
+    /**
+     * @return the indexes, in the list given to the constructor, of the
+     *         literals that occur in the text
+     */
+    BitSet find(final CharSequence text) {
+        final BitSet found = new BitSet(m_literalCount);
+        if (m_literalCount == 0) {
+            return found;
+        }
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            int target;
+            while ((target = next(state, c)) < 0 && state != 0) {
+                state = m_fail[state];
+            }
+            state = target < 0 ? 0 : target;
+            for (int s = state; s > 0; s = m_outputLink[s]) {
+                for (final int literal : m_outputs[s]) {
+                    found.set(literal);
+                }
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,648 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.syslogd;
+
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.Year;
+import java.time.ZoneOffset;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.opennms.netmgt.config.SyslogdConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Hand-written parser for RFC 5424 messages, including their
+ * STRUCTURED-DATA, and for the common RFC 3164 variants:
+ *
+ * <pre>
+ * &lt;PRI&gt;VERSION TIMESTAMP HOSTNAME APP-NAME PROCID MSGID STRUCTURED-DATA [MSG]
+ * &lt;PRI&gt;[IDENT: ]Mmm dd hh:mm:ss HOST [PROCESS[[PID]]: ]MSG
+ * &lt;PRI&gt;[IDENT: ]yyyy-MM-dd HOST [PROCESS[[PID]]: ]MSG
+ * &lt;PRI&gt;[SEQ: ][HOST: ][*.]Mmm dd hh:mm:ss[.mmm][ TZ]: %FACILITY-SEVERITY-MNEMONIC: MSG
+ * </pre>
+ *
+ * The text is walked once, character by character, without regular
+ * expressions or intermediate splits. Messages that it does not recognize
+ * are handed to the {@link Rfc5424SyslogParser} or the {@link SyslogNGParser}.
+ */
+public class StateMachineSyslogParser extends SyslogParser {
+    private static final Logger LOG = LoggerFactory.getLogger(StateMachineSyslogParser.class);
+
+    private static final String[] MONTHS = { "Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec" };
+
+    private static final Meter RFC5424_MESSAGES = getMetricRegistry().meter(MetricRegistry.name(StateMachineSyslogParser.class, "rfc5424"));
+    private static final Meter RFC3164_MESSAGES = getMetricRegistry().meter(MetricRegistry.name(StateMachineSyslogParser.class, "rfc3164"));
+    private static final Meter FALLBACKS = getMetricRegistry().meter(MetricRegistry.name(StateMachineSyslogParser.class, "fallbacks"));
+
+    private final String m_text;
+    private final int m_end;
+    private int m_pos;
+
+    private boolean m_parsed = false;
+    private SyslogMessage m_message;
+    private SyslogParser m_fallback;
+
+    public StateMachineSyslogParser(final SyslogdConfig config, final String text) {
+        super(config, text);
+        m_text = text;
+        m_end = text.length();
+    }
+
+    @Override
+    public boolean find() {
+        return parseText() != null || getFallback().find();
+    }
+
+    @Override
+    public boolean matches() {
+        return parseText() != null || getFallback().matches();
+    }
+
+    @Override
+    public SyslogMessage parse() throws SyslogParserException {
+        final SyslogMessage message = parseText();
+        if (message != null) {
+            return message;
+        }
+        return getFallback().parse();
+    }
+
+    private SyslogParser getFallback() {
+        if (m_fallback == null) {
+            if (traceEnabled()) {
+                LOG.trace("Unable to parse '{}', falling back to the regular expression parsers", m_text);
+            }
+            FALLBACKS.mark();
+            m_fallback = isRfc5424() ? new Rfc5424SyslogParser(getConfig(), m_text) : new SyslogNGParser(getConfig(), m_text);
+        }
+        return m_fallback;
+    }
+
+    private SyslogMessage parseText() {
+        if (!m_parsed) {
+            m_parsed = true;
+            m_pos = 0;
+            try {
+                m_message = parseMessage();
+            } catch (final RuntimeException e) {
+                LOG.debug("Unable to parse '{}'", m_text, e);
+                m_message = null;
+            }
+        }
+        return m_message;
+    }
+
+    /**
+     * An RFC 5424 message has a version number after the PRI.
+     */
+    private boolean isRfc5424() {
+        final int close = m_text.indexOf('>');
+        if (close < 0) {
+            return false;
+        }
+        int pos = close + 1;
+        while (pos < m_end && pos - close <= 3 && isDigit(m_text.charAt(pos))) {
+            pos++;
+        }
+        return pos > close + 1 && pos < m_end && m_text.charAt(pos) == ' ';
+    }
+
+    private SyslogMessage parseMessage() {
+        if (!consume('<')) {
+            return null;
+        }
+        final int priorityField = readNumber(3);
+        if (priorityField < 0 || !consume('>')) {
+            return null;
+        }
+
+        final SyslogMessage message = new SyslogMessage();
+        message.setParserClass(getClass());
+        message.setFacility(SyslogFacility.getFacilityForCode(priorityField));
+        message.setSeverity(SyslogSeverity.getSeverityForCode(priorityField));
+
+        if (isRfc5424()) {
+            if (!parseRfc5424(message)) {
+                return null;
+            }
+            RFC5424_MESSAGES.mark();
+        } else {
+            if (!parseRfc3164(message)) {
+                return null;
+            }
+            RFC3164_MESSAGES.mark();
+        }
+        return message;
+    }
+
+    private boolean parseRfc5424(final SyslogMessage message) {
+        final int version = readNumber(3);
+        if (version < 1 || !consume(' ')) {
+            return false;
+        }
+        message.setVersion(version);
+
+        final String timestamp = readToken();
+        if (!"-".equals(timestamp)) {
+            final Date date = parseRfc3339(timestamp);
+            if (date == null) {
+                return false;
+            }
+            message.setDate(date);
+        }
+        if (!consume(' ')) {
+            return false;
+        }
+
+        final String hostname = readToken();
+        if (!consume(' ')) {
+            return false;
+        }
+        if (!"-".equals(hostname)) {
+            message.setHostName(hostname);
+        }
+
+        final String appName = readToken();
+        if (!consume(' ')) {
+            return false;
+        }
+        if (!"-".equals(appName)) {
+            message.setProcessName(appName);
+        }
+
+        final String procId = readToken();
+        if (!consume(' ')) {
+            return false;
+        }
+        if (isNumber(procId) && procId.length() < 10) {
+            message.setProcessId(Integer.parseInt(procId));
+        }
+
+        final String messageId = readToken();
+        if (!"-".equals(messageId)) {
+            message.setMessageID(messageId);
+        }
+        if (!consume(' ')) {
+            return false;
+        }
+
+        if (!parseStructuredData(message)) {
+            return false;
+        }
+
+        if (m_pos < m_end) {
+            if (!consume(' ')) {
+                return false;
+            }
+            // Skip a UTF-8 byte order mark, decoded or not
+            if (m_pos < m_end && m_text.charAt(m_pos) == '\uFEFF') {
+                m_pos++;
+            } else if (m_text.startsWith("\uFFFD\uFFFD\uFFFD", m_pos)) {
+                m_pos += 3;
+            }
+            final String text = m_text.substring(m_pos).trim();
+            if (!text.isEmpty()) {
+                message.setMessage(text);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * STRUCTURED-DATA = NILVALUE / 1*SD-ELEMENT
+     * SD-ELEMENT = "[" SD-ID *(SP PARAM-NAME "=" %d34 PARAM-VALUE %d34) "]"
+     */
+    private boolean parseStructuredData(final SyslogMessage message) {
+        if (consume('-')) {
+            return true;
+        }
+        if (m_pos >= m_end || m_text.charAt(m_pos) != '[') {
+            return false;
+        }
+        while (consume('[')) {
+            final String id = readName();
+            if (id.isEmpty()) {
+                return false;
+            }
+            final Map<String,String> parameters = new LinkedHashMap<>();
+            while (consume(' ')) {
+                final String name = readName();
+                if (name.isEmpty() || !consume('=') || !consume('"')) {
+                    return false;
+                }
+                final StringBuilder value = new StringBuilder();
+                while (true) {
+                    if (m_pos >= m_end) {
+                        return false;
+                    }
+                    final char c = m_text.charAt(m_pos++);
+                    if (c == '"') {
+                        break;
+                    } else if (c == '\\' && m_pos < m_end && (m_text.charAt(m_pos) == '"' || m_text.charAt(m_pos) == '\\' || m_text.charAt(m_pos) == ']')) {
+                        value.append(m_text.charAt(m_pos++));
+                    } else {
+                        value.append(c);
+                    }
+                }
+                parameters.put(name, value.toString());
+            }
+            if (!consume(']')) {
+                return false;
+            }
+            message.addStructuredData(id, parameters);
+        }
+        return true;
+    }
+
+    private boolean parseRfc3164(final SyslogMessage message) {
+        skipSpaces();
+
+        // Up to two "TOKEN: " prefixes before the timestamp: an identifier
+        // or sequence number, then the host name on Cisco devices
+        String hostname = null;
+        Date date = null;
+        for (int i = 0; i < 3; i++) {
+            date = parseRfc3164Timestamp();
+            if (date != null || i == 2) {
+                break;
+            }
+            final int start = m_pos;
+            final String token = readToken();
+            if (token.length() < 2 || token.charAt(token.length() - 1) != ':') {
+                m_pos = start;
+                break;
+            }
+            if (i == 0) {
+                message.setMessageID(token.substring(0, token.length() - 1));
+            } else {
+                hostname = token.substring(0, token.length() - 1);
+            }
+            skipSpaces();
+        }
+        if (date == null) {
+            return false;
+        }
+        message.setDate(date);
+
+        if (consume(':')) {
+            // Cisco without a host after the timestamp; the message starts with %FACILITY-SEVERITY-MNEMONIC
+            message.setHostName(hostname);
+            skipSpaces();
+            message.setMessage(m_text.substring(m_pos).trim());
+            return true;
+        }
+
+        if (!consume(' ')) {
+            return false;
+        }
+        skipSpaces();
+        final String host = readToken();
+        if (host.isEmpty()) {
+            return false;
+        }
+        message.setHostName(host);
+        skipSpaces();
+
+        // Optional "PROCESS[PID]: " or "PROCESS: "
+        final int tagStart = m_pos;
+        while (m_pos < m_end && !isTagDelimiter(m_text.charAt(m_pos))) {
+            m_pos++;
+        }
+        final String process = m_text.substring(tagStart, m_pos);
+        Integer pid = null;
+        boolean tagged = false;
+        if (!process.isEmpty()) {
+            if (consume('[')) {
+                final int value = readNumber(10);
+                if (value >= 0 && consume(']') && consume(':') && (m_pos == m_end || consume(' '))) {
+                    pid = value;
+                    tagged = true;
+                }
+            } else if (consume(':') && (m_pos == m_end || consume(' '))) {
+                tagged = true;
+            }
+        }
+        if (tagged) {
+            message.setProcessName(process);
+            message.setProcessId(pid);
+        } else {
+            m_pos = tagStart;
+        }
+
+        message.setMessage(m_text.substring(m_pos).trim());
+        return true;
+    }
+
+    private static boolean isTagDelimiter(final char c) {
+        return c == '[' || c == ':' || c == ' ' || c == ']';
+    }
+
+    /**
+     * Parses "Mmm dd hh:mm:ss[.mmm][ TZ]" in UTC and the current year, like
+     * {@link SyslogParser#parseDate(String)}, or "yyyy-MM-dd". Leaves the
+     * position unchanged if there is no timestamp.
+     */
+    private Date parseRfc3164Timestamp() {
+        final int start = m_pos;
+        try {
+            if (m_pos < m_end && (m_text.charAt(m_pos) == '*' || m_text.charAt(m_pos) == '.')) {
+                m_pos++;
+            }
+
+            final int year = readFixedNumber(4);
+            if (year >= 0) {
+                if (!consume('-')) {
+                    m_pos = start;
+                    return null;
+                }
+                final int month = readNumber(2);
+                if (month < 0 || !consume('-')) {
+                    m_pos = start;
+                    return null;
+                }
+                final int day = readNumber(2);
+                if (day < 0) {
+                    m_pos = start;
+                    return null;
+                }
+                return Date.from(LocalDateTime.of(year, month, day, 0, 0).toInstant(ZoneOffset.UTC));
+            }
+
+            if (m_pos + 3 > m_end) {
+                m_pos = start;
+                return null;
+            }
+            int month = -1;
+            for (int i = 0; i < MONTHS.length; i++) {
+                if (m_text.regionMatches(true, m_pos, MONTHS[i], 0, 3)) {
+                    month = i + 1;
+                    break;
+                }
+            }
+            if (month < 0) {
+                m_pos = start;
+                return null;
+            }
+            m_pos += 3;
+            if (!consume(' ')) {
+                m_pos = start;
+                return null;
+            }
+            skipSpaces();
+            final int day = readNumber(2);
+            if (day < 0 || !consume(' ')) {
+                m_pos = start;
+                return null;
+            }
+            final int hour = readFixedNumber(2);
+            final boolean colon1 = consume(':');
+            final int minute = readFixedNumber(2);
+            final boolean colon2 = consume(':');
+            final int second = readFixedNumber(2);
+            if (hour < 0 || minute < 0 || second < 0 || !colon1 || !colon2) {
+                m_pos = start;
+                return null;
+            }
+            int nanos = 0;
+            if (m_pos + 1 < m_end && m_text.charAt(m_pos) == '.' && isDigit(m_text.charAt(m_pos + 1))) {
+                m_pos++;
+                nanos = readFraction();
+            }
+            skipTimeZone();
+
+            return Date.from(LocalDateTime.of(Year.now().getValue(), month, day, hour, minute, second, nanos).toInstant(ZoneOffset.UTC));
+        } catch (final DateTimeException e) {
+            m_pos = start;
+            return null;
+        }
+    }
+
+    /**
+     * Skips a " TZ" abbreviation that is followed by a colon, as Cisco sends
+     */
+    private void skipTimeZone() {
+        if (m_pos >= m_end || m_text.charAt(m_pos) != ' ') {
+            return;
+        }
+        int pos = m_pos + 1;
+        while (pos < m_end && pos - m_pos <= 6 && Character.isUpperCase(m_text.charAt(pos))) {
+            pos++;
+        }
+        if (pos > m_pos + 1 && pos < m_end && m_text.charAt(pos) == ':') {
+            m_pos = pos;
+        }
+    }
+
+    /**
+     * Parses an RFC 3339 timestamp: yyyy-MM-ddTHH:mm:ss[.fraction](Z|+hh:mm|-hh:mm)
+     */
+    private static Date parseRfc3339(final String timestamp) {
+        try {
+            int pos = 0;
+            final int year = fixed(timestamp, pos, 4); pos += 4;
+            expect(timestamp, pos++, '-');
+            final int month = fixed(timestamp, pos, 2); pos += 2;
+            expect(timestamp, pos++, '-');
+            final int day = fixed(timestamp, pos, 2); pos += 2;
+            expect(timestamp, pos++, 'T');
+            final int hour = fixed(timestamp, pos, 2); pos += 2;
+            expect(timestamp, pos++, ':');
+            final int minute = fixed(timestamp, pos, 2); pos += 2;
+            expect(timestamp, pos++, ':');
+            final int second = fixed(timestamp, pos, 2); pos += 2;
+
+            int nanos = 0;
+            if (pos < timestamp.length() && timestamp.charAt(pos) == '.') {
+                pos++;
+                int digits = 0;
+                while (pos < timestamp.length() && isDigit(timestamp.charAt(pos))) {
+                    if (digits < 9) {
+                        nanos = nanos * 10 + (timestamp.charAt(pos) - '0');
+                    }
+                    digits++;
+                    pos++;
+                }
+                for (int i = digits; i < 9; i++) {
+                    nanos *= 10;
+                }
+            }
+
+            final ZoneOffset offset;
+            final char zone = timestamp.charAt(pos++);
+            if (zone == 'Z' || zone == 'z') {
+                offset = ZoneOffset.UTC;
+            } else if (zone == '+' || zone == '-') {
+                final int hours = fixed(timestamp, pos, 2); pos += 2;
+                if (pos < timestamp.length() && timestamp.charAt(pos) == ':') {
+                    pos++;
+                }
+                final int minutes = fixed(timestamp, pos, 2); pos += 2;
+                offset = zone == '+' ? ZoneOffset.ofHoursMinutes(hours, minutes) : ZoneOffset.ofHoursMinutes(-hours, -minutes);
+            } else {
+                return null;
+            }
+            if (pos != timestamp.length()) {
+                return null;
+            }
+            return Date.from(LocalDateTime.of(year, month, day, hour, minute, second, nanos).toInstant(offset));
+        } catch (final DateTimeException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            LOG.debug("Unable to parse date string '{}'.", timestamp, e);
+            return null;
+        }
+    }
+
+    private static int fixed(final String s, final int pos, final int length) {
+        int value = 0;
+        for (int i = pos; i < pos + length; i++) {
+            final char c = s.charAt(i);
+            if (!isDigit(c)) {
+                throw new IllegalArgumentException("Not a digit: " + c);
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static void expect(final String s, final int pos, final char c) {
+        if (s.charAt(pos) != c) {
+            throw new IllegalArgumentException("Expected '" + c + "' at " + pos);
+        }
+    }
+
+    private static boolean isDigit(final char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isNumber(final String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (!isDigit(s.charAt(i))) {
+                return false;
+            }
+        }
+        return !s.isEmpty();
+    }
+
+    private boolean consume(final char c) {
+        if (m_pos < m_end && m_text.charAt(m_pos) == c) {
+            m_pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void skipSpaces() {
+        while (m_pos < m_end && m_text.charAt(m_pos) == ' ') {
+            m_pos++;
+        }
+    }
+
+    /**
+     * @return the characters up to the next space or the end of the text
+     */
+    private String readToken() {
+        final int start = m_pos;
+        while (m_pos < m_end && m_text.charAt(m_pos) != ' ') {
+            m_pos++;
+        }
+        return m_text.substring(start, m_pos);
+    }
+
+    /**
+     * @return an SD-ID or PARAM-NAME
+     */
+    private String readName() {
+        final int start = m_pos;
+        while (m_pos < m_end) {
+            final char c = m_text.charAt(m_pos);
+            if (c == '=' || c == ' ' || c == ']' || c == '"') {
+                break;
+            }
+            m_pos++;
+        }
+        return m_text.substring(start, m_pos);
+    }
+
+    /**
+     * @return the value of 1 to maxDigits digits, or -1
+     */
+    private int readNumber(final int maxDigits) {
+        final int start = m_pos;
+        int value = 0;
+        while (m_pos < m_end && m_pos - start < maxDigits && isDigit(m_text.charAt(m_pos))) {
+            value = value * 10 + (m_text.charAt(m_pos) - '0');
+            m_pos++;
+        }
+        return m_pos == start ? -1 : value;
+    }
+
+    /**
+     * @return the value of exactly the given number of digits, or -1
+     */
+    private int readFixedNumber(final int digits) {
+        if (m_pos + digits > m_end) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = m_pos; i < m_pos + digits; i++) {
+            if (!isDigit(m_text.charAt(i))) {
+                return -1;
+            }
+            value = value * 10 + (m_text.charAt(i) - '0');
+        }
+        if (m_pos + digits < m_end && isDigit(m_text.charAt(m_pos + digits))) {
+            return -1;
+        }
+        m_pos += digits;
+        return value;
+    }
+
+    private int readFraction() {
+        int nanos = 0;
+        int digits = 0;
+        while (m_pos < m_end && isDigit(m_text.charAt(m_pos))) {
+            if (digits < 9) {
+                nanos = nanos * 10 + (m_text.charAt(m_pos) - '0');
+            }
+            digits++;
+            m_pos++;
+        }
+        for (int i = digits; i < 9; i++) {
+            nanos *= 10;
+        }
+        return nanos;
+    }
+}
@@ -28,6 +28,8 @@
 
 package org.opennms.netmgt.syslogd;
 
+import java.util.function.Function;
+
 import org.opennms.netmgt.config.SyslogdConfig;
 import org.opennms.netmgt.config.syslogd.HideMessage;
 import org.opennms.netmgt.config.syslogd.UeiList;
@@ -46,6 +48,7 @@ public final class SyslogConfigBean implements SyslogdConfig {
 	private String m_parser;
 	private String m_discardUei;
 	private boolean m_newSuspectOnMessage;
+	private volatile Object m_compiledRules;
 
 	@Override
 	public int getSyslogPort() {
@@ -127,6 +130,18 @@ public final class SyslogConfigBean implements SyslogdConfig {
 
 	public void setDiscardUei(String discardUei) {
 		m_discardUei = discardUei;
+		m_compiledRules = null;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T> T getCompiledRules(Function<SyslogdConfig, T> compiler) {
+		Object compiledRules = m_compiledRules;
+		if (compiledRules == null) {
+			compiledRules = compiler.apply(this);
+			m_compiledRules = compiledRules;
+		}
+		return (T)compiledRules;
 	}
 
 }
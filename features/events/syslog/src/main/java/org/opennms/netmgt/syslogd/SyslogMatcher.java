@@ -0,0 +1,548 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.syslogd;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.opennms.netmgt.config.SyslogdConfig;
+import org.opennms.netmgt.config.syslogd.HideMatch;
+import org.opennms.netmgt.config.syslogd.HideMessage;
+import org.opennms.netmgt.config.syslogd.ParameterAssignment;
+import org.opennms.netmgt.config.syslogd.UeiList;
+import org.opennms.netmgt.config.syslogd.UeiMatch;
+import org.opennms.netmgt.model.events.EventBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The &lt;ueiMatch&gt; and &lt;hideMatch&gt; rules of a {@link SyslogdConfig},
+ * compiled once per configuration.
+ *
+ * All the expressions are compiled up front, and the literal text that a
+ * message must contain to match a rule (the whole expression of a
+ * <code>substr</code> rule, the literal runs outside of any group of a
+ * <code>regex</code> rule) is searched for in a single pass over the message.
+ * Only the rules whose literals are all in the message are evaluated, so
+ * the cost of a message depends on the rules that could match it rather
+ * than on the total number of rules.
+ *
+ * The rules are evaluated in configuration order and the first match wins,
+ * exactly as before.
+ */
+final class SyslogMatcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SyslogMatcher.class);
+
+    /**
+     * Literals shorter than this are not worth a prefilter
+     */
+    private static final int MIN_REGEX_LITERAL_LENGTH = 2;
+
+    /**
+     * Letter escapes that match a single character class or a boundary
+     */
+    private static final String SAFE_ESCAPES = "sSdDwWbB";
+
+    private final UeiList m_ueiList;
+    private final HideMessage m_hideMessage;
+
+    private final List<CompiledUeiMatch> m_ueiMatches = new ArrayList<>();
+    private final LiteralMatcher m_ueiLiterals;
+
+    /**
+     * The rules that have no literal, and for each literal the rules that
+     * are anchored on it (the literal of the rule that the fewest other
+     * rules share)
+     */
+    private final BitSet m_unanchoredUeiMatches = new BitSet();
+    private final BitSet[] m_anchoredUeiMatches;
+    private final List<CompiledHideMatch> m_hideMatches = new ArrayList<>();
+    private final LiteralMatcher m_hideLiterals;
+
+    /**
+     * Returns the matcher for the rules of the given configuration, which
+     * holds it until it is reloaded.
+     */
+    static SyslogMatcher forConfig(final SyslogdConfig config) {
+        return config.getCompiledRules(c -> new SyslogMatcher(c.getUeiList(), c.getHideMessages(), c.getDiscardUei()));
+    }
+
+    SyslogMatcher(final UeiList ueiList, final HideMessage hideMessage, final String discardUei) {
+        m_ueiList = ueiList;
+        m_hideMessage = hideMessage;
+
+        final Map<String,Integer> ueiLiterals = new HashMap<>();
+        if (ueiList != null) {
+            for (final UeiMatch uei : ueiList.getUeiMatchCollection()) {
+                m_ueiMatches.add(new CompiledUeiMatch(uei, discardUei, ueiLiterals));
+            }
+        }
+        m_ueiLiterals = new LiteralMatcher(toList(ueiLiterals));
+        m_anchoredUeiMatches = anchor(m_ueiMatches, ueiLiterals.size());
+
+        final Map<String,Integer> hideLiterals = new HashMap<>();
+        if (hideMessage != null) {
+            for (final HideMatch hide : hideMessage.getHideMatchCollection()) {
+                m_hideMatches.add(new CompiledHideMatch(hide, hideLiterals));
+            }
+        }
+        m_hideLiterals = new LiteralMatcher(toList(hideLiterals));
+
+        LOG.debug("Compiled {} ueiMatch rules ({} literals) and {} hideMatch rules ({} literals)",
+                  m_ueiMatches.size(), m_ueiLiterals.getLiteralCount(), m_hideMatches.size(), m_hideLiterals.getLiteralCount());
+    }
+
+    private static List<String> toList(final Map<String,Integer> literals) {
+        final String[] list = new String[literals.size()];
+        for (final Map.Entry<String,Integer> entry : literals.entrySet()) {
+            list[entry.getValue()] = entry.getKey();
+        }
+        final List<String> result = new ArrayList<>(list.length);
+        Collections.addAll(result, list);
+        return result;
+    }
+
+    private BitSet[] anchor(final List<CompiledUeiMatch> ueiMatches, final int literalCount) {
+        final int[] usage = new int[literalCount];
+        for (final CompiledUeiMatch uei : ueiMatches) {
+            for (final int literal : uei.m_literals) {
+                usage[literal]++;
+            }
+        }
+
+        final BitSet[] anchored = new BitSet[literalCount];
+        for (int i = 0; i < ueiMatches.size(); i++) {
+            final int[] literals = ueiMatches.get(i).m_literals;
+            if (literals.length == 0) {
+                m_unanchoredUeiMatches.set(i);
+                continue;
+            }
+            int anchor = literals[0];
+            for (final int literal : literals) {
+                if (usage[literal] < usage[anchor]) {
+                    anchor = literal;
+                }
+            }
+            if (anchored[anchor] == null) {
+                anchored[anchor] = new BitSet();
+            }
+            anchored[anchor].set(i);
+        }
+        return anchored;
+    }
+
+    private static int[] addLiterals(final Map<String,Integer> literals, final List<String> values) {
+        final int[] ids = new int[values.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = literals.computeIfAbsent(values.get(i), k -> literals.size());
+        }
+        return ids;
+    }
+
+    private static boolean containsAll(final BitSet found, final int[] literals) {
+        for (final int literal : literals) {
+            if (!found.get(literal)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Pattern compile(final String expression, final String context) {
+        try {
+            return Pattern.compile(expression, Pattern.MULTILINE);
+        } catch (final PatternSyntaxException e) {
+            LOG.warn("Failed to compile regex pattern '{}' in {} context", expression, context, e);
+            return null;
+        }
+    }
+
+    /**
+     * Sets the UEI and parameters of the first &lt;ueiMatch&gt; that matches
+     * the message.
+     *
+     * @throws MessageDiscardedException if the matching UEI is the discard UEI
+     */
+    void matchUei(final SyslogMessage message, final String facilityTxt, final String priorityTxt, final String hostAddress, final EventBuilder bldr) throws MessageDiscardedException {
+        if (m_ueiList == null) {
+            LOG.debug("No ueiList configured.");
+            return;
+        }
+
+        final String facility = facilityTxt.toLowerCase(Locale.ENGLISH);
+        final String priority = priorityTxt.toLowerCase(Locale.ENGLISH);
+        final String text = message.getMatchedMessage() != null ? message.getMatchedMessage() : message.getFullText();
+
+        // Only the rules whose anchor literal is in the text can match
+        final BitSet found = m_ueiLiterals.find(text);
+        final BitSet candidates = (BitSet)m_unanchoredUeiMatches.clone();
+        for (int literal = found.nextSetBit(0); literal >= 0; literal = found.nextSetBit(literal + 1)) {
+            if (m_anchoredUeiMatches[literal] != null) {
+                candidates.or(m_anchoredUeiMatches[literal]);
+            }
+        }
+
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            final CompiledUeiMatch uei = m_ueiMatches.get(i);
+            if (uei.matchesHeader(facility, priority, message, hostAddress)
+                    && containsAll(found, uei.m_literals)
+                    && uei.matchMessage(text, bldr)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return true if a &lt;hideMatch&gt; matches the message
+     */
+    boolean matchHide(final SyslogMessage message) {
+        if (m_hideMessage == null) {
+            LOG.debug("No hideMessage configured.");
+            return false;
+        }
+        if (m_hideMatches.isEmpty()) {
+            return false;
+        }
+
+        final String fullText = message.getFullText();
+        final BitSet found = m_hideLiterals.find(fullText);
+        for (final CompiledHideMatch hide : m_hideMatches) {
+            if (containsAll(found, hide.m_literals) && hide.matches(fullText)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the literal runs that any match of the regular expression must
+     * contain. Only the top level of the expression is looked at, and
+     * nothing is returned for expressions with a top level alternation or
+     * with constructs that could change how literals match (inline flags,
+     * quoting, escapes other than character classes, word boundaries and
+     * escaped punctuation).
+     */
+    static List<String> requiredLiterals(final String regex) {
+        final List<String> literals = new ArrayList<>();
+        if (regex.contains("(?") || regex.contains("\\Q")) {
+            return literals;
+        }
+
+        StringBuilder run = new StringBuilder();
+        int depth = 0;
+        int i = 0;
+        while (i < regex.length()) {
+            final char c = regex.charAt(i);
+            if (c == '\\') {
+                if (i + 1 >= regex.length()) {
+                    return Collections.emptyList();
+                }
+                final char escaped = regex.charAt(i + 1);
+                if (Character.isLetterOrDigit(escaped)) {
+                    // Escapes like \x41, \0101, \cA or \k<name> span more
+                    // than one character, give up instead of parsing them
+                    if (SAFE_ESCAPES.indexOf(escaped) < 0) {
+                        return Collections.emptyList();
+                    }
+                    if (depth == 0) {
+                        run = endRun(run, literals);
+                    }
+                } else if (depth == 0) {
+                    run.append(escaped);
+                }
+                i += 2;
+                continue;
+            }
+            switch (c) {
+            case '[':
+                run = endRun(run, literals);
+                i = skipCharacterClass(regex, i);
+                if (i < 0) {
+                    return Collections.emptyList();
+                }
+                continue;
+            case '(':
+                run = endRun(run, literals);
+                depth++;
+                break;
+            case ')':
+                depth--;
+                break;
+            case '|':
+                if (depth == 0) {
+                    return Collections.emptyList();
+                }
+                break;
+            case '*':
+            case '?':
+            case '{':
+                // The previous character is optional
+                if (depth == 0 && run.length() > 0) {
+                    run.setLength(run.length() - 1);
+                }
+                run = endRun(run, literals);
+                if (c == '{') {
+                    final int end = regex.indexOf('}', i);
+                    if (end < 0) {
+                        return Collections.emptyList();
+                    }
+                    i = end;
+                }
+                break;
+            case '+':
+            case '.':
+            case '^':
+            case '$':
+                run = endRun(run, literals);
+                break;
+            default:
+                if (depth == 0) {
+                    run.append(c);
+                }
+            }
+            i++;
+        }
+        endRun(run, literals);
+        return literals;
+    }
+
+    private static StringBuilder endRun(final StringBuilder run, final List<String> literals) {
+        if (run.length() >= MIN_REGEX_LITERAL_LENGTH) {
+            literals.add(run.toString());
+        }
+        return run.length() == 0 ? run : new StringBuilder();
+    }
+
+    /**
+     * @return the index after the character class starting at the given index, or -1
+     */
+    private static int skipCharacterClass(final String regex, int i) {
+        int depth = 0;
+        final int start = i;
+        while (i < regex.length()) {
+            final char c = regex.charAt(i);
+            if (c == '\\') {
+                i += 2;
+                continue;
+            }
+            if (c == '[') {
+                depth++;
+            } else if (c == ']' && i > start + 1 && !(i == start + 2 && regex.charAt(start + 1) == '^')) {
+                depth--;
+                if (depth == 0) {
+                    return i + 1;
+                }
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    private static final class CompiledUeiMatch {
+        private final String m_uei;
+        private final boolean m_discard;
+        private final Set<String> m_facilities;
+        private final Set<String> m_severities;
+        private final String m_processExpression;
+        private final Pattern m_process;
+        private final String m_hostnameExpression;
+        private final Pattern m_hostname;
+        private final String m_hostaddrExpression;
+        private final Pattern m_hostaddr;
+        private final boolean m_substring;
+        private final String m_expression;
+        private final Pattern m_pattern;
+        private final boolean m_defaultParameterMapping;
+        private final List<ParameterAssignment> m_assignments;
+        private final int[] m_literals;
+
+        private CompiledUeiMatch(final UeiMatch uei, final String discardUei, final Map<String,Integer> literals) {
+            m_uei = uei.getUei();
+            m_discard = discardUei.equals(uei.getUei());
+            m_facilities = toLowerCase(uei.getFacilityCollection());
+            m_severities = toLowerCase(uei.getSeverityCollection());
+
+            m_processExpression = uei.getProcessMatch() == null ? null : uei.getProcessMatch().getExpression();
+            m_process = m_processExpression == null ? null : compile(m_processExpression, "process-match");
+            m_hostnameExpression = uei.getHostnameMatch() == null ? null : uei.getHostnameMatch().getExpression();
+            m_hostname = m_hostnameExpression == null ? null : compile(m_hostnameExpression, "hostname-match");
+            m_hostaddrExpression = uei.getHostaddrMatch() == null ? null : uei.getHostaddrMatch().getExpression();
+            m_hostaddr = m_hostaddrExpression == null ? null : compile(m_hostaddrExpression, "hostaddr-match");
+
+            final String type = uei.getMatch().getType();
+            m_expression = uei.getMatch().getExpression();
+            m_substring = type.equals("substr");
+            if (m_substring) {
+                m_pattern = null;
+                m_literals = m_expression.isEmpty() ? new int[0] : addLiterals(literals, Collections.singletonList(m_expression));
+            } else if (type.startsWith("regex")) {
+                m_pattern = compile(m_expression, "ueiMatch");
+                m_literals = m_pattern == null ? new int[0] : addLiterals(literals, requiredLiterals(m_expression));
+            } else {
+                m_pattern = null;
+                m_literals = new int[0];
+            }
+            m_defaultParameterMapping = uei.getMatch().isDefaultParameterMapping();
+            m_assignments = new ArrayList<>(uei.getParameterAssignmentCollection());
+        }
+
+        private static Set<String> toLowerCase(final List<String> values) {
+            final Set<String> result = new HashSet<>();
+            for (final String value : values) {
+                result.add(value.toLowerCase(Locale.ENGLISH));
+            }
+            return result;
+        }
+
+        private static boolean matchFind(final String expression, final Pattern pattern, final String input, final String context) {
+            if (expression == null) return true;
+            if (input == null) return false;
+            if (pattern == null) {
+                LOG.debug("Unable to get pattern for expression '{}' in {} context", expression, context);
+                return false;
+            }
+            if (pattern.matcher(input).find()) {
+                LOG.trace("Successful regex {} for input '{}' against expression '{}'", context, input, expression);
+                return true;
+            }
+            return false;
+        }
+
+        private boolean matchesHeader(final String facility, final String priority, final SyslogMessage message, final String hostAddress) {
+            return (m_facilities.isEmpty() || m_facilities.contains(facility))
+                    && (m_severities.isEmpty() || m_severities.contains(priority))
+                    && matchFind(m_processExpression, m_process, message.getProcessName(), "process-match")
+                    && matchFind(m_hostnameExpression, m_hostname, message.getHostName(), "hostname-match")
+                    && matchFind(m_hostaddrExpression, m_hostaddr, hostAddress, "hostaddr-match");
+        }
+
+        /**
+         * Called once the literals of the rule are known to be in the text.
+         *
+         * @return true if the rule matched and the UEI was set
+         */
+        private boolean matchMessage(final String text, final EventBuilder bldr) throws MessageDiscardedException {
+            final boolean traceEnabled = LOG.isTraceEnabled();
+            if (m_substring) {
+                if (m_literals.length == 0 && !text.contains(m_expression)) {
+                    if (traceEnabled) LOG.trace("No substring match for text of a Syslogd event to : {}", m_expression);
+                    return false;
+                }
+                if (m_discard) {
+                    if (traceEnabled) LOG.trace("Specified UEI '{}' is same as discard-uei, discarding this message.", m_uei);
+                    throw new MessageDiscardedException();
+                }
+                if (traceEnabled) LOG.trace("Changed the UEI of a Syslogd event, based on substring match, to : {}", m_uei);
+                bldr.setUei(m_uei);
+                return true;
+            }
+
+            if (m_pattern == null) {
+                return false;
+            }
+            final Matcher msgMat = m_pattern.matcher(text);
+            if (!msgMat.find()) {
+                if (traceEnabled) LOG.trace("Message '{}' did not regex-match pattern '{}'", text, m_expression);
+                return false;
+            }
+            if (m_discard) {
+                LOG.debug("Specified UEI '{}' is same as discard-uei, discarding this message.", m_uei);
+                throw new MessageDiscardedException();
+            }
+
+            // We matched a UEI
+            bldr.setUei(m_uei);
+            if (msgMat.groupCount() > 0) {
+                if (m_defaultParameterMapping) {
+                    if (traceEnabled) LOG.trace("Doing default parameter mappings for this regex match.");
+                    for (int groupNum = 1; groupNum <= msgMat.groupCount(); groupNum++) {
+                        if (traceEnabled) LOG.trace("Added parm 'group{}' with value '{}' to Syslogd event based on regex match group", groupNum, msgMat.group(groupNum));
+                        bldr.addParam("group"+groupNum, msgMat.group(groupNum));
+                    }
+                }
+
+                if (!m_assignments.isEmpty()) {
+                    if (traceEnabled) LOG.trace("Doing user-specified parameter assignments for this regex match.");
+                    for (ParameterAssignment assignment : m_assignments) {
+                        String parmName = assignment.getParameterName();
+                        String parmValue = msgMat.group(assignment.getMatchingGroup());
+                        parmValue = parmValue == null ? "" : parmValue;
+                        bldr.addParam(parmName, parmValue);
+                        if (traceEnabled) {
+                            LOG.trace("Added parm '{}' with value '{}' to Syslogd event based on user-specified parameter assignment", parmName, parmValue);
+                        }
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class CompiledHideMatch {
+        private final boolean m_substring;
+        private final Pattern m_pattern;
+        private final int[] m_literals;
+
+        private CompiledHideMatch(final HideMatch hide, final Map<String,Integer> literals) {
+            final String type = hide.getMatch().getType();
+            final String expression = hide.getMatch().getExpression();
+            m_substring = type.equals("substr");
+            if (m_substring) {
+                m_pattern = null;
+                m_literals = expression.isEmpty() ? new int[0] : addLiterals(literals, Collections.singletonList(expression));
+            } else if (type.equals("regex")) {
+                m_pattern = compile(expression, "hideMatch");
+                m_literals = m_pattern == null ? new int[0] : addLiterals(literals, requiredLiterals(expression));
+            } else {
+                m_pattern = null;
+                m_literals = new int[0];
+            }
+        }
+
+        private boolean matches(final String fullText) {
+            if (m_substring) {
+                // The expression itself is the literal, unless it is empty
+                return true;
+            }
+            return m_pattern != null && m_pattern.matcher(fullText).find();
+        }
+    }
+}
@@ -32,7 +32,10 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.TimeZone;
 
 import org.apache.commons.lang.builder.ToStringBuilder;
@@ -75,6 +78,7 @@ public class SyslogMessage {
     private String m_message;
     private String m_matchedMessage;
     private String m_fullText;
+    private Map<String,Map<String,String>> m_structuredData = Collections.emptyMap();
     
     public SyslogMessage() {
     }
@@ -204,6 +208,25 @@ public class SyslogMessage {
         m_matchedMessage = matchedMessage;
     }
 
+    /**
+     * The RFC 5424 STRUCTURED-DATA of the message, as parameters by SD-ID.
+     * Only filled in by the parsers that support it.
+     */
+    public Map<String,Map<String,String>> getStructuredData() {
+        return m_structuredData;
+    }
+
+    public void setStructuredData(final Map<String,Map<String,String>> structuredData) {
+        m_structuredData = structuredData == null ? Collections.emptyMap() : structuredData;
+    }
+
+    public void addStructuredData(final String id, final Map<String,String> parameters) {
+        if (m_structuredData.isEmpty()) {
+            m_structuredData = new LinkedHashMap<>();
+        }
+        m_structuredData.put(id, parameters);
+    }
+
     public int getPriorityField() {
         if (m_severity != null && m_facility != null) {
             return m_severity.getPriority(m_facility);
@@ -246,6 +269,7 @@ public class SyslogMessage {
             .append("message ID", m_messageId)
             .append("process name", m_processName)
             .append("process ID", m_processId)
+            .append("structured data", m_structuredData)
             .append("message", m_message)
             .toString();
     }
@@ -42,6 +42,7 @@ import org.opennms.netmgt.config.SyslogdConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
@@ -49,6 +50,7 @@ import com.google.common.cache.LoadingCache;
 
 public class SyslogParser {
     private static final Logger LOG = LoggerFactory.getLogger(SyslogParser.class);
+    private static final MetricRegistry METRICS = new MetricRegistry();
     private static final String datePattern="((19|20)\\d{2})-([1-9]|0[1-9]|1[0-2])-(0[1-9]|[1-9]|[12][0-9]|3[01])";
     private Matcher m_matcher = null;
     private final SyslogdConfig m_config;
@@ -69,6 +71,13 @@ public class SyslogParser {
         }
     );
 
+    /**
+     * Parse rates, failures and fallbacks of the parsers, by parser class.
+     */
+    public static MetricRegistry getMetricRegistry() {
+        return METRICS;
+    }
+
     public static SyslogParser getParserInstance(SyslogdConfig config, String text) throws MessageDiscardedException {
         Class<? extends SyslogParser> parserClass = PARSER_CLASSES.getUnchecked(config.getParser());
 
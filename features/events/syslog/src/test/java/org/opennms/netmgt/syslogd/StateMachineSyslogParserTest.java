@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.syslogd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.time.LocalDateTime;
+import java.time.Year;
+import java.time.ZoneOffset;
+import java.util.Date;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.opennms.core.test.ConfigurationTestUtils;
+import org.opennms.netmgt.config.SyslogdConfig;
+import org.opennms.netmgt.config.SyslogdConfigFactory;
+
+import com.codahale.metrics.MetricRegistry;
+
+public class StateMachineSyslogParserTest {
+
+    private final SyslogdConfig m_config;
+
+    public StateMachineSyslogParserTest() throws Exception {
+        InputStream stream = null;
+        try {
+            stream = ConfigurationTestUtils.getInputStreamForResource(this, "/etc/syslogd-configuration.xml");
+            m_config = new SyslogdConfigFactory(stream);
+        } finally {
+            if (stream != null) {
+                IOUtils.closeQuietly(stream);
+            }
+        }
+    }
+
+    private SyslogMessage parse(final String text) throws Exception {
+        final SyslogParser parser = new StateMachineSyslogParser(m_config, text);
+        assertTrue(parser.find());
+        final SyslogMessage message = parser.parse();
+        assertNotNull(message);
+        return message;
+    }
+
+    private static Date date(int year, int month, int day, int hour, int minute, int second, int nanos, ZoneOffset offset) {
+        return Date.from(LocalDateTime.of(year, month, day, hour, minute, second, nanos).toInstant(offset));
+    }
+
+    @Test
+    public void testRfc5424() throws Exception {
+        final SyslogMessage message = parse("<34>1 2003-10-11T22:14:15.003Z mymachine.example.com su - ID47 - 'su root' failed for lonvick on /dev/pts/8");
+
+        assertEquals(StateMachineSyslogParser.class, message.getParserClass());
+        assertEquals(SyslogFacility.AUTH, message.getFacility());
+        assertEquals(SyslogSeverity.CRITICAL, message.getSeverity());
+        assertEquals(1, message.getVersion().intValue());
+        assertEquals(date(2003, 10, 11, 22, 14, 15, 3000000, ZoneOffset.UTC), message.getDate());
+        assertEquals("mymachine.example.com", message.getHostName());
+        assertEquals("su", message.getProcessName());
+        assertNull(message.getProcessId());
+        assertEquals("ID47", message.getMessageID());
+        assertTrue(message.getStructuredData().isEmpty());
+        assertEquals("'su root' failed for lonvick on /dev/pts/8", message.getMessage());
+    }
+
+    @Test
+    public void testRfc5424WithStructuredData() throws Exception {
+        final SyslogMessage message = parse("<165>1 2003-08-24T05:14:15.000003-07:00 192.0.2.1 myproc 8710 - "
+                + "[exampleSDID@32473 iut=\"3\" eventSource=\"Application\" eventID=\"1011\"][examplePriority@32473 class=\"high\" note=\"a \\\"quoted\\\" \\] value\"] %% It's time to make the do-nuts.");
+
+        assertEquals(SyslogFacility.LOCAL4, message.getFacility());
+        assertEquals(SyslogSeverity.NOTICE, message.getSeverity());
+        assertEquals(date(2003, 8, 24, 5, 14, 15, 3000, ZoneOffset.ofHours(-7)), message.getDate());
+        assertEquals("192.0.2.1", message.getHostName());
+        assertEquals("myproc", message.getProcessName());
+        assertEquals(8710, message.getProcessId().intValue());
+        assertNull(message.getMessageID());
+
+        final Map<String,Map<String,String>> structuredData = message.getStructuredData();
+        assertEquals(2, structuredData.size());
+        assertEquals("3", structuredData.get("exampleSDID@32473").get("iut"));
+        assertEquals("Application", structuredData.get("exampleSDID@32473").get("eventSource"));
+        assertEquals("1011", structuredData.get("exampleSDID@32473").get("eventID"));
+        assertEquals("high", structuredData.get("examplePriority@32473").get("class"));
+        assertEquals("a \"quoted\" ] value", structuredData.get("examplePriority@32473").get("note"));
+        assertEquals("%% It's time to make the do-nuts.", message.getMessage());
+    }
+
+    @Test
+    public void testRfc5424WithoutMessage() throws Exception {
+        final SyslogMessage message = parse("<13>1 - - - - - [origin ip=\"192.0.2.1\"]");
+
+        assertNull(message.getDate());
+        assertNull(message.getHostName());
+        assertNull(message.getMessage());
+        assertEquals("192.0.2.1", message.getStructuredData().get("origin").get("ip"));
+    }
+
+    @Test
+    public void testJuniper() throws Exception {
+        final SyslogMessage message = parse("<28>Mar 16 15:34:21 lab-srx mgd[3421]: UI_COMMIT: User 'root' requested 'commit' operation");
+
+        assertEquals(SyslogFacility.SYSTEM, message.getFacility());
+        assertEquals(SyslogSeverity.WARNING, message.getSeverity());
+        assertEquals(date(Year.now().getValue(), 3, 16, 15, 34, 21, 0, ZoneOffset.UTC), message.getDate());
+        assertEquals("lab-srx", message.getHostName());
+        assertEquals("mgd", message.getProcessName());
+        assertEquals(3421, message.getProcessId().intValue());
+        assertEquals("UI_COMMIT: User 'root' requested 'commit' operation", message.getMessage());
+    }
+
+    @Test
+    public void testSyslogNG() throws Exception {
+        final SyslogMessage message = parse("<6>test: 2007-01-01 127.0.0.1 OpenNMS[1234]: A SyslogNG style message");
+
+        assertEquals(SyslogFacility.KERNEL, message.getFacility());
+        assertEquals(SyslogSeverity.INFO, message.getSeverity());
+        assertEquals("test", message.getMessageID());
+        assertEquals(date(2007, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC), message.getDate());
+        assertEquals("127.0.0.1", message.getHostName());
+        assertEquals("OpenNMS", message.getProcessName());
+        assertEquals(1234, message.getProcessId().intValue());
+        assertEquals("A SyslogNG style message", message.getMessage());
+    }
+
+    @Test
+    public void testCiscoWithHost() throws Exception {
+        final SyslogMessage message = parse("<190>Mar 11 08:35:17 aaa_host 30128311: Mar 11 08:35:16.844 CST: %SEC-6-IPACCESSLOGP: list in110 denied tcp 192.168.10.100(63923) -> 192.168.11.128(1521), 1 packet");
+
+        assertEquals(SyslogFacility.LOCAL7, message.getFacility());
+        assertEquals(SyslogSeverity.INFO, message.getSeverity());
+        assertEquals("aaa_host", message.getHostName());
+        assertEquals("30128311", message.getProcessName());
+        assertEquals("Mar 11 08:35:16.844 CST: %SEC-6-IPACCESSLOGP: list in110 denied tcp 192.168.10.100(63923) -> 192.168.11.128(1521), 1 packet", message.getMessage());
+    }
+
+    @Test
+    public void testCiscoWithSequenceNumber() throws Exception {
+        final SyslogMessage message = parse("<189>71: router1: *Mar  1 18:46:11.123 UTC: %SYS-5-CONFIG_I: Configured from console by vty0 (10.0.0.1)");
+
+        assertEquals(SyslogFacility.LOCAL7, message.getFacility());
+        assertEquals(SyslogSeverity.NOTICE, message.getSeverity());
+        assertEquals("71", message.getMessageID());
+        assertEquals("router1", message.getHostName());
+        assertEquals(date(Year.now().getValue(), 3, 1, 18, 46, 11, 123000000, ZoneOffset.UTC), message.getDate());
+        assertNull(message.getProcessName());
+        assertEquals("%SYS-5-CONFIG_I: Configured from console by vty0 (10.0.0.1)", message.getMessage());
+    }
+
+    @Test
+    public void testMessageWithoutTag() throws Exception {
+        final SyslogMessage message = parse("<34> 2010-08-19 localhost load test 10000 on tty1");
+
+        assertEquals("localhost", message.getHostName());
+        assertNull(message.getProcessName());
+        assertEquals("load test 10000 on tty1", message.getMessage());
+    }
+
+    @Test
+    public void testFallback() throws Exception {
+        final MetricRegistry metrics = SyslogParser.getMetricRegistry();
+        final long fallbacks = metrics.meter(MetricRegistry.name(StateMachineSyslogParser.class, "fallbacks")).getCount();
+
+        // Not a valid RFC 5424 timestamp, but the regular expression parser accepts it
+        final SyslogMessage message = parse("<34>1 2003-10-11T22:14:15 mymachine su - ID47 - message");
+        assertEquals(Rfc5424SyslogParser.class, message.getParserClass());
+        assertEquals(fallbacks + 1, metrics.meter(MetricRegistry.name(StateMachineSyslogParser.class, "fallbacks")).getCount());
+    }
+}
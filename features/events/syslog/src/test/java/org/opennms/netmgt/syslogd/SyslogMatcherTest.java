@@ -0,0 +1,229 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.syslogd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.regex.Pattern;
+
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opennms.core.test.ConfigurationTestUtils;
+import org.opennms.core.utils.InetAddressUtils;
+import org.opennms.netmgt.config.SyslogdConfig;
+import org.opennms.netmgt.config.SyslogdConfigFactory;
+import org.opennms.netmgt.dao.api.DistPollerDao;
+import org.opennms.netmgt.dao.api.MonitoringLocationDao;
+import org.opennms.netmgt.dao.hibernate.InterfaceToNodeCacheDaoImpl;
+import org.opennms.netmgt.dao.mock.MockInterfaceToNodeCache;
+import org.opennms.netmgt.xml.event.Event;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class SyslogMatcherTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SyslogMatcherTest.class);
+
+    @BeforeClass
+    public static void setUpClass() {
+        InterfaceToNodeCacheDaoImpl.setInstance(new MockInterfaceToNodeCache());
+    }
+
+    @Test
+    public void testRequiredLiterals() {
+        assertEquals(Arrays.asList("foo0: ", "load test ", " on "), SyslogMatcher.requiredLiterals(".*foo0: .*load test (\\S+) on ((pts\\/\\d+)|(tty\\d+)).*"));
+        assertEquals(Arrays.asList("foo: ", " out of ", " tests failed for "), SyslogMatcher.requiredLiterals("foo: (\\d+) out of (\\d+) tests failed for (\\S+)$"));
+        assertEquals(Arrays.asList("ritical"), SyslogMatcher.requiredLiterals("[Cc]ritical"));
+        assertEquals(Arrays.asList("%SEC-6-IPACCESSLOGP: list "), SyslogMatcher.requiredLiterals("%SEC-6-IPACCESSLOGP: list (\\S+)"));
+
+        // The character before an optional quantifier is not required
+        assertEquals(Arrays.asList("abc", "ef"), SyslogMatcher.requiredLiterals("abcd?ef"));
+        assertEquals(Arrays.asList("abc"), SyslogMatcher.requiredLiterals("abcd*"));
+        assertEquals(Arrays.asList("abc"), SyslogMatcher.requiredLiterals("abcd{0,2}"));
+        assertEquals(Arrays.asList("ab", "cd"), SyslogMatcher.requiredLiterals("ab+cd"));
+
+        // Escaped metacharacters are literals, escaped letters are not
+        assertEquals(Arrays.asList("a.b[c]"), SyslogMatcher.requiredLiterals("a\\.b\\[c\\]"));
+        assertEquals(Arrays.asList("abc", "def"), SyslogMatcher.requiredLiterals("abc\\sdef"));
+
+        // Nothing is required from an alternation or with inline flags
+        assertEquals(Collections.emptyList(), SyslogMatcher.requiredLiterals("abc|def"));
+        assertEquals(Collections.emptyList(), SyslogMatcher.requiredLiterals("(?i)abcdef"));
+        assertEquals(Collections.emptyList(), SyslogMatcher.requiredLiterals(".*"));
+
+        // Escapes that span several characters are not parsed
+        assertEquals(Collections.emptyList(), SyslogMatcher.requiredLiterals("\\x41BCdef"));
+        assertEquals(Collections.emptyList(), SyslogMatcher.requiredLiterals("abc\\u0041"));
+        assertEquals(Collections.emptyList(), SyslogMatcher.requiredLiterals("abc\\0101def"));
+        assertEquals(Collections.emptyList(), SyslogMatcher.requiredLiterals("abc\\cAdef"));
+        assertEquals(Collections.emptyList(), SyslogMatcher.requiredLiterals("(?<n>ab)cd\\k<n>"));
+        assertEquals(Collections.emptyList(), SyslogMatcher.requiredLiterals("abc\\p{Alpha}def"));
+        assertEquals(Collections.emptyList(), SyslogMatcher.requiredLiterals("abc(\\x41)def"));
+        assertEquals(Arrays.asList("abc", "def"), SyslogMatcher.requiredLiterals("abc\\bdef"));
+        assertEquals(Arrays.asList("abc", "def", "ghi"), SyslogMatcher.requiredLiterals("abc\\d+def\\Wghi"));
+    }
+
+    @Test
+    public void testRequiredLiteralsAreInMatchingMessages() {
+        assertRequiredLiteralsMatch("\\x41BCdef", "ABCdef");
+        assertRequiredLiteralsMatch("abc\\u0041xyz", "abcAxyz");
+        assertRequiredLiteralsMatch("abc\\0101xyz", "abcAxyz");
+        assertRequiredLiteralsMatch("abc\\cAxyz", "abc\u0001xyz");
+        assertRequiredLiteralsMatch("(?<n>ab)cd\\k<n>ef", "abcdabef");
+        assertRequiredLiteralsMatch("abc\\t\\n\\r", "abc\t\n\r");
+        assertRequiredLiteralsMatch("foo\\.bar\\s\\d+ baz", "foo.bar 12 baz");
+    }
+
+    private static void assertRequiredLiteralsMatch(final String regex, final String message) {
+        assertTrue(regex, Pattern.compile(regex).matcher(message).matches());
+        for (final String literal : SyslogMatcher.requiredLiterals(regex)) {
+            assertTrue(regex + " requires " + literal, message.contains(literal));
+        }
+    }
+
+    @Test
+    public void testLiteralMatcher() {
+        final LiteralMatcher matcher = new LiteralMatcher(Arrays.asList("he", "she", "his", "hers", "foo1: ", "foo10: "));
+
+        assertEquals(bits(0, 1, 3), matcher.find("ushers"));
+        assertEquals(bits(2), matcher.find("this"));
+        assertEquals(bits(5), matcher.find("foo10: bar"));
+        assertEquals(bits(4), matcher.find("foo1: bar"));
+        assertEquals(bits(), matcher.find(""));
+
+        assertEquals(bits(), new LiteralMatcher(Collections.emptyList()).find("anything"));
+    }
+
+    private static BitSet bits(int... indexes) {
+        final BitSet bits = new BitSet();
+        for (final int index : indexes) {
+            bits.set(index);
+        }
+        return bits;
+    }
+
+    @Test
+    public void testCompiledOncePerConfiguration() throws Exception {
+        final SyslogdConfig config = new SyslogdConfigFactory(ConfigurationTestUtils.getInputStreamForResource(this, "/etc/syslogd-configuration.xml"));
+        final SyslogMatcher matcher = SyslogMatcher.forConfig(config);
+        assertSame(matcher, SyslogMatcher.forConfig(config));
+
+        final SyslogdConfig other = new SyslogdConfigFactory(ConfigurationTestUtils.getInputStreamForResource(this, "/etc/syslogd-configuration.xml"));
+        assertFalse(matcher == SyslogMatcher.forConfig(other));
+    }
+
+    @Test
+    public void testRecompiledWhenDiscardUeiChanges() throws Exception {
+        final SyslogConfigBean config = new SyslogConfigBean();
+        config.setDiscardUei("DISCARD-MATCHING-MESSAGES");
+        final SyslogMatcher matcher = SyslogMatcher.forConfig(config);
+        assertSame(matcher, SyslogMatcher.forConfig(config));
+
+        config.setDiscardUei("uei.opennms.org/tests/syslogd/discard");
+        assertFalse(matcher == SyslogMatcher.forConfig(config));
+    }
+
+    @Test
+    public void testMatchingRules() throws Exception {
+        final SyslogdConfig config = new SyslogdConfigFactory(ConfigurationTestUtils.getInputStreamForResource(this, "/etc/syslogd-configuration.xml"));
+
+        assertEquals("uei.opennms.org/tests/syslogd/substrUeiRewriteTest", convert(config, "<31>main: 2007-01-01 localhost A CRISCO message").getUei());
+        assertEquals("uei.opennms.org/tests/syslogd/regexUeiRewriteUnanchoredTest", convert(config, "<31>main: 2007-01-01 localhost A Critical message").getUei());
+
+        final Event event = convert(config, "<31>main: 2007-01-01 localhost foo: 100 out of 666 tests failed for bar");
+        assertEquals("uei.opennms.org/tests/syslogd/regexUeiRewriteTest", event.getUei());
+        assertEquals("100", event.getParm("group1").getValue().getContent());
+        assertEquals("bar", event.getParm("group3").getValue().getContent());
+
+        try {
+            convert(config, "<31>main: 2007-01-01 localhost A JUNK message");
+            assertTrue("The message should have been discarded", false);
+        } catch (MessageDiscardedException e) {
+            // Expected
+        }
+
+        assertEquals(ConvertToEvent.HIDDEN_MESSAGE, convert(config, "<31>main: 2007-01-01 localhost foo: 100 out of 666 tests failed for doubleSecret").getLogmsg().getContent());
+    }
+
+    /**
+     * Converts a few messages against the load test configuration, which has
+     * 10000 regex rules.
+     */
+    @Test
+    public void testLoadTestConfiguration() throws Exception {
+        final SyslogdConfig config = new SyslogdConfigFactory(ConfigurationTestUtils.getInputStreamForResource(this, "/etc/syslogd-loadtest-configuration.xml"));
+
+        final Event event = convert(config, "<34> 2010-08-19 localhost foo42: load test 42 on tty1");
+        assertEquals("uei.example.org/syslog/loadTest/foo42", event.getUei());
+        assertEquals("42", event.getParm("group1").getValue().getContent());
+
+        for (final int rule : new int[] { 0, 1, 10, 999, 9999 }) {
+            assertEquals("uei.example.org/syslog/loadTest/foo" + rule, convert(config, "<34> 2010-08-19 localhost foo" + rule + ": load test " + rule + " on tty1").getUei());
+        }
+    }
+
+    /**
+     * Converts messages against the load test configuration and logs the
+     * rate. Run with -DrunSyslogBenchmarks=true.
+     */
+    @Test
+    public void testLoadTestThroughput() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("runSyslogBenchmarks"));
+        final SyslogdConfig config = new SyslogdConfigFactory(ConfigurationTestUtils.getInputStreamForResource(this, "/etc/syslogd-loadtest-configuration.xml"));
+
+        final int count = 10000;
+        final long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            final int rule = i % 10000;
+            assertEquals("uei.example.org/syslog/loadTest/foo" + rule, convert(config, "<34> 2010-08-19 localhost foo" + rule + ": load test " + i + " on tty1").getUei());
+        }
+        final long elapsed = System.nanoTime() - start;
+        LOG.info("Converted {} messages against {} rules in {}ms ({} messages/s)", count, config.getUeiList().getUeiMatchCount(),
+                 elapsed / 1000000, count * 1000000000L / Math.max(elapsed, 1));
+    }
+
+    private static Event convert(SyslogdConfig config, String message) throws Exception {
+        return new ConvertToEvent(
+            DistPollerDao.DEFAULT_DIST_POLLER_ID,
+            MonitoringLocationDao.DEFAULT_MONITORING_LOCATION_ID,
+            InetAddressUtils.ONE_TWENTY_SEVEN,
+            9999,
+            message,
+            config
+        ).getEvent();
+    }
+}
@@ -28,7 +28,11 @@
 
 package org.opennms.netmgt.measurements.api;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import org.opennms.netmgt.measurements.api.exceptions.FetchException;
 import org.opennms.netmgt.measurements.api.exceptions.MeasurementException;
@@ -40,7 +44,11 @@ import org.opennms.netmgt.measurements.model.Source;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Maps;
 import com.google.common.collect.RowSortedTable;
 
 @Component("measurementsService")
@@ -51,6 +59,18 @@ public class DefaultMeasurementsService implements MeasurementsService {
     private final FilterEngine filterEngine;
     private final QueryRequestValidator queryRequestValidator = new QueryRequestValidator();
 
+    /**
+     * Recent fetch results, used to avoid reading the same data again when several graphs
+     * or users request the same sources over the same window. Set the size to 0 to disable.
+     */
+    private static final long FETCH_CACHE_SIZE = Long.getLong("org.opennms.netmgt.measurements.fetchCache.size", 128);
+    private static final long FETCH_CACHE_TTL_MS = Long.getLong("org.opennms.netmgt.measurements.fetchCache.ttl", 30000);
+
+    private final Cache<FetchKey, FetchResults> fetchCache = FETCH_CACHE_SIZE > 0 ? CacheBuilder.newBuilder()
+            .maximumSize(FETCH_CACHE_SIZE)
+            .expireAfterWrite(FETCH_CACHE_TTL_MS, TimeUnit.MILLISECONDS)
+            .build() : null;
+
     @Autowired
     public DefaultMeasurementsService(MeasurementFetchStrategy fetchStrategy, ExpressionEngine expressionEngine, FilterEngine filterEngine) {
         this.fetchStrategy = Preconditions.checkNotNull(fetchStrategy);
@@ -64,21 +84,31 @@ public class DefaultMeasurementsService implements MeasurementsService {
 
         // Fetch the measurements
         FetchResults results;
-        try {
-            results = fetchStrategy.fetch(
-                    request.getStart(),
-                    request.getEnd(),
-                    request.getStep(),
-                    request.getMaxRows(),
-                    request.getHeartbeat(),
-                    request.getInterval(),
-                    request.getSources(),
-                    request.isRelaxed());
-        } catch (Exception e) {
-            throw new FetchException(e, "Fetch failed: {}", e.getMessage());
-        }
-        if (results == null) {
-            throw new ResourceNotFoundException(request);
+        final FetchKey fetchKey = fetchCache != null ? new FetchKey(request) : null;
+        final FetchResults cachedResults = fetchKey != null ? fetchCache.getIfPresent(fetchKey) : null;
+        if (cachedResults != null) {
+            results = copy(cachedResults);
+        } else {
+            try {
+                results = fetchStrategy.fetch(
+                        request.getStart(),
+                        request.getEnd(),
+                        request.getStep(),
+                        request.getMaxRows(),
+                        request.getHeartbeat(),
+                        request.getInterval(),
+                        request.getSources(),
+                        request.isRelaxed());
+            } catch (Exception e) {
+                throw new FetchException(e, "Fetch failed: {}", e.getMessage());
+            }
+            if (results == null) {
+                throw new ResourceNotFoundException(request);
+            }
+            if (fetchKey != null) {
+                // The results are modified by the expressions and filters, so cache a copy
+                fetchCache.put(fetchKey, copy(results));
+            }
         }
 
         // Apply the expression to the fetch results
@@ -113,4 +143,62 @@ public class DefaultMeasurementsService implements MeasurementsService {
     private void validate(QueryRequest request) throws ValidationException {
         queryRequestValidator.validate(request);
     }
+
+    private static FetchResults copy(FetchResults results) {
+        final Map<String, double[]> columns = Maps.newLinkedHashMap();
+        for (Map.Entry<String, double[]> column : results.getColumns().entrySet()) {
+            columns.put(column.getKey(), column.getValue().clone());
+        }
+        return new FetchResults(results.getTimestamps().clone(), columns, results.getStep(), Maps.newHashMap(results.getConstants()));
+    }
+
+    /**
+     * Identifies the data read by a fetch: the sources and the window.
+     */
+    private static class FetchKey {
+        private final long start;
+        private final long end;
+        private final long step;
+        private final int maxRows;
+        private final Long heartbeat;
+        private final Long interval;
+        private final boolean relaxed;
+        private final List<List<String>> sources;
+
+        private FetchKey(QueryRequest request) {
+            start = request.getStart();
+            end = request.getEnd();
+            step = request.getStep();
+            maxRows = request.getMaxRows();
+            heartbeat = request.getHeartbeat();
+            interval = request.getInterval();
+            relaxed = request.isRelaxed();
+            // The fetch may modify the sources, so keep a copy of the relevant fields
+            sources = request.getSources().stream()
+                    .map(s -> Arrays.asList(s.getLabel(), s.getResourceId(), s.getAttribute(),
+                            s.getFallbackAttribute(), s.getDataSource(), s.getAggregation()))
+                    .collect(Collectors.toList());
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof FetchKey)) {
+                return false;
+            }
+            final FetchKey other = (FetchKey) obj;
+            return start == other.start
+                    && end == other.end
+                    && step == other.step
+                    && maxRows == other.maxRows
+                    && relaxed == other.relaxed
+                    && Objects.equal(heartbeat, other.heartbeat)
+                    && Objects.equal(interval, other.interval)
+                    && Objects.equal(sources, other.sources);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(start, end, step, maxRows, heartbeat, interval, relaxed, sources);
+        }
+    }
 }
@@ -52,6 +52,8 @@ public class FetchResults {
 
     private final Map<String, Object> m_constants;
 
+    private final Map<String, Long> m_timings = Maps.newLinkedHashMap();
+
     public FetchResults(final long[] timestamps, Map<String, double[]> columns, final long step, final Map<String, Object> constants) {
         Preconditions.checkNotNull(timestamps, "timestamps argument");
         Preconditions.checkNotNull(columns, "columns argument");
@@ -136,12 +138,23 @@ public class FetchResults {
         return m_constants;
     }
 
+    /**
+     * Time spent, in milliseconds, in the various stages of the fetch that
+     * produced these results, i.e. "resolve", "fetch" or "fetch:<file>".
+     * Informational only, the stages that are reported depend on the
+     * fetch strategy.
+     */
+    public Map<String, Long> getTimings() {
+        return m_timings;
+    }
+
     public String toString() {
        return Objects.toStringHelper(this.getClass())
             .add("timestamps", Arrays.toString(m_timestamps))
             .add("columns", m_columns)
             .add("step", m_step)
             .add("constants", m_constants)
+            .add("timings", m_timings)
             .toString();
     }
 
@@ -29,8 +29,15 @@
 package org.opennms.netmgt.measurements.impl;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.jrobin.core.RrdException;
 import org.opennms.netmgt.dao.api.ResourceDao;
@@ -46,6 +53,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 
 import com.google.common.base.Strings;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * Used to fetch measurements from RRD files.
@@ -56,6 +64,27 @@ public abstract class AbstractRrdBasedFetchStrategy implements MeasurementFetchS
 
     private static final Logger LOG = LoggerFactory.getLogger(AbstractRrdBasedFetchStrategy.class);
 
+    /**
+     * Number of threads, shared by all queries, used to read the files
+     * of a query concurrently. Set to 0 to always read them in a single call.
+     */
+    private static final int FETCH_THREADS = Integer.getInteger("org.opennms.netmgt.measurements.fetchThreads",
+            Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Maximum time in milliseconds to wait for the files of a query when they
+     * are read concurrently.
+     */
+    private static final long FETCH_TIMEOUT_MS = Long.getLong("org.opennms.netmgt.measurements.fetchTimeout", 120000);
+
+    private static class FetchPool {
+        private static final ExecutorService INSTANCE = Executors.newFixedThreadPool(FETCH_THREADS,
+                new ThreadFactoryBuilder()
+                    .setNameFormat("measurements-fetch-%d")
+                    .setDaemon(true)
+                    .build());
+    }
+
     @Autowired
     private ResourceDao m_resourceDao;
 
@@ -66,6 +95,7 @@ public abstract class AbstractRrdBasedFetchStrategy implements MeasurementFetchS
     public FetchResults fetch(long start, long end, long step, int maxrows,
                               Long interval, Long heartbeat, List<Source> sources, boolean relaxed) throws Exception {
 
+        final long resolveStart = System.nanoTime();
         final Map<String, Object> constants = Maps.newHashMap();
 
         final Map<Source, String> rrdsBySource = Maps.newHashMap();
@@ -106,8 +136,13 @@ public abstract class AbstractRrdBasedFetchStrategy implements MeasurementFetchS
             rrdsBySource.put(source, rrdFile);
         }
 
+        final long resolveTime = elapsedMillis(resolveStart);
+
         // Fetch
-        return fetchMeasurements(start, end, step, maxrows, rrdsBySource, constants, sources, relaxed);
+        final FetchResults fetchResults = fetchMeasurements(start, end, step, maxrows, rrdsBySource, constants, sources, relaxed);
+        fetchResults.getTimings().put("resolve", resolveTime);
+        LOG.debug("Fetched {} sources in {}", rrdsBySource.size(), fetchResults.getTimings());
+        return fetchResults;
     }
 
     /**
@@ -127,13 +162,109 @@ public abstract class AbstractRrdBasedFetchStrategy implements MeasurementFetchS
             return Utils.createEmtpyFetchResults(step, constants);
         }
 
-        FetchResults fetchResults = fetchMeasurements(start, end, step, maxrows, rrdsBySource, constants);
+        final long fetchStart = System.nanoTime();
+        final Map<String, Map<Source, String>> rrdsByFile = groupByFile(rrdsBySource);
+        FetchResults fetchResults = null;
+        if (FETCH_THREADS > 0 && rrdsByFile.size() > 1 && isParallelFetchSupported()) {
+            fetchResults = fetchConcurrently(start, end, step, maxrows, rrdsByFile, constants);
+        }
+        if (fetchResults == null) {
+            fetchResults = fetchMeasurements(start, end, step, maxrows, rrdsBySource, constants);
+        }
+        fetchResults.getTimings().put("fetch", elapsedMillis(fetchStart));
+
         if (relaxed) {
             Utils.fillMissingValues(fetchResults, sources);
         }
         return fetchResults;
     }
 
+    /**
+     * Reads every file in a separate call on the shared fetch pool, and merges the columns.
+     *
+     * @return the merged results, or <code>null</code> if the files did not yield the same
+     *         timestamps and need to be consolidated together in a single call
+     */
+    private FetchResults fetchConcurrently(long start, long end, long step, int maxrows,
+                                           Map<String, Map<Source, String>> rrdsByFile,
+                                           Map<String, Object> constants) throws RrdException {
+        final Map<String, Future<FetchResults>> futures = Maps.newLinkedHashMap();
+        for (final Map.Entry<String, Map<Source, String>> entry : rrdsByFile.entrySet()) {
+            final Map<Source, String> rrdsInFile = entry.getValue();
+            futures.put(entry.getKey(), FetchPool.INSTANCE.submit(() -> {
+                final long fileStart = System.nanoTime();
+                final FetchResults results = fetchMeasurements(start, end, step, maxrows, rrdsInFile, constants);
+                results.getTimings().put("fetch", elapsedMillis(fileStart));
+                return results;
+            }));
+        }
+
+        final Map<String, FetchResults> resultsByFile = Maps.newLinkedHashMap();
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FETCH_TIMEOUT_MS);
+        try {
+            for (final Map.Entry<String, Future<FetchResults>> entry : futures.entrySet()) {
+                resultsByFile.put(entry.getKey(), entry.getValue().get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RrdException("Interrupted while fetching.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RrdException) {
+                throw (RrdException) e.getCause();
+            }
+            throw new RrdException("Fetch failed.", e.getCause());
+        } catch (TimeoutException e) {
+            throw new RrdException("Fetch did not complete within " + FETCH_TIMEOUT_MS + "ms.", e);
+        } finally {
+            // Don't keep the pool busy with files nobody is waiting for anymore
+            for (final Future<FetchResults> future : futures.values()) {
+                future.cancel(true);
+            }
+        }
+
+        FetchResults first = null;
+        final Map<String, double[]> columns = Maps.newLinkedHashMap();
+        final Map<String, Long> timings = Maps.newLinkedHashMap();
+        for (final Map.Entry<String, FetchResults> entry : resultsByFile.entrySet()) {
+            final FetchResults results = entry.getValue();
+            if (first == null) {
+                first = results;
+            } else if (results.getStep() != first.getStep()
+                    || !Arrays.equals(results.getTimestamps(), first.getTimestamps())) {
+                LOG.debug("Files {} and {} were read with different timestamps, fetching them together.",
+                        rrdsByFile.keySet().iterator().next(), entry.getKey());
+                return null;
+            }
+            columns.putAll(results.getColumns());
+            timings.put("fetch:" + entry.getKey(), results.getTimings().get("fetch"));
+        }
+
+        final FetchResults fetchResults = new FetchResults(first.getTimestamps(), columns, first.getStep(), constants);
+        fetchResults.getTimings().putAll(timings);
+        return fetchResults;
+    }
+
+    private static Map<String, Map<Source, String>> groupByFile(Map<Source, String> rrdsBySource) {
+        final Map<String, Map<Source, String>> rrdsByFile = Maps.newLinkedHashMap();
+        for (final Map.Entry<Source, String> entry : rrdsBySource.entrySet()) {
+            rrdsByFile.computeIfAbsent(entry.getValue(), f -> Maps.newLinkedHashMap()).put(entry.getKey(), entry.getValue());
+        }
+        return rrdsByFile;
+    }
+
+    private static long elapsedMillis(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Whether {@link #fetchMeasurements(long, long, long, int, Map, Map)} can be
+     * called concurrently, once for every file of a query. Implementations
+     * that do so must be thread-safe.
+     */
+    protected boolean isParallelFetchSupported() {
+        return false;
+    }
+
     /**
      * Performs the actual retrieval of the values from the RRD/JRB files.
      */
@@ -0,0 +1,931 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.measurements.impl;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+import org.opennms.netmgt.measurements.api.FetchResults;
+import org.opennms.netmgt.measurements.model.Expression;
+import org.opennms.netmgt.measurements.model.QueryRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Evaluates expressions over whole columns instead of row by row.
+ *
+ * Only the subset of JEXL that is commonly used in graph definitions is
+ * supported: numeric literals, variables, arithmetic, comparisons, logical
+ * operators, the ternary operator and the math: and strictmath: functions.
+ * Expressions are parsed once and the parse trees are cached.
+ *
+ * The results must be identical to those of the {@link JEXLExpressionEngine},
+ * so anything that JEXL might evaluate differently than plain double
+ * arithmetic (integer arithmetic, division by zero, string constants, ...)
+ * is rejected and {@link #apply(QueryRequest, FetchResults)} returns false,
+ * leaving the results untouched so that the caller can fall back to JEXL.
+ */
+class ColumnarExpressionEvaluator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ColumnarExpressionEvaluator.class);
+
+    /**
+     * Used to bail out of the evaluation when an expression can't be
+     * guaranteed to evaluate like it would with JEXL.
+     */
+    private static class UnsupportedExpressionException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private UnsupportedExpressionException(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    private static final LoadingCache<String, Optional<Node>> PARSED_EXPRESSIONS = CacheBuilder.newBuilder()
+            .maximumSize(1024)
+            .build(new CacheLoader<String, Optional<Node>>() {
+                @Override
+                public Optional<Node> load(String expression) {
+                    try {
+                        return Optional.of(new Parser(expression).parse());
+                    } catch (UnsupportedExpressionException e) {
+                        LOG.debug("Expression '{}' can't be evaluated by column: {}", expression, e.getMessage());
+                        return Optional.absent();
+                    }
+                }
+            });
+
+    /**
+     * @return true if the expressions were applied, false if they must be evaluated using JEXL instead
+     */
+    public boolean apply(final QueryRequest request, final FetchResults results) {
+        final List<Expression> expressions = request.getExpressions();
+        final long[] timestamps = results.getTimestamps();
+        final Map<String, double[]> columns = results.getColumns();
+        final int numRows = timestamps.length;
+
+        final Frame frame = new Frame(numRows);
+        for (Map.Entry<String, Object> constant : results.getConstants().entrySet()) {
+            final Object value = constant.getValue();
+            if (value instanceof Double) {
+                frame.define(constant.getKey(), Type.DOUBLE, fill(numRows, (Double)value));
+            } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+                frame.define(constant.getKey(), Type.INTEGRAL, fill(numRows, ((Number)value).doubleValue()));
+            } else {
+                // Strings and other types are resolved lazily, and are rejected if used
+                frame.undefine(constant.getKey());
+            }
+        }
+        frame.define("__inf", Type.DOUBLE, fill(numRows, Double.POSITIVE_INFINITY));
+        frame.define("__neg_inf", Type.DOUBLE, fill(numRows, Double.NEGATIVE_INFINITY));
+        frame.define("NaN", Type.DOUBLE, fill(numRows, Double.NaN));
+        frame.define("__diff_time", Type.DOUBLE, fill(numRows, numRows < 1 ? 0d : timestamps[numRows-1] - timestamps[0]));
+        final double[] timestampColumn = new double[numRows];
+        for (int i = 0; i < numRows; i++) {
+            timestampColumn[i] = timestamps[i];
+        }
+        frame.define("timestamp", Type.INTEGRAL, timestampColumn);
+        for (Map.Entry<String, double[]> column : columns.entrySet()) {
+            frame.define(column.getKey(), Type.DOUBLE, column.getValue());
+        }
+
+        final Map<String, double[]> expressionValues = Maps.newLinkedHashMap();
+        try {
+            for (Expression expression : expressions) {
+                final String label = expression.getLabel();
+                if (label == null || frame.isDefined(label) || expressionValues.containsKey(label)) {
+                    // JEXL would let the label shadow, or be shadowed by, another value
+                    throw new UnsupportedExpressionException("label " + label + " is already in use");
+                }
+
+                final Node node = parse(expression.getExpression());
+                final Type type = node.type(frame);
+                if (type == Type.BOOLEAN) {
+                    throw new UnsupportedExpressionException("the expression does not return a number");
+                }
+                double[] values = node.eval(frame);
+                if (node instanceof Variable) {
+                    // Don't share the array with the referenced column
+                    values = values.clone();
+                }
+
+                // Results are stored as doubles, regardless of the type of the expression
+                frame.define(label, Type.DOUBLE, values);
+                if (!expression.getTransient()) {
+                    expressionValues.put(label, values);
+                }
+            }
+        } catch (UnsupportedExpressionException e) {
+            LOG.debug("Falling back to JEXL: {}", e.getMessage());
+            return false;
+        }
+
+        columns.putAll(expressionValues);
+        return true;
+    }
+
+    private static Node parse(String expression) throws UnsupportedExpressionException {
+        try {
+            final Optional<Node> node = PARSED_EXPRESSIONS.get(expression);
+            if (!node.isPresent()) {
+                throw new UnsupportedExpressionException("unsupported expression: " + expression);
+            }
+            return node.get();
+        } catch (ExecutionException e) {
+            throw new UnsupportedExpressionException(e.getMessage());
+        }
+    }
+
+    private static double[] fill(int numRows, double value) {
+        final double[] values = new double[numRows];
+        Arrays.fill(values, value);
+        return values;
+    }
+
+    /**
+     * Static types, following the types of the values JEXL would see.
+     */
+    private static enum Type {
+        /** A {@link Double}. */
+        DOUBLE,
+        /** An {@link Integer} or {@link Long}. */
+        INTEGRAL,
+        /** A {@link Double} in some rows and an integral value in others. */
+        MIXED,
+        /** A {@link Boolean}, stored as 0 or 1. */
+        BOOLEAN;
+
+        private boolean isNumeric() {
+            return this != BOOLEAN;
+        }
+    }
+
+    private static class Frame {
+        private final int m_numRows;
+        private final Map<String, Type> m_types = Maps.newHashMap();
+        private final Map<String, double[]> m_values = Maps.newHashMap();
+
+        private Frame(int numRows) {
+            m_numRows = numRows;
+        }
+
+        private void define(String name, Type type, double[] values) {
+            m_types.put(name, type);
+            m_values.put(name, values);
+        }
+
+        private void undefine(String name) {
+            m_types.put(name, null);
+            m_values.remove(name);
+        }
+
+        private boolean isDefined(String name) {
+            return m_types.containsKey(name);
+        }
+
+        private Type getType(String name) throws UnsupportedExpressionException {
+            final Type type = m_types.get(name);
+            if (type == null) {
+                throw new UnsupportedExpressionException("unknown or non-numeric variable: " + name);
+            }
+            return type;
+        }
+    }
+
+    private static abstract class Node {
+        /**
+         * Verifies that the node can be evaluated by column and returns the type of its values.
+         */
+        abstract Type type(Frame frame) throws UnsupportedExpressionException;
+
+        /**
+         * Evaluates the node for all rows. Booleans are returned as 0 or 1.
+         */
+        abstract double[] eval(Frame frame) throws UnsupportedExpressionException;
+    }
+
+    private static class Literal extends Node {
+        private final Type m_type;
+        private final double m_value;
+
+        private Literal(Type type, double value) {
+            m_type = type;
+            m_value = value;
+        }
+
+        @Override
+        Type type(Frame frame) {
+            return m_type;
+        }
+
+        @Override
+        double[] eval(Frame frame) {
+            return fill(frame.m_numRows, m_value);
+        }
+    }
+
+    private static class Variable extends Node {
+        private final String m_name;
+
+        private Variable(String name) {
+            m_name = name;
+        }
+
+        @Override
+        Type type(Frame frame) throws UnsupportedExpressionException {
+            return frame.getType(m_name);
+        }
+
+        @Override
+        double[] eval(Frame frame) {
+            return frame.m_values.get(m_name);
+        }
+    }
+
+    private static class Negate extends Node {
+        private final Node m_operand;
+
+        private Negate(Node operand) {
+            m_operand = operand;
+        }
+
+        @Override
+        Type type(Frame frame) throws UnsupportedExpressionException {
+            // Negating keeps the type of the value
+            final Type type = m_operand.type(frame);
+            if (!type.isNumeric()) {
+                throw new UnsupportedExpressionException("can only negate numbers");
+            }
+            return type;
+        }
+
+        @Override
+        double[] eval(Frame frame) throws UnsupportedExpressionException {
+            final double[] values = m_operand.eval(frame);
+            final double[] result = new double[values.length];
+            for (int i = 0; i < values.length; i++) {
+                result[i] = -values[i];
+            }
+            return result;
+        }
+    }
+
+    private static class Not extends Node {
+        private final Node m_operand;
+
+        private Not(Node operand) {
+            m_operand = operand;
+        }
+
+        @Override
+        Type type(Frame frame) throws UnsupportedExpressionException {
+            if (m_operand.type(frame) != Type.BOOLEAN) {
+                throw new UnsupportedExpressionException("can only negate booleans");
+            }
+            return Type.BOOLEAN;
+        }
+
+        @Override
+        double[] eval(Frame frame) throws UnsupportedExpressionException {
+            final double[] values = m_operand.eval(frame);
+            final double[] result = new double[values.length];
+            for (int i = 0; i < values.length; i++) {
+                result[i] = values[i] != 0 ? 0 : 1;
+            }
+            return result;
+        }
+    }
+
+    private static enum Operator {
+        ADD, SUBTRACT, MULTIPLY, DIVIDE, MODULO,
+        LT, LE, GT, GE, EQ, NE,
+        AND, OR;
+    }
+
+    private static class Binary extends Node {
+        private final Operator m_operator;
+        private final Node m_left;
+        private final Node m_right;
+
+        private Binary(Operator operator, Node left, Node right) {
+            m_operator = operator;
+            m_left = left;
+            m_right = right;
+        }
+
+        @Override
+        Type type(Frame frame) throws UnsupportedExpressionException {
+            final Type left = m_left.type(frame);
+            final Type right = m_right.type(frame);
+            switch (m_operator) {
+            case AND:
+            case OR:
+                if (left != Type.BOOLEAN || right != Type.BOOLEAN) {
+                    throw new UnsupportedExpressionException("logical operators require booleans");
+                }
+                return Type.BOOLEAN;
+            case EQ:
+            case NE:
+            case LE:
+            case GE:
+                // JEXL compares two Doubles with Double.equals(), and mixed types with ==
+                if ((left == Type.DOUBLE || left == Type.INTEGRAL) && (right == Type.DOUBLE || right == Type.INTEGRAL)
+                        && (left == Type.DOUBLE || right == Type.DOUBLE)) {
+                    return Type.BOOLEAN;
+                }
+                throw new UnsupportedExpressionException("unsupported operands for " + m_operator);
+            default:
+                // JEXL only uses double arithmetic when one of the operands is a floating point number
+                if (!left.isNumeric() || !right.isNumeric() || (left != Type.DOUBLE && right != Type.DOUBLE)) {
+                    throw new UnsupportedExpressionException("unsupported operands for " + m_operator);
+                }
+                return m_operator == Operator.LT || m_operator == Operator.GT ? Type.BOOLEAN : Type.DOUBLE;
+            }
+        }
+
+        @Override
+        double[] eval(Frame frame) throws UnsupportedExpressionException {
+            final double[] l = m_left.eval(frame);
+            final double[] r = m_right.eval(frame);
+            final double[] result = new double[l.length];
+            // Nodes are shared between threads, so the types are not kept between calls
+            final boolean sameClass = m_left.type(frame) == Type.DOUBLE && m_right.type(frame) == Type.DOUBLE;
+            switch (m_operator) {
+            case ADD:
+                for (int i = 0; i < l.length; i++) {
+                    result[i] = l[i] + r[i];
+                }
+                break;
+            case SUBTRACT:
+                for (int i = 0; i < l.length; i++) {
+                    result[i] = l[i] - r[i];
+                }
+                break;
+            case MULTIPLY:
+                for (int i = 0; i < l.length; i++) {
+                    result[i] = l[i] * r[i];
+                }
+                break;
+            case DIVIDE:
+                for (int i = 0; i < l.length; i++) {
+                    if (r[i] == 0.0) {
+                        throw new UnsupportedExpressionException("division by zero");
+                    }
+                    result[i] = l[i] / r[i];
+                }
+                break;
+            case MODULO:
+                for (int i = 0; i < l.length; i++) {
+                    if (r[i] == 0.0) {
+                        throw new UnsupportedExpressionException("modulo by zero");
+                    }
+                    result[i] = l[i] % r[i];
+                }
+                break;
+            case LT:
+                for (int i = 0; i < l.length; i++) {
+                    result[i] = l[i] < r[i] ? 1 : 0;
+                }
+                break;
+            case GT:
+                for (int i = 0; i < l.length; i++) {
+                    result[i] = l[i] > r[i] ? 1 : 0;
+                }
+                break;
+            case LE:
+                for (int i = 0; i < l.length; i++) {
+                    result[i] = equals(sameClass, l[i], r[i]) || l[i] < r[i] ? 1 : 0;
+                }
+                break;
+            case GE:
+                for (int i = 0; i < l.length; i++) {
+                    result[i] = equals(sameClass, l[i], r[i]) || l[i] > r[i] ? 1 : 0;
+                }
+                break;
+            case EQ:
+                for (int i = 0; i < l.length; i++) {
+                    result[i] = equals(sameClass, l[i], r[i]) ? 1 : 0;
+                }
+                break;
+            case NE:
+                for (int i = 0; i < l.length; i++) {
+                    result[i] = equals(sameClass, l[i], r[i]) ? 0 : 1;
+                }
+                break;
+            case AND:
+                for (int i = 0; i < l.length; i++) {
+                    result[i] = l[i] != 0 && r[i] != 0 ? 1 : 0;
+                }
+                break;
+            case OR:
+                for (int i = 0; i < l.length; i++) {
+                    result[i] = l[i] != 0 || r[i] != 0 ? 1 : 0;
+                }
+                break;
+            }
+            return result;
+        }
+
+        private static boolean equals(boolean sameClass, double l, double r) {
+            return sameClass ? Double.doubleToLongBits(l) == Double.doubleToLongBits(r) : l == r;
+        }
+    }
+
+    private static class Conditional extends Node {
+        private final Node m_condition;
+        private final Node m_then;
+        private final Node m_else;
+
+        private Conditional(Node condition, Node then, Node otherwise) {
+            m_condition = condition;
+            m_then = then;
+            m_else = otherwise;
+        }
+
+        @Override
+        Type type(Frame frame) throws UnsupportedExpressionException {
+            if (m_condition.type(frame) != Type.BOOLEAN) {
+                throw new UnsupportedExpressionException("the condition must be a boolean");
+            }
+            final Type then = m_then.type(frame);
+            final Type otherwise = m_else.type(frame);
+            if (then == otherwise) {
+                return then;
+            } else if (then.isNumeric() && otherwise.isNumeric()) {
+                return Type.MIXED;
+            }
+            throw new UnsupportedExpressionException("incompatible branches");
+        }
+
+        @Override
+        double[] eval(Frame frame) throws UnsupportedExpressionException {
+            final double[] condition = m_condition.eval(frame);
+            final double[] then = m_then.eval(frame);
+            final double[] otherwise = m_else.eval(frame);
+            final double[] result = new double[condition.length];
+            for (int i = 0; i < condition.length; i++) {
+                result[i] = condition[i] != 0 ? then[i] : otherwise[i];
+            }
+            return result;
+        }
+    }
+
+    private static class Function extends Node {
+        /** Functions that only have a double signature, so any numeric argument is widened. */
+        private static final Map<String, DoubleUnaryOperator> MATH_UNARY = ImmutableMap.<String, DoubleUnaryOperator>builder()
+                .put("sin", Math::sin).put("cos", Math::cos).put("tan", Math::tan)
+                .put("asin", Math::asin).put("acos", Math::acos).put("atan", Math::atan)
+                .put("sinh", Math::sinh).put("cosh", Math::cosh).put("tanh", Math::tanh)
+                .put("exp", Math::exp).put("expm1", Math::expm1).put("log", Math::log)
+                .put("log10", Math::log10).put("log1p", Math::log1p).put("sqrt", Math::sqrt)
+                .put("cbrt", Math::cbrt).put("ceil", Math::ceil).put("floor", Math::floor)
+                .put("rint", Math::rint).put("toDegrees", Math::toDegrees).put("toRadians", Math::toRadians)
+                .build();
+        private static final Map<String, DoubleBinaryOperator> MATH_BINARY = ImmutableMap.<String, DoubleBinaryOperator>builder()
+                .put("atan2", Math::atan2).put("pow", Math::pow).put("hypot", Math::hypot)
+                .put("IEEEremainder", Math::IEEEremainder)
+                .build();
+        /** Overloaded functions, the double signature is only used when the arguments are doubles. */
+        private static final Map<String, DoubleUnaryOperator> MATH_UNARY_OVERLOADED = ImmutableMap.<String, DoubleUnaryOperator>builder()
+                .put("abs", Math::abs).put("signum", Math::signum)
+                .build();
+        private static final Map<String, DoubleBinaryOperator> MATH_BINARY_OVERLOADED = ImmutableMap.<String, DoubleBinaryOperator>builder()
+                .put("min", Math::min).put("max", Math::max)
+                .build();
+
+        private static final Map<String, DoubleUnaryOperator> STRICTMATH_UNARY = ImmutableMap.<String, DoubleUnaryOperator>builder()
+                .put("sin", StrictMath::sin).put("cos", StrictMath::cos).put("tan", StrictMath::tan)
+                .put("asin", StrictMath::asin).put("acos", StrictMath::acos).put("atan", StrictMath::atan)
+                .put("sinh", StrictMath::sinh).put("cosh", StrictMath::cosh).put("tanh", StrictMath::tanh)
+                .put("exp", StrictMath::exp).put("expm1", StrictMath::expm1).put("log", StrictMath::log)
+                .put("log10", StrictMath::log10).put("log1p", StrictMath::log1p).put("sqrt", StrictMath::sqrt)
+                .put("cbrt", StrictMath::cbrt).put("ceil", StrictMath::ceil).put("floor", StrictMath::floor)
+                .put("rint", StrictMath::rint).put("toDegrees", StrictMath::toDegrees).put("toRadians", StrictMath::toRadians)
+                .build();
+        private static final Map<String, DoubleBinaryOperator> STRICTMATH_BINARY = ImmutableMap.<String, DoubleBinaryOperator>builder()
+                .put("atan2", StrictMath::atan2).put("pow", StrictMath::pow).put("hypot", StrictMath::hypot)
+                .put("IEEEremainder", StrictMath::IEEEremainder)
+                .build();
+        private static final Map<String, DoubleUnaryOperator> STRICTMATH_UNARY_OVERLOADED = ImmutableMap.<String, DoubleUnaryOperator>builder()
+                .put("abs", StrictMath::abs).put("signum", StrictMath::signum)
+                .build();
+        private static final Map<String, DoubleBinaryOperator> STRICTMATH_BINARY_OVERLOADED = ImmutableMap.<String, DoubleBinaryOperator>builder()
+                .put("min", StrictMath::min).put("max", StrictMath::max)
+                .build();
+
+        private final DoubleUnaryOperator m_unary;
+        private final DoubleBinaryOperator m_binary;
+        private final boolean m_overloaded;
+        private final List<Node> m_arguments;
+
+        private Function(String namespace, String name, List<Node> arguments) throws UnsupportedExpressionException {
+            final boolean strict;
+            if ("math".equals(namespace)) {
+                strict = false;
+            } else if ("strictmath".equals(namespace)) {
+                strict = true;
+            } else {
+                throw new UnsupportedExpressionException("unknown namespace: " + namespace);
+            }
+            m_arguments = arguments;
+            if (arguments.size() == 1) {
+                final DoubleUnaryOperator unary = (strict ? STRICTMATH_UNARY : MATH_UNARY).get(name);
+                final DoubleUnaryOperator overloaded = (strict ? STRICTMATH_UNARY_OVERLOADED : MATH_UNARY_OVERLOADED).get(name);
+                m_unary = unary != null ? unary : overloaded;
+                m_binary = null;
+                m_overloaded = overloaded != null;
+            } else if (arguments.size() == 2) {
+                final DoubleBinaryOperator binary = (strict ? STRICTMATH_BINARY : MATH_BINARY).get(name);
+                final DoubleBinaryOperator overloaded = (strict ? STRICTMATH_BINARY_OVERLOADED : MATH_BINARY_OVERLOADED).get(name);
+                m_unary = null;
+                m_binary = binary != null ? binary : overloaded;
+                m_overloaded = overloaded != null;
+            } else {
+                m_unary = null;
+                m_binary = null;
+                m_overloaded = false;
+            }
+            if (m_unary == null && m_binary == null) {
+                throw new UnsupportedExpressionException("unsupported function: " + namespace + ":" + name);
+            }
+        }
+
+        @Override
+        Type type(Frame frame) throws UnsupportedExpressionException {
+            for (Node argument : m_arguments) {
+                final Type type = argument.type(frame);
+                if (!type.isNumeric() || (m_overloaded && type != Type.DOUBLE)) {
+                    throw new UnsupportedExpressionException("unsupported function arguments");
+                }
+            }
+            return Type.DOUBLE;
+        }
+
+        @Override
+        double[] eval(Frame frame) throws UnsupportedExpressionException {
+            final double[] a = m_arguments.get(0).eval(frame);
+            final double[] result = new double[a.length];
+            if (m_unary != null) {
+                for (int i = 0; i < a.length; i++) {
+                    result[i] = m_unary.applyAsDouble(a[i]);
+                }
+            } else {
+                final double[] b = m_arguments.get(1).eval(frame);
+                for (int i = 0; i < a.length; i++) {
+                    result[i] = m_binary.applyAsDouble(a[i], b[i]);
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Recursive descent parser for the supported subset of JEXL, using the
+     * same operator precedence.
+     */
+    private static class Parser {
+        private final String m_input;
+        private int m_pos = 0;
+
+        private Parser(String input) {
+            m_input = input;
+        }
+
+        private Node parse() throws UnsupportedExpressionException {
+            final Node node = parseTernary();
+            skipWhitespace();
+            if (m_pos != m_input.length()) {
+                throw new UnsupportedExpressionException("unexpected input at position " + m_pos);
+            }
+            return node;
+        }
+
+        private Node parseTernary() throws UnsupportedExpressionException {
+            final Node condition = parseOr();
+            if (accept("?")) {
+                if (peek(':')) {
+                    throw new UnsupportedExpressionException("the elvis operator is not supported");
+                }
+                final Node then = parseTernary();
+                expect(":");
+                final Node otherwise = parseTernary();
+                return new Conditional(condition, then, otherwise);
+            }
+            return condition;
+        }
+
+        private Node parseOr() throws UnsupportedExpressionException {
+            Node node = parseAnd();
+            while (accept("||") || acceptWord("or")) {
+                node = new Binary(Operator.OR, node, parseAnd());
+            }
+            return node;
+        }
+
+        private Node parseAnd() throws UnsupportedExpressionException {
+            Node node = parseEquality();
+            while (accept("&&") || acceptWord("and")) {
+                node = new Binary(Operator.AND, node, parseEquality());
+            }
+            return node;
+        }
+
+        private Node parseEquality() throws UnsupportedExpressionException {
+            Node node = parseRelational();
+            while (true) {
+                if (accept("==") || acceptWord("eq")) {
+                    node = new Binary(Operator.EQ, node, parseRelational());
+                } else if (accept("!=") || acceptWord("ne")) {
+                    node = new Binary(Operator.NE, node, parseRelational());
+                } else {
+                    return node;
+                }
+            }
+        }
+
+        private Node parseRelational() throws UnsupportedExpressionException {
+            Node node = parseAdditive();
+            while (true) {
+                if (accept("<=") || acceptWord("le")) {
+                    node = new Binary(Operator.LE, node, parseAdditive());
+                } else if (accept(">=") || acceptWord("ge")) {
+                    node = new Binary(Operator.GE, node, parseAdditive());
+                } else if (accept("<") || acceptWord("lt")) {
+                    node = new Binary(Operator.LT, node, parseAdditive());
+                } else if (accept(">") || acceptWord("gt")) {
+                    node = new Binary(Operator.GT, node, parseAdditive());
+                } else {
+                    return node;
+                }
+            }
+        }
+
+        private Node parseAdditive() throws UnsupportedExpressionException {
+            Node node = parseMultiplicative();
+            while (true) {
+                if (accept("+")) {
+                    node = new Binary(Operator.ADD, node, parseMultiplicative());
+                } else if (accept("-")) {
+                    node = new Binary(Operator.SUBTRACT, node, parseMultiplicative());
+                } else {
+                    return node;
+                }
+            }
+        }
+
+        private Node parseMultiplicative() throws UnsupportedExpressionException {
+            Node node = parseUnary();
+            while (true) {
+                if (accept("*")) {
+                    node = new Binary(Operator.MULTIPLY, node, parseUnary());
+                } else if (accept("/") || acceptWord("div")) {
+                    node = new Binary(Operator.DIVIDE, node, parseUnary());
+                } else if (accept("%") || acceptWord("mod")) {
+                    node = new Binary(Operator.MODULO, node, parseUnary());
+                } else {
+                    return node;
+                }
+            }
+        }
+
+        private Node parseUnary() throws UnsupportedExpressionException {
+            if (accept("-")) {
+                return new Negate(parseUnary());
+            } else if (accept("!") || acceptWord("not")) {
+                return new Not(parseUnary());
+            }
+            return parsePrimary();
+        }
+
+        private Node parsePrimary() throws UnsupportedExpressionException {
+            skipWhitespace();
+            if (m_pos >= m_input.length()) {
+                throw new UnsupportedExpressionException("unexpected end of expression");
+            }
+            final char c = m_input.charAt(m_pos);
+            if (c == '(') {
+                m_pos++;
+                final Node node = parseTernary();
+                expect(")");
+                return node;
+            } else if (Character.isDigit(c)) {
+                return parseNumber();
+            } else if (isIdentifierStart(c)) {
+                final String identifier = parseIdentifier();
+                if ("true".equals(identifier) || "false".equals(identifier)) {
+                    return new Literal(Type.BOOLEAN, "true".equals(identifier) ? 1 : 0);
+                } else if (isReservedWord(identifier)) {
+                    throw new UnsupportedExpressionException("unsupported keyword: " + identifier);
+                }
+                skipWhitespace();
+                if (isFunctionCall()) {
+                    m_pos++;
+                    skipWhitespace();
+                    final String name = parseIdentifier();
+                    expect("(");
+                    final List<Node> arguments = Lists.newArrayList();
+                    if (!accept(")")) {
+                        do {
+                            arguments.add(parseTernary());
+                        } while (accept(","));
+                        expect(")");
+                    }
+                    return new Function(identifier, name, arguments);
+                } else if (peek('.') || peek('[') || peek('(')) {
+                    throw new UnsupportedExpressionException("property and method access are not supported");
+                }
+                return new Variable(identifier);
+            }
+            throw new UnsupportedExpressionException("unexpected character '" + c + "'");
+        }
+
+        /**
+         * Distinguishes "ns:function(" from the ':' of a ternary operator.
+         */
+        private boolean isFunctionCall() {
+            if (!peek(':')) {
+                return false;
+            }
+            int pos = m_pos + 1;
+            while (pos < m_input.length() && Character.isWhitespace(m_input.charAt(pos))) {
+                pos++;
+            }
+            if (pos >= m_input.length() || !isIdentifierStart(m_input.charAt(pos))) {
+                return false;
+            }
+            while (pos < m_input.length() && isIdentifierPart(m_input.charAt(pos))) {
+                pos++;
+            }
+            while (pos < m_input.length() && Character.isWhitespace(m_input.charAt(pos))) {
+                pos++;
+            }
+            return pos < m_input.length() && m_input.charAt(pos) == '(';
+        }
+
+        private Node parseNumber() throws UnsupportedExpressionException {
+            final int start = m_pos;
+            while (m_pos < m_input.length() && Character.isDigit(m_input.charAt(m_pos))) {
+                m_pos++;
+            }
+            boolean real = false;
+            if (peek('.') && m_pos + 1 < m_input.length() && Character.isDigit(m_input.charAt(m_pos + 1))) {
+                real = true;
+                m_pos++;
+                while (m_pos < m_input.length() && Character.isDigit(m_input.charAt(m_pos))) {
+                    m_pos++;
+                }
+            }
+            final String digits = m_input.substring(start, m_pos);
+            final char suffix = m_pos < m_input.length() ? m_input.charAt(m_pos) : 0;
+            if (isIdentifierPart(suffix) && suffix != 'd' && suffix != 'D' && suffix != 'l' && suffix != 'L') {
+                throw new UnsupportedExpressionException("unsupported number literal");
+            }
+            if (suffix == 'd' || suffix == 'D') {
+                m_pos++;
+                return new Literal(Type.DOUBLE, Double.parseDouble(digits));
+            } else if (suffix == 'l' || suffix == 'L') {
+                if (real) {
+                    throw new UnsupportedExpressionException("unsupported number literal");
+                }
+                m_pos++;
+                return new Literal(Type.INTEGRAL, parseLong(digits));
+            } else if (real) {
+                // Depending on the version, JEXL may parse these as floats, so
+                // only accept the values for which it makes no difference
+                final double value = Double.parseDouble(digits);
+                if ((double)Float.parseFloat(digits) != value) {
+                    throw new UnsupportedExpressionException("the literal " + digits + " is not exactly representable as a float");
+                }
+                return new Literal(Type.DOUBLE, value);
+            }
+            final long value = parseLong(digits);
+            if (value > Integer.MAX_VALUE) {
+                throw new UnsupportedExpressionException("unsupported integer literal");
+            }
+            return new Literal(Type.INTEGRAL, value);
+        }
+
+        private static long parseLong(String digits) throws UnsupportedExpressionException {
+            try {
+                return Long.parseLong(digits);
+            } catch (NumberFormatException e) {
+                throw new UnsupportedExpressionException("unsupported integer literal");
+            }
+        }
+
+        private String parseIdentifier() throws UnsupportedExpressionException {
+            if (m_pos >= m_input.length() || !isIdentifierStart(m_input.charAt(m_pos))) {
+                throw new UnsupportedExpressionException("identifier expected at position " + m_pos);
+            }
+            final int start = m_pos;
+            while (m_pos < m_input.length() && isIdentifierPart(m_input.charAt(m_pos))) {
+                m_pos++;
+            }
+            return m_input.substring(start, m_pos);
+        }
+
+        private static boolean isIdentifierStart(char c) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == '$';
+        }
+
+        private static boolean isIdentifierPart(char c) {
+            return isIdentifierStart(c) || (c >= '0' && c <= '9');
+        }
+
+        private static boolean isReservedWord(String identifier) {
+            switch (identifier) {
+            case "or": case "and": case "eq": case "ne": case "lt": case "gt": case "le": case "ge":
+            case "div": case "mod": case "not": case "null": case "empty": case "size": case "new":
+            case "if": case "else": case "for": case "foreach": case "while": case "var": case "return":
+                return true;
+            default:
+                return false;
+            }
+        }
+
+        private void skipWhitespace() {
+            while (m_pos < m_input.length() && Character.isWhitespace(m_input.charAt(m_pos))) {
+                m_pos++;
+            }
+        }
+
+        private boolean peek(char c) {
+            return m_pos < m_input.length() && m_input.charAt(m_pos) == c;
+        }
+
+        private boolean accept(String token) {
+            skipWhitespace();
+            if (!m_input.startsWith(token, m_pos)) {
+                return false;
+            }
+            // Don't split multi-character operators that we don't support, such as '=~' or '&'
+            final int end = m_pos + token.length();
+            if (end < m_input.length()) {
+                final char next = m_input.charAt(end);
+                if ((token.equals("<") || token.equals(">") || token.equals("!")) && next == '=') {
+                    return false;
+                }
+                if (token.equals("!") && next == '~') {
+                    return false;
+                }
+            }
+            m_pos = end;
+            return true;
+        }
+
+        private boolean acceptWord(String word) {
+            skipWhitespace();
+            final int end = m_pos + word.length();
+            if (!m_input.startsWith(word, m_pos) || (end < m_input.length() && isIdentifierPart(m_input.charAt(end)))) {
+                return false;
+            }
+            m_pos = end;
+            return true;
+        }
+
+        private void expect(String token) throws UnsupportedExpressionException {
+            if (!accept(token)) {
+                throw new UnsupportedExpressionException("'" + token + "' expected at position " + m_pos);
+            }
+        }
+    }
+}
@@ -35,6 +35,14 @@ public class JEXLExpressionEngine implements ExpressionEngine {
      */
     private final JexlEngine jexl = new JexlEngine();
 
+    /**
+     * Set to false to always evaluate the expressions row by row with JEXL.
+     */
+    private static final boolean COLUMNAR_EVALUATION = Boolean.parseBoolean(
+            System.getProperty("org.opennms.netmgt.measurements.columnarEvaluation", "true"));
+
+    private final ColumnarExpressionEvaluator columnarEvaluator = new ColumnarExpressionEvaluator();
+
     public JEXLExpressionEngine() {
         // Add additional functions to the engine
         Map<String, Object> functions = Maps.newHashMap();
@@ -58,6 +66,11 @@ public class JEXLExpressionEngine implements ExpressionEngine {
             return;
         }
 
+        // Evaluate the expressions over whole columns when we can do so without changing the results
+        if (COLUMNAR_EVALUATION && columnarEvaluator.apply(request, results)) {
+            return;
+        }
+
         // Use to keep track of transient expression so that we don't
         // allocate memory to store their results
         int numNonTransientExpression = 0;
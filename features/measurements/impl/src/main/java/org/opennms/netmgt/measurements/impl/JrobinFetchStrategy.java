@@ -95,4 +95,13 @@ public class JrobinFetchStrategy extends AbstractRrdBasedFetchStrategy {
 
         return new FetchResults(timestamps, columns, dproc.getStep() * 1000, constants);
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean isParallelFetchSupported() {
+        // Every fetch uses its own data processor
+        return true;
+    }
 }
@@ -4,12 +4,14 @@ import org.opennms.core.utils.TimeSeries;
 import org.opennms.netmgt.measurements.api.MeasurementFetchStrategy;
 import org.opennms.netmgt.measurements.api.MeasurementFetchStrategyProvider;
 import org.opennms.netmgt.rrd.jrobin.JRobinRrdStrategy;
+import org.opennms.netmgt.rrd.jrobin.MappedJRobinRrdStrategy;
 
 public class JrobinFetchStrategyProvider implements MeasurementFetchStrategyProvider {
     @Override
     public Class<? extends MeasurementFetchStrategy> getStrategyClass(String timeSeriesStrategyName, String rrdStrategyClass) {
         if(!TimeSeries.RRD_TIME_SERIES_STRATEGY_NAME.equalsIgnoreCase(timeSeriesStrategyName) ||
-                !JRobinRrdStrategy.class.getCanonicalName().equals(rrdStrategyClass)) {
+                !(JRobinRrdStrategy.class.getCanonicalName().equals(rrdStrategyClass) ||
+                  MappedJRobinRrdStrategy.class.getCanonicalName().equals(rrdStrategyClass))) {
             return null;
         }
         return JrobinFetchStrategy.class;
@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.measurements.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jrobin.core.RrdException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.opennms.netmgt.dao.api.ResourceDao;
+import org.opennms.netmgt.measurements.api.FetchResults;
+import org.opennms.netmgt.measurements.model.Source;
+import org.opennms.netmgt.model.OnmsResource;
+import org.opennms.netmgt.model.RrdGraphAttribute;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+@RunWith(MockitoJUnitRunner.class)
+public class AbstractRrdBasedFetchStrategyTest {
+
+    @Mock
+    private ResourceDao resourceDao;
+
+    @InjectMocks
+    private MockFetchStrategy fetchStrategy;
+
+    private final List<Source> sources = Lists.newArrayList(
+            new Source("inOctets", "node[1].interfaceSnmp[eth0]", "ifHCInOctets", "ifHCInOctets", false),
+            new Source("outOctets", "node[1].interfaceSnmp[eth0]", "ifHCOutOctets", "ifHCOutOctets", false),
+            new Source("loadavg", "node[1].nodeSnmp[]", "loadavg1", "loadavg1", false));
+
+    @Before
+    public void setUp() {
+        System.setProperty("rrd.base.dir", "rrd");
+
+        final OnmsResource eth0 = mock(OnmsResource.class);
+        when(eth0.getRrdGraphAttributes()).thenReturn(ImmutableMap.of(
+                "ifHCInOctets", new RrdGraphAttribute("ifHCInOctets", "1/eth0", "mib2-X-interfaces.jrb"),
+                "ifHCOutOctets", new RrdGraphAttribute("ifHCOutOctets", "1/eth0", "mib2-X-interfaces.jrb")));
+        when(resourceDao.getResourceById("node[1].interfaceSnmp[eth0]")).thenReturn(eth0);
+
+        final OnmsResource node = mock(OnmsResource.class);
+        when(node.getRrdGraphAttributes()).thenReturn(ImmutableMap.of(
+                "loadavg1", new RrdGraphAttribute("loadavg1", "1", "loadavg1.jrb")));
+        when(resourceDao.getResourceById("node[1].nodeSnmp[]")).thenReturn(node);
+    }
+
+    @Test
+    public void readsEveryFileOnceForAllOfItsSources() throws Exception {
+        final FetchResults results = fetchStrategy.fetch(0, 2000, 1000, 0, null, null, sources, false);
+
+        assertEquals(Sets.newHashSet(
+                Sets.newHashSet("inOctets", "outOctets"),
+                Sets.newHashSet("loadavg")), Sets.newHashSet(fetchStrategy.calls));
+        assertEquals(Sets.newHashSet("inOctets", "outOctets", "loadavg"), results.getColumns().keySet());
+        assertEquals(1000, results.getStep());
+        assertTrue(results.getTimings().containsKey("resolve"));
+        assertTrue(results.getTimings().containsKey("fetch"));
+        assertTrue(results.getTimings().containsKey("fetch:rrd/1/loadavg1.jrb"));
+    }
+
+    @Test
+    public void readsTheFilesTogetherWhenTheirTimestampsDiffer() throws Exception {
+        fetchStrategy.stepsByFile.put("rrd/1/loadavg1.jrb", 2000L);
+
+        final FetchResults results = fetchStrategy.fetch(0, 2000, 1000, 0, null, null, sources, false);
+
+        assertEquals(Sets.newHashSet("inOctets", "outOctets", "loadavg"), fetchStrategy.calls.get(fetchStrategy.calls.size() - 1));
+        assertEquals(Sets.newHashSet("inOctets", "outOctets", "loadavg"), results.getColumns().keySet());
+    }
+
+    @Test(expected=RrdException.class)
+    public void propagatesFailures() throws Exception {
+        fetchStrategy.failingFile = "rrd/1/loadavg1.jrb";
+        fetchStrategy.fetch(0, 2000, 1000, 0, null, null, sources, false);
+    }
+
+    private static class MockFetchStrategy extends AbstractRrdBasedFetchStrategy {
+        private final List<Set<String>> calls = Collections.synchronizedList(Lists.newArrayList());
+        private final Map<String, Long> stepsByFile = Maps.newConcurrentMap();
+        private volatile String failingFile;
+
+        @Override
+        protected FetchResults fetchMeasurements(long start, long end, long step, int maxrows,
+                Map<Source, String> rrdsBySource, Map<String, Object> constants) throws RrdException {
+            final Set<String> labels = Sets.newHashSet();
+            long fileStep = step;
+            for (final Map.Entry<Source, String> entry : rrdsBySource.entrySet()) {
+                if (entry.getValue().equals(failingFile)) {
+                    throw new RrdException("Failed to read " + failingFile);
+                }
+                labels.add(entry.getKey().getLabel());
+                fileStep = Math.max(fileStep, stepsByFile.getOrDefault(entry.getValue(), step));
+            }
+            calls.add(labels);
+
+            final int numRows = (int) ((end - start) / fileStep);
+            final long[] timestamps = new long[numRows];
+            for (int i = 0; i < numRows; i++) {
+                timestamps[i] = start + i * fileStep;
+            }
+            final Map<String, double[]> columns = Maps.newHashMap();
+            for (final String label : labels) {
+                columns.put(label, new double[numRows]);
+            }
+            return new FetchResults(timestamps, columns, fileStep, constants);
+        }
+
+        @Override
+        protected boolean isParallelFetchSupported() {
+            return true;
+        }
+    }
+}
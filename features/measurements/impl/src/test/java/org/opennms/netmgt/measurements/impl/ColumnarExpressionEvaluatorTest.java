@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.measurements.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.Test;
+import org.opennms.netmgt.measurements.api.FetchResults;
+import org.opennms.netmgt.measurements.model.Expression;
+import org.opennms.netmgt.measurements.model.QueryRequest;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+public class ColumnarExpressionEvaluatorTest {
+
+    private static final double DELTA = 0.0001;
+
+    private final ColumnarExpressionEvaluator evaluator = new ColumnarExpressionEvaluator();
+
+    @Test
+    public void canEvaluateArithmetic() {
+        assertArrayEquals(new double[] { 7, 12, 17 }, evaluate("x * 5 + 7"), DELTA);
+        assertArrayEquals(new double[] { -7, -12, -17 }, evaluate("-(x * 5 + 7)"), DELTA);
+        assertArrayEquals(new double[] { 0, 8, 16 }, evaluate("x * 8"), DELTA);
+        assertArrayEquals(new double[] { 0, 1, 0 }, evaluate("x % 2d"), DELTA);
+        assertArrayEquals(new double[] { 0, 0.5, 1 }, evaluate("x / 2.0"), DELTA);
+        assertArrayEquals(new double[] { 2000, 2000, 2000 }, evaluate("1 * __diff_time"), DELTA);
+        assertArrayEquals(new double[] { 0, 8, 16 }, evaluate("timestamp / 125.0d"), DELTA);
+    }
+
+    @Test
+    public void canEvaluateFunctions() {
+        assertArrayEquals(new double[] { Math.sin(0), Math.sin(1), Math.sin(2) }, evaluate("math:sin(x)"), DELTA);
+        assertArrayEquals(new double[] { 1, 1, 2 }, evaluate("math:max(x, 1d)"), DELTA);
+        assertArrayEquals(new double[] { 0, 1, 4 }, evaluate("strictmath:pow(x, 2)"), DELTA);
+    }
+
+    @Test
+    public void canEvaluateConditionals() {
+        final String limit = "( ( (x == __inf) || (x == __neg_inf) || (x < 0.5) || (x > 1.5) ) ? NaN : x )";
+        assertArrayEquals(new double[] { Double.NaN, 1, Double.NaN }, evaluate(limit), DELTA);
+        assertArrayEquals(new double[] { 1, 1, 2 }, evaluate("x == 0 ? 1 : x"), DELTA);
+        assertArrayEquals(new double[] { 1, 0, 0 }, evaluate("x lt 1d and not (x ge 1d) ? 1 : 0"), DELTA);
+    }
+
+    @Test
+    public void comparesNaNLikeJexl() {
+        // JEXL uses Double.equals() when both operands are doubles, so NaN == NaN
+        final Map<String, Object> constants = Maps.newHashMap();
+        constants.put("A", Double.NaN);
+        assertArrayEquals(new double[] { 1, 1, 1 }, evaluate("A == NaN ? 1 : 0", constants), DELTA);
+        assertArrayEquals(new double[] { 1, 1, 1 }, evaluate("A >= NaN ? 1 : 0", constants), DELTA);
+        assertArrayEquals(new double[] { 0, 0, 0 }, evaluate("A > NaN ? 1 : 0", constants), DELTA);
+    }
+
+    @Test
+    public void canReferencePreviousExpressions() {
+        final QueryRequest request = new QueryRequest();
+        final Expression first = new Expression("y", "x * 2", true);
+        final Expression second = new Expression("z", "y + x", false);
+        request.setExpressions(Lists.newArrayList(first, second));
+
+        final FetchResults results = newResults(Maps.newHashMap());
+        assertTrue(evaluator.apply(request, results));
+        assertFalse(results.getColumns().containsKey("y"));
+        assertArrayEquals(new double[] { 0, 3, 6 }, results.getColumns().get("z"), DELTA);
+    }
+
+    @Test
+    public void rejectsWhatJexlCouldEvaluateDifferently() {
+        // Integer arithmetic
+        assertRejected("1 / 2");
+        assertRejected("timestamp / 1000");
+        // Division by zero
+        assertRejected("x / 0d");
+        // Float literals that are not exactly representable
+        assertRejected("x / 0.62137");
+        // Unsupported syntax
+        assertRejected("x ?: 1");
+        assertRejected("x.foo");
+        assertRejected("x =~ 1");
+        assertRejected("math:round(x)");
+        assertRejected("math:abs(timestamp)");
+        // Booleans aren't numbers
+        assertRejected("!(!true)");
+        // Unknown variables and string constants
+        assertRejected("y * 2d");
+        final Map<String, Object> constants = Maps.newHashMap();
+        constants.put("s", "text");
+        assertRejected("s + x", constants);
+        // Invalid syntax is left for JEXL to report
+        assertRejected("/");
+    }
+
+    @Test
+    public void leavesTheResultsUntouchedWhenRejected() {
+        final QueryRequest request = new QueryRequest();
+        request.setExpressions(Lists.newArrayList(new Expression("a", "x * 2d", false), new Expression("b", "x / 0d", false)));
+        final FetchResults results = newResults(Maps.newHashMap());
+        assertFalse(evaluator.apply(request, results));
+        assertEquals(1, results.getColumns().size());
+    }
+
+    private void assertRejected(String expression) {
+        assertRejected(expression, Maps.newHashMap());
+    }
+
+    private void assertRejected(String expression, Map<String, Object> constants) {
+        final QueryRequest request = new QueryRequest();
+        request.setExpressions(Lists.newArrayList(new Expression("result", expression, false)));
+        assertFalse(expression, evaluator.apply(request, newResults(constants)));
+    }
+
+    private double[] evaluate(String expression) {
+        return evaluate(expression, Maps.newHashMap());
+    }
+
+    private double[] evaluate(String expression, Map<String, Object> constants) {
+        final QueryRequest request = new QueryRequest();
+        request.setExpressions(Lists.newArrayList(new Expression("result", expression, false)));
+        final FetchResults results = newResults(constants);
+        assertTrue(expression, evaluator.apply(request, results));
+        return results.getColumns().get("result");
+    }
+
+    private static FetchResults newResults(Map<String, Object> constants) {
+        final Map<String, double[]> columns = Maps.newHashMap();
+        columns.put("x", new double[] { 0, 1, 2 });
+        return new FetchResults(new long[] { 0, 1000, 2000 }, columns, 1000, constants);
+    }
+}
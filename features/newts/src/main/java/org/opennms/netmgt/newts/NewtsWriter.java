@@ -28,10 +28,12 @@
 
 package org.opennms.netmgt.newts;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
@@ -47,6 +49,7 @@ import org.opennms.newts.api.search.Indexer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import com.codahale.metrics.Gauge;
@@ -70,9 +73,15 @@ import com.swrve.ratelimitedlogger.RateLimitedLog;
  * Calls to {@link #insert()} publish the samples to a ring buffer so
  * that they don't block while the data is being persisted.
  *
+ * When a {@link SampleJournal} is enabled, the samples are appended to
+ * the journal instead and a replay thread feeds the ring buffer from it.
+ * Batches that fail to persist are retried until they succeed, and batches
+ * that were not persisted before a shutdown are replayed on the next start,
+ * so samples survive both Cassandra outages and restarts.
+ *
  * @author jwhite
  */
-public class NewtsWriter implements WorkHandler<SampleBatchEvent>, DisposableBean {
+public class NewtsWriter implements WorkHandler<SampleBatchEvent>, InitializingBean, DisposableBean {
 
     private static final Logger LOG = LoggerFactory.getLogger(NewtsWriter.class);
 
@@ -81,6 +90,10 @@ public class NewtsWriter implements WorkHandler<SampleBatchEvent>, DisposableBea
             .maxRate(5).every(Duration.standardSeconds(30))
             .build();
 
+    private static final long MIN_RETRY_DELAY_MS = 100;
+
+    private static final long MAX_RETRY_DELAY_MS = TimeUnit.SECONDS.toMillis(30);
+
     @Autowired
     private SampleRepository m_sampleRepository;
 
@@ -99,6 +112,12 @@ public class NewtsWriter implements WorkHandler<SampleBatchEvent>, DisposableBea
 
     private final Meter m_droppedSamples;
 
+    private SampleJournal m_journal;
+
+    private Thread m_replayThread;
+
+    private volatile boolean m_stopping = false;
+
     /**
      * The {@link RingBuffer} doesn't appear to expose any methods that indicate the number
      * of elements that are currently "queued", so we keep track of them with this atomic counter.
@@ -163,21 +182,98 @@ public class NewtsWriter implements WorkHandler<SampleBatchEvent>, DisposableBea
         m_workerPool.start(executor);
     }
 
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (!isJournaling()) {
+            return;
+        }
+        m_journal.open();
+        m_replayThread = new Thread(this::replayFromJournal, "NewtsWriter-Journal-Replay");
+        m_replayThread.setDaemon(true);
+        m_replayThread.start();
+    }
+
     @Override
     public void destroy() throws Exception {
+        m_stopping = true;
+        if (m_replayThread != null) {
+            m_replayThread.interrupt();
+            m_replayThread.join();
+        }
         if (m_workerPool != null) {
             m_workerPool.drainAndHalt();
         }
+        if (isJournaling()) {
+            m_journal.close();
+        }
     }
 
     public void insert(List<Sample> samples) {
+        if (isJournaling() && appendToJournal(samples, false)) {
+            return;
+        }
         pushToRingBuffer(samples, TRANSLATOR);
     }
 
     public void index(List<Sample> samples) {
+        if (isJournaling() && appendToJournal(samples, true)) {
+            return;
+        }
         pushToRingBuffer(samples, INDEX_ONLY_TRANSLATOR);
     }
 
+    private boolean isJournaling() {
+        return m_journal != null && m_journal.isEnabled();
+    }
+
+    /**
+     * @return false if the samples could not be journaled and should be
+     * pushed to the ring buffer directly
+     */
+    private boolean appendToJournal(List<Sample> samples, boolean indexOnly) {
+        try {
+            if (m_journal.append(samples, indexOnly)) {
+                return true;
+            }
+            RATE_LIMITED_LOGGER.error("The sample journal is full. Bypassing the journal for {} samples.", samples.size());
+        } catch (IOException e) {
+            RATE_LIMITED_LOGGER.error("Failed to append {} samples to the journal. Bypassing the journal.", samples.size(), e);
+        }
+        return false;
+    }
+
+    /**
+     * Feeds the ring buffer with the batches from the journal, waiting for
+     * space to become available instead of dropping them.
+     */
+    private void replayFromJournal() {
+        while (!m_stopping) {
+            try {
+                final SampleJournal.Entry entry = m_journal.take(1, TimeUnit.SECONDS);
+                if (entry == null) {
+                    continue;
+                }
+                while (!m_ringBuffer.tryPublishEvent(JOURNAL_TRANSLATOR, entry)) {
+                    // The batch stays in the journal and will be replayed on the next start
+                    if (m_stopping) {
+                        return;
+                    }
+                    Thread.sleep(10);
+                }
+                m_numEntriesOnRingBuffer.incrementAndGet();
+            } catch (InterruptedException e) {
+                return;
+            } catch (Throwable t) {
+                RATE_LIMITED_LOGGER.error("An error occurred while replaying samples from the journal.", t);
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
     private void pushToRingBuffer(List<Sample> samples, EventTranslatorOneArg<SampleBatchEvent, List<Sample>> translator) {
         // Add the samples to the ring buffer
         if (!m_ringBuffer.tryPublishEvent(translator, samples)) {
@@ -206,31 +302,59 @@ public class NewtsWriter implements WorkHandler<SampleBatchEvent>, DisposableBea
         Logging.putPrefix("collectd");
 
         List<Sample> samples = event.getSamples();
+        final long journalId = event.getJournalId();
         // Decrement our entry counter
         m_numEntriesOnRingBuffer.decrementAndGet();
 
         // Partition the samples into collections smaller then max_batch_size
         for (List<Sample> batch : Lists.partition(samples, m_maxBatchSize)) {
-            try {
-                if (event.isIndexOnly() && !NewtsUtils.DISABLE_INDEXING) {
-                    LOG.debug("Indexing {} samples", batch.size());
-                    m_indexer.update(batch);
-                } else {
-                    LOG.debug("Inserting {} samples", batch.size());
-                    m_sampleRepository.insert(batch);
-                }
-
-                if (LOG.isDebugEnabled()) {
-                    String uniqueResourceIds = batch.stream()
-                        .map(s -> s.getResource().getId())
-                        .distinct()
-                        .collect(Collectors.joining(", "));
-                    LOG.debug("Successfully inserted samples for resources with ids {}", uniqueResourceIds);
+            long retryDelay = MIN_RETRY_DELAY_MS;
+            while (true) {
+                try {
+                    persist(batch, event.isIndexOnly());
+                    break;
+                } catch (Throwable t) {
+                    if (journalId < 0) {
+                        RATE_LIMITED_LOGGER.error("An error occurred while inserting samples. Some sample may be lost.", t);
+                        break;
+                    } else if (m_stopping) {
+                        // Leave the batch unacknowledged so that it is replayed on the next start
+                        RATE_LIMITED_LOGGER.error("An error occurred while inserting samples during shutdown. The samples will be replayed from the journal.", t);
+                        return;
+                    }
+                    RATE_LIMITED_LOGGER.warn("An error occurred while inserting journaled samples. Retrying in {} ms.", retryDelay, t);
+                    try {
+                        Thread.sleep(retryDelay);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY_MS);
                 }
-            } catch (Throwable t) {
-                RATE_LIMITED_LOGGER.error("An error occurred while inserting samples. Some sample may be lost.", t);
             }
         }
+
+        if (journalId >= 0) {
+            m_journal.acknowledge(journalId);
+        }
+    }
+
+    private void persist(List<Sample> batch, boolean indexOnly) throws Exception {
+        if (indexOnly && !NewtsUtils.DISABLE_INDEXING) {
+            LOG.debug("Indexing {} samples", batch.size());
+            m_indexer.update(batch);
+        } else {
+            LOG.debug("Inserting {} samples", batch.size());
+            m_sampleRepository.insert(batch);
+        }
+
+        if (LOG.isDebugEnabled()) {
+            String uniqueResourceIds = batch.stream()
+                .map(s -> s.getResource().getId())
+                .distinct()
+                .collect(Collectors.joining(", "));
+            LOG.debug("Successfully inserted samples for resources with ids {}", uniqueResourceIds);
+        }
     }
 
     private static final EventTranslatorOneArg<SampleBatchEvent, List<Sample>> TRANSLATOR =
@@ -238,6 +362,7 @@ public class NewtsWriter implements WorkHandler<SampleBatchEvent>, DisposableBea
                 public void translateTo(SampleBatchEvent event, long sequence, List<Sample> samples) {
                     event.setIndexOnly(false);
                     event.setSamples(samples);
+                    event.setJournalId(-1);
                 }
             };
 
@@ -246,9 +371,23 @@ public class NewtsWriter implements WorkHandler<SampleBatchEvent>, DisposableBea
                 public void translateTo(SampleBatchEvent event, long sequence, List<Sample> samples) {
                     event.setIndexOnly(true);
                     event.setSamples(samples);
+                    event.setJournalId(-1);
+                }
+            };
+
+    private static final EventTranslatorOneArg<SampleBatchEvent, SampleJournal.Entry> JOURNAL_TRANSLATOR =
+            new EventTranslatorOneArg<SampleBatchEvent, SampleJournal.Entry>() {
+                public void translateTo(SampleBatchEvent event, long sequence, SampleJournal.Entry entry) {
+                    event.setIndexOnly(entry.isIndexOnly());
+                    event.setSamples(entry.getSamples());
+                    event.setJournalId(entry.getId());
                 }
             };
 
+    public void setJournal(SampleJournal journal) {
+        m_journal = journal;
+    }
+
     @VisibleForTesting
     public void setSampleRepository(SampleRepository sampleRepository) {
         m_sampleRepository = sampleRepository;
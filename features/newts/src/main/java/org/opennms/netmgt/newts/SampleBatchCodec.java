@@ -0,0 +1,250 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.newts;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opennms.newts.api.Context;
+import org.opennms.newts.api.Counter;
+import org.opennms.newts.api.MetricType;
+import org.opennms.newts.api.Resource;
+import org.opennms.newts.api.Sample;
+import org.opennms.newts.api.Timestamp;
+import org.opennms.newts.api.ValueType;
+
+import com.google.common.base.Optional;
+
+/**
+ * Compact binary encoding of a batch of {@link Sample}s, used by the
+ * {@link SampleJournal}.
+ *
+ * The samples in a batch typically share the same context, resource and
+ * attribute maps, so strings and maps are only written the first time they
+ * are seen in a batch and are referred to by index afterwards.
+ */
+public class SampleBatchCodec {
+
+    private static final byte VERSION = 1;
+
+    private static final int FLAG_INDEX_ONLY = 0x01;
+
+    private static final MetricType[] METRIC_TYPES = MetricType.values();
+
+    private SampleBatchCodec() {}
+
+    public static byte[] encode(List<Sample> samples, boolean indexOnly) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + samples.size() * 32);
+        final Encoder encoder = new Encoder(new DataOutputStream(bytes));
+        encoder.out.writeByte(VERSION);
+        encoder.out.writeByte(indexOnly ? FLAG_INDEX_ONLY : 0);
+        encoder.writeVarInt(samples.size());
+        for (Sample sample : samples) {
+            encoder.writeSample(sample);
+        }
+        encoder.out.flush();
+        return bytes.toByteArray();
+    }
+
+    public static boolean isIndexOnly(byte[] data) {
+        return data.length > 1 && (data[1] & FLAG_INDEX_ONLY) != 0;
+    }
+
+    public static List<Sample> decode(byte[] data) throws IOException {
+        final Decoder decoder = new Decoder(new DataInputStream(new ByteArrayInputStream(data)));
+        final byte version = decoder.in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported sample batch version: " + version);
+        }
+        decoder.in.readByte(); // flags
+        final int count = decoder.readVarInt();
+        final List<Sample> samples = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            samples.add(decoder.readSample());
+        }
+        return samples;
+    }
+
+    private static class Encoder {
+        private final DataOutputStream out;
+        private final Map<String, Integer> m_strings = new HashMap<>();
+        private final Map<Map<String, String>, Integer> m_maps = new IdentityHashMap<>();
+
+        private Encoder(DataOutputStream out) {
+            this.out = out;
+        }
+
+        private void writeSample(Sample sample) throws IOException {
+            out.writeLong(sample.getTimestamp().asMillis());
+            writeString(sample.getContext().getId());
+            writeString(sample.getResource().getId());
+            final Optional<Map<String, String>> resourceAttributes = sample.getResource().getAttributes();
+            writeMap(resourceAttributes.isPresent() ? resourceAttributes.get() : null);
+            writeString(sample.getName());
+            out.writeByte(sample.getType().ordinal());
+            if (sample.getType() == MetricType.GAUGE) {
+                out.writeDouble(sample.getValue().doubleValue());
+            } else {
+                // Counters are unsigned 64-bit values, keep all of the bits
+                out.writeLong(sample.getValue().longValue());
+            }
+            writeMap(sample.getAttributes());
+        }
+
+        private void writeString(String value) throws IOException {
+            final Integer index = m_strings.get(value);
+            if (index != null) {
+                writeVarInt(index + 1);
+            } else {
+                writeVarInt(0);
+                out.writeUTF(value);
+                m_strings.put(value, m_strings.size());
+            }
+        }
+
+        /**
+         * 0 = no map, 1 = a new map follows, n + 2 = the n-th map already
+         * written in this batch.
+         */
+        private void writeMap(Map<String, String> map) throws IOException {
+            if (map == null) {
+                writeVarInt(0);
+                return;
+            }
+            final Integer index = m_maps.get(map);
+            if (index != null) {
+                writeVarInt(index + 2);
+                return;
+            }
+            writeVarInt(1);
+            writeVarInt(map.size());
+            for (Map.Entry<String, String> entry : map.entrySet()) {
+                writeString(entry.getKey());
+                writeString(entry.getValue());
+            }
+            m_maps.put(map, m_maps.size());
+        }
+
+        private void writeVarInt(int value) throws IOException {
+            while ((value & ~0x7F) != 0) {
+                out.writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte(value);
+        }
+    }
+
+    private static class Decoder {
+        private final DataInputStream in;
+        private final List<String> m_strings = new ArrayList<>();
+        private final List<Map<String, String>> m_maps = new ArrayList<>();
+
+        private Decoder(DataInputStream in) {
+            this.in = in;
+        }
+
+        private Sample readSample() throws IOException {
+            final Timestamp timestamp = Timestamp.fromEpochMillis(in.readLong());
+            final Context context = new Context(readString());
+            final String resourceId = readString();
+            final Map<String, String> resourceAttributes = readMap();
+            final Resource resource = new Resource(resourceId, Optional.fromNullable(resourceAttributes));
+            final String name = readString();
+            final int ordinal = in.readUnsignedByte();
+            if (ordinal >= METRIC_TYPES.length) {
+                throw new IOException("Invalid metric type: " + ordinal);
+            }
+            final MetricType type = METRIC_TYPES[ordinal];
+            final ValueType<?> value;
+            if (type == MetricType.GAUGE) {
+                value = ValueType.compose(in.readDouble(), type);
+            } else if (type == MetricType.COUNTER) {
+                value = new Counter(in.readLong());
+            } else {
+                value = ValueType.compose(in.readLong(), type);
+            }
+            final Map<String, String> attributes = readMap();
+            return new Sample(timestamp, context, resource, name, type, value, attributes);
+        }
+
+        private String readString() throws IOException {
+            final int index = readVarInt();
+            if (index == 0) {
+                final String value = in.readUTF();
+                m_strings.add(value);
+                return value;
+            }
+            if (index > m_strings.size()) {
+                throw new IOException("Invalid string reference: " + index);
+            }
+            return m_strings.get(index - 1);
+        }
+
+        private Map<String, String> readMap() throws IOException {
+            final int tag = readVarInt();
+            if (tag == 0) {
+                return null;
+            } else if (tag > 1) {
+                if (tag - 2 >= m_maps.size()) {
+                    throw new IOException("Invalid map reference: " + tag);
+                }
+                return m_maps.get(tag - 2);
+            }
+            final int size = readVarInt();
+            final Map<String, String> map = new LinkedHashMap<>();
+            for (int i = 0; i < size; i++) {
+                map.put(readString(), readString());
+            }
+            m_maps.add(map);
+            return map;
+        }
+
+        private int readVarInt() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                final int b = in.readUnsignedByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+    }
+}
@@ -42,6 +42,7 @@ import org.opennms.newts.api.Sample;
 public class SampleBatchEvent {
     private List<Sample> m_samples;
     private boolean m_indexOnly;
+    private long m_journalId = -1;
 
     public void setSamples(List<Sample> samples) {
         m_samples = samples;
@@ -58,4 +59,16 @@ public class SampleBatchEvent {
     public boolean isIndexOnly() {
         return m_indexOnly;
     }
+
+    /**
+     * @param journalId the id of the {@link SampleJournal} entry these samples
+     * were read from, or -1 if they were not journaled
+     */
+    public void setJournalId(long journalId) {
+        m_journalId = journalId;
+    }
+
+    public long getJournalId() {
+        return m_journalId;
+    }
 }
@@ -0,0 +1,624 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.newts;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.opennms.newts.api.Sample;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Preconditions;
+
+/**
+ * Local append-only journal used by the {@link NewtsWriter} to hold sample
+ * batches until they have been persisted to Cassandra.
+ *
+ * Batches are appended to a sequence of segment files using the
+ * {@link SampleBatchCodec}, each record being prefixed by its length and
+ * CRC32. A single consumer reads the records back in order with
+ * {@link #take(long, TimeUnit)} and calls {@link #acknowledge(long)} once
+ * they are stored. Acknowledgements may arrive out of order; the checkpoint
+ * only advances past records for which all predecessors have been
+ * acknowledged, and is persisted periodically along with an fsync of the
+ * active segment. Segments behind the checkpoint are deleted.
+ *
+ * On {@link #open()} any records after the last checkpoint are replayed,
+ * so a batch may be delivered more than once after a crash. Newts writes
+ * are idempotent, so this is harmless.
+ */
+public class SampleJournal implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SampleJournal.class);
+
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    private static final String CHECKPOINT_FILE = "checkpoint";
+
+    /** Length and CRC32 of the payload. */
+    private static final int HEADER_SIZE = 8;
+
+    public static class Entry {
+        private final long m_id;
+        private final boolean m_indexOnly;
+        private final List<Sample> m_samples;
+
+        private Entry(long id, boolean indexOnly, List<Sample> samples) {
+            m_id = id;
+            m_indexOnly = indexOnly;
+            m_samples = samples;
+        }
+
+        public long getId() {
+            return m_id;
+        }
+
+        public boolean isIndexOnly() {
+            return m_indexOnly;
+        }
+
+        public List<Sample> getSamples() {
+            return m_samples;
+        }
+    }
+
+    private static class Pending {
+        private final long m_segment;
+        private final long m_endOffset;
+        private boolean m_acknowledged;
+
+        private Pending(long segment, long endOffset) {
+            m_segment = segment;
+            m_endOffset = endOffset;
+        }
+    }
+
+    private final boolean m_enabled;
+    private final Path m_directory;
+    private final long m_segmentSize;
+    private final long m_maxSize;
+    private final long m_syncPeriod;
+
+    /** Segment id -> size in bytes, for every segment on disk. */
+    private final ConcurrentSkipListMap<Long, Long> m_segmentSizes = new ConcurrentSkipListMap<>();
+    private final AtomicLong m_totalSize = new AtomicLong();
+
+    // Writer state, guarded by m_writeLock
+    private final Object m_writeLock = new Object();
+    private FileChannel m_writeChannel;
+    private long m_writeSegment;
+    private long m_writeOffset;
+    private boolean m_dirty;
+    private volatile boolean m_closed = true;
+
+    // Reader state, only used by the thread calling take()
+    private FileChannel m_readChannel;
+    private long m_readChannelSegment = -1;
+    private long m_readSegment;
+    private long m_readOffset;
+    private long m_nextId;
+
+    // Acknowledgement state, guarded by m_ackLock
+    private final Object m_ackLock = new Object();
+    private final ArrayDeque<Pending> m_pending = new ArrayDeque<>();
+    private final Map<Long, Pending> m_pendingById = new HashMap<>();
+    private long m_checkpointSegment;
+    private long m_checkpointOffset;
+    private boolean m_checkpointDirty;
+
+    private Thread m_syncThread;
+
+    private final Meter m_appendedSamples;
+    private final Meter m_rejectedSamples;
+    private final Meter m_replayedSamples;
+
+    public SampleJournal(boolean enabled, String directory, long segmentSize, long maxSize, long syncPeriod, MetricRegistry registry) {
+        Preconditions.checkArgument(!enabled || directory != null, "directory must be set when the journal is enabled");
+        Preconditions.checkArgument(segmentSize > HEADER_SIZE, "segmentSize must be larger than %s", HEADER_SIZE);
+        Preconditions.checkArgument(maxSize >= segmentSize, "maxSize must be at least segmentSize");
+        Preconditions.checkArgument(syncPeriod > 0, "syncPeriod must be positive");
+        Preconditions.checkNotNull(registry, "metric registry");
+
+        m_enabled = enabled;
+        m_directory = directory == null ? null : Paths.get(directory);
+        m_segmentSize = segmentSize;
+        m_maxSize = maxSize;
+        m_syncPeriod = syncPeriod;
+
+        registry.register(MetricRegistry.name("journal", "size"),
+                new Gauge<Long>() {
+                    @Override
+                    public Long getValue() {
+                        return m_totalSize.get();
+                    }
+                });
+        registry.register(MetricRegistry.name("journal", "max-size"),
+                new Gauge<Long>() {
+                    @Override
+                    public Long getValue() {
+                        return m_maxSize;
+                    }
+                });
+        registry.register(MetricRegistry.name("journal", "lag"),
+                new Gauge<Long>() {
+                    @Override
+                    public Long getValue() {
+                        return getLag();
+                    }
+                });
+        registry.register(MetricRegistry.name("journal", "in-flight"),
+                new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return getInFlight();
+                    }
+                });
+        m_appendedSamples = registry.meter(MetricRegistry.name("journal", "appended-samples"));
+        m_rejectedSamples = registry.meter(MetricRegistry.name("journal", "rejected-samples"));
+        m_replayedSamples = registry.meter(MetricRegistry.name("journal", "replayed-samples"));
+    }
+
+    public boolean isEnabled() {
+        return m_enabled;
+    }
+
+    /**
+     * Opens the journal, recovering any segments and the checkpoint left by
+     * a previous run, and starts the sync thread.
+     */
+    public void open() throws IOException {
+        Preconditions.checkState(m_enabled, "the journal is disabled");
+        Files.createDirectories(m_directory);
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(m_directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                final String name = path.getFileName().toString();
+                try {
+                    final long segment = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                    final long size = Files.size(path);
+                    m_segmentSizes.put(segment, size);
+                    m_totalSize.addAndGet(size);
+                } catch (NumberFormatException e) {
+                    LOG.warn("Ignoring unexpected file in the journal directory: {}", path);
+                }
+            }
+        }
+
+        readCheckpoint();
+        deleteSegmentsBefore(m_checkpointSegment);
+        if (!m_segmentSizes.containsKey(m_checkpointSegment)) {
+            m_checkpointOffset = 0;
+            if (m_segmentSizes.isEmpty()) {
+                m_segmentSizes.put(m_checkpointSegment, 0L);
+            } else {
+                m_checkpointSegment = m_segmentSizes.firstKey();
+            }
+        }
+
+        // Discard any partially written record at the tail of the last segment
+        final long lastSegment = m_segmentSizes.lastKey();
+        final long size = m_segmentSizes.get(lastSegment);
+        final long valid = scanValid(lastSegment, lastSegment == m_checkpointSegment ? m_checkpointOffset : 0, size);
+        if (valid < size) {
+            LOG.warn("Truncating {} bytes of incomplete records from journal segment {}.", size - valid, lastSegment);
+            m_segmentSizes.put(lastSegment, valid);
+            m_totalSize.addAndGet(valid - size);
+        }
+
+        synchronized (m_writeLock) {
+            m_writeSegment = lastSegment;
+            m_writeOffset = valid;
+            m_writeChannel = FileChannel.open(getSegmentPath(lastSegment), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            m_writeChannel.truncate(valid);
+            m_writeChannel.position(valid);
+            m_closed = false;
+        }
+
+        m_readSegment = m_checkpointSegment;
+        m_readOffset = m_checkpointOffset;
+
+        LOG.info("Opened the sample journal in {} with {} bytes to replay.", m_directory, getLag());
+
+        m_syncThread = new Thread(this::syncLoop, "NewtsWriter-Journal-Sync");
+        m_syncThread.setDaemon(true);
+        m_syncThread.start();
+    }
+
+    /**
+     * Appends a batch of samples to the journal.
+     *
+     * @return false if the journal is full and the batch was not appended
+     */
+    public boolean append(List<Sample> samples, boolean indexOnly) throws IOException {
+        final byte[] payload = SampleBatchCodec.encode(samples, indexOnly);
+        final CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        final ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        record.putInt(payload.length);
+        record.putInt((int) crc.getValue());
+        record.put(payload);
+        record.flip();
+        final int recordSize = record.remaining();
+
+        synchronized (m_writeLock) {
+            if (m_closed) {
+                throw new ClosedChannelException();
+            }
+            if (m_totalSize.get() + recordSize > m_maxSize) {
+                m_rejectedSamples.mark(samples.size());
+                return false;
+            }
+            if (m_writeOffset > 0 && m_writeOffset + recordSize > m_segmentSize) {
+                roll();
+            }
+            while (record.hasRemaining()) {
+                m_writeChannel.write(record);
+            }
+            m_writeOffset += recordSize;
+            m_segmentSizes.put(m_writeSegment, m_writeOffset);
+            m_totalSize.addAndGet(recordSize);
+            m_dirty = true;
+            m_writeLock.notifyAll();
+        }
+        m_appendedSamples.mark(samples.size());
+        return true;
+    }
+
+    /**
+     * Retrieves the next batch that has not been read yet, waiting up to the
+     * given timeout for one to be appended. Must only be called from a
+     * single thread.
+     *
+     * @return the next batch, or null if none became available or the journal was closed
+     */
+    public Entry take(long timeout, TimeUnit unit) throws IOException, InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            final long writeSegment;
+            synchronized (m_writeLock) {
+                writeSegment = m_writeSegment;
+                if (m_readSegment == m_writeSegment && m_readOffset >= m_writeOffset) {
+                    final long remaining = deadline - System.nanoTime();
+                    if (m_closed || remaining <= 0) {
+                        return null;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(m_writeLock, remaining);
+                    continue;
+                }
+            }
+
+            // Records are written whole while holding the write lock, so the
+            // recorded segment size never includes a partial record
+            final long limit = m_segmentSizes.getOrDefault(m_readSegment, 0L);
+            if (m_readOffset + HEADER_SIZE > limit) {
+                if (m_readSegment < writeSegment) {
+                    m_readSegment = m_segmentSizes.higherKey(m_readSegment);
+                    m_readOffset = 0;
+                }
+                continue;
+            }
+
+            final Entry entry = readRecord(limit);
+            if (entry != null) {
+                m_replayedSamples.mark(entry.getSamples().size());
+                return entry;
+            }
+        }
+    }
+
+    /**
+     * Marks the batch with the given id as persisted.
+     */
+    public void acknowledge(long id) {
+        synchronized (m_ackLock) {
+            final Pending pending = m_pendingById.remove(id);
+            if (pending == null) {
+                return;
+            }
+            pending.m_acknowledged = true;
+            while (!m_pending.isEmpty() && m_pending.peekFirst().m_acknowledged) {
+                final Pending head = m_pending.pollFirst();
+                m_checkpointSegment = head.m_segment;
+                m_checkpointOffset = head.m_endOffset;
+                m_checkpointDirty = true;
+            }
+        }
+    }
+
+    /**
+     * @return the number of journaled bytes that have not been acknowledged yet
+     */
+    public long getLag() {
+        final long segment;
+        final long offset;
+        synchronized (m_ackLock) {
+            segment = m_checkpointSegment;
+            offset = m_checkpointOffset;
+        }
+        long lag = 0;
+        for (Map.Entry<Long, Long> entry : m_segmentSizes.tailMap(segment).entrySet()) {
+            lag += entry.getKey() == segment ? Math.max(0, entry.getValue() - offset) : entry.getValue();
+        }
+        return lag;
+    }
+
+    /**
+     * @return the number of batches that have been read but not acknowledged
+     */
+    public int getInFlight() {
+        synchronized (m_ackLock) {
+            return m_pendingById.size();
+        }
+    }
+
+    public long getSize() {
+        return m_totalSize.get();
+    }
+
+    /**
+     * Forces the active segment to disk and persists the checkpoint.
+     */
+    public void sync() throws IOException {
+        final FileChannel channel;
+        synchronized (m_writeLock) {
+            channel = m_dirty ? m_writeChannel : null;
+            m_dirty = false;
+        }
+        if (channel != null) {
+            try {
+                channel.force(false);
+            } catch (ClosedChannelException e) {
+                // The segment was rolled, which forces it before closing
+            }
+        }
+
+        final long segment;
+        final long offset;
+        synchronized (m_ackLock) {
+            if (!m_checkpointDirty) {
+                return;
+            }
+            segment = m_checkpointSegment;
+            offset = m_checkpointOffset;
+            m_checkpointDirty = false;
+        }
+        writeCheckpoint(segment, offset);
+        deleteSegmentsBefore(segment);
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (m_writeLock) {
+            if (m_closed) {
+                return;
+            }
+            m_closed = true;
+            m_writeLock.notifyAll();
+        }
+        if (m_syncThread != null) {
+            m_syncThread.interrupt();
+            try {
+                m_syncThread.join(m_syncPeriod);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            sync();
+        } finally {
+            synchronized (m_writeLock) {
+                m_writeChannel.close();
+            }
+            if (m_readChannel != null) {
+                m_readChannel.close();
+                m_readChannel = null;
+            }
+        }
+    }
+
+    private void syncLoop() {
+        while (!m_closed) {
+            try {
+                Thread.sleep(m_syncPeriod);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                sync();
+            } catch (IOException e) {
+                LOG.error("Failed to sync the sample journal.", e);
+            }
+        }
+    }
+
+    private void roll() throws IOException {
+        m_writeChannel.force(false);
+        m_writeChannel.close();
+        m_writeSegment++;
+        m_writeOffset = 0;
+        m_writeChannel = FileChannel.open(getSegmentPath(m_writeSegment), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        m_segmentSizes.put(m_writeSegment, 0L);
+        LOG.debug("Rolled the sample journal over to segment {}.", m_writeSegment);
+    }
+
+    private Entry readRecord(long limit) throws IOException {
+        if (m_readChannelSegment != m_readSegment) {
+            if (m_readChannel != null) {
+                m_readChannel.close();
+            }
+            m_readChannel = FileChannel.open(getSegmentPath(m_readSegment), StandardOpenOption.READ);
+            m_readChannelSegment = m_readSegment;
+        }
+
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(m_readChannel, header, m_readOffset);
+        header.flip();
+        final int length = header.getInt();
+        final int checksum = header.getInt();
+        final long end = m_readOffset + HEADER_SIZE + length;
+        if (length < 0 || end > limit) {
+            skipCorruptSegment("invalid record length " + length);
+            return null;
+        }
+
+        final ByteBuffer payload = ByteBuffer.allocate(length);
+        readFully(m_readChannel, payload, m_readOffset + HEADER_SIZE);
+        final CRC32 crc = new CRC32();
+        crc.update(payload.array());
+        if ((int) crc.getValue() != checksum) {
+            skipCorruptSegment("checksum mismatch");
+            return null;
+        }
+
+        final List<Sample> samples;
+        try {
+            samples = SampleBatchCodec.decode(payload.array());
+        } catch (IOException e) {
+            skipCorruptSegment(e.getMessage());
+            return null;
+        }
+
+        final long id = m_nextId++;
+        synchronized (m_ackLock) {
+            final Pending pending = new Pending(m_readSegment, end);
+            m_pending.addLast(pending);
+            m_pendingById.put(id, pending);
+        }
+        m_readOffset = end;
+        return new Entry(id, SampleBatchCodec.isIndexOnly(payload.array()), samples);
+    }
+
+    private void skipCorruptSegment(String reason) {
+        final long limit = m_segmentSizes.getOrDefault(m_readSegment, 0L);
+        LOG.error("Skipping {} bytes of journal segment {} at offset {}: {}", limit - m_readOffset, m_readSegment, m_readOffset, reason);
+        m_readOffset = limit;
+    }
+
+    /**
+     * @return the offset following the last complete record in the segment
+     */
+    private long scanValid(long segment, long offset, long size) throws IOException {
+        final Path path = getSegmentPath(segment);
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (offset + HEADER_SIZE <= size) {
+                header.clear();
+                readFully(channel, header, offset);
+                header.flip();
+                final int length = header.getInt();
+                final int checksum = header.getInt();
+                if (length < 0 || offset + HEADER_SIZE + length > size) {
+                    break;
+                }
+                final ByteBuffer payload = ByteBuffer.allocate(length);
+                readFully(channel, payload, offset + HEADER_SIZE);
+                final CRC32 crc = new CRC32();
+                crc.update(payload.array());
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                offset += HEADER_SIZE + length;
+            }
+        }
+        return offset;
+    }
+
+    private void readCheckpoint() throws IOException {
+        final Path path = m_directory.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(path)) {
+            m_checkpointSegment = m_segmentSizes.isEmpty() ? 0 : m_segmentSizes.firstKey();
+            m_checkpointOffset = 0;
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+            m_checkpointSegment = in.readLong();
+            m_checkpointOffset = in.readLong();
+        }
+    }
+
+    private void writeCheckpoint(long segment, long offset) throws IOException {
+        final Path tmp = m_directory.resolve(CHECKPOINT_FILE + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(tmp))) {
+            out.writeLong(segment);
+            out.writeLong(offset);
+        }
+        Files.move(tmp, m_directory.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void deleteSegmentsBefore(long segment) throws IOException {
+        for (Long id : m_segmentSizes.headMap(segment).keySet()) {
+            final Long size = m_segmentSizes.remove(id);
+            Files.deleteIfExists(getSegmentPath(id));
+            m_totalSize.addAndGet(-size);
+            LOG.debug("Deleted journal segment {}.", id);
+        }
+    }
+
+    private Path getSegmentPath(long segment) {
+        return m_directory.resolve(String.format("%016d%s", segment, SEGMENT_SUFFIX));
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of journal segment");
+            }
+            position += read;
+        }
+    }
+}
@@ -0,0 +1,598 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.newts.support;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.nustaq.serialization.FSTConfiguration;
+import org.opennms.newts.api.Context;
+import org.opennms.newts.api.Resource;
+import org.opennms.newts.cassandra.search.ResourceIdSplitter;
+import org.opennms.newts.cassandra.search.ResourceMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+/**
+ * A caching strategy that stores the {@link org.opennms.newts.cassandra.search.ResourceMetadata}
+ * in memory-mapped files, outside of the heap.
+ *
+ * Resource ids are split into their elements and stored as a tree in which
+ * every node only holds its own element and a reference to its parent, so
+ * common prefixes such as "snmp:1" are only stored once. Nodes are located
+ * with an open-addressing hash table keyed by (parent, element), and prefix
+ * searches walk the children of the node matching the prefix. Note that,
+ * like the {@link RedisResourceMetadataCache}, prefixes are matched element
+ * by element.
+ *
+ * The memory is split between two generations of equal size. New entries
+ * are written to the current generation; when it fills up, the previous
+ * generation is discarded and a new one is started. Entries that are read
+ * from the previous generation are copied to the current one, so only the
+ * entries that were not used for a whole generation are evicted.
+ *
+ * The files are kept across restarts, so the cache does not need to be
+ * rebuilt from scratch. They are only trusted if they were closed cleanly.
+ *
+ * FST is used for serialization instead Java's default implementation.
+ */
+public class MappedResourceMetadataCache implements SearchableResourceMetadataCache, DisposableBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedResourceMetadataCache.class);
+
+    private static final FSTConfiguration conf = FSTConfiguration.createDefaultConfiguration();
+
+    private static final String FILE_PREFIX = "resource-metadata-";
+
+    private static final String FILE_SUFFIX = ".cache";
+
+    private final ResourceIdSplitter m_resourceIdSplitter;
+
+    private final long m_maxSize;
+
+    private final Generation[] m_generations = new Generation[2];
+
+    private Generation m_current;
+
+    private Generation m_previous;
+
+    private final ReadWriteLock m_lock = new ReentrantReadWriteLock();
+
+    private final Meter m_rotations;
+
+    @Inject
+    public MappedResourceMetadataCache(@Named("search.resourceMetadata.directory") String directory, @Named("search.resourceMetadata.maxCacheSize") Long maxSize,
+            MetricRegistry registry, ResourceIdSplitter resourceIdSplitter) throws IOException {
+        Preconditions.checkNotNull(directory, "directory argument");
+        Preconditions.checkArgument(maxSize >= 2 * Generation.MIN_SIZE, "maxSize must be at least %s", 2 * Generation.MIN_SIZE);
+        Preconditions.checkArgument(maxSize / 2 <= Integer.MAX_VALUE, "maxSize must be less than %s", 2L * Integer.MAX_VALUE);
+        Preconditions.checkNotNull(registry, "registry argument");
+        m_resourceIdSplitter = Preconditions.checkNotNull(resourceIdSplitter, "resourceIdSplitter argument");
+        m_maxSize = maxSize;
+
+        final File dir = new File(directory);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create the cache directory: " + dir);
+        }
+
+        LOG.info("Initializing memory-mapped resource metadata cache in {} ({} bytes)", dir, maxSize);
+        for (int i = 0; i < m_generations.length; i++) {
+            m_generations[i] = new Generation(new File(dir, FILE_PREFIX + i + FILE_SUFFIX), (int) (maxSize / 2));
+        }
+        if (m_generations[0].getSequence() >= m_generations[1].getSequence()) {
+            m_current = m_generations[0];
+            m_previous = m_generations[1];
+        } else {
+            m_current = m_generations[1];
+            m_previous = m_generations[0];
+        }
+        if (m_current.getSequence() == 0) {
+            m_current.reset(1);
+        }
+        LOG.info("Loaded {} cached resources.", getSize());
+
+        m_rotations = registry.meter(MetricRegistry.name("cache", "rotations"));
+        registry.register(MetricRegistry.name("cache", "size"),
+                new Gauge<Long>() {
+                    @Override
+                    public Long getValue() {
+                        return getSize();
+                    }
+                });
+        registry.register(MetricRegistry.name("cache", "max-size"),
+                new Gauge<Long>() {
+                    @Override
+                    public Long getValue() {
+                        return m_maxSize;
+                    }
+                });
+    }
+
+    @Override
+    public Optional<ResourceMetadata> get(Context context, Resource resource) {
+        final List<String> path = path(context, resource.getId());
+        byte[] bytes;
+        m_lock.readLock().lock();
+        try {
+            bytes = m_current.getMetadata(m_current.find(path));
+            if (bytes != null) {
+                return Optional.of((ResourceMetadata)conf.asObject(bytes));
+            }
+            bytes = m_previous.getMetadata(m_previous.find(path));
+            if (bytes == null) {
+                return Optional.absent();
+            }
+        } finally {
+            m_lock.readLock().unlock();
+        }
+
+        // Promote the entry to the current generation so that it survives the next rotation
+        m_lock.writeLock().lock();
+        try {
+            if (m_current.getMetadata(m_current.find(path)) == null) {
+                store(path, bytes);
+            }
+        } finally {
+            m_lock.writeLock().unlock();
+        }
+        return Optional.of((ResourceMetadata)conf.asObject(bytes));
+    }
+
+    @Override
+    public void merge(Context context, Resource resource, ResourceMetadata metadata) {
+        final List<String> path = path(context, resource.getId());
+        m_lock.writeLock().lock();
+        try {
+            byte[] bytes = m_current.getMetadata(m_current.find(path));
+            final boolean inCurrent = bytes != null;
+            if (bytes == null) {
+                bytes = m_previous.getMetadata(m_previous.find(path));
+            }
+
+            final ResourceMetadata newMetadata;
+            if (bytes != null) {
+                newMetadata = (ResourceMetadata)conf.asObject(bytes);
+                if (!newMetadata.merge(metadata) && inCurrent) {
+                    // Nothing changed
+                    return;
+                }
+            } else {
+                newMetadata = new ResourceMetadata();
+                newMetadata.merge(metadata);
+            }
+            store(path, conf.asByteArray(newMetadata));
+        } finally {
+            m_lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void delete(final Context context, final Resource resource) {
+        final List<String> path = path(context, resource.getId());
+        m_lock.writeLock().lock();
+        try {
+            m_current.clearMetadata(m_current.find(path));
+            m_previous.clearMetadata(m_previous.find(path));
+        } finally {
+            m_lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<String> getResourceIdsWithPrefix(Context context, String resourceIdPrefix) {
+        final List<String> path = path(context, resourceIdPrefix);
+        final Set<String> resourceIds = new LinkedHashSet<>();
+        m_lock.readLock().lock();
+        try {
+            for (Generation generation : new Generation[] { m_current, m_previous }) {
+                final int node = generation.find(path);
+                if (node != 0) {
+                    // Drop the context from the collected paths
+                    generation.collect(node, new ArrayList<>(path.subList(1, path.size())),
+                            elements -> resourceIds.add(m_resourceIdSplitter.joinElementsToId(elements)));
+                }
+            }
+        } finally {
+            m_lock.readLock().unlock();
+        }
+        return new ArrayList<>(resourceIds);
+    }
+
+    /**
+     * @return the approximate number of resources in the cache
+     */
+    public long getSize() {
+        m_lock.readLock().lock();
+        try {
+            return (long)m_current.getResources() + m_previous.getResources();
+        } finally {
+            m_lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void destroy() throws IOException {
+        m_lock.writeLock().lock();
+        try {
+            for (Generation generation : m_generations) {
+                generation.close();
+            }
+        } finally {
+            m_lock.writeLock().unlock();
+        }
+    }
+
+    private List<String> path(Context context, String resourceId) {
+        final List<String> path = Lists.newArrayList(context.getId());
+        if (!resourceId.isEmpty()) {
+            path.addAll(m_resourceIdSplitter.splitIdIntoElements(resourceId));
+        }
+        return path;
+    }
+
+    /**
+     * Must be called while holding the write lock.
+     */
+    private void store(List<String> path, byte[] metadata) {
+        if (m_current.store(path, metadata)) {
+            return;
+        }
+        rotate();
+        if (!m_current.store(path, metadata)) {
+            LOG.warn("Resource {} is too large to be cached.", path);
+        }
+    }
+
+    private void rotate() {
+        final Generation next = m_previous;
+        next.reset(m_current.getSequence() + 1);
+        m_previous = m_current;
+        m_current = next;
+        m_rotations.mark();
+        LOG.debug("Started resource metadata cache generation {}", m_current.getSequence());
+    }
+
+    /**
+     * A fixed-size memory-mapped file holding a header, the hash table and the
+     * nodes and metadata, which are allocated sequentially.
+     *
+     * All offsets are relative to the start of the file; offset 0 is used as
+     * the null reference.
+     */
+    private static class Generation {
+        private static final int MAGIC = 0x4F4E524D;
+        private static final int VERSION = 1;
+        private static final int STATE_OPEN = 1;
+        private static final int STATE_CLOSED = 2;
+
+        private static final int H_MAGIC = 0;
+        private static final int H_VERSION = 4;
+        private static final int H_STATE = 8;
+        private static final int H_SLOT_COUNT = 12;
+        private static final int H_USED_SLOTS = 16;
+        private static final int H_DATA_END = 20;
+        private static final int H_RESOURCES = 24;
+        private static final int H_SEQUENCE = 32;
+        private static final int HEADER_SIZE = 64;
+
+        /** 64-bit hash followed by the node offset. */
+        private static final int SLOT_SIZE = 12;
+
+        private static final int N_PARENT = 0;
+        private static final int N_FIRST_CHILD = 4;
+        private static final int N_NEXT_SIBLING = 8;
+        private static final int N_METADATA = 12;
+        private static final int N_ELEMENT_LENGTH = 16;
+        private static final int N_ELEMENT = 18;
+
+        private static final int MIN_SIZE = 64 * 1024;
+
+        /** Bytes of data region per hash table slot. */
+        private static final int BYTES_PER_SLOT = 128;
+
+        private final File m_file;
+        private final MappedByteBuffer m_buffer;
+        private final int m_size;
+        private int m_slotCount;
+        private int m_mask;
+
+        private Generation(File file, int size) throws IOException {
+            m_file = file;
+            m_size = size;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(size);
+                m_buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+
+            if (m_buffer.getInt(H_MAGIC) == MAGIC
+                    && m_buffer.getInt(H_VERSION) == VERSION
+                    && m_buffer.getInt(H_STATE) == STATE_CLOSED
+                    && m_buffer.getInt(H_SLOT_COUNT) == slotCountFor(size)) {
+                m_slotCount = m_buffer.getInt(H_SLOT_COUNT);
+                m_mask = m_slotCount - 1;
+                m_buffer.putInt(H_STATE, STATE_OPEN);
+                m_buffer.force();
+            } else {
+                if (m_buffer.getInt(H_MAGIC) == MAGIC) {
+                    LOG.info("Discarding {} since it was not closed cleanly or its size changed.", file);
+                }
+                reset(0);
+            }
+        }
+
+        private static int slotCountFor(int size) {
+            return Integer.highestOneBit(size / (SLOT_SIZE + BYTES_PER_SLOT));
+        }
+
+        private void reset(long sequence) {
+            m_slotCount = slotCountFor(m_size);
+            m_mask = m_slotCount - 1;
+            for (int i = HEADER_SIZE; i < HEADER_SIZE + m_slotCount * SLOT_SIZE; i += SLOT_SIZE) {
+                m_buffer.putLong(i, 0L);
+                m_buffer.putInt(i + 8, 0);
+            }
+            m_buffer.putInt(H_MAGIC, MAGIC);
+            m_buffer.putInt(H_VERSION, VERSION);
+            m_buffer.putInt(H_STATE, STATE_OPEN);
+            m_buffer.putInt(H_SLOT_COUNT, m_slotCount);
+            m_buffer.putInt(H_USED_SLOTS, 0);
+            m_buffer.putInt(H_DATA_END, HEADER_SIZE + m_slotCount * SLOT_SIZE);
+            m_buffer.putInt(H_RESOURCES, 0);
+            m_buffer.putLong(H_SEQUENCE, sequence);
+        }
+
+        private long getSequence() {
+            return m_buffer.getLong(H_SEQUENCE);
+        }
+
+        private int getResources() {
+            return m_buffer.getInt(H_RESOURCES);
+        }
+
+        private void close() {
+            m_buffer.putInt(H_STATE, STATE_CLOSED);
+            m_buffer.force();
+            LOG.debug("Closed {}", m_file);
+        }
+
+        /**
+         * @return the offset of the node for the given path, or 0 if it does not exist
+         */
+        private int find(List<String> path) {
+            int node = 0;
+            for (String element : path) {
+                node = lookup(node, element.getBytes(StandardCharsets.UTF_8));
+                if (node == 0) {
+                    return 0;
+                }
+            }
+            return node;
+        }
+
+        /**
+         * @return false if there was not enough space left
+         */
+        private boolean store(List<String> path, byte[] metadata) {
+            int node = 0;
+            for (String element : path) {
+                final byte[] bytes = element.getBytes(StandardCharsets.UTF_8);
+                int child = lookup(node, bytes);
+                if (child == 0) {
+                    child = insert(node, bytes);
+                    if (child == 0) {
+                        return false;
+                    }
+                }
+                node = child;
+            }
+
+            final int blob = allocate(4 + metadata.length);
+            if (blob == 0) {
+                return false;
+            }
+            m_buffer.putInt(blob, metadata.length);
+            put(blob + 4, metadata);
+            if (m_buffer.getInt(node + N_METADATA) == 0) {
+                m_buffer.putInt(H_RESOURCES, getResources() + 1);
+            }
+            m_buffer.putInt(node + N_METADATA, blob);
+            return true;
+        }
+
+        private byte[] getMetadata(int node) {
+            if (node == 0) {
+                return null;
+            }
+            final int blob = m_buffer.getInt(node + N_METADATA);
+            if (blob == 0) {
+                return null;
+            }
+            final byte[] bytes = new byte[m_buffer.getInt(blob)];
+            get(blob + 4, bytes);
+            return bytes;
+        }
+
+        private void clearMetadata(int node) {
+            if (node != 0 && m_buffer.getInt(node + N_METADATA) != 0) {
+                m_buffer.putInt(node + N_METADATA, 0);
+                m_buffer.putInt(H_RESOURCES, getResources() - 1);
+            }
+        }
+
+        /**
+         * Passes the path of every resource at or below the given node to the callback.
+         */
+        private void collect(int node, List<String> path, Consumer<List<String>> callback) {
+            if (m_buffer.getInt(node + N_METADATA) != 0) {
+                callback.accept(path);
+            }
+            for (int child = m_buffer.getInt(node + N_FIRST_CHILD); child != 0; child = m_buffer.getInt(child + N_NEXT_SIBLING)) {
+                path.add(getElement(child));
+                collect(child, path, callback);
+                path.remove(path.size() - 1);
+            }
+        }
+
+        private int lookup(int parent, byte[] element) {
+            final long hash = hash(parent, element);
+            for (int i = (int)hash & m_mask, probes = 0; probes < m_slotCount; i = (i + 1) & m_mask, probes++) {
+                final int slot = HEADER_SIZE + i * SLOT_SIZE;
+                final long slotHash = m_buffer.getLong(slot);
+                if (slotHash == 0) {
+                    return 0;
+                }
+                if (slotHash == hash) {
+                    final int node = m_buffer.getInt(slot + 8);
+                    if (m_buffer.getInt(node + N_PARENT) == parent && elementEquals(node, element)) {
+                        return node;
+                    }
+                }
+            }
+            return 0;
+        }
+
+        private int insert(int parent, byte[] element) {
+            // Keep the load factor under 0.75
+            final int usedSlots = m_buffer.getInt(H_USED_SLOTS);
+            if (usedSlots + 1 > m_slotCount - (m_slotCount >> 2) || element.length > Short.MAX_VALUE) {
+                return 0;
+            }
+            final int node = allocate(N_ELEMENT + element.length);
+            if (node == 0) {
+                return 0;
+            }
+            m_buffer.putInt(node + N_PARENT, parent);
+            m_buffer.putInt(node + N_FIRST_CHILD, 0);
+            m_buffer.putInt(node + N_METADATA, 0);
+            m_buffer.putShort(node + N_ELEMENT_LENGTH, (short)element.length);
+            put(node + N_ELEMENT, element);
+            if (parent != 0) {
+                m_buffer.putInt(node + N_NEXT_SIBLING, m_buffer.getInt(parent + N_FIRST_CHILD));
+                m_buffer.putInt(parent + N_FIRST_CHILD, node);
+            } else {
+                m_buffer.putInt(node + N_NEXT_SIBLING, 0);
+            }
+
+            final long hash = hash(parent, element);
+            int i = (int)hash & m_mask;
+            while (m_buffer.getLong(HEADER_SIZE + i * SLOT_SIZE) != 0) {
+                i = (i + 1) & m_mask;
+            }
+            m_buffer.putLong(HEADER_SIZE + i * SLOT_SIZE, hash);
+            m_buffer.putInt(HEADER_SIZE + i * SLOT_SIZE + 8, node);
+            m_buffer.putInt(H_USED_SLOTS, usedSlots + 1);
+            return node;
+        }
+
+        /**
+         * @return the offset of the allocated bytes, or 0 if there is not enough space left
+         */
+        private int allocate(int length) {
+            final int offset = m_buffer.getInt(H_DATA_END);
+            if ((long)offset + length > m_size) {
+                return 0;
+            }
+            m_buffer.putInt(H_DATA_END, offset + length);
+            return offset;
+        }
+
+        private String getElement(int node) {
+            final byte[] bytes = new byte[m_buffer.getShort(node + N_ELEMENT_LENGTH)];
+            get(node + N_ELEMENT, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private boolean elementEquals(int node, byte[] element) {
+            if (m_buffer.getShort(node + N_ELEMENT_LENGTH) != element.length) {
+                return false;
+            }
+            for (int i = 0; i < element.length; i++) {
+                if (m_buffer.get(node + N_ELEMENT + i) != element[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void get(int offset, byte[] dst) {
+            // Use a duplicate so that concurrent readers don't share a position
+            final ByteBuffer buffer = m_buffer.duplicate();
+            buffer.position(offset);
+            buffer.get(dst);
+        }
+
+        private void put(int offset, byte[] src) {
+            final ByteBuffer buffer = m_buffer.duplicate();
+            buffer.position(offset);
+            buffer.put(src);
+        }
+
+        /**
+         * FNV-1a over the element, seeded with the parent offset, followed
+         * by the MurmurHash3 finalizer. 0 is reserved for empty slots.
+         */
+        private static long hash(int parent, byte[] element) {
+            long h = 0xcbf29ce484222325L ^ parent;
+            for (byte b : element) {
+                h ^= b;
+                h *= 0x100000001b3L;
+            }
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb3fe1a85ec53L;
+            h ^= h >>> 33;
+            return h != 0 ? h : 1;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.newts;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opennms.newts.api.Context;
+import org.opennms.newts.api.Counter;
+import org.opennms.newts.api.Derive;
+import org.opennms.newts.api.Gauge;
+import org.opennms.newts.api.MetricType;
+import org.opennms.newts.api.Resource;
+import org.opennms.newts.api.Sample;
+import org.opennms.newts.api.SampleRepository;
+import org.opennms.newts.api.Timestamp;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+public class SampleJournalTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void canEncodeAndDecodeSamples() throws Exception {
+        final Map<String, String> resourceAttributes = ImmutableMap.of("node", "1", "label", "ifIndex");
+        final Resource resource = new Resource("snmp:1:eth0", Optional.of(resourceAttributes));
+        final List<Sample> samples = Lists.newArrayList(
+                new Sample(Timestamp.fromEpochMillis(1000), Context.DEFAULT_CONTEXT, resource, "ifInOctets",
+                        MetricType.COUNTER, new Counter(-2L), ImmutableMap.of("type", "counter")),
+                new Sample(Timestamp.fromEpochMillis(2000), Context.DEFAULT_CONTEXT, resource, "ifSpeed",
+                        MetricType.GAUGE, new Gauge(1.5), null),
+                new Sample(Timestamp.fromEpochMillis(3000), new Context("other"), new Resource("x"), "y",
+                        MetricType.DERIVE, new Derive(42L), null));
+
+        final byte[] data = SampleBatchCodec.encode(samples, true);
+        assertTrue(SampleBatchCodec.isIndexOnly(data));
+
+        final List<Sample> decoded = SampleBatchCodec.decode(data);
+        assertEquals(samples.size(), decoded.size());
+        for (int i = 0; i < samples.size(); i++) {
+            final Sample expected = samples.get(i);
+            final Sample actual = decoded.get(i);
+            assertEquals(expected.getTimestamp().asMillis(), actual.getTimestamp().asMillis());
+            assertEquals(expected.getContext().getId(), actual.getContext().getId());
+            assertEquals(expected.getResource().getId(), actual.getResource().getId());
+            assertEquals(expected.getResource().getAttributes(), actual.getResource().getAttributes());
+            assertEquals(expected.getName(), actual.getName());
+            assertEquals(expected.getType(), actual.getType());
+            assertEquals(expected.getValue().longValue(), actual.getValue().longValue());
+            assertEquals(expected.getValue().doubleValue(), actual.getValue().doubleValue(), 0.0d);
+            assertEquals(expected.getAttributes(), actual.getAttributes());
+        }
+    }
+
+    @Test
+    public void unacknowledgedBatchesAreReplayedAfterReopening() throws Exception {
+        SampleJournal journal = newJournal(1024 * 1024, 8 * 1024 * 1024);
+        journal.open();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(journal.append(samples(i * 10, 10), false));
+        }
+
+        SampleJournal.Entry first = journal.take(1, TimeUnit.SECONDS);
+        SampleJournal.Entry second = journal.take(1, TimeUnit.SECONDS);
+        assertEquals(0, getFirstValue(first));
+        assertEquals(10, getFirstValue(second));
+        // Acknowledge the second batch, the checkpoint can't move past the first one
+        journal.acknowledge(second.getId());
+        assertEquals(1, journal.getInFlight());
+        journal.close();
+
+        journal = newJournal(1024 * 1024, 8 * 1024 * 1024);
+        journal.open();
+        assertEquals(0, getFirstValue(journal.take(1, TimeUnit.SECONDS)));
+        assertEquals(10, getFirstValue(journal.take(1, TimeUnit.SECONDS)));
+        assertEquals(20, getFirstValue(journal.take(1, TimeUnit.SECONDS)));
+        assertNull(journal.take(10, TimeUnit.MILLISECONDS));
+        journal.close();
+    }
+
+    @Test
+    public void acknowledgedSegmentsAreDeleted() throws Exception {
+        final SampleJournal journal = newJournal(1024, 8 * 1024 * 1024);
+        journal.open();
+        for (int i = 0; i < 100; i++) {
+            assertTrue(journal.append(samples(i, 10), false));
+        }
+        assertTrue(segmentCount() > 1);
+        assertTrue(journal.getLag() > 0);
+
+        SampleJournal.Entry entry;
+        int count = 0;
+        while ((entry = journal.take(10, TimeUnit.MILLISECONDS)) != null) {
+            journal.acknowledge(entry.getId());
+            count++;
+        }
+        assertEquals(100, count);
+        assertEquals(0, journal.getLag());
+
+        journal.sync();
+        assertEquals(1, segmentCount());
+        journal.close();
+    }
+
+    @Test
+    public void incompleteRecordsAreTruncated() throws Exception {
+        SampleJournal journal = newJournal(1024 * 1024, 8 * 1024 * 1024);
+        journal.open();
+        assertTrue(journal.append(samples(0, 5), false));
+        journal.close();
+
+        // Simulate a crash in the middle of a write
+        try (FileOutputStream out = new FileOutputStream(tempFolder.getRoot().listFiles((dir, name) -> name.endsWith(".journal"))[0], true)) {
+            out.write(new byte[] { 0, 0, 1, 0, 1, 2, 3, 4, 5 });
+        }
+
+        journal = newJournal(1024 * 1024, 8 * 1024 * 1024);
+        journal.open();
+        assertEquals(0, getFirstValue(journal.take(1, TimeUnit.SECONDS)));
+        assertNull(journal.take(10, TimeUnit.MILLISECONDS));
+        assertTrue(journal.append(samples(5, 5), false));
+        assertEquals(5, getFirstValue(journal.take(1, TimeUnit.SECONDS)));
+        journal.close();
+    }
+
+    @Test
+    public void batchesAreRejectedWhenFull() throws Exception {
+        final SampleJournal journal = newJournal(1024, 2048);
+        journal.open();
+        int appended = 0;
+        while (journal.append(samples(appended, 10), false)) {
+            appended++;
+        }
+        assertTrue(appended > 0);
+        assertTrue(journal.getSize() <= 2048);
+        assertFalse(journal.append(samples(0, 10), false));
+        journal.close();
+    }
+
+    /**
+     * Fails the first few inserts and verifies that the journaled samples
+     * are retried instead of being dropped.
+     */
+    @Test(timeout = 30000)
+    public void journaledSamplesSurviveRepositoryFailures() throws Exception {
+        final AtomicInteger failuresRemaining = new AtomicInteger(3);
+        final AtomicInteger numSamplesInserted = new AtomicInteger(0);
+        final SampleRepository sampleRepo = mock(SampleRepository.class);
+        doAnswer(invocation -> {
+            if (failuresRemaining.getAndDecrement() > 0) {
+                throw new RuntimeException("Cassandra is down");
+            }
+            numSamplesInserted.addAndGet(((Collection<?>) invocation.getArguments()[0]).size());
+            return null;
+        }).when(sampleRepo).insert(anyCollectionOf(Sample.class));
+
+        final MetricRegistry registry = new MetricRegistry();
+        final SampleJournal journal = new SampleJournal(true, tempFolder.getRoot().getAbsolutePath(), 1024 * 1024, 8 * 1024 * 1024, 100, registry);
+        final NewtsWriter writer = new NewtsWriter(16, 1024, 2, registry);
+        writer.setSampleRepository(sampleRepo);
+        writer.setJournal(journal);
+        writer.afterPropertiesSet();
+
+        for (int i = 0; i < 10; i++) {
+            writer.insert(samples(i * 10, 10));
+        }
+        while (numSamplesInserted.get() < 100) {
+            Thread.sleep(50);
+        }
+        writer.destroy();
+
+        assertEquals(100, numSamplesInserted.get());
+        assertEquals(0, journal.getLag());
+        assertEquals(100, registry.meter(MetricRegistry.name("journal", "appended-samples")).getCount());
+        assertEquals(0, registry.meter(MetricRegistry.name("ring-buffer", "dropped-samples")).getCount());
+    }
+
+    private SampleJournal newJournal(long segmentSize, long maxSize) {
+        return new SampleJournal(true, tempFolder.getRoot().getAbsolutePath(), segmentSize, maxSize, 60000, new MetricRegistry());
+    }
+
+    private int segmentCount() {
+        final File[] segments = tempFolder.getRoot().listFiles((dir, name) -> name.endsWith(".journal"));
+        return segments.length;
+    }
+
+    private static List<Sample> samples(int start, int count) {
+        final Resource resource = new Resource("x");
+        final List<Sample> samples = Lists.newArrayListWithCapacity(count);
+        for (int i = start; i < start + count; i++) {
+            samples.add(new Sample(Timestamp.fromEpochMillis(i * 1000L), resource, "y", MetricType.COUNTER, new Counter(i)));
+        }
+        return samples;
+    }
+
+    private static long getFirstValue(SampleJournal.Entry entry) {
+        return entry.getSamples().get(0).getValue().longValue();
+    }
+}
@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.newts.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opennms.newts.api.Context;
+import org.opennms.newts.api.Resource;
+import org.opennms.newts.cassandra.search.EscapableResourceIdSplitter;
+import org.opennms.newts.cassandra.search.ResourceMetadata;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.Sets;
+
+public class MappedResourceMetadataCacheTest {
+
+    private static final long MAX_SIZE = 4 * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private final Context m_ctx = Context.DEFAULT_CONTEXT;
+
+    @Test
+    public void canGetEntriesWithPrefix() throws Exception {
+        MappedResourceMetadataCache cache = newCache(MAX_SIZE);
+
+        assertTrue(cache.getResourceIdsWithPrefix(m_ctx, "a").isEmpty());
+
+        cache.merge(m_ctx, new Resource("a:b:c"), new ResourceMetadata());
+        cache.merge(m_ctx, new Resource("a:b:d"), new ResourceMetadata());
+        cache.merge(m_ctx, new Resource("a:e"), new ResourceMetadata());
+
+        assertEquals(Sets.newHashSet("a:b:c", "a:b:d", "a:e"), Sets.newHashSet(cache.getResourceIdsWithPrefix(m_ctx, "a")));
+        assertEquals(Sets.newHashSet("a:b:c", "a:b:d"), Sets.newHashSet(cache.getResourceIdsWithPrefix(m_ctx, "a:b")));
+        assertEquals(Sets.newHashSet("a:b:c"), Sets.newHashSet(cache.getResourceIdsWithPrefix(m_ctx, "a:b:c")));
+        assertTrue(cache.getResourceIdsWithPrefix(m_ctx, "a:b:c:d").isEmpty());
+        assertTrue(cache.getResourceIdsWithPrefix(new Context("other"), "a").isEmpty());
+
+        cache.delete(m_ctx, new Resource("a:b:c"));
+        assertEquals(Sets.newHashSet("a:b:d", "a:e"), Sets.newHashSet(cache.getResourceIdsWithPrefix(m_ctx, "a")));
+        assertFalse(cache.get(m_ctx, new Resource("a:b:c")).isPresent());
+        cache.destroy();
+    }
+
+    @Test
+    public void canMergeMetadata() throws Exception {
+        MappedResourceMetadataCache cache = newCache(MAX_SIZE);
+        Resource resource = new Resource("snmp:1:eth0:mib2-interfaces");
+
+        cache.merge(m_ctx, resource, new ResourceMetadata().putMetric("ifInOctets").putAttribute("ifName", "eth0"));
+        cache.merge(m_ctx, resource, new ResourceMetadata().putMetric("ifOutOctets"));
+
+        ResourceMetadata metadata = cache.get(m_ctx, resource).get();
+        assertTrue(metadata.containsMetric("ifInOctets"));
+        assertTrue(metadata.containsMetric("ifOutOctets"));
+        assertTrue(metadata.containsAttribute("ifName", "eth0"));
+        assertEquals(1, cache.getSize());
+        cache.destroy();
+    }
+
+    @Test
+    public void entriesArePersistedAcrossRestarts() throws Exception {
+        MappedResourceMetadataCache cache = newCache(MAX_SIZE);
+        cache.merge(m_ctx, new Resource("snmp:1:eth0"), new ResourceMetadata().putMetric("ifInOctets"));
+        cache.destroy();
+
+        cache = newCache(MAX_SIZE);
+        assertTrue(cache.get(m_ctx, new Resource("snmp:1:eth0")).get().containsMetric("ifInOctets"));
+        assertEquals(Sets.newHashSet("snmp:1:eth0"), Sets.newHashSet(cache.getResourceIdsWithPrefix(m_ctx, "snmp:1")));
+        cache.destroy();
+    }
+
+    @Test
+    public void entriesAreDiscardedWhenNotClosedCleanly() throws Exception {
+        MappedResourceMetadataCache cache = newCache(MAX_SIZE);
+        cache.merge(m_ctx, new Resource("snmp:1:eth0"), new ResourceMetadata().putMetric("ifInOctets"));
+
+        MappedResourceMetadataCache reopened = newCache(MAX_SIZE);
+        assertFalse(reopened.get(m_ctx, new Resource("snmp:1:eth0")).isPresent());
+        reopened.destroy();
+    }
+
+    @Test
+    public void usedEntriesSurviveEviction() throws Exception {
+        final MetricRegistry registry = new MetricRegistry();
+        final MappedResourceMetadataCache cache = new MappedResourceMetadataCache(tempFolder.getRoot().getAbsolutePath(),
+                256 * 1024L, registry, new EscapableResourceIdSplitter());
+        final Resource hot = new Resource("snmp:0:hot");
+        cache.merge(m_ctx, hot, new ResourceMetadata().putMetric("m"));
+
+        for (int i = 1; i < 20000; i++) {
+            cache.merge(m_ctx, new Resource("snmp:" + i + ":eth0"), new ResourceMetadata().putMetric("m"));
+            if (i % 100 == 0) {
+                assertTrue(cache.get(m_ctx, hot).isPresent());
+            }
+        }
+
+        assertTrue(registry.meter(MetricRegistry.name("cache", "rotations")).getCount() > 0);
+        assertTrue(cache.getSize() < 20000);
+        assertTrue(cache.get(m_ctx, hot).isPresent());
+        assertFalse(cache.get(m_ctx, new Resource("snmp:1:eth0")).isPresent());
+
+        final List<String> resourceIds = cache.getResourceIdsWithPrefix(m_ctx, "snmp:19999");
+        assertEquals(1, resourceIds.size());
+        cache.destroy();
+    }
+
+    private MappedResourceMetadataCache newCache(long maxSize) throws Exception {
+        return new MappedResourceMetadataCache(tempFolder.getRoot().getAbsolutePath(), maxSize,
+                new MetricRegistry(), new EscapableResourceIdSplitter());
+    }
+}
@@ -35,11 +35,14 @@ import java.util.Comparator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.opennms.core.spring.BeanUtils;
 import org.opennms.core.utils.CollectionMath;
 import org.opennms.core.utils.ParameterMap;
+import org.opennms.netmgt.icmp.ParallelPingResponseCallback;
 import org.opennms.netmgt.icmp.PingConstants;
+import org.opennms.netmgt.icmp.Pinger;
 import org.opennms.netmgt.icmp.PingerFactory;
 import org.opennms.netmgt.poller.Distributable;
 import org.opennms.netmgt.poller.MonitoredService;
@@ -106,7 +109,16 @@ final public class StrafePingMonitor extends AbstractServiceMonitor {
             final int dscp = ParameterMap.getKeyedDecodedInteger(parameters, "dscp", 0);
             final boolean allowFragmentation = ParameterMap.getKeyedBoolean(parameters, "allow-fragmentation", true);
 
-            responseTimes = new ArrayList<>(pingerFactory.get().getInstance(dscp, allowFragmentation).parallelPing(host, count, timeout, pingInterval, packetSize));
+            // The pinger paces the packets on its own, so the poller thread only waits for the outcome
+            // of the packets, and no longer than it takes for the last one to time out
+            final Pinger pinger = pingerFactory.get().getInstance(dscp, allowFragmentation);
+            final ParallelPingResponseCallback cb = new ParallelPingResponseCallback(count);
+            pinger.parallelPing(host, count, timeout, pingInterval, packetSize, cb);
+            final long effectiveTimeout = timeout == 0 ? PingConstants.DEFAULT_TIMEOUT : timeout;
+            if (!cb.waitFor(Math.max(0, count - 1) * pingInterval + 2 * effectiveTimeout, TimeUnit.MILLISECONDS)) {
+                LOG.debug("Gave up waiting for the outcome of some of the pings to {}, counting them as lost", host);
+            }
+            responseTimes = new ArrayList<>(cb.getResponseTimes());
 
             if (CollectionMath.countNull(responseTimes) >= failurePingCount) {
                 LOG.debug("Service {} on interface {} is down, but continuing to gather latency data", svc.getSvcName(), svc.getIpAddr());
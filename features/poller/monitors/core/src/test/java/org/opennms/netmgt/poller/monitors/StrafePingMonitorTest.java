@@ -0,0 +1,233 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.poller.monitors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.opennms.core.utils.InetAddressUtils;
+import org.opennms.netmgt.icmp.EchoPacket;
+import org.opennms.netmgt.icmp.PingResponseCallback;
+import org.opennms.netmgt.icmp.Pinger;
+import org.opennms.netmgt.icmp.PingerFactory;
+import org.opennms.netmgt.poller.MonitoredService;
+import org.opennms.netmgt.poller.PollStatus;
+import org.opennms.netmgt.poller.support.SimpleMonitoredService;
+
+public class StrafePingMonitorTest {
+
+    /**
+     * Answers every packet right away, except the ones whose sequence number is in lost,
+     * which are never answered at all.
+     */
+    private static class CallbackPinger implements Pinger {
+        private final List<Integer> m_lost;
+
+        private CallbackPinger(List<Integer> lost) {
+            m_lost = lost;
+        }
+
+        @Override
+        public void parallelPing(InetAddress host, int count, long timeout, long pingInterval, int size, PingResponseCallback cb) {
+            for (int seqNum = 0; seqNum < count; seqNum++) {
+                if (!m_lost.contains(seqNum)) {
+                    cb.handleResponse(host, new Reply(seqNum));
+                }
+            }
+        }
+
+        @Override
+        public List<Number> parallelPing(InetAddress host, int count, long timeout, long pingInterval, int size) {
+            throw new UnsupportedOperationException("the monitor must use the callback API");
+        }
+
+        @Override
+        public List<Number> parallelPing(InetAddress host, int count, long timeout, long pingInterval) {
+            throw new UnsupportedOperationException("the monitor must use the callback API");
+        }
+
+        @Override
+        public void ping(InetAddress host, long timeout, int retries, int packetsize, int sequenceId, PingResponseCallback cb) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void ping(InetAddress host, long timeout, int retries, int sequenceId, PingResponseCallback cb) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Number ping(InetAddress host, long timeout, int retries, int packetsize) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Number ping(InetAddress host, long timeout, int retries) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Number ping(InetAddress host) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setAllowFragmentation(boolean allow) {
+        }
+
+        @Override
+        public void setTrafficClass(int tc) {
+        }
+
+        @Override
+        public void initialize4() {
+        }
+
+        @Override
+        public void initialize6() {
+        }
+
+        @Override
+        public boolean isV4Available() {
+            return true;
+        }
+
+        @Override
+        public boolean isV6Available() {
+            return true;
+        }
+    }
+
+    private static class Reply implements EchoPacket {
+        private final int m_seqNum;
+
+        private Reply(int seqNum) {
+            m_seqNum = seqNum;
+        }
+
+        @Override
+        public boolean isEchoReply() {
+            return true;
+        }
+
+        @Override
+        public int getIdentifier() {
+            return 0;
+        }
+
+        @Override
+        public int getSequenceNumber() {
+            return m_seqNum;
+        }
+
+        @Override
+        public long getThreadId() {
+            return 0;
+        }
+
+        @Override
+        public long getReceivedTimeNanos() {
+            return TimeUnit.MICROSECONDS.toNanos(1000 + m_seqNum);
+        }
+
+        @Override
+        public long getSentTimeNanos() {
+            return 0;
+        }
+
+        @Override
+        public double elapsedTime(TimeUnit timeUnit) {
+            return timeUnit.convert(getReceivedTimeNanos() - getSentTimeNanos(), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private static StrafePingMonitor createMonitor(Pinger pinger) {
+        final StrafePingMonitor monitor = new StrafePingMonitor();
+        monitor.setPingerFactory(new PingerFactory() {
+            @Override
+            public Pinger getInstance() {
+                return pinger;
+            }
+
+            @Override
+            public Pinger getInstance(int tc, boolean allowFragmentation) {
+                return pinger;
+            }
+        });
+        return monitor;
+    }
+
+    @Test
+    public void testPoll() {
+        final StrafePingMonitor monitor = createMonitor(new CallbackPinger(Collections.emptyList()));
+        final MonitoredService svc = new SimpleMonitoredService(InetAddressUtils.addr("127.0.0.1"), "StrafePing");
+
+        final PollStatus status = monitor.poll(svc, new HashMap<String, Object>());
+        assertEquals(PollStatus.SERVICE_AVAILABLE, status.getStatusCode());
+        final Map<String, Number> properties = status.getProperties();
+        assertEquals(0, properties.get("loss").intValue());
+        assertEquals(1000.0, properties.get("ping1").doubleValue(), 0.0);
+        assertEquals(1019.0, properties.get("ping20").doubleValue(), 0.0);
+    }
+
+    @Test(timeout=30000)
+    public void testUnansweredPingsAreCountedAsLost() {
+        final StrafePingMonitor monitor = createMonitor(new CallbackPinger(Arrays.asList(3, 7)));
+        final MonitoredService svc = new SimpleMonitoredService(InetAddressUtils.addr("127.0.0.1"), "StrafePing");
+
+        final Map<String, Object> parameters = new HashMap<>();
+        parameters.put("ping-count", "10");
+        parameters.put("wait-interval", "10");
+        parameters.put("timeout", "200");
+        parameters.put("failure-ping-count", "2");
+
+        // The monitor gives up on the pings the pinger never reported
+        final long start = System.currentTimeMillis();
+        final PollStatus status = monitor.poll(svc, parameters);
+        assertTrue(System.currentTimeMillis() - start < 5000);
+
+        assertEquals(PollStatus.SERVICE_UNAVAILABLE, status.getStatusCode());
+        final Map<String, Number> properties = status.getProperties();
+        assertEquals(2, properties.get("loss").intValue());
+        assertNull(properties.get("ping1"));
+        assertNull(properties.get("ping2"));
+        assertEquals(1000.0, properties.get("ping3").doubleValue(), 0.0);
+    }
+}
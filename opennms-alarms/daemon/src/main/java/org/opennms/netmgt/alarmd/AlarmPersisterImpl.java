@@ -28,6 +28,18 @@
 
 package org.opennms.netmgt.alarmd;
 
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.opennms.core.concurrent.LogPreservingThreadFactory;
+import org.opennms.netmgt.alarmd.AlarmReductionBuffer.PendingReduction;
+import org.opennms.netmgt.alarmd.api.NorthboundAlarm;
+import org.opennms.netmgt.alarmd.api.Northbounder;
 import org.opennms.netmgt.dao.api.AlarmDao;
 import org.opennms.netmgt.dao.api.EventDao;
 import org.opennms.netmgt.events.api.EventConstants;
@@ -40,20 +52,110 @@ import org.opennms.netmgt.xml.event.Event;
 import org.opennms.netmgt.xml.event.UpdateField;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jdbc.core.JdbcOperations;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionOperations;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.util.Assert;
 
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
 /**
  * Singleton to persist OnmsAlarms.
  *
+ * When the <code>org.opennms.alarmd.writeBehind</code> system property is
+ * set, events that reduce onto an alarm we have already seen are not written
+ * one by one: they are merged per reduction key in an
+ * {@link AlarmReductionBuffer} and flushed in JDBC batches every
+ * <code>org.opennms.alarmd.writeBehind.flushInterval</code> milliseconds, or
+ * as soon as <code>org.opennms.alarmd.writeBehind.batchSize</code> events
+ * are pending. {@link #persist(Event)} returns null for these events and the
+ * northbound interfaces are notified once per alarm and flush instead.
+ *
  * @author <a href="mailto:david@opennms.org">David Hustace</a>
  * @version $Id: $
  */
-public class AlarmPersisterImpl implements AlarmPersister {
+public class AlarmPersisterImpl implements AlarmPersister, InitializingBean, DisposableBean {
     private static final Logger LOG = LoggerFactory.getLogger(AlarmPersisterImpl.class);
 
+    private static final String UPDATE_ALARM_SQL = "UPDATE alarms SET counter = counter + ?, lastEventId = ?, lastEventTime = ?, "
+            + "logMsg = CASE WHEN ? THEN ? ELSE logMsg END, eventParms = CASE WHEN ? THEN ? ELSE eventParms END, "
+            + "severity = COALESCE(?, severity) WHERE alarmId = ?";
+
+    private static final String UPDATE_EVENT_SQL = "UPDATE events SET alarmId = ? WHERE eventId = ?";
+
+    private static final String CLEAN_EVENTS_SQL = "DELETE FROM events WHERE alarmId = ? AND eventId <> ?";
+
     private AlarmDao m_alarmDao;
     private EventDao m_eventDao;
     private EventForwarder m_eventForwarder;
+    private JdbcOperations m_jdbcTemplate;
+    private TransactionOperations m_transactionOperations;
+    private List<Northbounder> m_northboundInterfaces;
+    private MetricRegistry m_metricRegistry;
+
+    private boolean m_writeBehind = Boolean.getBoolean("org.opennms.alarmd.writeBehind");
+    private long m_flushInterval = Long.getLong("org.opennms.alarmd.writeBehind.flushInterval", 500);
+    private int m_batchSize = Integer.getInteger("org.opennms.alarmd.writeBehind.batchSize", 1000);
+    private long m_indexSize = Long.getLong("org.opennms.alarmd.writeBehind.indexSize", 100000);
+    private long m_indexExpiry = Long.getLong("org.opennms.alarmd.writeBehind.indexExpiry", TimeUnit.HOURS.toMillis(1));
+
+    private AlarmReductionBuffer m_buffer;
+    private ScheduledExecutorService m_flusher;
+    private final AtomicBoolean m_flushScheduled = new AtomicBoolean(false);
+
+    /**
+     * Held while pending reductions are written, until the flush commits
+     */
+    private final Object m_flushLock = new Object();
+
+    private Timer m_flushTimer;
+    private Histogram m_flushSize;
+    private Timer m_reductionLatency;
+
+    @Override
+    public void afterPropertiesSet() {
+        if (!m_writeBehind) {
+            return;
+        }
+        Assert.notNull(m_jdbcTemplate, "jdbcTemplate must be set to use the write-behind mode");
+        Assert.notNull(m_transactionOperations, "transactionOperations must be set to use the write-behind mode");
+
+        final MetricRegistry registry = m_metricRegistry != null ? m_metricRegistry : new MetricRegistry();
+        m_flushTimer = registry.timer("alarms.writebehind.flush");
+        m_flushSize = registry.histogram("alarms.writebehind.flush.size");
+        m_reductionLatency = registry.timer("alarms.writebehind.latency");
+
+        m_buffer = new AlarmReductionBuffer(m_indexSize, m_indexExpiry);
+        m_flusher = Executors.newSingleThreadScheduledExecutor(new LogPreservingThreadFactory("AlarmWriteBehind", 1));
+        m_flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, m_flushInterval, m_flushInterval, TimeUnit.MILLISECONDS);
+        LOG.info("Write-behind enabled: flushing reduced events every {}ms or every {} events", m_flushInterval, m_batchSize);
+    }
+
+    @Override
+    public void destroy() {
+        if (m_flusher != null) {
+            m_flusher.shutdown();
+            try {
+                m_flusher.awaitTermination(m_flushInterval * 2, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            flush();
+            m_flusher = null;
+        }
+    }
 
     /** {@inheritDoc} 
      * @return */
@@ -64,7 +166,183 @@ public class AlarmPersisterImpl implements AlarmPersister {
         }
         LOG.debug("process: {}; nodeid: {}; ipaddr: {}; serviceid: {}", event.getUei(), event.getNodeid(), event.getInterface(), event.getService());
 
-        return addOrReduceEventAsAlarm(event);
+        final AlarmReductionBuffer buffer = m_buffer;
+        if (buffer == null) {
+            return addOrReduceEventAsAlarm(event);
+        }
+
+        if (buffer.offer(event)) {
+            LOG.debug("persist: deferred reduction of event {} with reduction key: {}", event.getDbid(), event.getAlarmData().getReductionKey());
+            if (buffer.getPendingEvents() >= m_batchSize && m_flushScheduled.compareAndSet(false, true)) {
+                m_flusher.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        m_flushScheduled.set(false);
+                        flush();
+                    }
+                });
+            }
+            return null;
+        }
+
+        // write anything pending for this alarm before reducing onto it
+        final String reductionKey = event.getAlarmData().getReductionKey();
+        buffer.beginSync(reductionKey);
+        try {
+            synchronized (m_flushLock) {
+                writePendingOrRestore(buffer.drain(reductionKey));
+            }
+            return addOrReduceEventAsAlarm(event);
+        } finally {
+            buffer.endSync(reductionKey);
+        }
+    }
+
+    /**
+     * Write all pending reductions in a single transaction.
+     */
+    void flush() {
+        final AlarmReductionBuffer buffer = m_buffer;
+        if (buffer == null) {
+            return;
+        }
+        synchronized (m_flushLock) {
+            final List<PendingReduction> pending = buffer.drain();
+            if (pending.isEmpty()) {
+                return;
+            }
+            try {
+                m_transactionOperations.execute(new TransactionCallbackWithoutResult() {
+                    @Override
+                    protected void doInTransactionWithoutResult(TransactionStatus status) {
+                        writePending(pending);
+                    }
+                });
+            } catch (Throwable t) {
+                LOG.error("Failed to flush reduced events onto {} alarms, retrying on the next flush", pending.size(), t);
+                buffer.restore(pending);
+            }
+        }
+    }
+
+    /**
+     * Write the pending reductions in the current transaction, and put them
+     * back into the buffer if they cannot be written or the transaction is
+     * rolled back, so that they are retried by the next flush.
+     */
+    private void writePendingOrRestore(final List<PendingReduction> pending) {
+        if (pending.isEmpty()) {
+            return;
+        }
+        try {
+            writePending(pending);
+        } catch (RuntimeException e) {
+            m_buffer.restore(pending);
+            throw e;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    if (status != STATUS_COMMITTED) {
+                        LOG.warn("Transaction rolled back, retrying the pending events for {} on the next flush", pending.get(0).getReductionKey());
+                        m_buffer.restore(pending);
+                    }
+                }
+            });
+        }
+    }
+
+    private void writePending(List<PendingReduction> pending) {
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        final Timer.Context context = m_flushTimer.time();
+        int events = 0;
+
+        final List<Object[]> alarmArgs = new ArrayList<Object[]>(pending.size());
+        for (final PendingReduction p : pending) {
+            alarmArgs.add(new Object[] {
+                p.getCount(),
+                p.getLastEventId(),
+                new Timestamp(p.getLastEventTime().getTime()),
+                p.isUpdateLogMsg(),
+                p.getLogMsg(),
+                p.isUpdateParms(),
+                p.getParms(),
+                p.getSeverity(),
+                p.getAlarm().getAlarmId()
+            });
+            events += p.getCount();
+        }
+        final int[] updated = batchUpdate(UPDATE_ALARM_SQL, alarmArgs);
+
+        final List<PendingReduction> written = new ArrayList<PendingReduction>(pending.size());
+        final List<Object[]> eventArgs = new ArrayList<Object[]>(events);
+        final List<Object[]> cleanArgs = new ArrayList<Object[]>();
+        for (int i = 0; i < pending.size(); i++) {
+            final PendingReduction p = pending.get(i);
+            if (updated[i] == 0) {
+                // the alarm was deleted since we indexed it, reduce the events again
+                LOG.info("Alarm {} for reduction key {} no longer exists, reprocessing {} events", p.getAlarm().getAlarmId(), p.getReductionKey(), p.getCount());
+                m_buffer.evict(p.getReductionKey());
+                for (final Event event : p.getEvents()) {
+                    addOrReduceEventAsAlarm(event);
+                }
+                continue;
+            }
+            written.add(p);
+            for (final Event event : p.getEvents()) {
+                eventArgs.add(new Object[] { p.getAlarm().getAlarmId(), event.getDbid() });
+            }
+            if (p.isAutoClean()) {
+                cleanArgs.add(new Object[] { p.getAlarm().getAlarmId(), p.getLastEventId() });
+            }
+        }
+        batchUpdate(UPDATE_EVENT_SQL, eventArgs);
+        batchUpdate(CLEAN_EVENTS_SQL, cleanArgs);
+
+        final long now = System.nanoTime();
+        for (final PendingReduction p : written) {
+            m_reductionLatency.update(now - p.getCreated(), TimeUnit.NANOSECONDS);
+            notifyReduced(p);
+        }
+
+        m_flushSize.update(events);
+        final long elapsed = context.stop();
+        LOG.debug("Flushed {} reduced events onto {} alarms in {}ms", events, pending.size(), TimeUnit.NANOSECONDS.toMillis(elapsed));
+    }
+
+    private int[] batchUpdate(String sql, List<Object[]> args) {
+        final int[] updated = new int[args.size()];
+        for (int i = 0; i < args.size(); i += m_batchSize) {
+            final int[] counts = m_jdbcTemplate.batchUpdate(sql, args.subList(i, Math.min(i + m_batchSize, args.size())));
+            System.arraycopy(counts, 0, updated, i, counts.length);
+        }
+        return updated;
+    }
+
+    private void notifyReduced(PendingReduction p) {
+        final EventBuilder ebldr = new EventBuilder(EventConstants.ALARM_UPDATED_WITH_REDUCED_EVENT_UEI, Alarmd.NAME);
+        ebldr.addParam(EventConstants.PARM_ALARM_UEI, p.getAlarm().getUei());
+        ebldr.addParam(EventConstants.PARM_ALARM_ID, p.getAlarm().getAlarmId());
+        m_eventForwarder.sendNow(ebldr.getEvent());
+
+        if (m_northboundInterfaces == null || m_northboundInterfaces.isEmpty()) {
+            return;
+        }
+        final OnmsAlarm alarm = m_alarmDao.get(p.getAlarm().getAlarmId());
+        if (alarm == null) {
+            return;
+        }
+        if (alarm.getNodeId() != null) {
+            alarm.getNode().getForeignSource(); // This should trigger the lazy loading of the node object, to properly populate the NorthboundAlarm class.
+        }
+        final NorthboundAlarm a = new NorthboundAlarm(alarm);
+        for (final Northbounder nbi : m_northboundInterfaces) {
+            nbi.onAlarm(a);
+        }
     }
 
     private OnmsAlarm addOrReduceEventAsAlarm(Event event) {
@@ -108,6 +386,10 @@ public class AlarmPersisterImpl implements AlarmPersister {
             alarm.getNode().getForeignSource(); // This should trigger the lazy loading of the node object, to properly populate the NorthboundAlarm class.
         }
 
+        if (m_buffer != null) {
+            m_buffer.index(reductionKey, alarm.getId(), alarm.getUei());
+        }
+
         if (ebldr != null) {
             ebldr.addParam(EventConstants.PARM_ALARM_UEI, alarm.getUei());
             ebldr.addParam(EventConstants.PARM_ALARM_ID, alarm.getId());
@@ -280,4 +562,36 @@ public class AlarmPersisterImpl implements AlarmPersister {
     public EventForwarder getEventForwarder() {
         return m_eventForwarder;
     }
+
+    public void setJdbcTemplate(JdbcOperations jdbcTemplate) {
+        m_jdbcTemplate = jdbcTemplate;
+    }
+
+    public void setTransactionOperations(TransactionOperations transactionOperations) {
+        m_transactionOperations = transactionOperations;
+    }
+
+    /**
+     * The northbound interfaces to notify of alarms that were updated by a
+     * write-behind flush.
+     */
+    public void setNorthboundInterfaces(List<Northbounder> northboundInterfaces) {
+        m_northboundInterfaces = northboundInterfaces;
+    }
+
+    public void setMetricRegistry(MetricRegistry metricRegistry) {
+        m_metricRegistry = metricRegistry;
+    }
+
+    public void setWriteBehind(boolean writeBehind) {
+        m_writeBehind = writeBehind;
+    }
+
+    public void setFlushInterval(long flushInterval) {
+        m_flushInterval = flushInterval;
+    }
+
+    public void setBatchSize(int batchSize) {
+        m_batchSize = batchSize;
+    }
 }
@@ -0,0 +1,403 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.alarmd;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.netmgt.events.api.EventDatabaseConstants;
+import org.opennms.netmgt.events.api.EventParameterUtils;
+import org.opennms.netmgt.model.OnmsSeverity;
+import org.opennms.netmgt.xml.event.AlarmData;
+import org.opennms.netmgt.xml.event.Event;
+import org.opennms.netmgt.xml.event.UpdateField;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * In-memory state for the write-behind mode of the {@link AlarmPersisterImpl}.
+ *
+ * Events that reduce onto an alarm we already know about are merged per
+ * reduction key until the next flush, so a flapping alarm results in one
+ * UPDATE per flush instead of one per event. The buffer also keeps an index
+ * of reduction key to alarm ID, which replaces the reduction-key lookup for
+ * the events it accepts.
+ *
+ * Events are only accepted when every field they update on reduction can be
+ * written without loading the alarm (counter, last event, log message,
+ * parameters and severity); anything else goes through the regular path.
+ */
+class AlarmReductionBuffer {
+
+    /**
+     * The alarm that a reduction key resolves to
+     */
+    static class AlarmRef {
+        private final int m_alarmId;
+        private final String m_uei;
+
+        AlarmRef(int alarmId, String uei) {
+            m_alarmId = alarmId;
+            m_uei = uei;
+        }
+
+        int getAlarmId() {
+            return m_alarmId;
+        }
+
+        String getUei() {
+            return m_uei;
+        }
+    }
+
+    /**
+     * The events merged onto one alarm since the last flush
+     */
+    static class PendingReduction {
+        private final String m_reductionKey;
+        private AlarmRef m_alarm;
+        private final List<Event> m_events = new ArrayList<Event>();
+        private final long m_created = System.nanoTime();
+        private int m_lastEventId;
+        private Date m_lastEventTime;
+        private boolean m_updateLogMsg = false;
+        private String m_logMsg;
+        private boolean m_updateParms = false;
+        private String m_parms;
+        private Integer m_severity;
+        private boolean m_autoClean = false;
+
+        private PendingReduction(String reductionKey, AlarmRef alarm) {
+            m_reductionKey = reductionKey;
+            m_alarm = alarm;
+        }
+
+        private void add(Event event, boolean updateLogMsg, boolean updateParms, boolean updateSeverity) {
+            m_events.add(event);
+            m_lastEventId = event.getDbid();
+            m_lastEventTime = event.getTime();
+            if (updateLogMsg) {
+                m_updateLogMsg = true;
+                m_logMsg = event.getLogmsg() == null ? null : EventDatabaseConstants.format(event.getLogmsg().getContent(), 0);
+            }
+            if (updateParms) {
+                m_updateParms = true;
+                m_parms = EventDatabaseConstants.format(EventParameterUtils.format(event), 0);
+            }
+            if (updateSeverity) {
+                m_severity = OnmsSeverity.get(event.getSeverity()).getId();
+            }
+            if (event.getAlarmData().isAutoClean()) {
+                m_autoClean = true;
+            }
+        }
+
+        /**
+         * Append the events of a more recent reduction for the same key.
+         */
+        private void merge(PendingReduction newer) {
+            m_alarm = newer.m_alarm;
+            m_events.addAll(newer.m_events);
+            m_lastEventId = newer.m_lastEventId;
+            m_lastEventTime = newer.m_lastEventTime;
+            if (newer.m_updateLogMsg) {
+                m_updateLogMsg = true;
+                m_logMsg = newer.m_logMsg;
+            }
+            if (newer.m_updateParms) {
+                m_updateParms = true;
+                m_parms = newer.m_parms;
+            }
+            if (newer.m_severity != null) {
+                m_severity = newer.m_severity;
+            }
+            m_autoClean |= newer.m_autoClean;
+        }
+
+        String getReductionKey() {
+            return m_reductionKey;
+        }
+
+        AlarmRef getAlarm() {
+            return m_alarm;
+        }
+
+        /**
+         * @return the merged events, in the order they were received
+         */
+        List<Event> getEvents() {
+            return m_events;
+        }
+
+        int getCount() {
+            return m_events.size();
+        }
+
+        int getLastEventId() {
+            return m_lastEventId;
+        }
+
+        Date getLastEventTime() {
+            return m_lastEventTime;
+        }
+
+        boolean isUpdateLogMsg() {
+            return m_updateLogMsg;
+        }
+
+        String getLogMsg() {
+            return m_logMsg;
+        }
+
+        boolean isUpdateParms() {
+            return m_updateParms;
+        }
+
+        String getParms() {
+            return m_parms;
+        }
+
+        /**
+         * @return the severity ID to set, or null if the severity is not updated
+         */
+        Integer getSeverity() {
+            return m_severity;
+        }
+
+        boolean isAutoClean() {
+            return m_autoClean;
+        }
+
+        /**
+         * @return when the first of the merged events was received, in nanoseconds
+         */
+        long getCreated() {
+            return m_created;
+        }
+    }
+
+    /**
+     * Reduction keys that are not in the index go through the regular path,
+     * which indexes them again, so entries can be evicted at any time.
+     */
+    private final Cache<String, AlarmRef> m_index;
+
+    private final Set<String> m_inFlight = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final Object m_lock = new Object();
+
+    private Map<String, PendingReduction> m_pending = new LinkedHashMap<String, PendingReduction>();
+
+    private int m_pendingEvents = 0;
+
+    public AlarmReductionBuffer() {
+        this(100000, TimeUnit.HOURS.toMillis(1));
+    }
+
+    /**
+     * @param maxIndexSize the maximum number of reduction keys to index
+     * @param indexExpiry the number of milliseconds after which reduction
+     *   keys that received no events are removed from the index
+     */
+    public AlarmReductionBuffer(long maxIndexSize, long indexExpiry) {
+        m_index = CacheBuilder.newBuilder()
+                .maximumSize(maxIndexSize)
+                .expireAfterAccess(indexExpiry, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * Remember the alarm for a reduction key.
+     */
+    public void index(String reductionKey, int alarmId, String uei) {
+        m_index.put(reductionKey, new AlarmRef(alarmId, uei));
+    }
+
+    /**
+     * Forget the alarm for a reduction key, i.e. because it was deleted.
+     */
+    public void evict(String reductionKey) {
+        m_index.invalidate(reductionKey);
+    }
+
+    public AlarmRef getAlarm(String reductionKey) {
+        return m_index.getIfPresent(reductionKey);
+    }
+
+    public long getIndexSize() {
+        return m_index.size();
+    }
+
+    /**
+     * Mark a reduction key as being processed by the regular path; events
+     * for it are not accepted until {@link #endSync(String)} is called.
+     */
+    public void beginSync(String reductionKey) {
+        m_inFlight.add(reductionKey);
+    }
+
+    public void endSync(String reductionKey) {
+        m_inFlight.remove(reductionKey);
+    }
+
+    /**
+     * Merge the event onto the pending reduction of its alarm.
+     *
+     * @return false if the event must go through the regular path instead
+     */
+    public boolean offer(Event event) {
+        final String reductionKey = event.getAlarmData().getReductionKey();
+        if (reductionKey == null || event.getDbid() == null || event.getDbid() <= 0 || event.getTime() == null) {
+            return false;
+        }
+
+        final AlarmRef alarm = m_index.getIfPresent(reductionKey);
+        if (alarm == null || m_inFlight.contains(reductionKey)) {
+            return false;
+        }
+
+        boolean updateLogMsg = false;
+        boolean updateParms = false;
+        boolean updateSeverity = false;
+
+        // mirrors AlarmPersisterImpl.reduceEvent()
+        final AlarmData alarmData = event.getAlarmData();
+        if (!alarmData.hasUpdateFields()) {
+            updateLogMsg = true;
+            updateParms = true;
+        } else {
+            for (final UpdateField field : alarmData.getUpdateFieldList()) {
+                final String fieldName = field.getFieldName();
+                if (fieldName.equalsIgnoreCase("LogMsg") && !field.isUpdateOnReduction()) {
+                    continue;
+                }
+                updateLogMsg = true;
+
+                if (fieldName.equalsIgnoreCase("Parms") && !field.isUpdateOnReduction()) {
+                    continue;
+                }
+                updateParms = true;
+
+                if (field.isUpdateOnReduction()) {
+                    final String lowerName = fieldName.toLowerCase();
+                    if (lowerName.equals("severity")) {
+                        updateSeverity = true;
+                    } else if (lowerName.startsWith("distpoller") || lowerName.startsWith("ipaddr") || lowerName.startsWith("mouseover") || lowerName.startsWith("operinstruct") || lowerName.contains("descr")) {
+                        return false;
+                    }
+                }
+            }
+        }
+
+        synchronized (m_lock) {
+            PendingReduction pending = m_pending.get(reductionKey);
+            if (pending == null) {
+                pending = new PendingReduction(reductionKey, alarm);
+                m_pending.put(reductionKey, pending);
+            }
+            pending.add(event, updateLogMsg, updateParms, updateSeverity);
+            m_pendingEvents++;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of events waiting to be flushed
+     */
+    public int getPendingEvents() {
+        synchronized (m_lock) {
+            return m_pendingEvents;
+        }
+    }
+
+    /**
+     * Remove and return all pending reductions.
+     */
+    public List<PendingReduction> drain() {
+        final Map<String, PendingReduction> pending;
+        synchronized (m_lock) {
+            if (m_pending.isEmpty()) {
+                return Collections.emptyList();
+            }
+            pending = m_pending;
+            m_pending = new LinkedHashMap<String, PendingReduction>();
+            m_pendingEvents = 0;
+        }
+        return new ArrayList<PendingReduction>(pending.values());
+    }
+
+    /**
+     * Put back reductions that were drained but could not be written, ahead
+     * of the events that were merged for the same keys in the meantime.
+     */
+    public void restore(List<PendingReduction> reductions) {
+        if (reductions.isEmpty()) {
+            return;
+        }
+        synchronized (m_lock) {
+            final Map<String, PendingReduction> pending = new LinkedHashMap<String, PendingReduction>();
+            for (final PendingReduction reduction : reductions) {
+                pending.put(reduction.getReductionKey(), reduction);
+                m_pendingEvents += reduction.getCount();
+            }
+            for (final PendingReduction newer : m_pending.values()) {
+                final PendingReduction older = pending.get(newer.getReductionKey());
+                if (older == null) {
+                    pending.put(newer.getReductionKey(), newer);
+                } else {
+                    older.merge(newer);
+                }
+            }
+            m_pending = pending;
+        }
+    }
+
+    /**
+     * Remove and return the pending reduction for one reduction key.
+     */
+    public List<PendingReduction> drain(String reductionKey) {
+        synchronized (m_lock) {
+            final PendingReduction pending = m_pending.remove(reductionKey);
+            if (pending == null) {
+                return Collections.emptyList();
+            }
+            m_pendingEvents -= pending.getCount();
+            return Collections.singletonList(pending);
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.alarmd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opennms.core.spring.BeanUtils;
+import org.opennms.core.test.OpenNMSJUnit4ClassRunner;
+import org.opennms.core.test.db.MockDatabase;
+import org.opennms.core.test.db.TemporaryDatabaseAware;
+import org.opennms.core.test.db.annotations.JUnitTemporaryDatabase;
+import org.opennms.netmgt.alarmd.api.NorthboundAlarm;
+import org.opennms.netmgt.alarmd.api.Northbounder;
+import org.opennms.netmgt.alarmd.api.NorthbounderException;
+import org.opennms.netmgt.dao.api.AlarmDao;
+import org.opennms.netmgt.dao.api.EventDao;
+import org.opennms.netmgt.dao.api.MonitoringLocationDao;
+import org.opennms.netmgt.dao.api.NodeDao;
+import org.opennms.netmgt.dao.mock.MockEventIpcManager;
+import org.opennms.netmgt.mock.MockEventUtil;
+import org.opennms.netmgt.mock.MockNetwork;
+import org.opennms.netmgt.model.OnmsAlarm;
+import org.opennms.netmgt.model.OnmsNode;
+import org.opennms.netmgt.model.events.EventBuilder;
+import org.opennms.netmgt.xml.event.AlarmData;
+import org.opennms.netmgt.xml.event.Event;
+import org.opennms.test.JUnitConfigurationEnvironment;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Verifies the statements written by the write-behind mode of the
+ * {@link AlarmPersisterImpl} against the database.
+ */
+@RunWith(OpenNMSJUnit4ClassRunner.class)
+@ContextConfiguration(locations={
+        "classpath:/META-INF/opennms/applicationContext-soa.xml",
+        "classpath:/META-INF/opennms/applicationContext-commonConfigs.xml",
+        "classpath:/META-INF/opennms/applicationContext-minimal-conf.xml",
+        "classpath:/META-INF/opennms/applicationContext-dao.xml",
+        "classpath*:/META-INF/opennms/component-dao.xml",
+        "classpath:/META-INF/opennms/applicationContext-daemon.xml",
+        "classpath:/META-INF/opennms/mockEventIpcManager.xml",
+        "classpath:/META-INF/opennms/applicationContext-alarmd.xml"
+})
+@JUnitConfigurationEnvironment
+@JUnitTemporaryDatabase(dirtiesContext=false,tempDbClass=MockDatabase.class,reuseDatabase=false)
+public class AlarmPersisterWriteBehindIT implements TemporaryDatabaseAware<MockDatabase>, InitializingBean {
+
+    private static final String REDUCTION_KEY = "flap:1";
+
+    private static class CountingNorthbounder implements Northbounder {
+        private final List<NorthboundAlarm> m_alarms = new ArrayList<NorthboundAlarm>();
+
+        @Override
+        public void start() throws NorthbounderException {
+        }
+
+        @Override
+        public void onAlarm(final NorthboundAlarm alarm) throws NorthbounderException {
+            m_alarms.add(alarm);
+        }
+
+        @Override
+        public void stop() throws NorthbounderException {
+        }
+
+        @Override
+        public String getName() {
+            return "CountingNorthbounder";
+        }
+
+        @Override
+        public void reloadConfig() {
+        }
+
+        public List<NorthboundAlarm> getAlarms() {
+            return m_alarms;
+        }
+    }
+
+    private MockNetwork m_mockNetwork = new MockNetwork();
+
+    @Autowired
+    private MonitoringLocationDao m_locationDao;
+
+    @Autowired
+    private NodeDao m_nodeDao;
+
+    @Autowired
+    private AlarmDao m_alarmDao;
+
+    @Autowired
+    private EventDao m_eventDao;
+
+    @Autowired
+    private JdbcTemplate m_jdbcTemplate;
+
+    @Autowired
+    private TransactionTemplate m_transactionTemplate;
+
+    @Autowired
+    private MockEventIpcManager m_eventdIpcMgr;
+
+    private MockDatabase m_database;
+
+    private AlarmPersisterImpl m_persister;
+
+    private CountingNorthbounder m_northbounder = new CountingNorthbounder();
+
+    @Override
+    public void setTemporaryDatabase(final MockDatabase database) {
+        m_database = database;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        BeanUtils.assertAutowiring(this);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        m_mockNetwork.createStandardNetwork();
+
+        // Insert an empty node to avoid foreign-key violations on the events and alarms
+        final OnmsNode node = new OnmsNode(m_locationDao.getDefaultLocation(), "node1");
+        node.setId(1);
+        m_nodeDao.save(node);
+        m_nodeDao.flush();
+
+        m_persister = new AlarmPersisterImpl();
+        m_persister.setAlarmDao(m_alarmDao);
+        m_persister.setEventDao(m_eventDao);
+        m_persister.setEventForwarder(m_eventdIpcMgr);
+        m_persister.setJdbcTemplate(m_jdbcTemplate);
+        m_persister.setTransactionOperations(m_transactionTemplate);
+        m_persister.setNorthboundInterfaces(Collections.<Northbounder>singletonList(m_northbounder));
+        m_persister.setWriteBehind(true);
+        // flushed explicitly by the tests
+        m_persister.setFlushInterval(3600000);
+        m_persister.afterPropertiesSet();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        m_persister.destroy();
+    }
+
+    @Test
+    public void testFlushUpdatesTheAlarmAndItsEvents() {
+        final Event first = createEvent(REDUCTION_KEY);
+        final OnmsAlarm alarm = persist(first);
+        assertNotNull(alarm);
+        final int alarmId = alarm.getId();
+
+        // the alarm is known, so the next events are deferred
+        final List<Event> reduced = new ArrayList<Event>();
+        for (int i = 0; i < 3; i++) {
+            final Event event = createEvent(REDUCTION_KEY);
+            assertNull(persist(event));
+            reduced.add(event);
+        }
+        assertEquals(1, getCounter(alarmId));
+
+        m_northbounder.getAlarms().clear();
+        m_persister.flush();
+
+        final Event last = reduced.get(reduced.size() - 1);
+        assertEquals(4, getCounter(alarmId));
+        assertEquals(last.getDbid(), m_jdbcTemplate.queryForObject("select lastEventId from alarms where alarmId = ?", Integer.class, alarmId));
+        assertEquals(last.getLogmsg().getContent(), m_jdbcTemplate.queryForObject("select logMsg from alarms where alarmId = ?", String.class, alarmId));
+        for (final Event event : reduced) {
+            assertEquals(Integer.valueOf(alarmId), getEventAlarmId(event));
+        }
+
+        // the northbound interfaces are notified once per alarm and flush
+        assertEquals(1, m_northbounder.getAlarms().size());
+        assertEquals(alarmId, m_northbounder.getAlarms().get(0).getId().intValue());
+
+        // nothing left to write
+        m_persister.flush();
+        assertEquals(4, getCounter(alarmId));
+    }
+
+    @Test
+    public void testEventsForDeletedAlarmsAreReducedAgain() {
+        final OnmsAlarm alarm = persist(createEvent(REDUCTION_KEY));
+        final int deletedAlarmId = alarm.getId();
+
+        final Event second = createEvent(REDUCTION_KEY);
+        final Event third = createEvent(REDUCTION_KEY);
+        assertNull(persist(second));
+        assertNull(persist(third));
+
+        m_jdbcTemplate.update("update events set alarmId = null where alarmId = ?", deletedAlarmId);
+        m_jdbcTemplate.update("delete from alarms where alarmId = ?", deletedAlarmId);
+
+        m_persister.flush();
+
+        // the deferred events created a new alarm through the regular path
+        assertEquals(1, m_jdbcTemplate.queryForObject("select count(*) from alarms", Integer.class).intValue());
+        final int alarmId = m_jdbcTemplate.queryForObject("select alarmId from alarms where reductionKey = ?", Integer.class, REDUCTION_KEY);
+        assertEquals(2, getCounter(alarmId));
+        assertEquals(third.getDbid(), m_jdbcTemplate.queryForObject("select lastEventId from alarms where alarmId = ?", Integer.class, alarmId));
+        assertEquals(Integer.valueOf(alarmId), getEventAlarmId(second));
+        assertEquals(Integer.valueOf(alarmId), getEventAlarmId(third));
+
+        // and the new alarm is used by the write-behind from now on
+        final Event fourth = createEvent(REDUCTION_KEY);
+        assertNull(persist(fourth));
+        m_persister.flush();
+        assertEquals(3, getCounter(alarmId));
+        assertEquals(Integer.valueOf(alarmId), getEventAlarmId(fourth));
+    }
+
+    private OnmsAlarm persist(final Event event) {
+        return m_transactionTemplate.execute(new TransactionCallback<OnmsAlarm>() {
+            @Override
+            public OnmsAlarm doInTransaction(TransactionStatus status) {
+                return m_persister.persist(event);
+            }
+        });
+    }
+
+    private Event createEvent(final String reductionKey) {
+        final EventBuilder bldr = MockEventUtil.createNodeDownEventBuilder("Test", m_mockNetwork.getNode(1));
+        final AlarmData data = new AlarmData();
+        data.setAlarmType(1);
+        data.setReductionKey(reductionKey);
+        bldr.setAlarmData(data);
+        bldr.setLogDest("logndisplay");
+        bldr.setLogMessage("node down " + System.nanoTime());
+
+        final Event event = bldr.getEvent();
+        // assigns the dbid
+        m_database.writeEvent(event);
+        return event;
+    }
+
+    private int getCounter(final int alarmId) {
+        return m_jdbcTemplate.queryForObject("select counter from alarms where alarmId = ?", Integer.class, alarmId);
+    }
+
+    private Integer getEventAlarmId(final Event event) {
+        return m_jdbcTemplate.queryForObject("select alarmId from events where eventId = ?", Integer.class, event.getDbid());
+    }
+}
@@ -0,0 +1,224 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.alarmd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.netmgt.alarmd.AlarmReductionBuffer.PendingReduction;
+import org.opennms.netmgt.model.OnmsSeverity;
+import org.opennms.netmgt.model.events.EventBuilder;
+import org.opennms.netmgt.xml.event.AlarmData;
+import org.opennms.netmgt.xml.event.Event;
+import org.opennms.netmgt.xml.event.UpdateField;
+
+public class AlarmReductionBufferTest {
+    private static final String UEI = "uei.opennms.org/test/flap";
+
+    private AlarmReductionBuffer m_buffer;
+    private int m_nextEventId = 1;
+
+    @Before
+    public void setUp() {
+        m_buffer = new AlarmReductionBuffer();
+    }
+
+    private Event createEvent(String reductionKey, OnmsSeverity severity, UpdateField... fields) {
+        final EventBuilder bldr = new EventBuilder(UEI, "test");
+        bldr.setTime(new Date(1000L * m_nextEventId));
+        bldr.setSeverity(severity.getLabel());
+        bldr.setLogMessage("event " + m_nextEventId);
+        final AlarmData alarmData = new AlarmData();
+        alarmData.setAlarmType(1);
+        alarmData.setReductionKey(reductionKey);
+        if (fields.length > 0) {
+            alarmData.setUpdateField(fields);
+        }
+        bldr.setAlarmData(alarmData);
+        final Event event = bldr.getEvent();
+        event.setDbid(m_nextEventId++);
+        return event;
+    }
+
+    private static UpdateField updateField(String name, boolean updateOnReduction) {
+        final UpdateField field = new UpdateField();
+        field.setFieldName(name);
+        field.setUpdateOnReduction(updateOnReduction);
+        return field;
+    }
+
+    @Test
+    public void testUnknownReductionKeyIsNotAccepted() {
+        assertFalse(m_buffer.offer(createEvent("flap:1", OnmsSeverity.MINOR)));
+        assertEquals(0, m_buffer.getPendingEvents());
+
+        m_buffer.index("flap:1", 42, UEI);
+        assertTrue(m_buffer.offer(createEvent("flap:1", OnmsSeverity.MINOR)));
+        assertEquals(1, m_buffer.getPendingEvents());
+
+        m_buffer.evict("flap:1");
+        assertNull(m_buffer.getAlarm("flap:1"));
+        assertFalse(m_buffer.offer(createEvent("flap:1", OnmsSeverity.MINOR)));
+    }
+
+    @Test
+    public void testEventsAreMergedPerReductionKey() {
+        m_buffer.index("flap:1", 42, UEI);
+        m_buffer.index("flap:2", 43, UEI);
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(m_buffer.offer(createEvent("flap:1", OnmsSeverity.MINOR)));
+        }
+        assertTrue(m_buffer.offer(createEvent("flap:2", OnmsSeverity.MINOR)));
+        assertEquals(6, m_buffer.getPendingEvents());
+
+        final List<PendingReduction> pending = m_buffer.drain();
+        assertEquals(2, pending.size());
+        assertEquals(0, m_buffer.getPendingEvents());
+
+        final PendingReduction first = pending.get(0);
+        assertEquals("flap:1", first.getReductionKey());
+        assertEquals(42, first.getAlarm().getAlarmId());
+        assertEquals(5, first.getCount());
+        assertEquals(5, first.getLastEventId());
+        assertEquals(new Date(5000L), first.getLastEventTime());
+        assertTrue(first.isUpdateLogMsg());
+        assertEquals("event 5", first.getLogMsg());
+        assertTrue(first.isUpdateParms());
+        assertNull(first.getSeverity());
+
+        assertEquals(1, pending.get(1).getCount());
+        assertTrue(m_buffer.drain().isEmpty());
+    }
+
+    @Test
+    public void testUpdateFields() {
+        m_buffer.index("flap:1", 42, UEI);
+
+        assertTrue(m_buffer.offer(createEvent("flap:1", OnmsSeverity.MAJOR, updateField("LogMsg", false))));
+        PendingReduction pending = m_buffer.drain().get(0);
+        assertFalse(pending.isUpdateLogMsg());
+        assertFalse(pending.isUpdateParms());
+        assertNull(pending.getSeverity());
+
+        assertTrue(m_buffer.offer(createEvent("flap:1", OnmsSeverity.MAJOR, updateField("Severity", true))));
+        pending = m_buffer.drain().get(0);
+        assertTrue(pending.isUpdateLogMsg());
+        assertTrue(pending.isUpdateParms());
+        assertEquals(OnmsSeverity.MAJOR.getId(), pending.getSeverity().intValue());
+
+        // fields that need the alarm to be loaded go through the regular path
+        assertFalse(m_buffer.offer(createEvent("flap:1", OnmsSeverity.MAJOR, updateField("OperInstruct", true))));
+        assertFalse(m_buffer.offer(createEvent("flap:1", OnmsSeverity.MAJOR, updateField("Descr", true))));
+        assertTrue(m_buffer.offer(createEvent("flap:1", OnmsSeverity.MAJOR, updateField("OperInstruct", false))));
+    }
+
+    @Test
+    public void testDrainSingleKey() {
+        m_buffer.index("flap:1", 42, UEI);
+        m_buffer.index("flap:2", 43, UEI);
+        m_buffer.offer(createEvent("flap:1", OnmsSeverity.MINOR));
+        m_buffer.offer(createEvent("flap:1", OnmsSeverity.MINOR));
+        m_buffer.offer(createEvent("flap:2", OnmsSeverity.MINOR));
+
+        final List<PendingReduction> pending = m_buffer.drain("flap:1");
+        assertEquals(1, pending.size());
+        assertEquals(2, pending.get(0).getCount());
+        assertEquals(1, m_buffer.getPendingEvents());
+        assertTrue(m_buffer.drain("flap:1").isEmpty());
+    }
+
+    @Test
+    public void testKeysBeingReducedSynchronouslyAreNotAccepted() {
+        m_buffer.index("flap:1", 42, UEI);
+        m_buffer.beginSync("flap:1");
+        assertFalse(m_buffer.offer(createEvent("flap:1", OnmsSeverity.MINOR)));
+        m_buffer.endSync("flap:1");
+        assertTrue(m_buffer.offer(createEvent("flap:1", OnmsSeverity.MINOR)));
+    }
+
+    @Test
+    public void testRestoreAfterFailedFlush() {
+        m_buffer.index("flap:1", 42, UEI);
+        m_buffer.index("flap:2", 43, UEI);
+        m_buffer.offer(createEvent("flap:1", OnmsSeverity.MINOR));
+        m_buffer.offer(createEvent("flap:1", OnmsSeverity.MINOR));
+        m_buffer.offer(createEvent("flap:2", OnmsSeverity.MINOR));
+
+        final List<PendingReduction> failed = m_buffer.drain();
+
+        // events keep arriving while the flush fails
+        m_buffer.offer(createEvent("flap:1", OnmsSeverity.MINOR));
+        m_buffer.index("flap:3", 44, UEI);
+        m_buffer.offer(createEvent("flap:3", OnmsSeverity.MINOR));
+
+        m_buffer.restore(failed);
+        assertEquals(5, m_buffer.getPendingEvents());
+
+        final List<PendingReduction> pending = m_buffer.drain();
+        assertEquals(3, pending.size());
+
+        final PendingReduction first = pending.get(0);
+        assertEquals("flap:1", first.getReductionKey());
+        assertEquals(3, first.getCount());
+        assertEquals(1, first.getEvents().get(0).getDbid().intValue());
+        assertEquals(4, first.getLastEventId());
+        assertEquals("event 4", first.getLogMsg());
+
+        assertEquals("flap:2", pending.get(1).getReductionKey());
+        assertEquals(1, pending.get(1).getCount());
+        assertEquals("flap:3", pending.get(2).getReductionKey());
+        assertEquals(1, pending.get(2).getCount());
+    }
+
+    @Test
+    public void testIndexIsBounded() {
+        m_buffer = new AlarmReductionBuffer(10, 60000);
+        for (int i = 0; i < 1000; i++) {
+            m_buffer.index("flap:" + i, i, UEI);
+        }
+        assertTrue(m_buffer.getIndexSize() <= 10);
+
+        // keys that were evicted are not accepted, and go through the regular path
+        assertNull(m_buffer.getAlarm("flap:0"));
+        assertFalse(m_buffer.offer(createEvent("flap:0", OnmsSeverity.MINOR)));
+
+        m_buffer = new AlarmReductionBuffer(10, 0);
+        m_buffer.index("flap:1", 42, UEI);
+        assertFalse(m_buffer.offer(createEvent("flap:1", OnmsSeverity.MINOR)));
+    }
+}
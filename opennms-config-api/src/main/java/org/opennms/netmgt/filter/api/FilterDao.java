@@ -65,6 +65,18 @@ public interface FilterDao {
 
     void flushActiveIpAddressListCache();
 
+    /**
+     * Flush the cached results of every rule that depends on one of the given
+     * tables (as named in database-schema.xml, case-insensitive).
+     *
+     * Implementations that do not track rule dependencies flush everything.
+     *
+     * @param tables the tables whose contents have changed
+     */
+    default void flushCachedResults(final Set<String> tables) {
+        flushActiveIpAddressListCache();
+    }
+
     /**
      * Get the (non-deleted) IP addresses that match the specified rule.
      *
@@ -0,0 +1,355 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.xml.eventconf;
+
+import static org.opennms.netmgt.xml.eventconf.Maskelement.TAG_SNMP_EID;
+import static org.opennms.netmgt.xml.eventconf.Maskelement.TAG_SNMP_GENERIC;
+import static org.opennms.netmgt.xml.eventconf.Maskelement.TAG_SNMP_SPECIFIC;
+import static org.opennms.netmgt.xml.eventconf.Maskelement.TAG_UEI;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.opennms.netmgt.xml.eventconf.Events.EventCallback;
+
+/**
+ * A compiled form of the event configuration used to find the first event
+ * definition matching an event.
+ *
+ * {@link Events#findFirstMatchingEvent(org.opennms.netmgt.xml.event.Event)}
+ * evaluates the matchers of every event definition in the enterprise id
+ * partition of the event, along with all of the definitions that are not
+ * partitioned, until one matches. This tree is built once when the
+ * configuration is loaded and branches on the values of the enterprise id,
+ * generic, specific, UEI and varbind mask elements of the definitions, so that
+ * only the matchers of the definitions that could possibly match the event are
+ * evaluated.
+ *
+ * Definitions whose mask element for a given field only contains literal values
+ * are indexed by these values, all other definitions (wildcards, regular
+ * expressions or no mask element for the field) are placed in a wildcard branch
+ * that is always searched. The first matching definition, in configuration
+ * order, is returned, so the results are the same as those of
+ * {@link Events#findFirstMatchingEvent(org.opennms.netmgt.xml.event.Event)}
+ * when the events are partitioned by enterprise id.
+ *
+ * The tree is immutable and must be rebuilt when the events are re-initialized.
+ */
+public class EventDecisionTree {
+
+	/**
+	 * Nodes with no more than this many definitions are not split any further.
+	 */
+	private static final int MAX_LEAF_SIZE = 4;
+
+	/**
+	 * Event definitions in the order in which they should be evaluated.
+	 */
+	private final Event[] m_events;
+
+	private final Map<String, Event> m_eventsByUei = new HashMap<>();
+
+	private final Node m_root;
+
+	private interface Node {
+		/**
+		 * @return the position of the first definition in this node matching the event,
+		 *   or <code>bound</code> if none of the definitions before <code>bound</code> match.
+		 */
+		int search(org.opennms.netmgt.xml.event.Event matchingEvent, int bound);
+	}
+
+	private class Leaf implements Node {
+		private final int[] m_positions;
+
+		private Leaf(List<Candidate> candidates) {
+			m_positions = new int[candidates.size()];
+			for (int i = 0; i < m_positions.length; i++) {
+				m_positions[i] = candidates.get(i).position;
+			}
+		}
+
+		@Override
+		public int search(org.opennms.netmgt.xml.event.Event matchingEvent, int bound) {
+			for (int position : m_positions) {
+				if (position >= bound) {
+					break;
+				}
+				if (m_events[position].matches(matchingEvent)) {
+					return position;
+				}
+			}
+			return bound;
+		}
+	}
+
+	private static class Branch implements Node {
+		private final Field m_field;
+		private final Map<String, Node> m_children;
+		private final Node m_wildcard;
+
+		private Branch(Field field, Map<String, Node> children, Node wildcard) {
+			m_field = field;
+			m_children = children;
+			m_wildcard = wildcard;
+		}
+
+		@Override
+		public int search(org.opennms.netmgt.xml.event.Event matchingEvent, int bound) {
+			int first = bound;
+			final String value = m_field.get(matchingEvent);
+			if (value != null) {
+				final Node child = m_children.get(value);
+				if (child != null) {
+					first = child.search(matchingEvent, first);
+				}
+			}
+			if (m_wildcard != null) {
+				// Only definitions that appear before the match in the configuration are of interest
+				first = m_wildcard.search(matchingEvent, first);
+			}
+			return first;
+		}
+	}
+
+	/**
+	 * A field of the event that the tree can branch on.
+	 */
+	private static abstract class Dimension {
+		private final Field m_field;
+
+		private Dimension(Field field) {
+			m_field = field;
+		}
+
+		/**
+		 * @return the values that the field must have for the definition to match,
+		 *   or <code>null</code> if the field can have any value.
+		 */
+		protected abstract Set<String> getValues(Event event);
+	}
+
+	private static class MaskElementDimension extends Dimension {
+		private final String m_name;
+
+		private MaskElementDimension(String name) {
+			super(EventMatchers.field(name));
+			m_name = name;
+		}
+
+		@Override
+		protected Set<String> getValues(Event event) {
+			if (!hasMaskElements(event)) {
+				// These definitions are matched by UEI only
+				return TAG_UEI.equals(m_name) ? Collections.singleton(event.getUei()) : null;
+			}
+			final Maskelement element = event.getMask().getMaskElement(m_name);
+			return element == null ? null : literalValues(element.getMevalueCollection());
+		}
+	}
+
+	private static class VarbindDimension extends Dimension {
+		private final int m_vbnumber;
+
+		private VarbindDimension(int vbnumber) {
+			super(EventMatchers.varbind(vbnumber));
+			m_vbnumber = vbnumber;
+		}
+
+		@Override
+		protected Set<String> getValues(Event event) {
+			if (!hasMaskElements(event)) {
+				// Varbinds are ignored when there are no mask elements
+				return null;
+			}
+			for (Varbind varbind : event.getMask().getVarbindCollection()) {
+				if (varbind.getVbnumber() != null && varbind.getVbnumber() == m_vbnumber) {
+					return literalValues(varbind.getVbvalueCollection());
+				}
+			}
+			return null;
+		}
+	}
+
+	private static class Candidate {
+		private final int position;
+		private final Event event;
+
+		private Candidate(int position, Event event) {
+			this.position = position;
+			this.event = event;
+		}
+	}
+
+	public EventDecisionTree(Events events) {
+		final List<Event> allEvents = events.forEachEvent(new ArrayList<Event>(), new EventCallback<List<Event>>() {
+			@Override
+			public List<Event> process(List<Event> accum, Event event) {
+				accum.add(event);
+				return accum;
+			}
+		});
+		m_events = allEvents.toArray(new Event[allEvents.size()]);
+
+		final List<Candidate> candidates = new ArrayList<>(m_events.length);
+		for (int i = 0; i < m_events.length; i++) {
+			final Event event = m_events[i];
+			if (event.getUei() != null) {
+				// Don't overwrite existing keys, first one wins
+				m_eventsByUei.putIfAbsent(event.getUei(), event);
+			}
+			if (!hasMaskElements(event) && event.getUei() == null) {
+				// These never match
+				continue;
+			}
+			candidates.add(new Candidate(i, event));
+		}
+
+		m_root = build(candidates, getDimensions(candidates), 0);
+	}
+
+	/**
+	 * Find the first event definition that matches the given event.
+	 *
+	 * @return the matching event definition, or <code>null</code> if none match
+	 */
+	public Event findFirstMatchingEvent(org.opennms.netmgt.xml.event.Event matchingEvent) {
+		// Attempt to match the event definition by UEI
+		final String ueiToMatch = matchingEvent.getUei();
+		if (ueiToMatch != null) {
+			final Event matchedEvent = m_eventsByUei.get(ueiToMatch);
+			if (matchedEvent != null) {
+				return matchedEvent;
+			}
+		}
+
+		final int position = m_root.search(matchingEvent, m_events.length);
+		return position < m_events.length ? m_events[position] : null;
+	}
+
+	public int getEventCount() {
+		return m_events.length;
+	}
+
+	/**
+	 * The mask element dimensions come first, followed by the varbinds ordered by the
+	 * number of definitions that constrain them.
+	 */
+	private static List<Dimension> getDimensions(List<Candidate> candidates) {
+		final List<Dimension> dimensions = new ArrayList<>();
+		dimensions.add(new MaskElementDimension(TAG_SNMP_EID));
+		dimensions.add(new MaskElementDimension(TAG_SNMP_GENERIC));
+		dimensions.add(new MaskElementDimension(TAG_SNMP_SPECIFIC));
+		dimensions.add(new MaskElementDimension(TAG_UEI));
+
+		final Map<Integer, Integer> varbindCounts = new HashMap<>();
+		for (Candidate candidate : candidates) {
+			if (!hasMaskElements(candidate.event)) {
+				continue;
+			}
+			for (Varbind varbind : candidate.event.getMask().getVarbindCollection()) {
+				if (varbind.getVbnumber() != null && varbind.getVbnumber() > 0 && literalValues(varbind.getVbvalueCollection()) != null) {
+					varbindCounts.merge(varbind.getVbnumber(), 1, Integer::sum);
+				}
+			}
+		}
+		final List<Entry<Integer, Integer>> varbinds = new ArrayList<>(varbindCounts.entrySet());
+		varbinds.sort((a, b) -> b.getValue().compareTo(a.getValue()));
+		for (Entry<Integer, Integer> varbind : varbinds) {
+			dimensions.add(new VarbindDimension(varbind.getKey()));
+		}
+		return dimensions;
+	}
+
+	private Node build(List<Candidate> candidates, List<Dimension> dimensions, int depth) {
+		if (candidates.size() <= MAX_LEAF_SIZE || depth >= dimensions.size()) {
+			return new Leaf(candidates);
+		}
+
+		final Dimension dimension = dimensions.get(depth);
+		// Keep the candidates in order in each of the branches
+		final Map<String, List<Candidate>> partitions = new LinkedHashMap<>();
+		final List<Candidate> wildcards = new ArrayList<>();
+		for (Candidate candidate : candidates) {
+			final Set<String> values = dimension.getValues(candidate.event);
+			if (values == null) {
+				wildcards.add(candidate);
+				continue;
+			}
+			for (String value : values) {
+				List<Candidate> partition = partitions.get(value);
+				if (partition == null) {
+					partition = new ArrayList<>(1);
+					partitions.put(value, partition);
+				}
+				partition.add(candidate);
+			}
+		}
+
+		if (partitions.isEmpty()) {
+			// None of the definitions are constrained on this field
+			return build(candidates, dimensions, depth + 1);
+		}
+
+		final Map<String, Node> children = new HashMap<>();
+		for (Entry<String, List<Candidate>> partition : partitions.entrySet()) {
+			children.put(partition.getKey(), build(partition.getValue(), dimensions, depth + 1));
+		}
+		final Node wildcard = wildcards.isEmpty() ? null : build(wildcards, dimensions, depth + 1);
+		return new Branch(dimension.m_field, children, wildcard);
+	}
+
+	private static boolean hasMaskElements(Event event) {
+		return event.getMask() != null && event.getMask().getMaskelementCount() > 0;
+	}
+
+	/**
+	 * @return the values if they are all literals, or <code>null</code> if any of them
+	 *   are wildcards or regular expressions.
+	 */
+	private static Set<String> literalValues(List<String> values) {
+		final Set<String> literals = new HashSet<>();
+		for (String value : values) {
+			if (value == null) continue;
+			if (value.startsWith("~") || value.endsWith("%")) {
+				return null;
+			}
+			literals.add(value);
+		}
+		return literals;
+	}
+}
@@ -42,6 +42,7 @@ import java.util.TreeSet;
 import org.opennms.core.xml.JaxbUtils;
 import org.opennms.netmgt.config.api.EventConfDao;
 import org.opennms.netmgt.xml.eventconf.Event;
+import org.opennms.netmgt.xml.eventconf.EventDecisionTree;
 import org.opennms.netmgt.xml.eventconf.EventLabelComparator;
 import org.opennms.netmgt.xml.eventconf.EventMatchers;
 import org.opennms.netmgt.xml.eventconf.EventOrdering;
@@ -70,6 +71,15 @@ public class DefaultEventConfDao implements EventConfDao, InitializingBean {
 
 	private Partition m_partition;
 
+	/**
+	 * Compiled form of m_events used by findByEvent(), rebuilt whenever the events
+	 * are initialized. Null when disabled with the org.opennms.eventconf.decisionTree
+	 * system property.
+	 */
+	private volatile EventDecisionTree m_decisionTree;
+
+	private final boolean m_useDecisionTree = Boolean.parseBoolean(System.getProperty("org.opennms.eventconf.decisionTree", "true"));
+
     /**
      * Used to keep track of the last modified time for the loaded event files.
      * See the reloadConfig() for details.
@@ -176,7 +186,7 @@ public class DefaultEventConfDao implements EventConfDao, InitializingBean {
 	@Override
 	public void addEvent(Event event) {
 		m_events.addEvent(event);
-		m_events.initialize(m_partition, new EventOrdering());
+		initialize(m_events);
 	}
 
 	@Override
@@ -188,7 +198,7 @@ public class DefaultEventConfDao implements EventConfDao, InitializingBean {
 		}
 
 		programmaticEvents.addEvent(event);
-		m_events.initialize(m_partition, new EventOrdering());
+		initialize(m_events);
 
 	}
 
@@ -202,7 +212,7 @@ public class DefaultEventConfDao implements EventConfDao, InitializingBean {
 			m_events.removeLoadedEventFile(m_programmaticStoreRelativePath);
 		} 
 
-		m_events.initialize(m_partition, new EventOrdering());
+		initialize(m_events);
 
 		return true;
 
@@ -227,6 +237,10 @@ public class DefaultEventConfDao implements EventConfDao, InitializingBean {
 
 	@Override
 	public Event findByEvent(final org.opennms.netmgt.xml.event.Event matchingEvent) {
+		final EventDecisionTree decisionTree = m_decisionTree;
+		if (decisionTree != null) {
+			return decisionTree.findFirstMatchingEvent(matchingEvent);
+		}
 		return m_events.findFirstMatchingEvent(matchingEvent);
 	}
 
@@ -269,6 +283,14 @@ public class DefaultEventConfDao implements EventConfDao, InitializingBean {
 		
 	}
 
+	/**
+	 * Initializes the given events and compiles them into the decision tree.
+	 */
+	private void initialize(Events events) {
+		events.initialize(m_partition, new EventOrdering());
+		m_decisionTree = m_useDecisionTree ? new EventDecisionTree(events) : null;
+	}
+
     private synchronized void reloadConfig() throws DataAccessException {
         try {
             // Load the root event file
@@ -292,7 +314,7 @@ public class DefaultEventConfDao implements EventConfDao, InitializingBean {
             events.loadEventFilesIfModified(m_configResource, m_lastModifiedEventFiles);
 
             // Order the events for efficient searching
-            events.initialize(m_partition, new EventOrdering());
+            initialize(events);
 
             m_events = events;
         } catch (Exception e) {
@@ -306,7 +328,7 @@ public class DefaultEventConfDao implements EventConfDao, InitializingBean {
 			m_lastModifiedEventFiles = events.loadEventFiles(m_configResource);
 
 			m_partition = new EnterpriseIdPartition();
-			events.initialize(m_partition, new EventOrdering());
+			initialize(events);
 
 			m_events = events;
 		} catch (Exception e) {
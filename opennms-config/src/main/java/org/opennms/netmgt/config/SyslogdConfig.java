@@ -28,6 +28,8 @@
 
 package org.opennms.netmgt.config;
 
+import java.util.function.Function;
+
 import org.opennms.netmgt.config.syslogd.HideMessage;
 import org.opennms.netmgt.config.syslogd.UeiList;
 
@@ -108,5 +110,12 @@ public interface SyslogdConfig {
      * @return a {@link java.lang.String} object.
      */
     String getDiscardUei();
+
+    /**
+     * Returns the &lt;ueiMatch&gt; and &lt;hideMatch&gt; rules compiled by
+     * the given function. The result is held by this configuration, and the
+     * function is only called again once the configuration has changed.
+     */
+    <T> T getCompiledRules(Function<SyslogdConfig, T> compiler);
 }
 
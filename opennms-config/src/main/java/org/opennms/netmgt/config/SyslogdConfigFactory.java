@@ -31,6 +31,7 @@ package org.opennms.netmgt.config;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.function.Function;
 
 import org.exolab.castor.xml.MarshalException;
 import org.exolab.castor.xml.ValidationException;
@@ -63,6 +64,11 @@ public final class SyslogdConfigFactory implements SyslogdConfig {
      */
     private SyslogdConfiguration m_config;
 
+    /**
+     * The rules compiled from m_config, dropped on reload
+     */
+    private Object m_compiledRules;
+
     /**
      * Private constructor
      *
@@ -104,6 +110,7 @@ public final class SyslogdConfigFactory implements SyslogdConfig {
         File configFile = ConfigFileConstants.getFile(ConfigFileConstants.SYSLOGD_CONFIG_FILE_NAME);
         m_config = CastorUtils.unmarshal(SyslogdConfiguration.class, new FileSystemResource(configFile));
         parseIncludedFiles();
+        m_compiledRules = null;
     }
 
     /**
@@ -210,6 +217,16 @@ public final class SyslogdConfigFactory implements SyslogdConfig {
         return m_config.getConfiguration().getDiscardUei();
     }
 
+    /** {@inheritDoc} */
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized <T> T getCompiledRules(final Function<SyslogdConfig, T> compiler) {
+        if (m_compiledRules == null) {
+            m_compiledRules = compiler.apply(this);
+        }
+        return (T)m_compiledRules;
+    }
+
     /**
      * Parse import-file tags and add all uei-matchs and hide-messages.
      * 
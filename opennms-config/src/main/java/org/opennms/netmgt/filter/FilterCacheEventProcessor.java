@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.filter;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.opennms.netmgt.events.api.EventConstants;
+import org.opennms.netmgt.events.api.annotations.EventHandler;
+import org.opennms.netmgt.events.api.annotations.EventListener;
+import org.opennms.netmgt.filter.api.FilterDao;
+import org.opennms.netmgt.xml.event.Event;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.util.Assert;
+
+/**
+ * Flushes the results cached by the {@link FilterDao} when nodes, interfaces,
+ * services or categories change. Only the rules that depend on the tables
+ * touched by an event are flushed.
+ */
+@EventListener(name="OpenNMS.FilterDao", logPrefix="eventd")
+public class FilterCacheEventProcessor implements InitializingBean {
+    private static final Logger LOG = LoggerFactory.getLogger(FilterCacheEventProcessor.class);
+
+    private static final Map<String, Set<String>> TABLES_BY_UEI = new HashMap<>();
+
+    static {
+        final Set<String> nodes = tables("node");
+        final Set<String> interfaces = tables("node", "ipInterface", "snmpInterface");
+        final Set<String> services = tables("ifServices", "service");
+        TABLES_BY_UEI.put(EventConstants.NODE_ADDED_EVENT_UEI, nodes);
+        TABLES_BY_UEI.put(EventConstants.NODE_LABEL_CHANGED_EVENT_UEI, nodes);
+        TABLES_BY_UEI.put(EventConstants.NODE_INFO_CHANGED_EVENT_UEI, nodes);
+        TABLES_BY_UEI.put(EventConstants.NODE_UPDATED_EVENT_UEI, tables("node", "snmpInterface"));
+        TABLES_BY_UEI.put(EventConstants.NODE_GAINED_INTERFACE_EVENT_UEI, interfaces);
+        TABLES_BY_UEI.put(EventConstants.INTERFACE_DELETED_EVENT_UEI, interfaces);
+        TABLES_BY_UEI.put(EventConstants.INTERFACE_REPARENTED_EVENT_UEI, interfaces);
+        TABLES_BY_UEI.put(EventConstants.REINITIALIZE_PRIMARY_SNMP_INTERFACE_EVENT_UEI, interfaces);
+        TABLES_BY_UEI.put(EventConstants.NODE_GAINED_SERVICE_EVENT_UEI, services);
+        TABLES_BY_UEI.put(EventConstants.SERVICE_DELETED_EVENT_UEI, services);
+        TABLES_BY_UEI.put(EventConstants.SERVICE_UNMANAGED_EVENT_UEI, services);
+        TABLES_BY_UEI.put(EventConstants.NODE_CATEGORY_MEMBERSHIP_CHANGED_EVENT_UEI, tables("categories", "category_node"));
+        TABLES_BY_UEI.put(EventConstants.ASSET_INFO_CHANGED_EVENT_UEI, tables("assets"));
+    }
+
+    private FilterDao m_filterDao;
+
+    public void setFilterDao(final FilterDao filterDao) {
+        m_filterDao = filterDao;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        Assert.state(m_filterDao != null, "property filterDao cannot be null");
+    }
+
+    @EventHandler(ueis={
+            EventConstants.NODE_ADDED_EVENT_UEI,
+            EventConstants.NODE_LABEL_CHANGED_EVENT_UEI,
+            EventConstants.NODE_INFO_CHANGED_EVENT_UEI,
+            EventConstants.NODE_UPDATED_EVENT_UEI,
+            EventConstants.NODE_GAINED_INTERFACE_EVENT_UEI,
+            EventConstants.INTERFACE_DELETED_EVENT_UEI,
+            EventConstants.INTERFACE_REPARENTED_EVENT_UEI,
+            EventConstants.REINITIALIZE_PRIMARY_SNMP_INTERFACE_EVENT_UEI,
+            EventConstants.NODE_GAINED_SERVICE_EVENT_UEI,
+            EventConstants.SERVICE_DELETED_EVENT_UEI,
+            EventConstants.SERVICE_UNMANAGED_EVENT_UEI,
+            EventConstants.NODE_CATEGORY_MEMBERSHIP_CHANGED_EVENT_UEI,
+            EventConstants.ASSET_INFO_CHANGED_EVENT_UEI
+    })
+    public void handleInventoryChanged(final Event event) {
+        final Set<String> tables = TABLES_BY_UEI.get(event.getUei());
+        LOG.debug("Received event: {}, flushing filter results depending on {}", event.getUei(), tables);
+        if (tables != null) {
+            m_filterDao.flushCachedResults(tables);
+        }
+    }
+
+    @EventHandler(ueis={
+            EventConstants.NODE_DELETED_EVENT_UEI,
+            EventConstants.DUP_NODE_DELETED_EVENT_UEI
+    })
+    public void handleNodeDeleted(final Event event) {
+        LOG.debug("Received event: {}, flushing all filter results", event.getUei());
+        m_filterDao.flushActiveIpAddressListCache();
+    }
+
+    private static Set<String> tables(final String... tables) {
+        return Collections.unmodifiableSet(new HashSet<>(Arrays.asList(tables)));
+    }
+}
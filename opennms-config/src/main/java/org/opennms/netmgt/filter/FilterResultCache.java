@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.filter;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the results of filter rules, keyed by result type and normalized rule.
+ *
+ * Every entry remembers the tables its rule depends on so that a change to
+ * one table only evicts the rules that reference it. A generation counter is
+ * bumped on every invalidation: results computed while an invalidation was
+ * in progress are discarded instead of being cached. When the cache is full,
+ * the least recently used entry is evicted.
+ */
+class FilterResultCache {
+
+    enum ResultType {
+        ACTIVE_IP_ADDRESSES,
+        IP_ADDRESSES,
+        NODE_MAP
+    }
+
+    private static final class Key {
+        private final ResultType m_type;
+        private final String m_rule;
+
+        private Key(final ResultType type, final String rule) {
+            m_type = type;
+            m_rule = rule;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * m_type.hashCode() + m_rule.hashCode();
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key)obj;
+            return m_type == other.m_type && m_rule.equals(other.m_rule);
+        }
+    }
+
+    private static final class Entry {
+        private final Object m_value;
+        private final Set<String> m_tables;
+        private final long m_expires;
+
+        private Entry(final Object value, final Set<String> tables, final long expires) {
+            m_value = value;
+            m_tables = tables;
+            m_expires = expires;
+        }
+    }
+
+    private final Map<Key, Entry> m_entries;
+    private final AtomicLong m_generation = new AtomicLong();
+    private final AtomicLong m_hits = new AtomicLong();
+    private final AtomicLong m_misses = new AtomicLong();
+    private final int m_maxSize;
+    private final long m_ttlNanos;
+
+    FilterResultCache(final int maxSize, final long ttl, final TimeUnit unit) {
+        m_maxSize = maxSize;
+        m_ttlNanos = unit.toNanos(ttl);
+        m_entries = Collections.synchronizedMap(new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Key, FilterResultCache.Entry> eldest) {
+                return size() > m_maxSize;
+            }
+        });
+    }
+
+    /**
+     * @return the current generation, to be passed to {@link #put} once the
+     *   result has been computed
+     */
+    long getGeneration() {
+        return m_generation.get();
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> T get(final ResultType type, final String rule) {
+        final Key key = new Key(type, rule);
+        final Entry entry = m_entries.get(key);
+        if (entry == null) {
+            m_misses.incrementAndGet();
+            return null;
+        }
+        if (m_ttlNanos > 0 && System.nanoTime() - entry.m_expires > 0) {
+            m_entries.remove(key, entry);
+            m_misses.incrementAndGet();
+            return null;
+        }
+        m_hits.incrementAndGet();
+        return (T)entry.m_value;
+    }
+
+    void put(final ResultType type, final String rule, final Set<String> tables, final Object value, final long generation) {
+        if (m_maxSize <= 0) {
+            return;
+        }
+        final Entry entry = new Entry(value, Collections.unmodifiableSet(tables), System.nanoTime() + m_ttlNanos);
+        m_entries.put(new Key(type, rule), entry);
+        if (m_generation.get() != generation) {
+            // An invalidation raced with the query that produced this value
+            m_entries.remove(new Key(type, rule), entry);
+        }
+    }
+
+    /**
+     * Evict every entry whose rule depends on one of the given tables.
+     *
+     * @param tables lower-case table names
+     */
+    void invalidate(final Collection<String> tables) {
+        m_generation.incrementAndGet();
+        synchronized (m_entries) {
+            m_entries.values().removeIf(e -> !Collections.disjoint(e.m_tables, tables));
+        }
+    }
+
+    void invalidateAll() {
+        m_generation.incrementAndGet();
+        m_entries.clear();
+    }
+
+    int size() {
+        return m_entries.size();
+    }
+
+    long getHitCount() {
+        return m_hits.get();
+    }
+
+    long getMissCount() {
+        return m_misses.get();
+    }
+}
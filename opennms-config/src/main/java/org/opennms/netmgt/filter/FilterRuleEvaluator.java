@@ -0,0 +1,359 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.filter;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.opennms.core.utils.IPLike;
+import org.opennms.netmgt.filter.InterfaceIndex.Interface;
+
+/**
+ * Evaluates simple filter rules against an {@link InterfaceIndex} instead of
+ * translating them to SQL.
+ *
+ * Supported rules combine, with <code>&amp;</code>, <code>|</code>,
+ * <code>!</code> (or AND, OR, NOT) and parentheses:
+ * <ul>
+ * <li><code>ipAddr IPLIKE pattern</code>, <code>ipAddr == 'addr'</code> and <code>ipAddr != 'addr'</code></li>
+ * <li><code>serviceName == 'name'</code>, <code>serviceName != 'name'</code> and <code>isNAME</code></li>
+ * <li><code>notisNAME</code></li>
+ * <li><code>catincNAME</code></li>
+ * <li><code>nodeID == id</code> and <code>nodeID != id</code></li>
+ * </ul>
+ *
+ * The evaluation mirrors the SQL generated by {@link JdbcFilterDao}: a rule
+ * that references a service is evaluated once per service of the interface,
+ * and matches if any of them does. {@link #compile(String)} returns null for
+ * any other rule, which must then be run against the database.
+ */
+class FilterRuleEvaluator {
+    private static final Pattern PREFIXED_VALUE_PATTERN = Pattern.compile("[a-zA-Z0-9_\\-]+");
+    private static final Pattern IPLIKE_VALUE_PATTERN = Pattern.compile("[0-9a-fA-F.:*,\\-]+");
+
+    private interface Expression {
+        boolean matches(InterfaceIndex index, InetAddress addr, Interface iface, String service);
+    }
+
+    private enum TokenType {
+        WORD, STRING, AND, OR, NOT, EQ, NE, IPLIKE, LPAREN, RPAREN, END
+    }
+
+    private static final class Token {
+        private final TokenType m_type;
+        private final String m_text;
+
+        private Token(final TokenType type, final String text) {
+            m_type = type;
+            m_text = text;
+        }
+    }
+
+    /**
+     * Thrown while parsing a rule that cannot be evaluated in memory.
+     */
+    private static final class UnsupportedRuleException extends Exception {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private final Expression m_expression;
+    private final boolean m_perService;
+
+    private FilterRuleEvaluator(final Expression expression, final boolean perService) {
+        m_expression = expression;
+        m_perService = perService;
+    }
+
+    /**
+     * @param rule the filter rule
+     * @return an evaluator for the rule, or null if the rule is not supported
+     */
+    static FilterRuleEvaluator compile(final String rule) {
+        // the SQL for rules that mention isManaged does not filter deleted interfaces
+        if (rule == null || rule.trim().isEmpty() || rule.contains("isManaged")) {
+            return null;
+        }
+        try {
+            final Parser parser = new Parser(tokenize(rule));
+            final Expression expression = parser.parseOr();
+            parser.expect(TokenType.END);
+            return new FilterRuleEvaluator(expression, parser.m_perService);
+        } catch (final UnsupportedRuleException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if a non-deleted interface with the given address matches
+     *   the rule
+     */
+    boolean matches(final InterfaceIndex index, final InetAddress addr) {
+        for (final Interface iface : index.getInterfaces(addr)) {
+            if (!iface.isActive()) {
+                continue;
+            }
+            if (m_perService) {
+                for (final String service : iface.getServices()) {
+                    if (m_expression.matches(index, addr, iface, service)) {
+                        return true;
+                    }
+                }
+            } else if (m_expression.matches(index, addr, iface, null)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<Token> tokenize(final String rule) throws UnsupportedRuleException {
+        final List<Token> tokens = new ArrayList<>();
+        final int len = rule.length();
+        int i = 0;
+        while (i < len) {
+            final char c = rule.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '(') {
+                tokens.add(new Token(TokenType.LPAREN, "("));
+                i++;
+            } else if (c == ')') {
+                tokens.add(new Token(TokenType.RPAREN, ")"));
+                i++;
+            } else if (c == '&' || c == '|') {
+                tokens.add(new Token(c == '&' ? TokenType.AND : TokenType.OR, String.valueOf(c)));
+                i += (i + 1 < len && rule.charAt(i + 1) == c) ? 2 : 1;
+            } else if (c == '!') {
+                if (i + 1 < len && rule.charAt(i + 1) == '=') {
+                    tokens.add(new Token(TokenType.NE, "!="));
+                    i += 2;
+                } else {
+                    tokens.add(new Token(TokenType.NOT, "!"));
+                    i++;
+                }
+            } else if (c == '=') {
+                tokens.add(new Token(TokenType.EQ, "="));
+                i += (i + 1 < len && rule.charAt(i + 1) == '=') ? 2 : 1;
+            } else if (c == '\'' || c == '"') {
+                // doubled quotes are escaped quotes, as in SQL
+                final StringBuilder value = new StringBuilder();
+                int j = i + 1;
+                while (true) {
+                    if (j >= len) {
+                        throw new UnsupportedRuleException();
+                    }
+                    final char q = rule.charAt(j);
+                    if (q == c) {
+                        if (j + 1 < len && rule.charAt(j + 1) == c) {
+                            value.append(c);
+                            j += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    value.append(q);
+                    j++;
+                }
+                tokens.add(new Token(TokenType.STRING, value.toString()));
+                i = j + 1;
+            } else if (isWordChar(c)) {
+                int j = i;
+                while (j < len && isWordChar(rule.charAt(j))) {
+                    j++;
+                }
+                final String word = rule.substring(i, j);
+                if ("AND".equalsIgnoreCase(word)) {
+                    tokens.add(new Token(TokenType.AND, word));
+                } else if ("OR".equalsIgnoreCase(word)) {
+                    tokens.add(new Token(TokenType.OR, word));
+                } else if ("NOT".equalsIgnoreCase(word)) {
+                    tokens.add(new Token(TokenType.NOT, word));
+                } else if ("IPLIKE".equalsIgnoreCase(word)) {
+                    tokens.add(new Token(TokenType.IPLIKE, word));
+                } else {
+                    tokens.add(new Token(TokenType.WORD, word));
+                }
+                i = j;
+            } else {
+                throw new UnsupportedRuleException();
+            }
+        }
+        tokens.add(new Token(TokenType.END, ""));
+        return tokens;
+    }
+
+    private static boolean isWordChar(final char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.' || c == ':' || c == '*' || c == ',';
+    }
+
+    private static boolean ipLike(final String ipAddr, final String pattern) {
+        if ((ipAddr.indexOf(':') >= 0) != (pattern.indexOf(':') >= 0)) {
+            return false;
+        }
+        try {
+            return IPLike.matches(ipAddr, pattern);
+        } catch (final IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static final class Parser {
+        private final List<Token> m_tokens;
+        private int m_pos = 0;
+        private boolean m_perService = false;
+
+        private Parser(final List<Token> tokens) {
+            m_tokens = tokens;
+        }
+
+        private Token peek() {
+            return m_tokens.get(m_pos);
+        }
+
+        private Token next() {
+            final Token token = m_tokens.get(m_pos);
+            if (token.m_type != TokenType.END) {
+                m_pos++;
+            }
+            return token;
+        }
+
+        private Token expect(final TokenType type) throws UnsupportedRuleException {
+            final Token token = next();
+            if (token.m_type != type) {
+                throw new UnsupportedRuleException();
+            }
+            return token;
+        }
+
+        private Expression parseOr() throws UnsupportedRuleException {
+            Expression expr = parseAnd();
+            while (peek().m_type == TokenType.OR) {
+                m_pos++;
+                final Expression left = expr;
+                final Expression right = parseAnd();
+                expr = (index, addr, iface, service) -> left.matches(index, addr, iface, service) || right.matches(index, addr, iface, service);
+            }
+            return expr;
+        }
+
+        private Expression parseAnd() throws UnsupportedRuleException {
+            Expression expr = parseNot();
+            while (peek().m_type == TokenType.AND) {
+                m_pos++;
+                final Expression left = expr;
+                final Expression right = parseNot();
+                expr = (index, addr, iface, service) -> left.matches(index, addr, iface, service) && right.matches(index, addr, iface, service);
+            }
+            return expr;
+        }
+
+        private Expression parseNot() throws UnsupportedRuleException {
+            if (peek().m_type == TokenType.NOT) {
+                m_pos++;
+                final Expression operand = parseNot();
+                return (index, addr, iface, service) -> !operand.matches(index, addr, iface, service);
+            }
+            return parsePrimary();
+        }
+
+        private Expression parsePrimary() throws UnsupportedRuleException {
+            final Token token = peek();
+            if (token.m_type == TokenType.LPAREN) {
+                m_pos++;
+                final Expression expr = parseOr();
+                expect(TokenType.RPAREN);
+                return expr;
+            }
+            final String word = expect(TokenType.WORD).m_text;
+
+            // prefixed values, checked in the same order as JdbcFilterDao.parseRule()
+            if (word.startsWith("is")) {
+                final String name = prefixedValue(word, 2);
+                m_perService = true;
+                return (index, addr, iface, service) -> name.equals(service);
+            } else if (word.startsWith("notis")) {
+                final String name = prefixedValue(word, 5);
+                return (index, addr, iface, service) -> !index.isServiceOnAddress(addr, name);
+            } else if (word.startsWith("catinc")) {
+                final String name = prefixedValue(word, 6);
+                return (index, addr, iface, service) -> index.isNodeInCategory(iface.getNodeId(), name);
+            }
+
+            final Token operator = next();
+            if ("ipAddr".equalsIgnoreCase(word)) {
+                if (operator.m_type == TokenType.IPLIKE) {
+                    final Token value = next();
+                    if (value.m_type != TokenType.STRING && !(value.m_type == TokenType.WORD && IPLIKE_VALUE_PATTERN.matcher(value.m_text).matches())) {
+                        throw new UnsupportedRuleException();
+                    }
+                    final String pattern = value.m_text;
+                    return (index, addr, iface, service) -> ipLike(iface.getIpAddr(), pattern);
+                }
+                final String value = expect(TokenType.STRING).m_text;
+                return comparison(operator, (index, addr, iface, service) -> value.equals(iface.getIpAddr()));
+            } else if ("serviceName".equalsIgnoreCase(word)) {
+                final String value = expect(TokenType.STRING).m_text;
+                m_perService = true;
+                return comparison(operator, (index, addr, iface, service) -> value.equals(service));
+            } else if ("nodeID".equalsIgnoreCase(word)) {
+                final Token value = next();
+                if (value.m_type != TokenType.STRING && value.m_type != TokenType.WORD) {
+                    throw new UnsupportedRuleException();
+                }
+                final int nodeId;
+                try {
+                    nodeId = Integer.parseInt(value.m_text.trim());
+                } catch (final NumberFormatException e) {
+                    throw new UnsupportedRuleException();
+                }
+                return comparison(operator, (index, addr, iface, service) -> iface.getNodeId() == nodeId);
+            }
+            throw new UnsupportedRuleException();
+        }
+
+        private static Expression comparison(final Token operator, final Expression equals) throws UnsupportedRuleException {
+            if (operator.m_type == TokenType.EQ) {
+                return equals;
+            } else if (operator.m_type == TokenType.NE) {
+                return (index, addr, iface, service) -> !equals.matches(index, addr, iface, service);
+            }
+            throw new UnsupportedRuleException();
+        }
+
+        private static String prefixedValue(final String word, final int prefixLength) throws UnsupportedRuleException {
+            if (!PREFIXED_VALUE_PATTERN.matcher(word).matches()) {
+                throw new UnsupportedRuleException();
+            }
+            return word.substring(prefixLength);
+        }
+    }
+}
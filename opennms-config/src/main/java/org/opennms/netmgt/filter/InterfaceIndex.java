@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.filter;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An in-memory snapshot of the interfaces, their services and the categories
+ * of their nodes; the data needed to evaluate the simple rules handled by
+ * {@link FilterRuleEvaluator} without a round trip to the database.
+ */
+class InterfaceIndex {
+
+    static final class Interface {
+        private final String m_ipAddr;
+        private final int m_nodeId;
+        private final boolean m_active;
+        private final Set<String> m_services = new HashSet<>();
+
+        Interface(final String ipAddr, final int nodeId, final boolean active) {
+            m_ipAddr = ipAddr;
+            m_nodeId = nodeId;
+            m_active = active;
+        }
+
+        String getIpAddr() {
+            return m_ipAddr;
+        }
+
+        int getNodeId() {
+            return m_nodeId;
+        }
+
+        /**
+         * @return false if the interface has been marked as deleted
+         */
+        boolean isActive() {
+            return m_active;
+        }
+
+        Set<String> getServices() {
+            return m_services;
+        }
+    }
+
+    private final Map<InetAddress, List<Interface>> m_interfaces = new HashMap<>();
+    private final Map<Integer, Set<String>> m_nodeCategories = new HashMap<>();
+
+    void addInterface(final InetAddress addr, final Interface iface) {
+        m_interfaces.computeIfAbsent(addr, k -> new ArrayList<>(1)).add(iface);
+    }
+
+    void addNodeCategory(final int nodeId, final String category) {
+        m_nodeCategories.computeIfAbsent(nodeId, k -> new HashSet<>()).add(category);
+    }
+
+    /**
+     * @return every interface (including deleted ones) with the given address
+     */
+    List<Interface> getInterfaces(final InetAddress addr) {
+        final List<Interface> interfaces = m_interfaces.get(addr);
+        return interfaces == null ? Collections.<Interface>emptyList() : interfaces;
+    }
+
+    boolean isNodeInCategory(final int nodeId, final String category) {
+        final Set<String> categories = m_nodeCategories.get(nodeId);
+        return categories != null && categories.contains(category);
+    }
+
+    /**
+     * @return true if any interface with the same address as the given one,
+     *   deleted or not, has the given service
+     */
+    boolean isServiceOnAddress(final InetAddress addr, final String service) {
+        for (final Interface iface : getInterfaces(addr)) {
+            if (iface.getServices().contains(service)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    int size() {
+        return m_interfaces.size();
+    }
+}
@@ -37,13 +37,20 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -53,13 +60,12 @@ import org.opennms.core.utils.DBUtils;
 import org.opennms.core.utils.InetAddressComparator;
 import org.opennms.netmgt.config.api.DatabaseSchemaConfig;
 import org.opennms.netmgt.config.filter.Table;
+import org.opennms.netmgt.filter.FilterResultCache.ResultType;
 import org.opennms.netmgt.filter.api.FilterDao;
 import org.opennms.netmgt.filter.api.FilterParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.InitializingBean;
-import org.springframework.cache.annotation.CacheEvict;
-import org.springframework.cache.annotation.Cacheable;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.util.Assert;
 
@@ -79,9 +85,46 @@ public class JdbcFilterDao implements FilterDao, InitializingBean {
 	private static final Pattern SQL_IPLIKE_PATTERN = Pattern.compile("(\\w+)\\s+IPLIKE\\s+([0-9a-f.:*,-]+|###@\\d+@###)", Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
 	private static final String SQL_IPLIKE6_RHS_REGEX = "^[0-9A-Fa-f:*,-]+$";
 
+    /**
+     * Maximum number of rule results to cache, 0 (the default) disables the
+     * cache.
+     */
+    private static final int CACHE_SIZE = Integer.getInteger("org.opennms.filter.cacheSize", 0);
+
+    /**
+     * Number of seconds a cached rule result may be used for, in case a change
+     * was made without sending the matching event.
+     */
+    private static final long CACHE_TTL = Long.getLong("org.opennms.filter.cacheTtl", 300);
+
+    /**
+     * Answer {@link #isValid(String, String)} for simple rules from an in-memory
+     * index of the interfaces rather than from per-rule queries.
+     */
+    private static final boolean IN_MEMORY_EVALUATION = Boolean.getBoolean("org.opennms.filter.inMemoryEvaluation");
+
+    /**
+     * Tables loaded into the {@link InterfaceIndex}.
+     */
+    private static final Set<String> INDEX_TABLES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList("ipinterface", "ifservices", "service", "categories", "category_node")));
+
 	private DataSource m_dataSource;
     private DatabaseSchemaConfig m_databaseSchemaConfigFactory;
 
+    private final FilterResultCache m_cache = new FilterResultCache(CACHE_SIZE, CACHE_TTL, TimeUnit.SECONDS);
+    private final ConcurrentMap<String, Optional<FilterRuleEvaluator>> m_evaluators = new ConcurrentHashMap<>();
+    private volatile InterfaceIndex m_interfaceIndex;
+
+    private static final class CachedAddresses {
+        private final List<InetAddress> m_list;
+        private final Set<InetAddress> m_set;
+
+        private CachedAddresses(final List<InetAddress> list) {
+            m_list = Collections.unmodifiableList(list);
+            m_set = new HashSet<>(list);
+        }
+    }
+
     /**
      * <p>setDataSource</p>
      *
@@ -138,6 +181,18 @@ public class JdbcFilterDao implements FilterDao, InitializingBean {
      */
     @Override
     public SortedMap<Integer, String> getNodeMap(final String rule) throws FilterParseException {
+        final String key = normalizeRule(rule);
+        final SortedMap<Integer, String> cached = m_cache.get(ResultType.NODE_MAP, key);
+        if (cached != null) {
+            return cached;
+        }
+        final long generation = m_cache.getGeneration();
+        final SortedMap<Integer, String> nodeMap = queryNodeMap(rule);
+        m_cache.put(ResultType.NODE_MAP, key, getDependencies(rule, "node"), nodeMap, generation);
+        return nodeMap;
+    }
+
+    private SortedMap<Integer, String> queryNodeMap(final String rule) throws FilterParseException {
     	final SortedMap<Integer, String> resultMap = new TreeMap<Integer, String>();
         String sqlString;
 
@@ -243,16 +298,32 @@ public class JdbcFilterDao implements FilterDao, InitializingBean {
     }
 
     @Override
-    @CacheEvict(value="activeIpAddressList", allEntries=true)
-    public void flushActiveIpAddressListCache() {}
+    public void flushActiveIpAddressListCache() {
+        LOG.debug("Flushing all cached filter results");
+        m_cache.invalidateAll();
+        m_interfaceIndex = null;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void flushCachedResults(final Set<String> tables) {
+        final Set<String> lowerCaseTables = new HashSet<>();
+        for (final String table : tables) {
+            lowerCaseTables.add(table.toLowerCase(Locale.ROOT));
+        }
+        LOG.debug("Flushing cached filter results depending on {}", lowerCaseTables);
+        m_cache.invalidate(lowerCaseTables);
+        if (!Collections.disjoint(lowerCaseTables, INDEX_TABLES)) {
+            m_interfaceIndex = null;
+        }
+    }
 
     /**
      * {@inheritDoc}
      */
-    @Cacheable("activeIpAddressList")
     @Override
     public List<InetAddress> getActiveIPAddressList(final String rule) throws FilterParseException {
-    	return getIPAddressList(rule, true);
+    	return getIPAddresses(rule, true).m_list;
     }
 
     /**
@@ -260,10 +331,23 @@ public class JdbcFilterDao implements FilterDao, InitializingBean {
      */
     @Override
     public List<InetAddress> getIPAddressList(final String rule) throws FilterParseException {
-    	return getIPAddressList(rule, false);
+    	return getIPAddresses(rule, false).m_list;
+    }
+
+    private CachedAddresses getIPAddresses(final String rule, final boolean filterDeleted) throws FilterParseException {
+        final ResultType type = filterDeleted ? ResultType.ACTIVE_IP_ADDRESSES : ResultType.IP_ADDRESSES;
+        final String key = normalizeRule(rule);
+        final CachedAddresses cached = m_cache.get(type, key);
+        if (cached != null) {
+            return cached;
+        }
+        final long generation = m_cache.getGeneration();
+        final CachedAddresses addresses = new CachedAddresses(queryIPAddressList(rule, filterDeleted));
+        m_cache.put(type, key, getDependencies(rule), addresses, generation);
+        return addresses;
     }
 
-    private List<InetAddress> getIPAddressList(final String rule, final boolean filterDeleted) throws FilterParseException {
+    private List<InetAddress> queryIPAddressList(final String rule, final boolean filterDeleted) throws FilterParseException {
     	final List<InetAddress> resultList = new ArrayList<InetAddress>();
         String sqlString;
 
@@ -331,12 +415,145 @@ public class JdbcFilterDao implements FilterDao, InitializingBean {
         if (rule.length() == 0) {
             return true;
         } else {
+            final InetAddress address = addr(addr);
+            final FilterRuleEvaluator evaluator = getEvaluator(rule);
+            if (evaluator != null) {
+                return evaluator.matches(getInterfaceIndex(), address);
+            }
             /*
              * see if the ip address is contained in the list that the
              * rule returns
              */
-            return getActiveIPAddressList(rule).contains(addr(addr));
+            return getIPAddresses(rule, true).m_set.contains(address);
+        }
+    }
+
+    private FilterRuleEvaluator getEvaluator(final String rule) {
+        if (!IN_MEMORY_EVALUATION) {
+            return null;
+        }
+        final String key = normalizeRule(rule);
+        Optional<FilterRuleEvaluator> evaluator = m_evaluators.get(key);
+        if (evaluator == null) {
+            if (m_evaluators.size() >= CACHE_SIZE) {
+                m_evaluators.clear();
+            }
+            evaluator = Optional.ofNullable(FilterRuleEvaluator.compile(rule));
+            m_evaluators.put(key, evaluator);
+            LOG.debug("Filter rule \"{}\" {} be evaluated in memory", rule, evaluator.isPresent() ? "will" : "will not");
         }
+        return evaluator.orElse(null);
+    }
+
+    private InterfaceIndex getInterfaceIndex() throws FilterParseException {
+        InterfaceIndex index = m_interfaceIndex;
+        if (index == null) {
+            synchronized (this) {
+                index = m_interfaceIndex;
+                if (index == null) {
+                    final long generation = m_cache.getGeneration();
+                    index = loadInterfaceIndex();
+                    if (m_cache.getGeneration() == generation) {
+                        m_interfaceIndex = index;
+                    }
+                }
+            }
+        }
+        return index;
+    }
+
+    private InterfaceIndex loadInterfaceIndex() throws FilterParseException {
+        final InterfaceIndex index = new InterfaceIndex();
+        final DBUtils d = new DBUtils(getClass());
+        try {
+            final Connection conn = getDataSource().getConnection();
+            d.watch(conn);
+
+            final Statement stmt = conn.createStatement();
+            d.watch(stmt);
+            final ResultSet ifaces = stmt.executeQuery("SELECT ipInterface.id, ipInterface.ipAddr, ipInterface.nodeID, ipInterface.isManaged, service.serviceName FROM ipInterface LEFT JOIN ifServices ON (ipInterface.id = ifServices.ipInterfaceId) LEFT JOIN service ON (ifServices.serviceID = service.serviceID) ORDER BY ipInterface.id");
+            d.watch(ifaces);
+            int lastId = -1;
+            InterfaceIndex.Interface iface = null;
+            while (ifaces.next()) {
+                final int id = ifaces.getInt(1);
+                if (iface == null || id != lastId) {
+                    final String ipAddr = ifaces.getString(2);
+                    final InetAddress addr = addr(ipAddr);
+                    iface = new InterfaceIndex.Interface(ipAddr, ifaces.getInt(3), !"D".equals(ifaces.getString(4)));
+                    if (addr != null) {
+                        index.addInterface(addr, iface);
+                    }
+                    lastId = id;
+                }
+                final String service = ifaces.getString(5);
+                if (service != null) {
+                    iface.getServices().add(service);
+                }
+            }
+
+            final ResultSet categories = stmt.executeQuery("SELECT category_node.nodeID, categories.categoryName FROM category_node, categories WHERE categories.categoryID = category_node.categoryID");
+            d.watch(categories);
+            while (categories.next()) {
+                index.addNodeCategory(categories.getInt(1), categories.getString(2));
+            }
+        } catch (final SQLException e) {
+            LOG.warn("SQL Exception occurred loading the interface index.", e);
+            throw new FilterParseException("SQL Exception occurred loading the interface index: " + e.getLocalizedMessage(), e);
+        } finally {
+            d.cleanUp();
+        }
+        LOG.debug("Loaded {} interface addresses into the filter index", index.size());
+        return index;
+    }
+
+    /**
+     * Determine which tables the results of a rule depend on: the tables
+     * joined by the query of the rule, and the ones only referenced by its
+     * sub-selects.
+     */
+    private Set<String> getDependencies(final String rule, final String... extraTables) throws FilterParseException {
+        final List<Table> tables = new ArrayList<Table>();
+        final Set<String> dependencies = new HashSet<>();
+        parseRule(tables, dependencies, rule);
+
+        dependencies.add("ipinterface");
+        for (final String table : m_databaseSchemaConfigFactory.getJoinTables(tables)) {
+            dependencies.add(table.toLowerCase(Locale.ROOT));
+        }
+        for (final String table : extraTables) {
+            dependencies.add(table.toLowerCase(Locale.ROOT));
+        }
+        return dependencies;
+    }
+
+    /**
+     * Collapse runs of whitespace outside of quoted strings so that rules that
+     * only differ in formatting share a cache entry.
+     */
+    static String normalizeRule(final String rule) {
+        final String trimmed = rule.trim();
+        final StringBuilder sb = new StringBuilder(trimmed.length());
+        char quote = 0;
+        boolean whitespace = false;
+        for (int i = 0; i < trimmed.length(); i++) {
+            final char c = trimmed.charAt(i);
+            if (quote == 0 && Character.isWhitespace(c)) {
+                whitespace = true;
+                continue;
+            }
+            if (whitespace) {
+                sb.append(' ');
+                whitespace = false;
+            }
+            if (quote == 0 && (c == '\'' || c == '"')) {
+                quote = c;
+            } else if (c == quote) {
+                quote = 0;
+            }
+            sb.append(c);
+        }
+        return sb.toString();
     }
 
     /** {@inheritDoc} */
@@ -562,6 +779,17 @@ public class JdbcFilterDao implements FilterDao, InitializingBean {
      *             if any errors occur during parsing
      */
     private String parseRule(final List<Table> tables, final String rule) throws FilterParseException {
+        return parseRule(tables, new HashSet<String>(), rule);
+    }
+
+    /**
+     * Same as {@link #parseRule(List, String)}, but also collects the tables
+     * that are only referenced by the sub-selects of the rule.
+     *
+     * @param subSelectTables
+     *            a set to be populated with the lower-case names of these tables
+     */
+    private String parseRule(final List<Table> tables, final Set<String> subSelectTables, final String rule) throws FilterParseException {
         if (rule != null && rule.length() > 0) {
         	final List<String> extractedStrings = new ArrayList<String>();
         	
@@ -635,8 +863,12 @@ public class JdbcFilterDao implements FilterDao, InitializingBean {
                 if (regex.group().startsWith("is")) {
                     regex.appendReplacement(tempStringBuff, m_databaseSchemaConfigFactory.addColumn(tables, "serviceName") + " = '" + regex.group().substring(2) + "'");
                 } else if (regex.group().startsWith("notis")) {
+                    subSelectTables.add("ifservices");
+                    subSelectTables.add("service");
                     regex.appendReplacement(tempStringBuff, m_databaseSchemaConfigFactory.addColumn(tables, "ipAddr") + " NOT IN (SELECT ifServices.ipAddr FROM ifServices, service WHERE service.serviceName ='" + regex.group().substring(5) + "' AND service.serviceID = ifServices.serviceID)");
                 } else if (regex.group().startsWith("catinc")) {
+                    subSelectTables.add("category_node");
+                    subSelectTables.add("categories");
                     regex.appendReplacement(tempStringBuff, m_databaseSchemaConfigFactory.addColumn(tables, "nodeID") + " IN (SELECT category_node.nodeID FROM category_node, categories WHERE categories.categoryID = category_node.categoryID AND categories.categoryName = '" + regex.group().substring(6) + "')");
                 } else if (regex.group().matches(SQL_IPLIKE6_RHS_REGEX)) {
                     // Do nothing, it's apparently an IPv6 IPLIKE expression right-hand side
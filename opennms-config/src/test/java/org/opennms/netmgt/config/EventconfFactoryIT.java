@@ -70,7 +70,9 @@ import org.opennms.netmgt.snmp.SnmpValue;
 import org.opennms.netmgt.snmp.TrapIdentity;
 import org.opennms.netmgt.xml.eventconf.AlarmData;
 import org.opennms.netmgt.xml.eventconf.Event;
+import org.opennms.netmgt.xml.eventconf.EventDecisionTree;
 import org.opennms.netmgt.xml.eventconf.Events;
+import org.opennms.netmgt.xml.eventconf.Varbind;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.InputStreamResource;
@@ -640,6 +642,110 @@ public class EventconfFactoryIT {
         dao.afterPropertiesSet();
     }
 
+    /**
+     * Verify that the decision tree finds the same event definitions as the
+     * matchers in the standard configuration, for events built from the masks
+     * of every definition and for variants of these that should not match.
+     */
+    @Test
+    public void testDecisionTreeMatchesStandardConfiguration() throws Exception {
+        Events events = m_eventConfDao.getRootEvents();
+        EventDecisionTree tree = new EventDecisionTree(events);
+
+        List<org.opennms.netmgt.xml.event.Event> eventsToMatch = getEventsForMasks(m_eventConfDao.getAllEvents());
+        assertTrue("there should be trap events in the standard configuration", eventsToMatch.size() > 1000);
+
+        for (org.opennms.netmgt.xml.event.Event event : eventsToMatch) {
+            Event expected = events.findFirstMatchingEvent(event);
+            Event actual = tree.findFirstMatchingEvent(event);
+            assertTrue("event definition for " + event + " should be " + (expected == null ? null : expected.getUei()) + " but was " + (actual == null ? null : actual.getUei()), expected == actual);
+        }
+    }
+
+    /**
+     * Compare the time it takes the decision tree and the matchers to find the
+     * event definitions for events built from the masks in the standard configuration.
+     */
+    @Test
+    public void testDecisionTreeVersusMatchersTiming() throws Exception {
+        final int ITERATIONS = 2;
+
+        Events events = m_eventConfDao.getRootEvents();
+        EventDecisionTree tree = new EventDecisionTree(events);
+        List<org.opennms.netmgt.xml.event.Event> eventsToMatch = getEventsForMasks(m_eventConfDao.getAllEvents());
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (org.opennms.netmgt.xml.event.Event event : eventsToMatch) {
+                events.findFirstMatchingEvent(event);
+            }
+        }
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        System.err.printf("Matchers: %d events: Elapsed: %d ms: events per second %f.%n", ITERATIONS * eventsToMatch.size(), elapsed, ITERATIONS * eventsToMatch.size() * 1000.0 / elapsed);
+
+        start = System.currentTimeMillis();
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (org.opennms.netmgt.xml.event.Event event : eventsToMatch) {
+                tree.findFirstMatchingEvent(event);
+            }
+        }
+        elapsed = Math.max(1, System.currentTimeMillis() - start);
+        System.err.printf("Decision tree: %d events: Elapsed: %d ms: events per second %f.%n", ITERATIONS * eventsToMatch.size(), elapsed, ITERATIONS * eventsToMatch.size() * 1000.0 / elapsed);
+    }
+
+    /**
+     * Build events without a UEI that satisfy the enterprise id, generic, specific
+     * and varbind mask elements of the given definitions, along with a variant of
+     * each with an unknown specific.
+     */
+    private static List<org.opennms.netmgt.xml.event.Event> getEventsForMasks(List<Event> eventConfs) {
+        List<org.opennms.netmgt.xml.event.Event> events = new ArrayList<>();
+        for (Event eventConf : eventConfs) {
+            if (eventConf.getMask() == null || eventConf.getMask().getMaskelementCount() == 0) {
+                continue;
+            }
+            for (int specificOffset : new int[] { 0, 100000 }) {
+                EventBuilder bldr = new EventBuilder(null, "testDecisionTree");
+                String id = getMaskValue(eventConf.getMaskElementValues("id"));
+                if (id != null) {
+                    bldr.setEnterpriseId(id);
+                }
+                String generic = getMaskValue(eventConf.getMaskElementValues("generic"));
+                if (generic != null && generic.matches("\\d+")) {
+                    bldr.setGeneric(Integer.parseInt(generic));
+                }
+                String specific = getMaskValue(eventConf.getMaskElementValues("specific"));
+                if (specific != null && specific.matches("\\d+")) {
+                    bldr.setSpecific(Integer.parseInt(specific) + specificOffset);
+                }
+                List<String> varbindValues = new ArrayList<>();
+                for (Varbind varbind : eventConf.getMask().getVarbindCollection()) {
+                    String value = getMaskValue(varbind.getVbvalueCollection());
+                    if (varbind.getVbnumber() == null || varbind.getVbnumber() < 1 || value == null) {
+                        continue;
+                    }
+                    while (varbindValues.size() < varbind.getVbnumber()) {
+                        varbindValues.add("0");
+                    }
+                    varbindValues.set(varbind.getVbnumber() - 1, value);
+                }
+                for (int i = 0; i < varbindValues.size(); i++) {
+                    bldr.addParam(".1.3.6.1.4.1.5813.20." + (i + 1), varbindValues.get(i));
+                }
+                events.add(bldr.getEvent());
+            }
+        }
+        return events;
+    }
+
+    private static String getMaskValue(List<String> values) {
+        if (values == null || values.isEmpty() || values.get(0) == null || values.get(0).startsWith("~")) {
+            return null;
+        }
+        String value = values.get(0);
+        return value.endsWith("%") ? value.substring(0, value.length() - 1) + "1" : value;
+    }
+
     private DefaultEventConfDao loadConfiguration(String relativeResourcePath) throws DataAccessException, IOException {
         return loadConfiguration(relativeResourcePath, true);
     }
@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.opennms.netmgt.filter.FilterResultCache.ResultType;
+
+public class FilterResultCacheTest {
+
+    private static Set<String> tables(final String... tables) {
+        return new HashSet<>(Arrays.asList(tables));
+    }
+
+    @Test
+    public void testSelectiveInvalidation() {
+        final FilterResultCache cache = new FilterResultCache(100, 0, TimeUnit.SECONDS);
+        cache.put(ResultType.ACTIVE_IP_ADDRESSES, "isICMP", tables("ipinterface", "ifservices", "service"), "services", cache.getGeneration());
+        cache.put(ResultType.ACTIVE_IP_ADDRESSES, "catincRouters", tables("ipinterface", "categories", "category_node"), "categories", cache.getGeneration());
+        cache.put(ResultType.NODE_MAP, "isICMP", tables("ipinterface", "ifservices", "service", "node"), "nodes", cache.getGeneration());
+
+        assertEquals("services", cache.get(ResultType.ACTIVE_IP_ADDRESSES, "isICMP"));
+        assertEquals("nodes", cache.get(ResultType.NODE_MAP, "isICMP"));
+        assertNull(cache.get(ResultType.IP_ADDRESSES, "isICMP"));
+
+        cache.invalidate(Collections.singleton("node"));
+        assertNull(cache.get(ResultType.NODE_MAP, "isICMP"));
+        assertEquals("services", cache.get(ResultType.ACTIVE_IP_ADDRESSES, "isICMP"));
+
+        cache.invalidate(Collections.singleton("category_node"));
+        assertNull(cache.get(ResultType.ACTIVE_IP_ADDRESSES, "catincRouters"));
+        assertEquals("services", cache.get(ResultType.ACTIVE_IP_ADDRESSES, "isICMP"));
+
+        cache.invalidate(Collections.singleton("ipinterface"));
+        assertEquals(0, cache.size());
+        assertEquals(4, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+    }
+
+    @Test
+    public void testStaleResultsAreNotCached() {
+        final FilterResultCache cache = new FilterResultCache(100, 0, TimeUnit.SECONDS);
+        final long generation = cache.getGeneration();
+        // the inventory changes while the query is running
+        cache.invalidate(Collections.singleton("ifservices"));
+        cache.put(ResultType.ACTIVE_IP_ADDRESSES, "isICMP", tables("ipinterface", "ifservices", "service"), "stale", generation);
+        assertNull(cache.get(ResultType.ACTIVE_IP_ADDRESSES, "isICMP"));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        final FilterResultCache cache = new FilterResultCache(2, 0, TimeUnit.SECONDS);
+        cache.put(ResultType.IP_ADDRESSES, "a", tables("ipinterface"), "a", cache.getGeneration());
+        cache.put(ResultType.IP_ADDRESSES, "b", tables("ipinterface"), "b", cache.getGeneration());
+        assertEquals("a", cache.get(ResultType.IP_ADDRESSES, "a"));
+        cache.put(ResultType.IP_ADDRESSES, "c", tables("ipinterface"), "c", cache.getGeneration());
+        assertEquals(2, cache.size());
+        assertEquals("a", cache.get(ResultType.IP_ADDRESSES, "a"));
+        assertNull(cache.get(ResultType.IP_ADDRESSES, "b"));
+        assertEquals("c", cache.get(ResultType.IP_ADDRESSES, "c"));
+    }
+}
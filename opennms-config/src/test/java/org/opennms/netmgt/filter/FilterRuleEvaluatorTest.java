@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.opennms.core.utils.InetAddressUtils.addr;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.netmgt.filter.InterfaceIndex.Interface;
+
+public class FilterRuleEvaluatorTest {
+
+    private InterfaceIndex m_index;
+
+    @Before
+    public void setUp() {
+        m_index = new InterfaceIndex();
+        addInterface("192.168.1.1", 1, true, "ICMP", "SNMP");
+        addInterface("192.168.1.2", 1, true, "ICMP");
+        addInterface("192.168.2.1", 2, true);
+        addInterface("10.0.0.1", 3, false, "ICMP");
+        addInterface("fe80:0000:0000:0000:0000:0000:0000:0001", 3, true, "HTTP");
+        m_index.addNodeCategory(1, "Routers");
+        m_index.addNodeCategory(2, "Servers");
+    }
+
+    private void addInterface(final String ipAddr, final int nodeId, final boolean active, final String... services) {
+        final Interface iface = new Interface(ipAddr, nodeId, active);
+        for (final String service : services) {
+            iface.getServices().add(service);
+        }
+        m_index.addInterface(addr(ipAddr), iface);
+    }
+
+    private boolean matches(final String rule, final String ipAddr) {
+        final FilterRuleEvaluator evaluator = FilterRuleEvaluator.compile(rule);
+        assertNotNull("rule should be supported: " + rule, evaluator);
+        return evaluator.matches(m_index, addr(ipAddr));
+    }
+
+    @Test
+    public void testIpLike() {
+        assertTrue(matches("IPADDR IPLIKE *.*.*.*", "192.168.1.1"));
+        assertTrue(matches("ipaddr iplike '192.168.1-2.*'", "192.168.2.1"));
+        assertFalse(matches("IPADDR IPLIKE 192.168.1.*", "192.168.2.1"));
+        assertFalse(matches("IPADDR IPLIKE *.*.*.*", "fe80:0000:0000:0000:0000:0000:0000:0001"));
+        assertTrue(matches("IPADDR IPLIKE *:*:*:*:*:*:*:*", "fe80:0000:0000:0000:0000:0000:0000:0001"));
+    }
+
+    @Test
+    public void testAddressComparison() {
+        assertTrue(matches("IPADDR != '0.0.0.0'", "192.168.1.1"));
+        assertTrue(matches("ipAddr == '192.168.1.1'", "192.168.1.1"));
+        assertFalse(matches("ipAddr == \"192.168.1.1\"", "192.168.1.2"));
+    }
+
+    @Test
+    public void testUnknownAndDeletedInterfaces() {
+        assertFalse(matches("IPADDR IPLIKE *.*.*.*", "172.16.0.1"));
+        assertFalse(matches("IPADDR IPLIKE *.*.*.*", "10.0.0.1"));
+    }
+
+    @Test
+    public void testServices() {
+        assertTrue(matches("isSNMP", "192.168.1.1"));
+        assertFalse(matches("isSNMP", "192.168.1.2"));
+        assertTrue(matches("serviceName == 'ICMP' & IPADDR IPLIKE 192.168.*.*", "192.168.1.2"));
+        // the rule is evaluated per service, like the SQL join
+        assertFalse(matches("isICMP & isSNMP", "192.168.1.1"));
+        assertTrue(matches("isICMP | isSNMP", "192.168.1.1"));
+        assertTrue(matches("!isICMP", "192.168.1.1"));
+        assertFalse(matches("!isICMP", "192.168.1.2"));
+        // interfaces without services never match rules on services
+        assertFalse(matches("!isICMP", "192.168.2.1"));
+        assertTrue(matches("notisSNMP", "192.168.2.1"));
+        assertFalse(matches("notisSNMP", "192.168.1.1"));
+    }
+
+    @Test
+    public void testCategoriesAndNodes() {
+        assertTrue(matches("catincRouters", "192.168.1.2"));
+        assertFalse(matches("catincRouters", "192.168.2.1"));
+        assertTrue(matches("(catincRouters | catincServers) AND NOT nodeID == 1", "192.168.2.1"));
+        assertFalse(matches("(catincRouters || catincServers) && !(nodeId == '2')", "192.168.2.1"));
+    }
+
+    @Test
+    public void testPrecedence() {
+        assertTrue(matches("IPADDR IPLIKE 192.168.1.2 | IPADDR IPLIKE 192.168.1.1 & isSNMP", "192.168.1.2"));
+        assertFalse(matches("(IPADDR IPLIKE 192.168.1.2 | IPADDR IPLIKE 192.168.1.1) & isSNMP", "192.168.1.2"));
+    }
+
+    @Test
+    public void testUnsupportedRules() {
+        assertNull(FilterRuleEvaluator.compile(""));
+        assertNull(FilterRuleEvaluator.compile("nodeLabel == 'foo'"));
+        assertNull(FilterRuleEvaluator.compile("IPADDR LIKE '192.%'"));
+        assertNull(FilterRuleEvaluator.compile("IPLIKE(ipaddr, '*.*.*.*')"));
+        assertNull(FilterRuleEvaluator.compile("isManaged == 'M'"));
+        assertNull(FilterRuleEvaluator.compile("IPADDR == '192.168.1.1"));
+        assertNull(FilterRuleEvaluator.compile("(isICMP"));
+        assertNull(FilterRuleEvaluator.compile("isICMP isSNMP"));
+        assertNull(FilterRuleEvaluator.compile("nodeID == 'abc'"));
+    }
+
+    @Test
+    public void testNormalizeRule() {
+        assertEquals("IPADDR IPLIKE *.*.*.* & isICMP", JdbcFilterDao.normalizeRule("  IPADDR  IPLIKE *.*.*.*\t&\n isICMP "));
+        assertEquals("nodeLabel == 'a  b'", JdbcFilterDao.normalizeRule("nodeLabel ==  'a  b'"));
+    }
+}
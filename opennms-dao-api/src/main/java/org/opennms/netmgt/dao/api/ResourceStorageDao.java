@@ -151,4 +151,16 @@ public interface ResourceStorageDao {
      */
     public Map<String,String> getMetaData(ResourcePath path);
 
+    /**
+     * Notifies the storage that metrics were just persisted at the given path.
+     *
+     * Implementations that keep track of the resource tree can use this to
+     * learn about new resources without having to wait to discover them.
+     *
+     * @param path resource path at which the metrics were persisted
+     */
+    public default void metricsPersisted(ResourcePath path) {
+        // Nothing to do by default
+    }
+
 }
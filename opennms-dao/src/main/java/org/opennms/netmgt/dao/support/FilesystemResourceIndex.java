@@ -0,0 +1,352 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2017 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2017 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.dao.support;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Collectors;
+
+import org.opennms.netmgt.model.ResourcePath;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * In-memory index of the directories, under the RRD directory, that contain
+ * metrics. Used by the {@link FilesystemResourceStorageDao} to answer
+ * queries on the resource tree without having to walk the file-system.
+ *
+ * The index is built by listing the directories in parallel, and can be
+ * refreshed incrementally: only the directories whose modification time
+ * changed since they were last listed are listed again.
+ *
+ * For every directory, we keep a bit mask of the depths at which metrics
+ * can be found bellow it, so that {@link #exists(ResourcePath, int)} and
+ * friends only need to look up a single node.
+ *
+ * @see FilesystemResourceStorageDao
+ */
+public class FilesystemResourceIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FilesystemResourceIndex.class);
+
+    /**
+     * Directories that were modified this close to the time at which they were listed
+     * are listed again on the next refresh, since the modification time may not
+     * have changed if they were modified after being listed.
+     */
+    private static final long MODIFICATION_TIME_GRANULARITY_MS = 2000;
+
+    private final Path m_root;
+
+    private final String m_extension;
+
+    private final ForkJoinPool m_pool;
+
+    /**
+     * Guards the structure of the tree and the depth masks.
+     * Readers don't need to hold it.
+     */
+    private final Object m_lock = new Object();
+
+    private volatile Node m_rootNode;
+
+    private static final class Node {
+        private final Node m_parent;
+        private final String m_name;
+        private final Map<String, Node> m_children = new ConcurrentHashMap<>();
+        private volatile boolean m_hasMetrics;
+        /**
+         * Bit n is set when metrics exist n levels bellow this node.
+         */
+        private volatile long m_depths;
+        private volatile long m_lastModified = -1;
+        private volatile long m_listedAt;
+
+        private Node(Node parent, String name) {
+            m_parent = parent;
+            m_name = name;
+        }
+    }
+
+    public FilesystemResourceIndex(Path root, String extension, int threads) {
+        m_root = root;
+        m_extension = extension;
+        m_pool = new ForkJoinPool(threads);
+    }
+
+    /**
+     * Builds the index by walking the complete tree.
+     */
+    public void build() {
+        final long start = System.currentTimeMillis();
+        final Node root = new Node(null, null);
+        m_pool.invoke(new RefreshTask(root, m_root, true));
+        m_rootNode = root;
+        LOG.info("Indexed {} directories under {} in {}ms.", size(root), m_root, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Lists the directories that were modified since the last refresh.
+     */
+    public void refresh() {
+        final Node root = m_rootNode;
+        if (root == null) {
+            build();
+            return;
+        }
+        final long start = System.currentTimeMillis();
+        m_pool.invoke(new RefreshTask(root, m_root, false));
+        LOG.debug("Refreshed {} directories under {} in {}ms.", size(root), m_root, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Lists the directory at the given path, and all of its sub-directories,
+     * regardless of whether or not they were modified.
+     */
+    public void refresh(ResourcePath path) {
+        Node node = m_rootNode;
+        if (node == null) {
+            return;
+        }
+
+        Path dir = m_root;
+        synchronized (m_lock) {
+            for (final String element : path) {
+                dir = dir.resolve(element);
+                Node child = node.m_children.get(element);
+                if (child == null) {
+                    if (!Files.isDirectory(dir)) {
+                        return;
+                    }
+                    child = new Node(node, element);
+                    node.m_children.put(element, child);
+                }
+                node = child;
+            }
+        }
+        m_pool.invoke(new RefreshTask(node, dir, true));
+    }
+
+    /**
+     * Called when metrics were persisted at the given path. Only lists the directory
+     * if it was not already known to contain metrics.
+     */
+    public void metricsPersisted(ResourcePath path) {
+        final Node node = find(path);
+        if (node == null || !node.m_hasMetrics) {
+            refresh(path);
+        }
+    }
+
+    public boolean isReady() {
+        return m_rootNode != null;
+    }
+
+    public boolean exists(ResourcePath path, int depth) {
+        final Node node = find(path);
+        return node != null && hasMetricsAt(node, depth);
+    }
+
+    public boolean existsWithin(ResourcePath path, int depth) {
+        final Node node = find(path);
+        return node != null && hasMetricsWithin(node, depth);
+    }
+
+    public Set<ResourcePath> children(ResourcePath path, int depth) {
+        final Node node = find(path);
+        if (node == null) {
+            return Collections.emptySet();
+        }
+        return node.m_children.values().stream()
+                .filter(child -> hasMetricsAt(child, depth - 1))
+                .map(child -> ResourcePath.get(path, child.m_name))
+                .collect(Collectors.toSet());
+    }
+
+    public void close() {
+        m_pool.shutdownNow();
+    }
+
+    private Node find(ResourcePath path) {
+        Node node = m_rootNode;
+        for (final String element : path) {
+            if (node == null) {
+                return null;
+            }
+            node = node.m_children.get(element);
+        }
+        return node;
+    }
+
+    private static boolean hasMetricsAt(Node node, int depth) {
+        if (depth < Long.SIZE) {
+            return (node.m_depths & (1L << depth)) != 0;
+        }
+        return node.m_children.values().stream().anyMatch(child -> hasMetricsAt(child, depth - 1));
+    }
+
+    private static boolean hasMetricsWithin(Node node, int depth) {
+        if (depth < Long.SIZE - 1) {
+            return (node.m_depths & ((1L << (depth + 1)) - 1)) != 0;
+        }
+        return node.m_depths != 0 || node.m_children.values().stream().anyMatch(child -> hasMetricsWithin(child, depth - 1));
+    }
+
+    /**
+     * Recomputes the depth masks of the given node and of its ancestors.
+     * Must be called while holding the lock.
+     */
+    private static void updateDepths(Node node) {
+        while (node != null) {
+            long depths = node.m_hasMetrics ? 1L : 0L;
+            for (final Node child : node.m_children.values()) {
+                depths |= child.m_depths << 1;
+            }
+            if (depths == node.m_depths) {
+                return;
+            }
+            node.m_depths = depths;
+            node = node.m_parent;
+        }
+    }
+
+    private static int size(Node node) {
+        int size = 1;
+        for (final Node child : node.m_children.values()) {
+            size += size(child);
+        }
+        return size;
+    }
+
+    /**
+     * Lists a directory, and then recursively refreshes its sub-directories.
+     */
+    private class RefreshTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Node m_node;
+        private final Path m_dir;
+        private final boolean m_force;
+
+        private RefreshTask(Node node, Path dir, boolean force) {
+            m_node = node;
+            m_dir = dir;
+            m_force = force;
+        }
+
+        @Override
+        protected void compute() {
+            final long lastModified;
+            try {
+                lastModified = Files.getLastModifiedTime(m_dir).toMillis();
+            } catch (IOException e) {
+                removeNode();
+                return;
+            }
+
+            final Set<Node> created = Sets.newIdentityHashSet();
+            if (m_force
+                    || lastModified != m_node.m_lastModified
+                    || lastModified + MODIFICATION_TIME_GRANULARITY_MS >= m_node.m_listedAt) {
+                final long listedAt = System.currentTimeMillis();
+                boolean hasMetrics = false;
+                final Set<String> directories = Sets.newHashSet();
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(m_dir)) {
+                    for (final Path path : stream) {
+                        if (Files.isDirectory(path)) {
+                            directories.add(path.getFileName().toString());
+                        } else if (!hasMetrics && path.getFileName().toString().endsWith(m_extension) && Files.isRegularFile(path)) {
+                            hasMetrics = true;
+                        }
+                    }
+                } catch (IOException e) {
+                    if (!Files.isDirectory(m_dir)) {
+                        removeNode();
+                        return;
+                    }
+                    LOG.warn("Failed to list {}. The index will be refreshed on the next pass.", m_dir, e);
+                    m_node.m_lastModified = -1;
+                    return;
+                }
+
+                synchronized (m_lock) {
+                    m_node.m_hasMetrics = hasMetrics;
+                    m_node.m_children.keySet().retainAll(directories);
+                    for (final String directory : directories) {
+                        if (!m_node.m_children.containsKey(directory)) {
+                            final Node child = new Node(m_node, directory);
+                            m_node.m_children.put(directory, child);
+                            created.add(child);
+                        }
+                    }
+                    updateDepths(m_node);
+                }
+                m_node.m_lastModified = lastModified;
+                m_node.m_listedAt = listedAt;
+            }
+
+            // Directories that were just created need to be listed, the others only if they changed
+            final List<RefreshTask> tasks = Lists.newArrayList();
+            for (final Node child : m_node.m_children.values()) {
+                tasks.add(new RefreshTask(child, m_dir.resolve(child.m_name), m_force || created.contains(child)));
+            }
+            invokeAll(tasks);
+
+            synchronized (m_lock) {
+                updateDepths(m_node);
+            }
+        }
+
+        private void removeNode() {
+            synchronized (m_lock) {
+                final Node parent = m_node.m_parent;
+                if (parent != null) {
+                    parent.m_children.remove(m_node.m_name, m_node);
+                    updateDepths(parent);
+                } else {
+                    m_node.m_hasMetrics = false;
+                    m_node.m_children.clear();
+                    updateDepths(m_node);
+                }
+            }
+        }
+    }
+}
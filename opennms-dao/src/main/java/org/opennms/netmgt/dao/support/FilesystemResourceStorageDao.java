@@ -37,6 +37,9 @@ import java.util.Collections;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -50,20 +53,27 @@ import org.opennms.netmgt.rrd.RrdStrategy;
 import org.opennms.netmgt.rrd.RrdMetaDataUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * Used in conjunction with RRD/JRB strategies that persist
  * metrics to the local disk.
  *
+ * When the resource index is enabled, the tree is walked once at startup
+ * and the queries are answered from memory. The index is kept current
+ * using the notifications from the persisters, and by periodically
+ * listing the directories that were modified.
+ *
  * @author jwhite
  */
-public class FilesystemResourceStorageDao implements ResourceStorageDao, InitializingBean {
+public class FilesystemResourceStorageDao implements ResourceStorageDao, InitializingBean, DisposableBean {
 
     private static final Logger LOG = LoggerFactory.getLogger(FilesystemResourceStorageDao.class);
 
@@ -74,27 +84,117 @@ public class FilesystemResourceStorageDao implements ResourceStorageDao, Initial
 
     private File m_rrdDirectory;
 
+    private boolean m_resourceIndexEnabled = false;
+
+    private long m_resourceIndexRefreshInterval = 60000;
+
+    private int m_resourceIndexThreads = Runtime.getRuntime().availableProcessors();
+
+    private volatile FilesystemResourceIndex m_resourceIndex;
+
+    private ScheduledExecutorService m_resourceIndexExecutor;
+
+    private boolean m_started = false;
+
     @Override
-    public void afterPropertiesSet() throws Exception {
+    public synchronized void afterPropertiesSet() throws Exception {
         BeanUtils.assertAutowiring(this);
         setRrdExtension(m_rrdStrategy.getDefaultFileExtension());
+
+        if (m_resourceIndexEnabled) {
+            startResourceIndex();
+        }
+        m_started = true;
+    }
+
+    @Override
+    public synchronized void destroy() {
+        stopResourceIndex();
+        m_started = false;
+    }
+
+    /**
+     * Builds the index in the background, the file-system is used
+     * to answer the queries until it is ready.
+     */
+    private void startResourceIndex() {
+        final FilesystemResourceIndex index = new FilesystemResourceIndex(m_rrdDirectory.toPath(), RRD_EXTENSION, m_resourceIndexThreads);
+        m_resourceIndexExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("resource-index-refresher")
+                .setDaemon(true)
+                .build());
+        m_resourceIndexExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                index.refresh();
+            } catch (Throwable t) {
+                LOG.error("Failed to refresh the resource index.", t);
+            }
+        }, 0, m_resourceIndexRefreshInterval, TimeUnit.MILLISECONDS);
+        m_resourceIndex = index;
+    }
+
+    private void stopResourceIndex() {
+        final FilesystemResourceIndex index = m_resourceIndex;
+        // Fall back to the file-system right away
+        m_resourceIndex = null;
+        if (m_resourceIndexExecutor != null) {
+            m_resourceIndexExecutor.shutdownNow();
+            m_resourceIndexExecutor = null;
+        }
+        if (index != null) {
+            index.close();
+        }
+    }
+
+    /**
+     * Drops the index, and builds a new one if the DAO was already started,
+     * after the root directory or the file extension changed.
+     */
+    private synchronized void restartResourceIndex() {
+        if (!m_started || !m_resourceIndexEnabled) {
+            return;
+        }
+        stopResourceIndex();
+        startResourceIndex();
+    }
+
+    protected boolean isResourceIndexReady() {
+        return getReadyResourceIndex() != null;
+    }
+
+    private FilesystemResourceIndex getReadyResourceIndex() {
+        final FilesystemResourceIndex index = m_resourceIndex;
+        return index != null && index.isReady() ? index : null;
     }
 
     @Override
     public boolean exists(ResourcePath path, int depth) {
         Preconditions.checkArgument(depth >= 0, "depth must be non-negative");
+        final FilesystemResourceIndex index = getReadyResourceIndex();
+        if (index != null) {
+            return index.exists(path, depth);
+        }
         return exists(toFile(path).toPath(), depth);
     }
 
     @Override
     public boolean existsWithin(ResourcePath path, int depth) {
         Preconditions.checkArgument(depth >= 0, "depth must be non-negative");
+        final FilesystemResourceIndex index = getReadyResourceIndex();
+        if (index != null) {
+            return index.existsWithin(path, depth);
+        }
         return existsWithin(toFile(path).toPath(), depth);
     }
 
     @Override
     public Set<ResourcePath> children(ResourcePath path, int depth) {
         Preconditions.checkArgument(depth > 0, "depth must be positive");
+        final FilesystemResourceIndex index = getReadyResourceIndex();
+        if (index != null) {
+            return index.children(path, depth);
+        }
+
         final File root = toFile(path);
         if (!root.isDirectory()) {
             return Collections.emptySet();
@@ -148,7 +248,20 @@ public class FilesystemResourceStorageDao implements ResourceStorageDao, Initial
 
     @Override
     public boolean delete(ResourcePath path) {
-        return FileUtils.deleteQuietly(toFile(path));
+        final boolean deleted = FileUtils.deleteQuietly(toFile(path));
+        final FilesystemResourceIndex index = getReadyResourceIndex();
+        if (index != null) {
+            index.refresh(path);
+        }
+        return deleted;
+    }
+
+    @Override
+    public void metricsPersisted(ResourcePath path) {
+        final FilesystemResourceIndex index = getReadyResourceIndex();
+        if (index != null) {
+            index.metricsPersisted(path);
+        }
     }
 
     private boolean exists(Path root, int depth) {
@@ -199,17 +312,35 @@ public class FilesystemResourceStorageDao implements ResourceStorageDao, Initial
         return sb.toString();
     }
 
-    public void setRrdDirectory(File rrdDirectory) {
+    public synchronized void setRrdDirectory(File rrdDirectory) {
         m_rrdDirectory = rrdDirectory;
+        restartResourceIndex();
     }
 
     public File getRrdDirectory() {
         return m_rrdDirectory;
     }
 
-    public void setRrdStrategy(RrdStrategy<?, ?> rrdStrategy) {
+    public void setResourceIndexEnabled(boolean resourceIndexEnabled) {
+        m_resourceIndexEnabled = resourceIndexEnabled;
+    }
+
+    public boolean isResourceIndexEnabled() {
+        return m_resourceIndexEnabled;
+    }
+
+    public void setResourceIndexRefreshInterval(long resourceIndexRefreshInterval) {
+        m_resourceIndexRefreshInterval = resourceIndexRefreshInterval;
+    }
+
+    public void setResourceIndexThreads(int resourceIndexThreads) {
+        m_resourceIndexThreads = resourceIndexThreads;
+    }
+
+    public synchronized void setRrdStrategy(RrdStrategy<?, ?> rrdStrategy) {
         m_rrdStrategy = rrdStrategy;
         setRrdExtension(m_rrdStrategy.getDefaultFileExtension());
+        restartResourceIndex();
     }
 
     public void setRrdExtension(String rrdExtension) {
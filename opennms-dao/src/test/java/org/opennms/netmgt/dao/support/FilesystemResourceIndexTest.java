@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2017 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2017 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.dao.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opennms.netmgt.model.ResourcePath;
+
+import com.google.common.collect.Sets;
+
+public class FilesystemResourceIndexTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private FilesystemResourceIndex m_index;
+
+    @Before
+    public void setUp() {
+        m_index = new FilesystemResourceIndex(tempFolder.getRoot().toPath(), ".jrb", 2);
+    }
+
+    @After
+    public void tearDown() {
+        m_index.close();
+    }
+
+    @Test
+    public void canAnswerQueriesFromTheIndex() throws IOException {
+        createMetric("snmp", "1", "eth0");
+        createMetric("snmp", "1", "eth1");
+        createMetric("snmp", "1");
+        tempFolder.newFolder("snmp", "2", "empty");
+        m_index.build();
+
+        assertTrue(m_index.exists(ResourcePath.get("snmp", "1"), 0));
+        assertTrue(m_index.exists(ResourcePath.get("snmp", "1"), 1));
+        assertFalse(m_index.exists(ResourcePath.get("snmp", "1"), 2));
+        assertTrue(m_index.exists(ResourcePath.get("snmp"), 2));
+        assertFalse(m_index.exists(ResourcePath.get("snmp", "2"), 1));
+        assertFalse(m_index.exists(ResourcePath.get("should", "not", "exist"), 0));
+
+        assertFalse(m_index.existsWithin(ResourcePath.get("snmp"), 0));
+        assertTrue(m_index.existsWithin(ResourcePath.get("snmp"), 1));
+
+        assertEquals(Sets.newHashSet(ResourcePath.get("snmp", "1", "eth0"), ResourcePath.get("snmp", "1", "eth1")),
+                m_index.children(ResourcePath.get("snmp", "1"), 1));
+        assertEquals(Collections.singleton(ResourcePath.get("snmp", "1")), m_index.children(ResourcePath.get("snmp"), 2));
+    }
+
+    @Test
+    public void picksUpPersistedMetrics() throws IOException {
+        tempFolder.newFolder("snmp", "1");
+        m_index.build();
+        assertFalse(m_index.exists(ResourcePath.get("snmp", "1"), 1));
+
+        createMetric("snmp", "1", "eth0");
+        m_index.metricsPersisted(ResourcePath.get("snmp", "1", "eth0"));
+        assertTrue(m_index.exists(ResourcePath.get("snmp", "1"), 1));
+        assertTrue(m_index.exists(ResourcePath.get("snmp"), 2));
+    }
+
+    @Test
+    public void picksUpChangesOnRefresh() throws IOException {
+        createMetric("snmp", "1", "eth0");
+        m_index.build();
+
+        createMetric("snmp", "2", "eth0");
+        FileUtils.deleteDirectory(new File(tempFolder.getRoot(), "snmp/1"));
+        m_index.refresh();
+
+        assertFalse(m_index.exists(ResourcePath.get("snmp", "1"), 1));
+        assertTrue(m_index.exists(ResourcePath.get("snmp", "2"), 1));
+        assertEquals(Collections.singleton(ResourcePath.get("snmp", "2")), m_index.children(ResourcePath.get("snmp"), 2));
+    }
+
+    @Test
+    public void picksUpDeletions() throws IOException {
+        createMetric("snmp", "1", "eth0");
+        createMetric("snmp", "1", "eth1");
+        m_index.build();
+
+        FileUtils.deleteDirectory(new File(tempFolder.getRoot(), "snmp/1/eth0"));
+        m_index.refresh(ResourcePath.get("snmp", "1", "eth0"));
+        assertEquals(Collections.singleton(ResourcePath.get("snmp", "1", "eth1")), m_index.children(ResourcePath.get("snmp", "1"), 1));
+
+        FileUtils.deleteDirectory(new File(tempFolder.getRoot(), "snmp/1/eth1"));
+        m_index.refresh(ResourcePath.get("snmp", "1", "eth1"));
+        assertFalse(m_index.exists(ResourcePath.get("snmp"), 2));
+    }
+
+    private void createMetric(String... path) throws IOException {
+        final File folder = new File(tempFolder.getRoot(), String.join(File.separator, path));
+        folder.mkdirs();
+        assertTrue(new File(folder, "ds.jrb").createNewFile());
+    }
+}
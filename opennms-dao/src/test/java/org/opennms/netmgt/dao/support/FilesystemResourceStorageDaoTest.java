@@ -34,6 +34,7 @@ import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.Set;
 
 import org.junit.Before;
@@ -150,4 +151,42 @@ public class FilesystemResourceStorageDaoTest {
         Set<OnmsAttribute> attributes = m_fsResourceStorageDao.getAttributes(ResourcePath.get("a"));
         assertEquals(1, attributes.size());
     }
+
+    @Test
+    public void canReRootAStartedDao() throws Exception {
+        File rootA = tempFolder.newFolder("rootA");
+        new File(tempFolder.newFolder("rootA", "a"), "ds" + m_rrdFileExtension).createNewFile();
+        File rootB = tempFolder.newFolder("rootB");
+        new File(tempFolder.newFolder("rootB", "b"), "ds" + m_rrdFileExtension).createNewFile();
+
+        m_fsResourceStorageDao.setRrdDirectory(rootA);
+        m_fsResourceStorageDao.setResourceIndexEnabled(true);
+        m_fsResourceStorageDao.afterPropertiesSet();
+        try {
+            waitForResourceIndex();
+            assertTrue(m_fsResourceStorageDao.exists(ResourcePath.get("a"), 0));
+            assertFalse(m_fsResourceStorageDao.exists(ResourcePath.get("b"), 0));
+
+            // The index of the previous directory must not be used, even before the new one is ready
+            m_fsResourceStorageDao.setRrdDirectory(rootB);
+            assertFalse(m_fsResourceStorageDao.exists(ResourcePath.get("a"), 0));
+            assertTrue(m_fsResourceStorageDao.exists(ResourcePath.get("b"), 0));
+
+            waitForResourceIndex();
+            assertFalse(m_fsResourceStorageDao.exists(ResourcePath.get("a"), 0));
+            assertTrue(m_fsResourceStorageDao.exists(ResourcePath.get("b"), 0));
+            assertTrue(m_fsResourceStorageDao.existsWithin(ResourcePath.get(), 1));
+            assertEquals(Collections.singleton(ResourcePath.get("b")), m_fsResourceStorageDao.children(ResourcePath.get(), 1));
+        } finally {
+            m_fsResourceStorageDao.destroy();
+        }
+    }
+
+    private void waitForResourceIndex() throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (!m_fsResourceStorageDao.isResourceIndexReady()) {
+            assertTrue("The resource index was not built in time.", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
 }
@@ -36,6 +36,7 @@ import static org.junit.Assert.assertTrue;
 import java.io.InputStream;
 import java.net.InetAddress;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -305,6 +306,54 @@ public class JdbcFilterDaoIT implements InitializingBean {
         });
     }
 
+    @Test
+    public void testCachedResultsFlushedByTable() throws Exception {
+        assertEquals(1, m_dao.getActiveIPAddressList("ipaddr == '192.168.1.1'").size());
+
+        m_transTemplate.execute(new TransactionCallbackWithoutResult() {
+            @Override
+            public void doInTransactionWithoutResult(TransactionStatus status) {
+                final OnmsIpInterface iface = m_interfaceDao.findByIpAddress("192.168.1.1").get(0);
+                iface.setIsManaged("D");
+                m_interfaceDao.save(iface);
+                m_interfaceDao.flush();
+            }
+        });
+
+        assertEquals("the result should still be cached", 1, m_dao.getActiveIPAddressList("ipaddr == '192.168.1.1'").size());
+        m_dao.flushCachedResults(Collections.singleton("ifServices"));
+        assertEquals("the rule does not depend on ifServices", 1, m_dao.getActiveIPAddressList("ipaddr  ==  '192.168.1.1'").size());
+        m_dao.flushCachedResults(Collections.singleton("ipInterface"));
+        assertEquals(0, m_dao.getActiveIPAddressList("ipaddr == '192.168.1.1'").size());
+    }
+
+    @Test
+    public void testIsValidInMemoryMatchesDatabase() throws Exception {
+        final String[] rules = new String[] {
+                "IPADDR IPLIKE *.*.*.*",
+                "IPADDR != '0.0.0.0'",
+                "ipaddr == '192.168.1.1'",
+                "isICMP",
+                "!isICMP",
+                "isSNMP & IPADDR IPLIKE 192.168.1-2.*",
+                "notisSNMP",
+                "catincIMP_mid | catincDEV_AC",
+                String.format("nodeId == '%s' & !isHTTP", m_populator.getNode1().getId())
+        };
+        final List<String> addresses = new ArrayList<>();
+        for (final OnmsIpInterface iface : m_interfaceDao.findAll()) {
+            addresses.add(InetAddressUtils.str(iface.getIpAddress()));
+        }
+        addresses.add("1.1.1.1");
+
+        for (final String rule : rules) {
+            final List<InetAddress> expected = m_dao.getActiveIPAddressList(rule);
+            for (final String addr : addresses) {
+                assertEquals("isValid(" + addr + ", " + rule + ")", expected.contains(InetAddressUtils.addr(addr)), m_dao.isValid(addr, rule));
+            }
+        }
+    }
+
     @Test
     public void testIsValid() throws Exception {
         assertFalse("There is nothing in the database, so isValid shouldn't match non-empty rules", m_dao.isValid("1.1.1.1", "ipaddr == '1.1.1.1'"));
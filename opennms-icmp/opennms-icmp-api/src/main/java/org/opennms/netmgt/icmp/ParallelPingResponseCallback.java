@@ -105,6 +105,18 @@ public class ParallelPingResponseCallback implements PingResponseCallback {
     public void waitFor() throws InterruptedException {
         m_latch.await();
     }
+
+    /**
+     * <p>waitFor</p>
+     *
+     * @param timeout the maximum time to wait for the outcome of all of the packets
+     * @param unit the unit of the timeout
+     * @return true if the outcome of all of the packets is known, false if the timeout elapsed first
+     * @throws java.lang.InterruptedException if any.
+     */
+    public boolean waitFor(long timeout, TimeUnit unit) throws InterruptedException {
+        return m_latch.await(timeout, unit);
+    }
     
     public void rethrowError() throws Exception {
         if (m_error instanceof Error) {
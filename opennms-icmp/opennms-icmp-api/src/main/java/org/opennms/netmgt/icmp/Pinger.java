@@ -31,6 +31,9 @@ package org.opennms.netmgt.icmp;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.util.concurrent.RateLimiter;
 
 /**
  * <p>Pinger class.</p>
@@ -132,7 +135,87 @@ public interface Pinger {
          *     echo reply, it will contain a number, otherwise a null value.
          */
         public List<Number> parallelPing(InetAddress host, int count, long timeout, long pingInterval) throws Exception;
+
+        /**
+         * Ping a remote host, sending 1 or more packets at the given interval, and notify
+         * the callback of the outcome of each of them, identified by its sequence number.
+         *
+         * Implementations should return as soon as the first packet was sent and pace the
+         * others in the background. The default implementation blocks the caller until the
+         * last packet was sent.
+         *
+         * @param host The {@link java.net.InetAddress} address to poll.
+         * @param count The number of packets to send.
+         * @param timeout The time to wait between each retry.
+         * @param pingInterval The interval at which packets will be sent.
+         * @param size The size of the packet to send.
+         * @param cb a {@link org.opennms.netmgt.icmp.PingResponseCallback} object, i.e.
+         *     a {@link org.opennms.netmgt.icmp.ParallelPingResponseCallback}.
+         */
+        public default void parallelPing(InetAddress host, int count, long timeout, long pingInterval, int size, PingResponseCallback cb) throws Exception {
+            for (int seqNum = 0; seqNum < count; seqNum++) {
+                ping(host, timeout == 0 ? PingConstants.DEFAULT_TIMEOUT : timeout, 0, size, seqNum, cb);
+                Thread.sleep(pingInterval);
+            }
+        }
         
+        /**
+         * Ping every given address, at the given rate, and notify the callback of the
+         * addresses that answered as the replies arrive.
+         *
+         * Implementations should return right away and send the packets in the background.
+         * The default implementation blocks the caller until the last packet was sent.
+         *
+         * @param addresses The {@link java.net.InetAddress} addresses to sweep.
+         * @param timeout The time to wait between each retry.
+         * @param retries The number of times to retry.
+         * @param packetSize The size of the packets to send.
+         * @param packetsPerSecond The maximum rate at which packets are sent.
+         * @param cb a {@link org.opennms.netmgt.icmp.PingSweepCallback} object.
+         */
+        public default void sweep(Iterable<InetAddress> addresses, long timeout, int retries, int packetSize, double packetsPerSecond, PingSweepCallback cb) throws Exception {
+            final RateLimiter limiter = RateLimiter.create(packetsPerSecond);
+            // Start with one for the sender, so that the sweep cannot complete before everything was sent
+            final AtomicInteger outstanding = new AtomicInteger(1);
+            final PingResponseCallback pingCallback = new PingResponseCallback() {
+                @Override
+                public void handleResponse(InetAddress address, EchoPacket response) {
+                    cb.handleResponse(address, response);
+                    done();
+                }
+
+                @Override
+                public void handleTimeout(InetAddress address, EchoPacket request) {
+                    done();
+                }
+
+                @Override
+                public void handleError(InetAddress address, EchoPacket request, Throwable t) {
+                    done();
+                }
+
+                private void done() {
+                    if (outstanding.decrementAndGet() == 0) {
+                        cb.handleComplete();
+                    }
+                }
+            };
+
+            try {
+                for (final InetAddress address : addresses) {
+                    limiter.acquire();
+                    outstanding.incrementAndGet();
+                    ping(address, timeout, retries, packetSize, 1, pingCallback);
+                }
+            } catch (final Exception e) {
+                cb.handleError(e);
+                throw e;
+            }
+            if (outstanding.decrementAndGet() == 0) {
+                cb.handleComplete();
+            }
+        }
+
 	public void setAllowFragmentation(final boolean allow) throws Exception;
 
 	public void setTrafficClass(final int tc) throws Exception;
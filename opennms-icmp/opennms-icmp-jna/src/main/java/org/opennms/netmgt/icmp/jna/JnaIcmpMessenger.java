@@ -30,6 +30,8 @@ package org.opennms.netmgt.icmp.jna;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.opennms.netmgt.icmp.EchoPacket;
 import org.opennms.netmgt.icmp.IcmpMessengerIOException;
@@ -51,6 +53,7 @@ public class JnaIcmpMessenger implements Messenger<JnaPingRequest, JnaPingReply>
 	private V4Pinger m_v4;
 	private V6Pinger m_v6;
     private ReplyHandler<JnaPingReply> m_callback = null;
+    private final Map<Long, PingReplyListener> m_sweeps = new ConcurrentHashMap<>();
 
 	public JnaIcmpMessenger(final int pingerId) throws Exception {
 	    Throwable error = null;
@@ -79,6 +82,16 @@ public class JnaIcmpMessenger implements Messenger<JnaPingRequest, JnaPingReply>
 	    }
 	}
 	
+    /**
+     * Uses the given pingers, either of which may be null.
+     */
+    JnaIcmpMessenger(final V4Pinger v4, final V6Pinger v6) {
+        m_v4 = v4;
+        m_v6 = v6;
+        if (m_v4 != null) m_v4.addPingReplyListener(this);
+        if (m_v6 != null) m_v6.addPingReplyListener(this);
+    }
+
     public boolean isV4Available() {
         if (m_v4 != null) {
             return true;
@@ -86,6 +99,25 @@ public class JnaIcmpMessenger implements Messenger<JnaPingRequest, JnaPingReply>
         return false;
     }
 
+    /**
+     * The IPv4 pinger, used by the sweeps to send on the same socket.
+     */
+    V4Pinger getV4Pinger() {
+        return m_v4;
+    }
+
+    /**
+     * Hands the replies to the requests sent with the given thread ID to the
+     * listener, instead of the request tracker.
+     */
+    void addSweep(final long threadId, final PingReplyListener listener) {
+        m_sweeps.put(threadId, listener);
+    }
+
+    void removeSweep(final long threadId) {
+        m_sweeps.remove(threadId);
+    }
+
     public boolean isV6Available() {
         if (m_v6 != null) {
             return true;
@@ -107,6 +139,13 @@ public class JnaIcmpMessenger implements Messenger<JnaPingRequest, JnaPingReply>
 
         @Override
 	public void onPingReply(final InetAddress address, final EchoPacket packet) {
+        if (!m_sweeps.isEmpty()) {
+            final PingReplyListener sweep = m_sweeps.get(packet.getThreadId());
+            if (sweep != null) {
+                sweep.onPingReply(address, packet);
+                return;
+            }
+        }
         m_callback.handleReply(new JnaPingReply(address, packet));
 	}
 
@@ -0,0 +1,318 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.icmp.jna;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.opennms.jicmp.jna.NativeDatagramPacket;
+import org.opennms.jicmp.jna.NativeDatagramSocket;
+import org.opennms.netmgt.icmp.EchoPacket;
+import org.opennms.netmgt.icmp.PingResponseCallback;
+import org.opennms.netmgt.icmp.PingSweepCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sweeps a list of addresses at a fixed rate.
+ *
+ * The IPv4 echo requests are all written to the same preallocated packet,
+ * only updating the sequence number, timestamp and checksum between sends,
+ * and the requests waiting for a reply are tracked in a {@link SweepTable}
+ * keyed by address and sequence number (the attempt), instead of creating
+ * a request, a callback and a timeout entry for every address. Replies are
+ * handed to the callback as they arrive.
+ *
+ * IPv6 addresses are pinged through the regular request tracker.
+ */
+public class JnaPingSweep implements Runnable, PingReplyListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JnaPingSweep.class);
+
+    /**
+     * Upper bound of the time spent parked between two checks of the sweep state.
+     */
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /**
+     * Pings the addresses that cannot be swept directly.
+     */
+    public interface FallbackPinger {
+        void ping(InetAddress address, PingResponseCallback cb) throws Exception;
+    }
+
+    private final NativeDatagramSocket m_socket;
+    private final long m_threadId;
+    private final Iterator<InetAddress> m_addresses;
+    private final long m_timeoutNanos;
+    private final int m_retries;
+    private final long m_intervalNanos;
+    private final PingSweepCallback m_cb;
+    private final FallbackPinger m_fallback;
+
+    private final V4PingRequest m_packet;
+    private final ByteBuffer m_content;
+    private final NativeDatagramPacket m_datagram;
+    private final byte[] m_addressBytes = new byte[4];
+
+    /**
+     * The requests waiting for a reply, guarded by itself, since replies are processed on the socket reader thread.
+     */
+    private final SweepTable m_pending;
+
+    /**
+     * The requests in the order they were sent, with their deadline, only used by the sweeping thread.
+     */
+    private final long[] m_sentKeys;
+    private final long[] m_sentDeadlines;
+    private int m_sentHead = 0;
+    private int m_sentCount = 0;
+
+    /**
+     * The requests that timed out and must be sent again, only used by the sweeping thread.
+     */
+    private long[] m_retryKeys = new long[64];
+    private int m_retryHead = 0;
+    private int m_retryCount = 0;
+
+    private final AtomicInteger m_fallbackPending = new AtomicInteger();
+
+    private long m_sent = 0;
+    private long m_retried = 0;
+    private volatile long m_responded = 0;
+    private long m_timedOut = 0;
+    private long m_fallbacks = 0;
+
+    public JnaPingSweep(NativeDatagramSocket socket, int pingerId, long threadId, Iterable<InetAddress> addresses, long timeout, int retries, int packetSize, double packetsPerSecond, PingSweepCallback cb, FallbackPinger fallback) {
+        m_socket = socket;
+        m_threadId = threadId;
+        m_addresses = addresses.iterator();
+        m_timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        m_retries = Math.max(0, Math.min(retries, 0xffff));
+        m_intervalNanos = packetsPerSecond > 0 ? (long)(TimeUnit.SECONDS.toNanos(1) / packetsPerSecond) : 0;
+        m_cb = cb;
+        m_fallback = fallback;
+
+        m_packet = new V4PingRequest(pingerId, 0, threadId, packetSize);
+        m_content = m_packet.getContentBuffer();
+        m_datagram = m_packet.toDatagramPacket(null);
+
+        // Enough room for every request that can be sent during a timeout
+        final long inFlight = m_intervalNanos > 0 ? m_timeoutNanos / m_intervalNanos + 1 : 65536;
+        final int capacity = (int)Math.max(1024, Math.min(inFlight * 2, 1 << 22));
+        m_pending = new SweepTable(capacity);
+        m_sentKeys = new long[capacity];
+        m_sentDeadlines = new long[capacity];
+    }
+
+    public long getThreadId() {
+        return m_threadId;
+    }
+
+    @Override
+    public void run() {
+        try {
+            sweep();
+        } catch (final Throwable t) {
+            LOG.warn("Ping sweep failed after sending {} packets.", m_sent, t);
+            m_cb.handleError(t);
+            return;
+        }
+        LOG.debug("Ping sweep completed: {} packets sent, {} retries, {} responses, {} timeouts, {} addresses pinged through the request tracker.", m_sent, m_retried, m_responded, m_timedOut, m_fallbacks);
+        m_cb.handleComplete();
+    }
+
+    private void sweep() throws Exception {
+        long nextSend = System.nanoTime();
+        while (true) {
+            final long now = System.nanoTime();
+            expire(now);
+
+            final boolean more = m_retryCount > 0 || m_addresses.hasNext();
+            if (!more && m_sentCount == 0 && m_fallbackPending.get() == 0) {
+                return;
+            }
+
+            if (more && now >= nextSend && m_sentCount < m_sentKeys.length) {
+                if (sendNext(now)) {
+                    // Do not try to catch up with the rate after a stall, which would send a burst
+                    nextSend = Math.max(nextSend + m_intervalNanos, now - m_intervalNanos);
+                }
+                continue;
+            }
+
+            long wakeUp = now + MAX_PARK_NANOS;
+            if (more && m_sentCount < m_sentKeys.length) {
+                wakeUp = Math.min(wakeUp, nextSend);
+            }
+            if (m_sentCount > 0) {
+                wakeUp = Math.min(wakeUp, m_sentDeadlines[m_sentHead]);
+            }
+            if (wakeUp > now) {
+                LockSupport.parkNanos(this, wakeUp - now);
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException("Ping sweep interrupted.");
+            }
+        }
+    }
+
+    /**
+     * @return true if a packet was sent
+     */
+    private boolean sendNext(long now) throws Exception {
+        final long key;
+        if (m_retryCount > 0) {
+            key = m_retryKeys[m_retryHead];
+            m_retryHead = (m_retryHead + 1) % m_retryKeys.length;
+            m_retryCount--;
+            m_retried++;
+        } else {
+            final InetAddress address = m_addresses.next();
+            if (!(address instanceof Inet4Address)) {
+                // The fallback pings count against the rate too
+                fallback(address);
+                return true;
+            }
+            key = SweepTable.key(toInt(address), 0);
+        }
+
+        synchronized (m_pending) {
+            m_pending.put(key, now);
+        }
+        m_sentKeys[(m_sentHead + m_sentCount) % m_sentKeys.length] = key;
+        m_sentDeadlines[(m_sentHead + m_sentCount) % m_sentKeys.length] = now + m_timeoutNanos;
+        m_sentCount++;
+
+        send(key);
+        return true;
+    }
+
+    private void send(long key) throws UnknownHostException {
+        final int address = SweepTable.address(key);
+        m_addressBytes[0] = (byte)(address >>> 24);
+        m_addressBytes[1] = (byte)(address >>> 16);
+        m_addressBytes[2] = (byte)(address >>> 8);
+        m_addressBytes[3] = (byte)address;
+
+        m_packet.setSequenceNumber(SweepTable.sequenceNumber(key));
+        m_content.putLong(V4PingRequest.OFFSET_TIMESTAMP, System.nanoTime());
+        m_packet.setChecksum();
+        m_datagram.setAddress(InetAddress.getByAddress(m_addressBytes));
+        m_socket.send(m_datagram);
+        m_sent++;
+    }
+
+    private void expire(long now) {
+        while (m_sentCount > 0 && m_sentDeadlines[m_sentHead] <= now) {
+            final long key = m_sentKeys[m_sentHead];
+            m_sentHead = (m_sentHead + 1) % m_sentKeys.length;
+            m_sentCount--;
+
+            final long removed;
+            synchronized (m_pending) {
+                removed = m_pending.remove(key);
+            }
+            if (removed == SweepTable.MISSING) {
+                // Already answered
+                continue;
+            }
+
+            final int attempt = SweepTable.sequenceNumber(key);
+            if (attempt < m_retries) {
+                retry(SweepTable.key(SweepTable.address(key), attempt + 1));
+            } else {
+                m_timedOut++;
+            }
+        }
+    }
+
+    private void retry(long key) {
+        if (m_retryCount == m_retryKeys.length) {
+            final long[] grown = new long[m_retryKeys.length * 2];
+            for (int i = 0; i < m_retryCount; i++) {
+                grown[i] = m_retryKeys[(m_retryHead + i) % m_retryKeys.length];
+            }
+            m_retryKeys = grown;
+            m_retryHead = 0;
+        }
+        m_retryKeys[(m_retryHead + m_retryCount) % m_retryKeys.length] = key;
+        m_retryCount++;
+    }
+
+    private void fallback(InetAddress address) throws Exception {
+        m_fallbackPending.incrementAndGet();
+        m_fallbacks++;
+        m_fallback.ping(address, new PingResponseCallback() {
+            @Override
+            public void handleResponse(InetAddress address, EchoPacket response) {
+                m_cb.handleResponse(address, response);
+                m_fallbackPending.decrementAndGet();
+            }
+
+            @Override
+            public void handleTimeout(InetAddress address, EchoPacket request) {
+                m_fallbackPending.decrementAndGet();
+            }
+
+            @Override
+            public void handleError(InetAddress address, EchoPacket request, Throwable t) {
+                m_fallbackPending.decrementAndGet();
+            }
+        });
+    }
+
+    @Override
+    public void onPingReply(InetAddress address, EchoPacket packet) {
+        if (!(address instanceof Inet4Address)) {
+            return;
+        }
+        final long removed;
+        synchronized (m_pending) {
+            removed = m_pending.remove(SweepTable.key(toInt(address), packet.getSequenceNumber()));
+        }
+        // Ignore duplicates and late replies
+        if (removed != SweepTable.MISSING) {
+            m_responded++;
+            m_cb.handleResponse(address, packet);
+        }
+    }
+
+    private static int toInt(InetAddress address) {
+        final byte[] bytes = address.getAddress();
+        return ((bytes[0] & 0xff) << 24) | ((bytes[1] & 0xff) << 16) | ((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff);
+    }
+}
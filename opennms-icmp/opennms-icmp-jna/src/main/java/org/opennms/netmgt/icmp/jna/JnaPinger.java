@@ -37,10 +37,13 @@ import java.net.InetAddress;
 import java.security.SecureRandom;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 import org.opennms.core.logging.Logging;
+import org.opennms.netmgt.icmp.EchoPacket;
 import org.opennms.netmgt.icmp.ParallelPingResponseCallback;
 import org.opennms.netmgt.icmp.PingResponseCallback;
+import org.opennms.netmgt.icmp.PingSweepCallback;
 import org.opennms.netmgt.icmp.Pinger;
 import org.opennms.netmgt.icmp.SinglePingResponseCallback;
 import org.opennms.protocols.rt.IDBasedRequestLocator;
@@ -61,6 +64,7 @@ public class JnaPinger implements Pinger {
 
     private RequestTracker<JnaPingRequest, JnaPingReply> m_pingTracker;
     private JnaIcmpMessenger m_messenger;
+    private PacedPingScheduler m_scheduler;
 
     /**
      * Initializes this singleton
@@ -76,6 +80,7 @@ public class JnaPinger implements Pinger {
                 }
             });
             m_pingTracker.start();
+            m_scheduler = new PacedPingScheduler("JNA-ICMP-Pacer-"+m_pingerId, 5, TimeUnit.MILLISECONDS, 512);
         } catch (final IOException e) {
             final String errorMessage = e.getMessage().toLowerCase();
             if (errorMessage.contains("permission denied") || errorMessage.contains("operation not permitted")) {
@@ -226,18 +231,77 @@ public class JnaPinger implements Pinger {
      */
     @Override
     public List<Number> parallelPing(final InetAddress host, final int count, final long timeout, final long pingInterval, final int size) throws Exception {
-        initialize();
         final ParallelPingResponseCallback cb = new ParallelPingResponseCallback(count);
+        parallelPing(host, count, timeout, pingInterval, size, cb);
+        cb.waitFor();
+        return cb.getResponseTimes();
+    }
 
-        final long threadId = JnaPingRequest.getNextTID();
-        for (int seqNum = 0; seqNum < count; seqNum++) {
-            final JnaPingRequest request = new JnaPingRequest(host, m_pingerId, seqNum, threadId, timeout == 0? DEFAULT_TIMEOUT : timeout, 0, size, cb);
-            m_pingTracker.sendRequest(request);
-            Thread.sleep(pingInterval);
+    /**
+     * Ping a remote host, sending 1 or more packets at the given interval, and notify
+     * the callback of the outcome of each of them.
+     *
+     * The first packet is sent right away, the others are sent by the pacer thread,
+     * so this returns without waiting for the interval.
+     *
+     * @param host The {@link java.net.InetAddress} address to poll.
+     * @param count The number of packets to send.
+     * @param timeout The time to wait between each retry.
+     * @param pingInterval The interval at which packets will be sent.
+     * @param size The size of the packet to send.
+     * @param cb a {@link org.opennms.netmgt.icmp.PingResponseCallback} object.
+     */
+    @Override
+    public void parallelPing(final InetAddress host, final int count, final long timeout, final long pingInterval, final int size, final PingResponseCallback cb) throws Exception {
+        initialize();
+        if (count <= 0) {
+            return;
         }
+        // Errors sending the first packet go to the caller, as they did when sleeping between packets
+        new PacedPing(host, count, timeout == 0? DEFAULT_TIMEOUT : timeout, pingInterval, size, cb).sendNext();
+    }
 
-        cb.waitFor();
-        return cb.getResponseTimes();
+    /**
+     * Sends one packet of a parallel ping each time it runs, and schedules itself for the next one.
+     */
+    private class PacedPing implements Runnable {
+        private final InetAddress m_host;
+        private final int m_count;
+        private final long m_timeout;
+        private final long m_pingInterval;
+        private final int m_size;
+        private final PingResponseCallback m_cb;
+        private final long m_threadId = JnaPingRequest.getNextTID();
+        private int m_seqNum = 0;
+
+        private PacedPing(final InetAddress host, final int count, final long timeout, final long pingInterval, final int size, final PingResponseCallback cb) {
+            m_host = host;
+            m_count = count;
+            m_timeout = timeout;
+            m_pingInterval = pingInterval;
+            m_size = size;
+            m_cb = cb;
+        }
+
+        private void sendNext() throws Exception {
+            m_pingTracker.sendRequest(new JnaPingRequest(m_host, m_pingerId, m_seqNum, m_threadId, m_timeout, 0, m_size, m_cb));
+            if (++m_seqNum < m_count) {
+                m_scheduler.schedule(this, m_pingInterval, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                sendNext();
+            } catch (final Throwable t) {
+                // Fail this packet and the ones that will never be sent
+                LOG.debug("Failed to send ping {} to {}", m_seqNum, m_host, t);
+                for (int seqNum = m_seqNum; seqNum < m_count; seqNum++) {
+                    m_cb.handleError(m_host, new JnaPingRequest(m_host, m_pingerId, seqNum, m_threadId, m_timeout, 0, m_size, m_cb), t);
+                }
+            }
+        }
     }
 
     /**
@@ -257,6 +321,56 @@ public class JnaPinger implements Pinger {
         return parallelPing(host, count, timeout, pingInterval, DEFAULT_PACKET_SIZE);
     }
 
+    /**
+     * Ping every given address, at the given rate, and notify the callback of the
+     * addresses that answered as the replies arrive.
+     *
+     * The IPv4 addresses are swept by a {@link JnaPingSweep} on its own thread, which
+     * reuses a single packet and tracks the outstanding requests in a compact table
+     * rather than going through the request tracker.
+     */
+    @Override
+    public void sweep(final Iterable<InetAddress> addresses, final long timeout, final int retries, final int packetSize, final double packetsPerSecond, final PingSweepCallback cb) throws Exception {
+        initialize();
+        if (!m_messenger.isV4Available()) {
+            Pinger.super.sweep(addresses, timeout, retries, packetSize, packetsPerSecond, cb);
+            return;
+        }
+
+        final long threadId = JnaPingRequest.getNextTID();
+        final JnaPingSweep sweep = new JnaPingSweep(m_messenger.getV4Pinger().getPingSocket(), m_pingerId, threadId, addresses,
+                timeout == 0 ? DEFAULT_TIMEOUT : timeout, retries, packetSize, packetsPerSecond,
+                new PingSweepCallback() {
+                    @Override
+                    public void handleResponse(final InetAddress address, final EchoPacket response) {
+                        cb.handleResponse(address, response);
+                    }
+
+                    @Override
+                    public void handleComplete() {
+                        m_messenger.removeSweep(threadId);
+                        cb.handleComplete();
+                    }
+
+                    @Override
+                    public void handleError(final Throwable t) {
+                        m_messenger.removeSweep(threadId);
+                        cb.handleError(t);
+                    }
+                },
+                new JnaPingSweep.FallbackPinger() {
+                    @Override
+                    public void ping(final InetAddress address, final PingResponseCallback pingCallback) throws Exception {
+                        JnaPinger.this.ping(address, timeout, retries, packetSize, 1, pingCallback);
+                    }
+                });
+        m_messenger.addSweep(threadId, sweep);
+
+        final Thread thread = new Thread(sweep, "JNA-ICMP-Sweep-"+m_pingerId+"-"+threadId);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
     @Override
     public void setAllowFragmentation(boolean allow) throws Exception {
         initialize();
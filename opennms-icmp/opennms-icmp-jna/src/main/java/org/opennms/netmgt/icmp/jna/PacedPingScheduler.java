@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.icmp.jna;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A hashed timer wheel, driven by a single thread, used to pace the packets
+ * of parallel pings without sleeping on the calling threads.
+ *
+ * Tasks are placed in the bucket of the tick at which they are due, and run on
+ * the timer thread, so they must not block. The precision is one tick.
+ */
+public class PacedPingScheduler implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PacedPingScheduler.class);
+
+    private final long m_tickNanos;
+
+    private final Queue<Task>[] m_wheel;
+
+    private final Queue<Task> m_incoming = new ConcurrentLinkedQueue<>();
+
+    private final Thread m_thread;
+
+    private final long m_startNanos;
+
+    private volatile boolean m_running = true;
+
+    /**
+     * Tick at which the timer thread currently is, only modified by the timer thread.
+     */
+    private volatile long m_tick = 0;
+
+    @SuppressWarnings("unchecked")
+    public PacedPingScheduler(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+        if (tickDuration <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("The tick duration and the wheel size must be strictly positive.");
+        }
+        m_tickNanos = unit.toNanos(tickDuration);
+        m_wheel = new Queue[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            m_wheel[i] = new ArrayDeque<>();
+        }
+
+        m_startNanos = System.nanoTime();
+        m_thread = new Thread(this::run, name);
+        m_thread.setDaemon(true);
+        m_thread.start();
+    }
+
+    /**
+     * Runs the task on the timer thread once the delay has elapsed.
+     */
+    public void schedule(Runnable task, long delay, TimeUnit unit) {
+        if (!m_running) {
+            throw new IllegalStateException("The scheduler was closed.");
+        }
+        m_incoming.add(new Task(task, System.nanoTime() + unit.toNanos(Math.max(0, delay))));
+    }
+
+    @Override
+    public void close() {
+        m_running = false;
+        m_thread.interrupt();
+    }
+
+    private void run() {
+        while (m_running) {
+            final long deadline = m_startNanos + (m_tick + 1) * m_tickNanos;
+            long sleep;
+            while ((sleep = deadline - System.nanoTime()) > 0 && m_running) {
+                LockSupport.parkNanos(this, sleep);
+            }
+
+            transferIncoming();
+
+            final Queue<Task> bucket = m_wheel[(int)(m_tick % m_wheel.length)];
+            for (final Iterator<Task> it = bucket.iterator(); it.hasNext();) {
+                final Task task = it.next();
+                if (task.m_rounds > 0) {
+                    task.m_rounds--;
+                    continue;
+                }
+                it.remove();
+                try {
+                    task.m_task.run();
+                } catch (Throwable t) {
+                    LOG.warn("Paced ping task failed.", t);
+                }
+            }
+            m_tick++;
+        }
+    }
+
+    private void transferIncoming() {
+        Task task;
+        while ((task = m_incoming.poll()) != null) {
+            // Never place a task in a tick that already passed
+            final long due = Math.max(m_tick, (task.m_deadline - m_startNanos) / m_tickNanos);
+            task.m_rounds = (due - m_tick) / m_wheel.length;
+            m_wheel[(int)(due % m_wheel.length)].add(task);
+        }
+    }
+
+    private static class Task {
+        private final Runnable m_task;
+        private final long m_deadline;
+        private long m_rounds;
+
+        private Task(Runnable task, long deadline) {
+            m_task = task;
+            m_deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.icmp.jna;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash table, with linear probing, of the echo requests
+ * of a sweep that are waiting for a reply.
+ *
+ * The requests are keyed by IPv4 address and sequence number, packed in a
+ * single long, so that tracking one does not allocate anything. The table
+ * is not thread-safe.
+ */
+public class SweepTable {
+
+    public static final long MISSING = Long.MIN_VALUE;
+
+    private static final long EMPTY = -1L;
+
+    private final long[] m_keys;
+
+    private final long[] m_values;
+
+    private final int m_mask;
+
+    private final int m_maxSize;
+
+    private int m_size = 0;
+
+    /**
+     * @param expectedSize the maximum number of entries
+     */
+    public SweepTable(int expectedSize) {
+        // Keep the load factor under 0.5
+        int capacity = Integer.highestOneBit(Math.max(16, expectedSize) * 2 - 1) << 1;
+        m_keys = new long[capacity];
+        m_values = new long[capacity];
+        m_mask = capacity - 1;
+        m_maxSize = Math.max(1, expectedSize);
+        Arrays.fill(m_keys, EMPTY);
+    }
+
+    public static long key(int address, int sequenceNumber) {
+        return ((address & 0xffffffffL) << 16) | (sequenceNumber & 0xffff);
+    }
+
+    public static int address(long key) {
+        return (int)(key >>> 16);
+    }
+
+    public static int sequenceNumber(long key) {
+        return (int)(key & 0xffff);
+    }
+
+    public int size() {
+        return m_size;
+    }
+
+    public boolean isFull() {
+        return m_size >= m_maxSize;
+    }
+
+    /**
+     * @return false if the table is full
+     */
+    public boolean put(long key, long value) {
+        int slot = slot(key);
+        while (m_keys[slot] != EMPTY) {
+            if (m_keys[slot] == key) {
+                m_values[slot] = value;
+                return true;
+            }
+            slot = (slot + 1) & m_mask;
+        }
+        if (isFull()) {
+            return false;
+        }
+        m_keys[slot] = key;
+        m_values[slot] = value;
+        m_size++;
+        return true;
+    }
+
+    public long get(long key) {
+        for (int slot = slot(key); m_keys[slot] != EMPTY; slot = (slot + 1) & m_mask) {
+            if (m_keys[slot] == key) {
+                return m_values[slot];
+            }
+        }
+        return MISSING;
+    }
+
+    /**
+     * @return the value of the removed entry, or {@link #MISSING}
+     */
+    public long remove(long key) {
+        int slot = slot(key);
+        while (m_keys[slot] != key) {
+            if (m_keys[slot] == EMPTY) {
+                return MISSING;
+            }
+            slot = (slot + 1) & m_mask;
+        }
+        final long value = m_values[slot];
+
+        // Shift the following entries back, so that no tombstones are needed
+        int hole = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & m_mask;
+            if (m_keys[next] == EMPTY) {
+                break;
+            }
+            final int home = slot(m_keys[next]);
+            final boolean staysPut = hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+            if (!staysPut) {
+                m_keys[hole] = m_keys[next];
+                m_values[hole] = m_values[next];
+                hole = next;
+            }
+        }
+        m_keys[hole] = EMPTY;
+        m_size--;
+        return value;
+    }
+
+    private int slot(long key) {
+        return (int)((key * 0x9E3779B97F4A7C15L) >>> 32) & m_mask;
+    }
+}
@@ -0,0 +1,333 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.icmp.jna;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.opennms.core.utils.InetAddressUtils;
+import org.opennms.jicmp.ip.ICMPPacket;
+import org.opennms.jicmp.ip.ICMPPacket.Type;
+import org.opennms.jicmp.jna.NativeDatagramPacket;
+import org.opennms.jicmp.jna.NativeDatagramSocket;
+import org.opennms.netmgt.icmp.EchoPacket;
+import org.opennms.netmgt.icmp.PingSweepCallback;
+
+public class JnaPingSweepTest {
+
+    private static final int PINGER_ID = 1234;
+
+    private static final long THREAD_ID = 42;
+
+    /**
+     * Answers the packets sent by the sweep.
+     */
+    private interface Responder {
+        void onSend(InetAddress address, V4PingReply reply);
+    }
+
+    private static class SentPacket {
+        private final InetAddress m_address;
+        private final ICMPPacket m_packet;
+
+        private SentPacket(InetAddress address, ICMPPacket packet) {
+            m_address = address;
+            m_packet = packet;
+        }
+    }
+
+    /**
+     * Records a copy of every packet instead of sending it.
+     */
+    private static class StubSocket extends NativeDatagramSocket {
+        private final List<SentPacket> m_sent = Collections.synchronizedList(new ArrayList<SentPacket>());
+        private volatile Responder m_responder;
+
+        @Override
+        public int getSock() {
+            return -1;
+        }
+
+        @Override
+        public void allowFragmentation(boolean frag) throws IOException {
+        }
+
+        @Override
+        public void setTrafficClass(int tc) throws IOException {
+        }
+
+        @Override
+        public int receive(NativeDatagramPacket p) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int send(NativeDatagramPacket p) {
+            final ByteBuffer content = copy(p.getContent());
+            m_sent.add(new SentPacket(p.getAddress(), new ICMPPacket(content)));
+
+            final Responder responder = m_responder;
+            if (responder != null) {
+                final ICMPPacket reply = new ICMPPacket(copy(p.getContent()));
+                reply.setType(Type.EchoReply);
+                responder.onSend(p.getAddress(), new V4PingReply(reply, System.nanoTime()));
+            }
+            return content.limit();
+        }
+
+        private static ByteBuffer copy(ByteBuffer content) {
+            final ByteBuffer copy = ByteBuffer.allocate(content.remaining());
+            copy.put(content);
+            copy.flip();
+            return copy;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        private List<Integer> getSequenceNumbers(InetAddress address) {
+            final List<Integer> sequenceNumbers = new ArrayList<>();
+            synchronized (m_sent) {
+                for (final SentPacket sent : m_sent) {
+                    if (sent.m_address.equals(address)) {
+                        sequenceNumbers.add(new V4PingReply(sent.m_packet, 0).getSequenceNumber());
+                    }
+                }
+            }
+            return sequenceNumbers;
+        }
+    }
+
+    private static class RecordingCallback implements PingSweepCallback {
+        private final List<String> m_events = Collections.synchronizedList(new ArrayList<String>());
+        private final Set<InetAddress> m_responded = Collections.synchronizedSet(new HashSet<InetAddress>());
+        private final CountDownLatch m_done = new CountDownLatch(1);
+        private volatile Throwable m_error;
+
+        @Override
+        public void handleResponse(InetAddress address, EchoPacket response) {
+            m_events.add("response " + InetAddressUtils.str(address));
+            m_responded.add(address);
+        }
+
+        @Override
+        public void handleComplete() {
+            m_events.add("complete");
+            m_done.countDown();
+        }
+
+        @Override
+        public void handleError(Throwable t) {
+            m_error = t;
+            m_done.countDown();
+        }
+
+        private void await() throws InterruptedException {
+            assertTrue("The sweep did not complete in time.", m_done.await(10, TimeUnit.SECONDS));
+            assertNull(m_error);
+        }
+    }
+
+    private final StubSocket m_socket = new StubSocket();
+
+    private final RecordingCallback m_cb = new RecordingCallback();
+
+    private final ScheduledExecutorService m_executor = Executors.newSingleThreadScheduledExecutor();
+
+    private JnaPingSweep m_sweep;
+
+    @After
+    public void tearDown() {
+        m_executor.shutdownNow();
+    }
+
+    private void sweep(List<InetAddress> addresses, long timeout, int retries, double packetsPerSecond, JnaPingSweep.FallbackPinger fallback) {
+        m_sweep = new JnaPingSweep(m_socket, PINGER_ID, THREAD_ID, addresses, timeout, retries, 64, packetsPerSecond, m_cb, fallback);
+        final Thread thread = new Thread(m_sweep, "test-sweep");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static JnaPingSweep.FallbackPinger noFallback() {
+        return (address, cb) -> {
+            throw new AssertionError("Unexpected fallback for " + address);
+        };
+    }
+
+    @Test
+    public void testRepliesAreReportedAndTheSweepCompletes() throws Exception {
+        final List<InetAddress> addresses = Arrays.asList(addr("10.0.0.1"), addr("10.0.0.2"), addr("10.0.0.3"), addr("10.0.0.4"));
+        m_socket.m_responder = (address, reply) -> {
+            if (!address.equals(addr("10.0.0.3"))) {
+                m_sweep.onPingReply(address, reply);
+            }
+        };
+
+        sweep(addresses, 100, 0, 1000, noFallback());
+        m_cb.await();
+
+        assertEquals(new HashSet<>(Arrays.asList(addr("10.0.0.1"), addr("10.0.0.2"), addr("10.0.0.4"))), m_cb.m_responded);
+        assertEquals("complete", m_cb.m_events.get(m_cb.m_events.size() - 1));
+
+        // the packet is reused, make sure every send is a complete and valid request
+        assertEquals(4, m_socket.m_sent.size());
+        for (final SentPacket sent : m_socket.m_sent) {
+            final V4PingReply packet = new V4PingReply(sent.m_packet, 0);
+            assertEquals(Type.EchoRequest, packet.getType());
+            assertEquals(PINGER_ID, packet.getIdentifier());
+            assertEquals(THREAD_ID, packet.getThreadId());
+            assertTrue(packet.isValid());
+            assertEquals(packet.computeChecksum(), packet.getChecksum());
+        }
+    }
+
+    @Test
+    public void testTimedOutRequestsAreRetried() throws Exception {
+        // only answer the second attempt for the second address
+        m_socket.m_responder = (address, reply) -> {
+            if (address.equals(addr("10.0.0.2")) && reply.getSequenceNumber() == 1) {
+                m_sweep.onPingReply(address, reply);
+            }
+        };
+
+        sweep(Arrays.asList(addr("10.0.0.1"), addr("10.0.0.2")), 50, 2, 1000, noFallback());
+        m_cb.await();
+
+        assertEquals(Arrays.asList(0, 1, 2), m_socket.getSequenceNumbers(addr("10.0.0.1")));
+        assertEquals(Arrays.asList(0, 1), m_socket.getSequenceNumbers(addr("10.0.0.2")));
+        assertEquals(Collections.singleton(addr("10.0.0.2")), m_cb.m_responded);
+    }
+
+    @Test
+    public void testDuplicateAndLateRepliesAreIgnored() throws Exception {
+        final List<V4PingReply> replies = Collections.synchronizedList(new ArrayList<V4PingReply>());
+        m_socket.m_responder = (address, reply) -> {
+            m_sweep.onPingReply(address, reply);
+            m_sweep.onPingReply(address, reply);
+            replies.add(reply);
+        };
+
+        sweep(Arrays.asList(addr("10.0.0.1"), addr("10.0.0.2")), 50, 0, 1000, noFallback());
+        m_cb.await();
+
+        // a reply that arrives after the sweep completed is dropped as well
+        m_sweep.onPingReply(addr("10.0.0.1"), replies.get(0));
+        assertEquals(Arrays.asList("response 10.0.0.1", "response 10.0.0.2", "complete"), m_cb.m_events);
+    }
+
+    @Test
+    public void testIPv6AddressesFallBackAndArePaced() throws Exception {
+        final List<InetAddress> fallbacks = Collections.synchronizedList(new ArrayList<InetAddress>());
+        final JnaPingSweep.FallbackPinger fallback = (address, cb) -> {
+            fallbacks.add(address);
+            // answer after the IPv4 addresses were all answered
+            m_executor.schedule(() -> cb.handleResponse(address, null), 200, TimeUnit.MILLISECONDS);
+        };
+        m_socket.m_responder = (address, reply) -> m_sweep.onPingReply(address, reply);
+
+        final List<InetAddress> addresses = Arrays.asList(addr("10.0.0.1"), addr("fe80::1"), addr("10.0.0.2"), addr("fe80::2"), addr("10.0.0.3"));
+        final long start = System.nanoTime();
+        sweep(addresses, 50, 0, 20, fallback);
+        m_cb.await();
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(Arrays.asList(addr("fe80::1"), addr("fe80::2")), fallbacks);
+        assertEquals(new HashSet<>(addresses), m_cb.m_responded);
+        assertEquals(3, m_socket.m_sent.size());
+        // 5 addresses at 20 per second, including the ones that fell back
+        assertTrue("The sweep took " + elapsed + "ms", elapsed >= 190);
+        // and the sweep waited for the fallback pings
+        assertEquals("complete", m_cb.m_events.get(m_cb.m_events.size() - 1));
+    }
+
+    @Test
+    public void testFallbackErrorsAbortTheSweep() throws Exception {
+        final JnaPingSweep.FallbackPinger fallback = (address, cb) -> {
+            throw new IOException("IPv6 is not available");
+        };
+        sweep(Arrays.asList(addr("fe80::1"), addr("10.0.0.1")), 50, 0, 1000, fallback);
+        assertTrue(m_cb.m_done.await(10, TimeUnit.SECONDS));
+        assertTrue(m_cb.m_error instanceof IOException);
+        assertFalse(m_cb.m_events.contains("complete"));
+    }
+
+    @Test
+    public void testRepliesAreRoutedBySweepThreadId() throws Exception {
+        final JnaIcmpMessenger messenger = new JnaIcmpMessenger(null, null);
+        final List<JnaPingReply> tracked = Collections.synchronizedList(new ArrayList<JnaPingReply>());
+        messenger.start(reply -> tracked.add(reply));
+
+        final List<EchoPacket> swept = Collections.synchronizedList(new ArrayList<EchoPacket>());
+        messenger.addSweep(THREAD_ID, (address, packet) -> swept.add(packet));
+
+        messenger.onPingReply(addr("10.0.0.1"), reply(THREAD_ID));
+        messenger.onPingReply(addr("10.0.0.1"), reply(THREAD_ID + 1));
+        assertEquals(1, swept.size());
+        assertEquals(THREAD_ID, swept.get(0).getThreadId());
+        assertEquals(1, tracked.size());
+        assertEquals(THREAD_ID + 1, tracked.get(0).getThreadId());
+
+        // once the sweep is done, its late replies go to the request tracker
+        messenger.removeSweep(THREAD_ID);
+        messenger.onPingReply(addr("10.0.0.1"), reply(THREAD_ID));
+        assertEquals(1, swept.size());
+        assertEquals(2, tracked.size());
+    }
+
+    private static V4PingReply reply(long threadId) {
+        final V4PingRequest request = new V4PingRequest(PINGER_ID, 0, threadId, 64);
+        final ICMPPacket packet = new ICMPPacket(request.toDatagramPacket(null).getContent());
+        packet.setType(Type.EchoReply);
+        return new V4PingReply(packet, System.nanoTime());
+    }
+
+    private static InetAddress addr(String address) {
+        return InetAddressUtils.addr(address);
+    }
+}
@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.icmp.jna;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PacedPingSchedulerTest {
+
+    private PacedPingScheduler m_scheduler;
+
+    @Before
+    public void setUp() {
+        m_scheduler = new PacedPingScheduler("test-pacer", 5, TimeUnit.MILLISECONDS, 16);
+    }
+
+    @After
+    public void tearDown() {
+        m_scheduler.close();
+    }
+
+    @Test
+    public void testTasksRunAfterTheirDelay() throws Exception {
+        final int count = 10;
+        final long[] ranAt = new long[count];
+        final CountDownLatch latch = new CountDownLatch(count);
+        final long start = System.nanoTime();
+
+        // Use delays longer than a turn of the wheel as well
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            m_scheduler.schedule(() -> {
+                ranAt[index] = System.nanoTime();
+                latch.countDown();
+            }, i * 20, TimeUnit.MILLISECONDS);
+        }
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < count; i++) {
+            final long elapsed = TimeUnit.NANOSECONDS.toMillis(ranAt[i] - start);
+            assertTrue("Task " + i + " ran after " + elapsed + "ms", elapsed >= i * 20 - 5);
+        }
+        for (int i = 1; i < count; i++) {
+            assertTrue("Task " + i + " ran before task " + (i - 1), ranAt[i] >= ranAt[i - 1]);
+        }
+    }
+
+    @Test
+    public void testPacedSequence() throws Exception {
+        final List<Long> sentAt = new ArrayList<>();
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        // Mimics the way JnaPinger paces the packets of a parallel ping
+        final Runnable pacer = new Runnable() {
+            @Override
+            public void run() {
+                sentAt.add(System.nanoTime());
+                if (sentAt.size() < 5) {
+                    m_scheduler.schedule(this, 30, TimeUnit.MILLISECONDS);
+                } else {
+                    latch.countDown();
+                }
+            }
+        };
+        pacer.run();
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(5, sentAt.size());
+        for (int i = 1; i < sentAt.size(); i++) {
+            final long interval = TimeUnit.NANOSECONDS.toMillis(sentAt.get(i) - sentAt.get(i - 1));
+            assertTrue("Interval was " + interval + "ms", interval >= 25);
+        }
+    }
+
+    /**
+     * Compares the time needed to pace many parallel pings with a timer
+     * wheel to sleeping between the packets on a fixed number of threads.
+     *
+     * Sending is simulated, since opening ICMP sockets requires privileges.
+     * Run with -DrunPingBenchmarks=true.
+     */
+    @Test
+    public void benchmarkPacedVsSleeping() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("runPingBenchmarks"));
+
+        final int pings = 2000;
+        final int count = 20;
+        final long interval = 50;
+        final int pollerThreads = 100;
+
+        final AtomicLong sent = new AtomicLong();
+
+        // The current implementation: every ping occupies a poller thread while sleeping
+        final ExecutorService pollers = Executors.newFixedThreadPool(pollerThreads);
+        final CountDownLatch sleepingDone = new CountDownLatch(pings);
+        long start = System.nanoTime();
+        for (int i = 0; i < pings; i++) {
+            pollers.execute(() -> {
+                try {
+                    for (int seq = 0; seq < count; seq++) {
+                        sent.incrementAndGet();
+                        Thread.sleep(interval);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    sleepingDone.countDown();
+                }
+            });
+        }
+        sleepingDone.await();
+        final long sleepingMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        pollers.shutdown();
+
+        // The paced implementation: a single thread drives all of the pings
+        final CountDownLatch pacedDone = new CountDownLatch(pings);
+        start = System.nanoTime();
+        for (int i = 0; i < pings; i++) {
+            new Runnable() {
+                private int m_seq = 0;
+
+                @Override
+                public void run() {
+                    sent.incrementAndGet();
+                    if (++m_seq < count) {
+                        m_scheduler.schedule(this, interval, TimeUnit.MILLISECONDS);
+                    } else {
+                        pacedDone.countDown();
+                    }
+                }
+            }.run();
+        }
+        pacedDone.await();
+        final long pacedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        System.err.printf("%d pings of %d packets every %dms: %dms (%.0f packets/s) sleeping on %d threads, %dms (%.0f packets/s) paced on 1 thread%n",
+                pings, count, interval,
+                sleepingMs, pings * count * 1000.0 / sleepingMs, pollerThreads,
+                pacedMs, pings * count * 1000.0 / pacedMs);
+        assertEquals(2L * pings * count, sent.get());
+    }
+}
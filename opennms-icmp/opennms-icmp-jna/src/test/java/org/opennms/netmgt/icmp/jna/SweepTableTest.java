@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.icmp.jna;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SweepTableTest {
+
+    @Test
+    public void testKey() {
+        final long key = SweepTable.key(0xC0A80101, 3);
+        assertEquals(0xC0A80101, SweepTable.address(key));
+        assertEquals(3, SweepTable.sequenceNumber(key));
+
+        final long max = SweepTable.key(0xFFFFFFFF, 0xFFFF);
+        assertEquals(0xFFFFFFFF, SweepTable.address(max));
+        assertEquals(0xFFFF, SweepTable.sequenceNumber(max));
+    }
+
+    @Test
+    public void testPutGetRemove() {
+        final SweepTable table = new SweepTable(16);
+        assertTrue(table.put(SweepTable.key(1, 0), 100));
+        assertTrue(table.put(SweepTable.key(1, 1), 101));
+        assertEquals(2, table.size());
+
+        assertEquals(100, table.get(SweepTable.key(1, 0)));
+        assertEquals(SweepTable.MISSING, table.get(SweepTable.key(2, 0)));
+
+        assertEquals(101, table.remove(SweepTable.key(1, 1)));
+        assertEquals(SweepTable.MISSING, table.remove(SweepTable.key(1, 1)));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    public void testFull() {
+        final SweepTable table = new SweepTable(20);
+        for (int i = 0; i < 20; i++) {
+            assertTrue(table.put(SweepTable.key(i, 0), i));
+        }
+        assertTrue(table.isFull());
+        assertFalse(table.put(SweepTable.key(20, 0), 20));
+        // Updating an existing entry still works
+        assertTrue(table.put(SweepTable.key(0, 0), 42));
+        assertEquals(42, table.get(SweepTable.key(0, 0)));
+
+        table.remove(SweepTable.key(5, 0));
+        assertFalse(table.isFull());
+        assertTrue(table.put(SweepTable.key(20, 0), 20));
+    }
+
+    /**
+     * Compare against a HashMap while filling and draining a table a lot more
+     * than once, so that removals shift entries across collision chains and
+     * around the end of the arrays.
+     */
+    @Test
+    public void testAgainstHashMap() {
+        final Random random = new Random(42);
+        final SweepTable table = new SweepTable(256);
+        final Map<Long, Long> expected = new HashMap<>();
+        final List<Long> keys = new ArrayList<>();
+
+        for (int i = 0; i < 200000; i++) {
+            if (keys.isEmpty() || (keys.size() < 256 && random.nextBoolean())) {
+                final long key = SweepTable.key(random.nextInt(1024), random.nextInt(4));
+                if (!expected.containsKey(key)) {
+                    keys.add(key);
+                }
+                expected.put(key, (long)i);
+                assertTrue(table.put(key, i));
+            } else {
+                final long key = keys.remove(random.nextInt(keys.size()));
+                assertEquals(expected.remove(key).longValue(), table.remove(key));
+            }
+            assertEquals(expected.size(), table.size());
+        }
+
+        for (final Map.Entry<Long, Long> entry : expected.entrySet()) {
+            assertEquals(entry.getValue().longValue(), table.get(entry.getKey()));
+        }
+        for (int address = 0; address < 1024; address++) {
+            for (int seq = 0; seq < 4; seq++) {
+                final long key = SweepTable.key(address, seq);
+                if (!expected.containsKey(key)) {
+                    assertEquals(SweepTable.MISSING, table.get(key));
+                }
+            }
+        }
+    }
+}
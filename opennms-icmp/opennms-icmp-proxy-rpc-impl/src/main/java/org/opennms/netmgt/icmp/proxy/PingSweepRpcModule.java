@@ -30,9 +30,12 @@ package org.opennms.netmgt.icmp.proxy;
 
 import java.net.InetAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
@@ -40,12 +43,11 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
-import java.util.stream.StreamSupport;
 
 import org.opennms.core.rpc.xml.AbstractXmlRpcModule;
 import org.opennms.core.utils.IteratorUtils;
 import org.opennms.netmgt.icmp.EchoPacket;
-import org.opennms.netmgt.icmp.PingResponseCallback;
+import org.opennms.netmgt.icmp.PingSweepCallback;
 import org.opennms.netmgt.icmp.Pinger;
 import org.opennms.netmgt.icmp.PingerFactory;
 import org.opennms.netmgt.model.discovery.IPPollAddress;
@@ -54,8 +56,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import com.google.common.base.Throwables;
-import com.google.common.collect.Sets;
-import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.collect.Iterables;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 @Component
@@ -79,54 +80,51 @@ public class PingSweepRpcModule extends AbstractXmlRpcModule<PingSweepRequestDTO
     @Override
     public CompletableFuture<PingSweepResponseDTO> execute(PingSweepRequestDTO request) {
         final Pinger pinger = pingerFactory.getInstance();
-        final PingSweepResultTracker tracker = new PingSweepResultTracker();
 
         String location = request.getLocation();
         int packetSize = request.getPacketSize();
+        double packetsPerSecond = request.getPacketsPerSecond();
         List<IPPollRange> ranges = new ArrayList<>();
         for (IPRangeDTO dto : request.getIpRanges()) {
             IPPollRange pollRange = new IPPollRange(null, location, dto.getBegin(), dto.getEnd(), dto.getTimeout(), dto.getRetries());
             ranges.add(pollRange);
         }
 
-        // Use a RateLimiter to limit the ping packets per second that we send
-        RateLimiter limiter = RateLimiter.create(request.getPacketsPerSecond());
-
-        List<IPPollAddress> addresses = StreamSupport.stream(getAddresses(ranges).spliterator(), false)
-                .filter(j -> j.getAddress() != null).collect(Collectors.toList());
+        // Sweep all the ranges that share the same timeout and retries at once, so that the addresses
+        // are pipelined at the requested rate. The ranges of a discovery job usually all share them.
+        final Map<List<Long>, List<IPPollRange>> rangesByTimeoutAndRetries = ranges.stream()
+                .collect(Collectors.groupingBy(range -> Arrays.asList(range.getTimeout(), (long)range.getRetries()),
+                        LinkedHashMap::new, Collectors.toList()));
 
         return CompletableFuture.supplyAsync(() -> {
-            addresses.stream().forEach(pollAddress -> {
+            final PingSweepResponseDTO responseDTO = new PingSweepResponseDTO();
+            // Groups are swept one after the other, so that the rate applies to the whole request
+            for (List<IPPollRange> group : rangesByTimeoutAndRetries.values()) {
+                final IPPollRange first = group.get(0);
+                final PingSweepResultTracker tracker = new PingSweepResultTracker(responseDTO);
                 try {
-                    tracker.expectCallbackFor(pollAddress.getAddress());
-                    limiter.acquire();
-                    pinger.ping(pollAddress.getAddress(), pollAddress.getTimeout(), pollAddress.getRetries(), packetSize, 1, tracker);
+                    pinger.sweep(getInetAddresses(group), first.getTimeout(), first.getRetries(), packetSize, packetsPerSecond, tracker);
+                    tracker.getLatch().await();
                 } catch (Exception e) {
-                    tracker.handleError(pollAddress.getAddress(), null, e);
-                    tracker.completeExceptionally(e);
+                    throw Throwables.propagate(e);
+                }
+                if (tracker.getError() != null) {
+                    throw Throwables.propagate(tracker.getError());
                 }
-            });
-
-            try {
-                tracker.getLatch().await();
-            } catch (InterruptedException e) {
-                throw Throwables.propagate(e);
             }
-            tracker.complete();
-            return tracker.getResponse();
+            return responseDTO;
         } , executor);
 
     }
 
-    private static class PingSweepResultTracker extends CompletableFuture<PingSweepResponseDTO>
-            implements PingResponseCallback {
+    private static class PingSweepResultTracker implements PingSweepCallback {
 
-        private final Set<InetAddress> waitingFor = Sets.newConcurrentHashSet();
         private final CountDownLatch m_doneSignal = new CountDownLatch(1);
-        private final PingSweepResponseDTO responseDTO = new PingSweepResponseDTO();
+        private final PingSweepResponseDTO responseDTO;
+        private volatile Throwable m_error;
 
-        public void expectCallbackFor(InetAddress address) {
-            waitingFor.add(address);
+        public PingSweepResultTracker(PingSweepResponseDTO responseDTO) {
+            this.responseDTO = responseDTO;
         }
 
         @Override
@@ -135,34 +133,25 @@ public class PingSweepRpcModule extends AbstractXmlRpcModule<PingSweepRequestDTO
                 PingSweepResultDTO sweepResult = new PingSweepResultDTO();
                 sweepResult.setAddress(address);
                 sweepResult.setRtt(response.elapsedTime(TimeUnit.MILLISECONDS));
-                responseDTO.addPingSweepResult(sweepResult);
+                synchronized (responseDTO) {
+                    responseDTO.addPingSweepResult(sweepResult);
+                }
             }
-            afterHandled(address);
         }
 
         @Override
-        public void handleTimeout(InetAddress address, EchoPacket request) {
-            afterHandled(address);
+        public void handleComplete() {
+            m_doneSignal.countDown();
         }
 
         @Override
-        public void handleError(InetAddress address, EchoPacket request, Throwable t) {
-            afterHandled(address);
+        public void handleError(Throwable t) {
+            m_error = t;
+            m_doneSignal.countDown();
         }
 
-        private void afterHandled(InetAddress address) {
-            waitingFor.remove(address);
-            if (waitingFor.isEmpty()) {
-                m_doneSignal.countDown();
-            }
-        }
-
-        public void complete() {
-            complete(responseDTO);
-        }
-
-        public PingSweepResponseDTO getResponse() {
-            return responseDTO;
+        public Throwable getError() {
+            return m_error;
         }
 
         public CountDownLatch getLatch() {
@@ -193,4 +182,8 @@ public class PingSweepRpcModule extends AbstractXmlRpcModule<PingSweepRequestDTO
         return IteratorUtils.concatIterators(iters);
     }
 
+    private Iterable<InetAddress> getInetAddresses(List<IPPollRange> ranges) {
+        return Iterables.filter(Iterables.transform(getAddresses(ranges), IPPollAddress::getAddress), Objects::nonNull);
+    }
+
 }
@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.icmp.proxy;
+
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.opennms.core.utils.InetAddressUtils;
+import org.opennms.netmgt.icmp.EchoPacket;
+import org.opennms.netmgt.icmp.PingSweepCallback;
+import org.opennms.netmgt.icmp.Pinger;
+import org.opennms.netmgt.icmp.PingerFactory;
+
+import com.google.common.collect.Lists;
+
+public class PingSweepRpcModuleTest {
+
+    private static class Sweep {
+        private final List<InetAddress> addresses;
+        private final long timeout;
+        private final int retries;
+
+        private Sweep(List<InetAddress> addresses, long timeout, int retries) {
+            this.addresses = addresses;
+            this.timeout = timeout;
+            this.retries = retries;
+        }
+    }
+
+    private final List<Sweep> sweeps = new ArrayList<>();
+
+    @Test
+    public void testRangesAreSweptTogether() throws Exception {
+        final PingSweepRequestDTO request = new PingSweepRequestDTO();
+        request.setLocation("Default");
+        request.setPacketSize(64);
+        request.setPacketsPerSecond(100);
+        // Discovery sends a range per run of consecutive addresses
+        request.addIpRange(range("10.0.0.1", "10.0.0.3", 1, 800));
+        request.addIpRange(range("10.0.0.10", "10.0.0.10", 1, 800));
+        request.addIpRange(range("10.0.1.1", "10.0.1.2", 1, 800));
+        request.addIpRange(range("10.0.2.1", "10.0.2.1", 2, 2000));
+
+        final PingSweepRpcModule module = new PingSweepRpcModule();
+        module.setPingerFactory(pingerFactory());
+        final PingSweepResponseDTO response = module.execute(request).get(10, TimeUnit.SECONDS);
+
+        Assert.assertEquals(2, sweeps.size());
+        Assert.assertEquals(Lists.newArrayList(addr("10.0.0.1"), addr("10.0.0.2"), addr("10.0.0.3"), addr("10.0.0.10"), addr("10.0.1.1"), addr("10.0.1.2")),
+                sweeps.get(0).addresses);
+        Assert.assertEquals(800, sweeps.get(0).timeout);
+        Assert.assertEquals(1, sweeps.get(0).retries);
+        Assert.assertEquals(Lists.newArrayList(addr("10.0.2.1")), sweeps.get(1).addresses);
+        Assert.assertEquals(2000, sweeps.get(1).timeout);
+        Assert.assertEquals(2, sweeps.get(1).retries);
+
+        Assert.assertEquals(7, response.getPingSweepResult().size());
+    }
+
+    private static IPRangeDTO range(String begin, String end, int retries, long timeout) {
+        return new IPRangeDTO(addr(begin), addr(end), retries, timeout);
+    }
+
+    private static InetAddress addr(String address) {
+        return InetAddressUtils.addr(address);
+    }
+
+    /**
+     * A pinger that records the sweeps, and answers for every address.
+     */
+    private PingerFactory pingerFactory() {
+        final Pinger pinger = (Pinger)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Pinger.class }, (proxy, method, args) -> {
+            if (!"sweep".equals(method.getName())) {
+                throw new UnsupportedOperationException(method.getName());
+            }
+            @SuppressWarnings("unchecked")
+            final Iterable<InetAddress> addresses = (Iterable<InetAddress>)args[0];
+            final PingSweepCallback cb = (PingSweepCallback)args[5];
+            final List<InetAddress> swept = Lists.newArrayList(addresses);
+            sweeps.add(new Sweep(swept, (Long)args[1], (Integer)args[2]));
+            for (final InetAddress address : swept) {
+                cb.handleResponse(address, echoPacket());
+            }
+            cb.handleComplete();
+            return null;
+        });
+        return (PingerFactory)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { PingerFactory.class }, (proxy, method, args) -> {
+            if ("getInstance".equals(method.getName())) {
+                return pinger;
+            }
+            throw new UnsupportedOperationException(method.getName());
+        });
+    }
+
+    private static EchoPacket echoPacket() {
+        return (EchoPacket)Proxy.newProxyInstance(PingSweepRpcModuleTest.class.getClassLoader(), new Class<?>[] { EchoPacket.class }, (proxy, method, args) -> {
+            if ("elapsedTime".equals(method.getName())) {
+                return 1.0d;
+            }
+            throw new UnsupportedOperationException(method.getName());
+        });
+    }
+}
@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.rrd;
+
+/**
+ * Statistics of an {@link RrdStrategy} that queues creates and updates and
+ * writes them from background threads.
+ *
+ * @see QueuingRrdStrategy
+ * @see ShardedQueuingRrdStrategy
+ */
+public interface QueuingRrdStatistics {
+
+    /**
+     * @return the number of operations waiting to be written
+     */
+    long getTotalOperationsPending();
+
+    long getCreatesCompleted();
+
+    long getUpdatesCompleted();
+
+    long getErrors();
+
+    long getPromotionCount();
+
+    long getSignificantOpsEnqueued();
+
+    long getSignificantOpsDequeued();
+
+    long getSignificantOpsCompleted();
+
+    long getEnqueuedOperations();
+
+    long getDequeuedOperations();
+
+    /**
+     * @return how many times the pending operations of a file were taken to be written
+     */
+    long getDequeuedItems();
+
+    /**
+     * @return when the first operations were taken to be written, or 0
+     */
+    long getStartTime();
+}
@@ -109,7 +109,7 @@ import org.slf4j.LoggerFactory;
  * @author ranger
  * @version $Id: $
  */
-public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.CreateOperation,String>, Runnable {
+public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.CreateOperation,String>, QueuingRrdStatistics, Runnable {
 
     private Logger m_log = LoggerFactory.getLogger(QueuingRrdStrategy.class);
 
@@ -1210,6 +1210,11 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
                 ", overallPrcntSignificant=" + (getSignificantOpsEnqueued() * 100.0 / Math.max(getEnqueuedOperations(), 1.0)) + "%" +
                 ", totalElapsedTime=" + ((totalElapsedMillis + 500) / 1000);
 
+        final String delegateStats = m_delegate.getStats();
+        if (delegateStats != null && !delegateStats.isEmpty()) {
+            stats += "\nQS:\t" + delegateStats;
+        }
+
         lastStatsTime = now;
         lastEnqueued = getEnqueuedOperations();
         lastDequeued = getDequeuedOperations();
@@ -0,0 +1,951 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.rrd;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.opennms.core.logging.Logging;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Queuing implementation of RrdStrategy that shards the pending work by file.
+ *
+ * <p>Like {@link QueuingRrdStrategy}, creates and updates are enqueued per
+ * file and all the pending work of a file is written in one go, so a file is
+ * opened once for all the updates that accumulated while the write threads
+ * were busy.  Instead of a single queue guarded by one monitor, every file is
+ * assigned to one of <code>writeThreads</code> shards by the hash of its
+ * name, and every shard has its own lock-free queues and its own write
+ * thread:</p>
+ * <ul>
+ * <li>enqueuing an operation only synchronizes on the pending work of that
+ * file, so collector threads do not contend with each other or with the write
+ * threads;</li>
+ * <li>a file is only ever written by the thread of its shard, so there is no
+ * need to track which thread is working on which file.</li>
+ * </ul>
+ *
+ * <p>When <code>prioritizeSignificantUpdates</code> is set, files with only
+ * insignificant (zero valued) updates are written after the files with
+ * significant updates of the same shard; <code>maxInsigUpdateSeconds</code>
+ * bounds how long they may be passed over.</p>
+ *
+ * <p>This strategy takes the same properties as {@link QueuingRrdStrategy} and
+ * is selected with <code>org.opennms.rrd.queuing.strategyClass</code>.  The
+ * queue depth, merge ratio (operations per file write) and write latency of
+ * every shard are reported by {@link #getStats()} and
+ * {@link #getShardStatistics()}, the totals through
+ * {@link QueuingRrdStatistics}.</p>
+ */
+public class ShardedQueuingRrdStrategy implements RrdStrategy<ShardedQueuingRrdStrategy.Definition,String>, QueuingRrdStatistics {
+
+    private Logger m_log = LoggerFactory.getLogger(ShardedQueuingRrdStrategy.class);
+
+    private final RrdStrategy<Object, Object> m_delegate;
+
+    private Properties m_configurationProperties;
+
+    private String m_category = "queued";
+
+    private int m_writeThreads = 2;
+
+    private boolean m_queueCreates;
+
+    private boolean m_prioritizeSignificantUpdates;
+
+    private long m_inSigHighWaterMark;
+
+    private long m_sigHighWaterMark;
+
+    private long m_queueHighWaterMark;
+
+    private long m_modulus = 10000;
+
+    private long m_maxInsigUpdateSeconds;
+
+    private long m_writeThreadSleepTime = 50;
+
+    private long m_writeThreadExitDelay = 60000;
+
+    private volatile Shard[] m_shards;
+
+    private final AtomicLong m_totalOperationsPending = new AtomicLong();
+
+    private final AtomicLong m_enqueuedOperations = new AtomicLong();
+
+    private final AtomicLong m_discardedOperations = new AtomicLong();
+
+    private final AtomicLong m_significantOpsEnqueued = new AtomicLong();
+
+    private final AtomicLong m_significantOpsDequeued = new AtomicLong();
+
+    private final AtomicLong m_significantOpsCompleted = new AtomicLong();
+
+    private final AtomicLong m_startTime = new AtomicLong();
+
+    /**
+     * The definition of a file to create: its name and the definition of the
+     * delegate strategy.
+     */
+    public static class Definition {
+        private final String m_fileName;
+        private final Object m_definition;
+
+        Definition(final String fileName, final Object definition) {
+            m_fileName = fileName;
+            m_definition = definition;
+        }
+
+        public String getFileName() {
+            return m_fileName;
+        }
+
+        public Object getDefinition() {
+            return m_definition;
+        }
+    }
+
+    /**
+     * A single enqueued create or update.
+     */
+    private static final class Operation {
+        private final Definition m_definition;
+        private final Map<String, String> m_attributeMappings;
+        private final String m_update;
+        private final boolean m_significant;
+
+        private Operation(final Definition definition, final Map<String, String> attributeMappings) {
+            m_definition = definition;
+            m_attributeMappings = attributeMappings;
+            m_update = null;
+            m_significant = true;
+        }
+
+        private Operation(final String update, final boolean significant) {
+            m_definition = null;
+            m_attributeMappings = null;
+            m_update = update;
+            m_significant = significant;
+        }
+    }
+
+    private static final int NOT_QUEUED = 0;
+    private static final int QUEUED_INSIGNIFICANT = 1;
+    private static final int QUEUED_SIGNIFICANT = 2;
+    private static final int RETIRED = 3;
+
+    /**
+     * The pending operations of one file.  Once the write thread has taken
+     * the operations the work is retired, and the next operation for the file
+     * starts a new one.  The work may sit in both queues of its shard after a
+     * promotion; whichever entry is polled first takes the operations.
+     */
+    private static final class FileWork {
+        private final String m_fileName;
+        private final long m_created = System.currentTimeMillis();
+        private final List<Operation> m_operations = new ArrayList<>(2);
+        private int m_state = NOT_QUEUED;
+
+        private FileWork(final String fileName) {
+            m_fileName = fileName;
+        }
+
+        /**
+         * Adds an operation.
+         *
+         * @return the queue the work must be added to (QUEUED_SIGNIFICANT or
+         *         QUEUED_INSIGNIFICANT), NOT_QUEUED if it is already queued
+         *         appropriately, or RETIRED if the work has been taken already
+         */
+        private synchronized int add(final Operation op, final boolean significant) {
+            if (m_state == RETIRED) {
+                return RETIRED;
+            }
+            m_operations.add(op);
+            return queue(significant);
+        }
+
+        private synchronized int promote() {
+            return m_state == RETIRED ? RETIRED : queue(true);
+        }
+
+        private int queue(final boolean significant) {
+            if (m_state == NOT_QUEUED || (significant && m_state == QUEUED_INSIGNIFICANT)) {
+                m_state = significant ? QUEUED_SIGNIFICANT : QUEUED_INSIGNIFICANT;
+                return m_state;
+            }
+            return NOT_QUEUED;
+        }
+
+        private synchronized List<Operation> take() {
+            if (m_state == RETIRED) {
+                return Collections.emptyList();
+            }
+            m_state = RETIRED;
+            return m_operations;
+        }
+    }
+
+    /**
+     * Statistics of a single shard.
+     */
+    public static class ShardStatistics {
+        private final int m_index;
+        private final AtomicLong m_operationsPending = new AtomicLong();
+        private final AtomicLong m_filesPending = new AtomicLong();
+        private final AtomicLong m_fileWrites = new AtomicLong();
+        private final AtomicLong m_operationsWritten = new AtomicLong();
+        private final AtomicLong m_createsCompleted = new AtomicLong();
+        private final AtomicLong m_updatesCompleted = new AtomicLong();
+        private final AtomicLong m_promotions = new AtomicLong();
+        private final AtomicLong m_errors = new AtomicLong();
+        private final AtomicLong m_writeNanos = new AtomicLong();
+        private final AtomicLong m_maxWriteNanos = new AtomicLong();
+
+        ShardStatistics(final int index) {
+            m_index = index;
+        }
+
+        public int getIndex() {
+            return m_index;
+        }
+
+        /**
+         * @return the number of operations waiting to be written
+         */
+        public long getOperationsPending() {
+            return m_operationsPending.get();
+        }
+
+        /**
+         * @return the number of files with operations waiting to be written
+         */
+        public long getFilesPending() {
+            return m_filesPending.get();
+        }
+
+        /**
+         * @return how many times a file was opened and written
+         */
+        public long getFileWrites() {
+            return m_fileWrites.get();
+        }
+
+        public long getOperationsWritten() {
+            return m_operationsWritten.get();
+        }
+
+        public long getCreatesCompleted() {
+            return m_createsCompleted.get();
+        }
+
+        public long getUpdatesCompleted() {
+            return m_updatesCompleted.get();
+        }
+
+        /**
+         * @return the average number of operations written per file write
+         */
+        public double getMergeRatio() {
+            final long writes = m_fileWrites.get();
+            return writes == 0 ? 0.0 : (double)m_operationsWritten.get() / writes;
+        }
+
+        /**
+         * @return the average time taken to write all pending operations of a file, in milliseconds
+         */
+        public double getAverageWriteMillis() {
+            final long writes = m_fileWrites.get();
+            return writes == 0 ? 0.0 : m_writeNanos.get() / (writes * 1000000.0);
+        }
+
+        /**
+         * @return the longest time taken to write all pending operations of a file, in milliseconds
+         */
+        public double getMaxWriteMillis() {
+            return m_maxWriteNanos.get() / 1000000.0;
+        }
+
+        public long getPromotions() {
+            return m_promotions.get();
+        }
+
+        public long getErrors() {
+            return m_errors.get();
+        }
+
+        private void written(final int operations, final long nanos) {
+            m_fileWrites.incrementAndGet();
+            m_operationsWritten.addAndGet(operations);
+            m_writeNanos.addAndGet(nanos);
+            long max;
+            while (nanos > (max = m_maxWriteNanos.get()) && !m_maxWriteNanos.compareAndSet(max, nanos));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("shard %d: operationsPending=%d, filesPending=%d, fileWrites=%d, operationsWritten=%d, createsCompleted=%d, updatesCompleted=%d, mergeRatio=%.2f, avgWriteMillis=%.3f, maxWriteMillis=%.3f, promotions=%d, errors=%d",
+                                 m_index, getOperationsPending(), getFilesPending(), getFileWrites(), getOperationsWritten(), getCreatesCompleted(), getUpdatesCompleted(),
+                                 getMergeRatio(), getAverageWriteMillis(), getMaxWriteMillis(), getPromotions(), getErrors());
+        }
+    }
+
+    /**
+     * The pending work of the files that hash to this shard, and the thread
+     * that writes it.
+     */
+    private final class Shard implements Runnable {
+        private final ConcurrentHashMap<String, FileWork> m_pending = new ConcurrentHashMap<>();
+        private final ConcurrentLinkedQueue<FileWork> m_significant = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<FileWork> m_insignificant = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean m_running = new AtomicBoolean(false);
+        private final ShardStatistics m_stats;
+        private volatile Thread m_thread;
+
+        private Shard(final int index) {
+            m_stats = new ShardStatistics(index);
+        }
+
+        private void enqueue(final String fileName, final Operation op, final boolean significant) {
+            m_stats.m_operationsPending.incrementAndGet();
+            int queue;
+            do {
+                final FileWork work = m_pending.computeIfAbsent(fileName, this::newWork);
+                queue = work.add(op, significant);
+                if (queue == RETIRED) {
+                    // the write thread took the work after we looked it up
+                    remove(work);
+                } else {
+                    schedule(work, queue);
+                }
+            } while (queue == RETIRED);
+        }
+
+        private FileWork newWork(final String fileName) {
+            m_stats.m_filesPending.incrementAndGet();
+            return new FileWork(fileName);
+        }
+
+        private void remove(final FileWork work) {
+            if (m_pending.remove(work.m_fileName, work)) {
+                m_stats.m_filesPending.decrementAndGet();
+            }
+        }
+
+        private void promote(final String fileName) {
+            final FileWork work = m_pending.get(fileName);
+            if (work != null && work.promote() == QUEUED_SIGNIFICANT) {
+                m_stats.m_promotions.incrementAndGet();
+                schedule(work, QUEUED_SIGNIFICANT);
+            }
+        }
+
+        private void schedule(final FileWork work, final int queue) {
+            if (queue == QUEUED_SIGNIFICANT) {
+                m_significant.offer(work);
+            } else if (queue == QUEUED_INSIGNIFICANT) {
+                m_insignificant.offer(work);
+            } else {
+                return;
+            }
+            if (m_running.compareAndSet(false, true)) {
+                final Thread thread = new Thread(this, ShardedQueuingRrdStrategy.class.getSimpleName() + "-" + m_stats.getIndex());
+                thread.setDaemon(true);
+                m_thread = thread;
+                thread.start();
+            } else {
+                final Thread thread = m_thread;
+                if (thread != null) {
+                    LockSupport.unpark(thread);
+                }
+            }
+        }
+
+        /**
+         * @return the next work to process, significant work first unless the
+         *         oldest insignificant work has waited longer than maxInsigUpdateSeconds
+         */
+        private FileWork poll() {
+            if (m_maxInsigUpdateSeconds > 0) {
+                final FileWork oldest = m_insignificant.peek();
+                if (oldest != null && System.currentTimeMillis() - oldest.m_created > TimeUnit.SECONDS.toMillis(m_maxInsigUpdateSeconds)) {
+                    final FileWork work = m_insignificant.poll();
+                    if (work != null) {
+                        m_stats.m_promotions.incrementAndGet();
+                        return work;
+                    }
+                }
+            }
+            final FileWork work = m_significant.poll();
+            return work != null ? work : m_insignificant.poll();
+        }
+
+        @Override
+        public void run() {
+            long idleSince = -1L;
+            while (true) {
+                final FileWork work = poll();
+                if (work != null) {
+                    idleSince = -1L;
+                    process(work);
+                    continue;
+                }
+
+                final long now = System.currentTimeMillis();
+                if (idleSince < 0) {
+                    idleSince = now;
+                } else if (now - idleSince >= m_writeThreadExitDelay) {
+                    m_thread = null;
+                    m_running.set(false);
+                    // work may have been queued before the flag was cleared
+                    if ((m_significant.isEmpty() && m_insignificant.isEmpty()) || !m_running.compareAndSet(false, true)) {
+                        return;
+                    }
+                    m_thread = Thread.currentThread();
+                    idleSince = -1L;
+                    continue;
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(Math.max(m_writeThreadSleepTime, 1)));
+            }
+        }
+
+        private void process(final FileWork work) {
+            final List<Operation> ops = work.take();
+            if (ops.isEmpty()) {
+                // already taken through the other queue
+                return;
+            }
+            remove(work);
+            m_stats.m_operationsPending.addAndGet(-ops.size());
+            m_totalOperationsPending.addAndGet(-ops.size());
+            m_startTime.compareAndSet(0, System.currentTimeMillis());
+
+            int significant = 0;
+            for (final Operation op : ops) {
+                if (op.m_significant) {
+                    significant++;
+                }
+            }
+            m_significantOpsDequeued.addAndGet(significant);
+            // counted as completed even if writing fails, like QueuingRrdStrategy does
+            m_significantOpsCompleted.addAndGet(significant);
+
+            Logging.withPrefix(m_category, new Runnable() {
+                @Override public void run() {
+                    write(work.m_fileName, ops);
+                }
+            });
+        }
+
+        private void write(final String fileName, final List<Operation> ops) {
+            final long start = System.nanoTime();
+            Object rrd = null;
+            try {
+                for (final Operation op : ops) {
+                    if (op.m_definition != null) {
+                        if (rrd != null) {
+                            m_delegate.closeFile(rrd);
+                            rrd = null;
+                        }
+                        m_delegate.createFile(op.m_definition.getDefinition(), op.m_attributeMappings);
+                        m_stats.m_createsCompleted.incrementAndGet();
+                    } else {
+                        if (rrd == null) {
+                            rrd = m_delegate.openFile(fileName);
+                        }
+                        m_delegate.updateFile(rrd, "", op.m_update);
+                        m_stats.m_updatesCompleted.incrementAndGet();
+                    }
+                }
+            } catch (final Throwable t) {
+                m_stats.m_errors.incrementAndGet();
+                m_log.debug("Error updating file {}: {}", fileName, t.getMessage(), t);
+            } finally {
+                if (rrd != null) {
+                    try {
+                        m_delegate.closeFile(rrd);
+                    } catch (final Throwable t) {
+                        m_stats.m_errors.incrementAndGet();
+                        m_log.debug("Error closing rrd {}: {}", fileName, t.getMessage(), t);
+                    }
+                }
+            }
+            m_stats.written(ops.size(), System.nanoTime() - start);
+            if (m_modulus > 0 && m_stats.getFileWrites() % m_modulus == 0) {
+                logStats();
+            }
+        }
+    }
+
+    /**
+     * <p>Constructor for ShardedQueuingRrdStrategy.</p>
+     *
+     * @param delegate a {@link org.opennms.netmgt.rrd.RrdStrategy} object.
+     */
+    public ShardedQueuingRrdStrategy(final RrdStrategy<Object, Object> delegate) {
+        m_delegate = delegate;
+    }
+
+    /**
+     * <p>getDelegate</p>
+     *
+     * @return a {@link org.opennms.netmgt.rrd.RrdStrategy} object.
+     */
+    public RrdStrategy<Object, Object> getDelegate() {
+        return m_delegate;
+    }
+
+    public Properties getConfigurationProperties() {
+        return m_configurationProperties;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void setConfigurationProperties(final Properties configurationParameters) {
+        m_configurationProperties = configurationParameters;
+    }
+
+    public int getWriteThreads() {
+        return m_writeThreads;
+    }
+
+    /**
+     * Sets the number of shards, each with its own write thread.  This must
+     * be set before the first operation is enqueued.
+     *
+     * @param writeThreads a int.
+     */
+    public void setWriteThreads(final int writeThreads) {
+        m_writeThreads = writeThreads;
+    }
+
+    public boolean queueCreates() {
+        return m_queueCreates;
+    }
+
+    public void setQueueCreates(final boolean queueCreates) {
+        m_queueCreates = queueCreates;
+    }
+
+    public boolean prioritizeSignificantUpdates() {
+        return m_prioritizeSignificantUpdates;
+    }
+
+    public void setPrioritizeSignificantUpdates(final boolean prioritizeSignificantUpdates) {
+        m_prioritizeSignificantUpdates = prioritizeSignificantUpdates;
+    }
+
+    public long getInSigHighWaterMark() {
+        return m_inSigHighWaterMark;
+    }
+
+    public void setInSigHighWaterMark(final long inSigHighWaterMark) {
+        m_inSigHighWaterMark = inSigHighWaterMark;
+    }
+
+    public long getSigHighWaterMark() {
+        return m_sigHighWaterMark;
+    }
+
+    public void setSigHighWaterMark(final long sigHighWaterMark) {
+        m_sigHighWaterMark = sigHighWaterMark;
+    }
+
+    public long getQueueHighWaterMark() {
+        return m_queueHighWaterMark;
+    }
+
+    public void setQueueHighWaterMark(final long queueHighWaterMark) {
+        m_queueHighWaterMark = queueHighWaterMark;
+    }
+
+    public long getModulus() {
+        return m_modulus;
+    }
+
+    public void setModulus(final long modulus) {
+        m_modulus = modulus;
+    }
+
+    public String getCategory() {
+        return m_category;
+    }
+
+    public void setCategory(final String category) {
+        m_category = category;
+        m_log = LoggerFactory.getLogger(m_category);
+    }
+
+    public long getMaxInsigUpdateSeconds() {
+        return m_maxInsigUpdateSeconds;
+    }
+
+    public void setMaxInsigUpdateSeconds(final long maxInsigUpdateSeconds) {
+        m_maxInsigUpdateSeconds = maxInsigUpdateSeconds;
+    }
+
+    public long getWriteThreadSleepTime() {
+        return m_writeThreadSleepTime;
+    }
+
+    public void setWriteThreadSleepTime(final long writeThreadSleepTime) {
+        m_writeThreadSleepTime = writeThreadSleepTime;
+    }
+
+    public long getWriteThreadExitDelay() {
+        return m_writeThreadExitDelay;
+    }
+
+    public void setWriteThreadExitDelay(final long writeThreadExitDelay) {
+        m_writeThreadExitDelay = writeThreadExitDelay;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getTotalOperationsPending() {
+        return m_totalOperationsPending.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getEnqueuedOperations() {
+        return m_enqueuedOperations.get();
+    }
+
+    public long getDiscardedOperations() {
+        return m_discardedOperations.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getSignificantOpsEnqueued() {
+        return m_significantOpsEnqueued.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getSignificantOpsDequeued() {
+        return m_significantOpsDequeued.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getSignificantOpsCompleted() {
+        return m_significantOpsCompleted.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getStartTime() {
+        return m_startTime.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getCreatesCompleted() {
+        long total = 0;
+        for (final ShardStatistics shard : getShardStatistics()) {
+            total += shard.getCreatesCompleted();
+        }
+        return total;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getUpdatesCompleted() {
+        long total = 0;
+        for (final ShardStatistics shard : getShardStatistics()) {
+            total += shard.getUpdatesCompleted();
+        }
+        return total;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getErrors() {
+        long total = 0;
+        for (final ShardStatistics shard : getShardStatistics()) {
+            total += shard.getErrors();
+        }
+        return total;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getPromotionCount() {
+        long total = 0;
+        for (final ShardStatistics shard : getShardStatistics()) {
+            total += shard.getPromotions();
+        }
+        return total;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getDequeuedOperations() {
+        long total = 0;
+        for (final ShardStatistics shard : getShardStatistics()) {
+            total += shard.getOperationsWritten();
+        }
+        return total;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getDequeuedItems() {
+        long total = 0;
+        for (final ShardStatistics shard : getShardStatistics()) {
+            total += shard.getFileWrites();
+        }
+        return total;
+    }
+
+    /**
+     * <p>getShardStatistics</p>
+     *
+     * @return the statistics of every shard
+     */
+    public List<ShardStatistics> getShardStatistics() {
+        final List<ShardStatistics> stats = new ArrayList<>();
+        for (final Shard shard : getShards()) {
+            stats.add(shard.m_stats);
+        }
+        return stats;
+    }
+
+    private Shard[] getShards() {
+        Shard[] shards = m_shards;
+        if (shards == null) {
+            synchronized (this) {
+                shards = m_shards;
+                if (shards == null) {
+                    shards = new Shard[Math.max(m_writeThreads, 1)];
+                    for (int i = 0; i < shards.length; i++) {
+                        shards[i] = new Shard(i);
+                    }
+                    m_shards = shards;
+                }
+            }
+        }
+        return shards;
+    }
+
+    private Shard getShard(final String fileName) {
+        final Shard[] shards = getShards();
+        // spread the hash bits, String.hashCode() differs mostly in the low bits for similar paths
+        final int h = fileName.hashCode();
+        return shards[Math.floorMod(h ^ (h >>> 16), shards.length)];
+    }
+
+    /**
+     * Zero valued single-datasource updates are insignificant; see
+     * QueuingRrdStrategy#makeUpdateOperation.
+     */
+    static boolean isSignificant(final String update) {
+        try {
+            final int colon = update.indexOf(':');
+            if (colon >= 0 && Double.parseDouble(update.substring(colon + 1)) == 0.0) {
+                Long.parseLong(update.substring(0, colon));
+                return false;
+            }
+        } catch (final NumberFormatException e) {
+            // multiple datasources or a non-numeric value
+        }
+        return true;
+    }
+
+    private void addOperation(final String fileName, final Operation op) {
+        final long pending = m_totalOperationsPending.get();
+        if ((m_queueHighWaterMark > 0 && pending >= m_queueHighWaterMark)
+                || (op.m_significant && m_sigHighWaterMark > 0 && pending >= m_sigHighWaterMark)
+                || (!op.m_significant && m_inSigHighWaterMark > 0 && pending >= m_inSigHighWaterMark)) {
+            m_discardedOperations.incrementAndGet();
+            m_log.error("RRD Data Queue is Full!! Discarding {} operation for file {}", op.m_significant ? "significant" : "insignificant", fileName);
+            return;
+        }
+
+        m_totalOperationsPending.incrementAndGet();
+        m_enqueuedOperations.incrementAndGet();
+        if (op.m_significant) {
+            m_significantOpsEnqueued.incrementAndGet();
+        }
+        getShard(fileName).enqueue(fileName, op, !m_prioritizeSignificantUpdates || op.m_significant);
+    }
+
+    //
+    // RrdStrategy Implementation.. These methods just enqueue the calls as
+    // operations
+    //
+
+    /** {@inheritDoc} */
+    @Override
+    public Definition createDefinition(final String creator, final String directory, final String rrdName, final int step, final List<RrdDataSource> dataSources, final List<String> rraList) throws Exception {
+        final String fileName = directory + File.separator + rrdName + m_delegate.getDefaultFileExtension();
+        final Object def = m_delegate.createDefinition(creator, directory, rrdName, step, dataSources, rraList);
+        return new Definition(fileName, def);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void createFile(final Definition def, final Map<String, String> attributeMappings) throws Exception {
+        if (def == null || def.getDefinition() == null) {
+            // the file exists already
+            return;
+        }
+        if (m_queueCreates) {
+            addOperation(def.getFileName(), new Operation(def, attributeMappings));
+        } else {
+            m_delegate.createFile(def.getDefinition(), attributeMappings);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String openFile(final String fileName) throws Exception {
+        return fileName;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void updateFile(final String rrdFile, final String owner, final String data) throws Exception {
+        addOperation(rrdFile, new Operation(data, isSignificant(data)));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void closeFile(final String rrd) throws Exception {
+        // no need to do anything here
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void promoteEnqueuedFiles(final Collection<String> rrdFiles) {
+        for (final String fileName : rrdFiles) {
+            getShard(fileName).promote(fileName);
+        }
+        m_delegate.promoteEnqueuedFiles(rrdFiles);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Double fetchLastValue(final String rrdFile, final String ds, final int interval) throws NumberFormatException, RrdException {
+        return m_delegate.fetchLastValue(rrdFile, ds, interval);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Double fetchLastValue(final String rrdFile, final String ds, final String consolidationFunction, final int interval) throws NumberFormatException, RrdException {
+        return m_delegate.fetchLastValue(rrdFile, ds, consolidationFunction, interval);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Double fetchLastValueInRange(final String rrdFile, final String ds, final int interval, final int range) throws NumberFormatException, RrdException {
+        return m_delegate.fetchLastValueInRange(rrdFile, ds, interval, range);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public InputStream createGraph(final String command, final File workDir) throws IOException, RrdException {
+        return m_delegate.createGraph(command, workDir);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public RrdGraphDetails createGraphReturnDetails(final String command, final File workDir) throws IOException, RrdException {
+        return m_delegate.createGraphReturnDetails(command, workDir);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getGraphLeftOffset() {
+        return m_delegate.getGraphLeftOffset();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getGraphRightOffset() {
+        return m_delegate.getGraphRightOffset();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getGraphTopOffsetWithText() {
+        return m_delegate.getGraphTopOffsetWithText();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getDefaultFileExtension() {
+        return m_delegate.getDefaultFileExtension();
+    }
+
+    /**
+     * Print queue statistics.
+     *
+     * @return a {@link java.lang.String} object.
+     */
+    @Override
+    public String getStats() {
+        final StringBuilder stats = new StringBuilder();
+        stats.append("\nSQS:\ttotalOperationsPending=").append(getTotalOperationsPending())
+            .append(", enqueuedOperations=").append(getEnqueuedOperations())
+            .append(", discardedOperations=").append(getDiscardedOperations());
+        for (final ShardStatistics shard : getShardStatistics()) {
+            stats.append("\nSQS:\t").append(shard);
+        }
+        final String delegateStats = m_delegate.getStats();
+        if (delegateStats != null && !delegateStats.isEmpty()) {
+            stats.append("\nSQS:\t").append(delegateStats);
+        }
+        return stats.toString();
+    }
+
+    private void logStats() {
+        if (m_log.isDebugEnabled()) {
+            m_log.debug(getStats());
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.rrd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ShardedQueuingRrdStrategyTest {
+
+    /**
+     * Records the updates written to every file, and fails if a file is
+     * written by two threads at once.
+     */
+    private static class RecordingRrdStrategy extends NullRrdStrategy {
+        private final Map<String, List<String>> m_updates = new ConcurrentHashMap<>();
+        private final Map<String, AtomicInteger> m_writers = new ConcurrentHashMap<>();
+        private final List<String> m_opened = Collections.synchronizedList(new ArrayList<>());
+        private final AtomicInteger m_concurrentWrites = new AtomicInteger();
+        private volatile CountDownLatch m_gate = new CountDownLatch(0);
+
+        @Override
+        public Object openFile(final String fileName) {
+            try {
+                m_gate.await();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (m_writers.computeIfAbsent(fileName, f -> new AtomicInteger()).incrementAndGet() > 1) {
+                m_concurrentWrites.incrementAndGet();
+            }
+            m_opened.add(fileName);
+            return fileName;
+        }
+
+        @Override
+        public void updateFile(final Object rrd, final String owner, final String data) {
+            m_updates.computeIfAbsent((String)rrd, f -> Collections.synchronizedList(new ArrayList<>())).add(data);
+        }
+
+        @Override
+        public void closeFile(final Object rrd) {
+            m_writers.get(rrd).decrementAndGet();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ShardedQueuingRrdStrategy createStrategy(final RecordingRrdStrategy delegate, final int writeThreads) {
+        final ShardedQueuingRrdStrategy strategy = new ShardedQueuingRrdStrategy((RrdStrategy<Object, Object>)(RrdStrategy<?, ?>)delegate);
+        strategy.setWriteThreads(writeThreads);
+        strategy.setWriteThreadSleepTime(5);
+        strategy.setWriteThreadExitDelay(1000);
+        return strategy;
+    }
+
+    private static void waitForQueue(final ShardedQueuingRrdStrategy strategy, final long expectedWrites) throws InterruptedException {
+        final long end = System.currentTimeMillis() + 30000;
+        while (System.currentTimeMillis() < end) {
+            long written = 0;
+            for (final ShardedQueuingRrdStrategy.ShardStatistics shard : strategy.getShardStatistics()) {
+                written += shard.getOperationsWritten();
+            }
+            if (written >= expectedWrites) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("queue did not drain: " + strategy.getStats());
+    }
+
+    @Test
+    public void testUpdatesAreWrittenInOrder() throws Exception {
+        final RecordingRrdStrategy delegate = new RecordingRrdStrategy();
+        final ShardedQueuingRrdStrategy strategy = createStrategy(delegate, 4);
+
+        final int producers = 8;
+        final int filesPerProducer = 100;
+        final int updatesPerFile = 50;
+        final ExecutorService executor = Executors.newFixedThreadPool(producers);
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            executor.execute(() -> {
+                try {
+                    for (int u = 0; u < updatesPerFile; u++) {
+                        for (int f = 0; f < filesPerProducer; f++) {
+                            final String file = strategy.openFile("/rrd/" + producer + "/" + f + ".jrb");
+                            strategy.updateFile(file, "test", (1000 + u * 300) + ":" + (u + 1));
+                            strategy.closeFile(file);
+                        }
+                    }
+                } catch (final Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        waitForQueue(strategy, producers * filesPerProducer * updatesPerFile);
+        assertEquals(0, strategy.getTotalOperationsPending());
+        assertEquals(producers * filesPerProducer, delegate.m_updates.size());
+        for (final List<String> updates : delegate.m_updates.values()) {
+            assertEquals(updatesPerFile, updates.size());
+            for (int u = 0; u < updatesPerFile; u++) {
+                assertEquals((1000 + u * 300) + ":" + (u + 1), updates.get(u));
+            }
+        }
+        assertEquals("files must never be written concurrently", 0, delegate.m_concurrentWrites.get());
+        assertEquals(4, strategy.getShardStatistics().size());
+        for (final ShardedQueuingRrdStrategy.ShardStatistics shard : strategy.getShardStatistics()) {
+            assertEquals(0, shard.getOperationsPending());
+            assertTrue("every shard should have work: " + shard, shard.getFileWrites() > 0);
+        }
+    }
+
+    @Test
+    public void testPendingUpdatesAreMerged() throws Exception {
+        final RecordingRrdStrategy delegate = new RecordingRrdStrategy();
+        final ShardedQueuingRrdStrategy strategy = createStrategy(delegate, 1);
+
+        // hold the write thread on the first file while more updates arrive
+        delegate.m_gate = new CountDownLatch(1);
+        strategy.updateFile("first", "test", "1000:1");
+        Thread.sleep(100);
+        for (int i = 0; i < 10; i++) {
+            strategy.updateFile("second", "test", (1000 + i * 300) + ":1");
+        }
+        assertEquals(1, strategy.getShardStatistics().get(0).getFilesPending());
+        delegate.m_gate.countDown();
+        waitForQueue(strategy, 11);
+
+        assertEquals(Arrays.asList("first", "second"), delegate.m_opened);
+        assertEquals(10, delegate.m_updates.get("second").size());
+        final ShardedQueuingRrdStrategy.ShardStatistics shard = strategy.getShardStatistics().get(0);
+        assertEquals(2, shard.getFileWrites());
+        assertEquals(5.5, shard.getMergeRatio(), 0.0001);
+        assertTrue(strategy.getStats().contains("mergeRatio=5.50"));
+        assertEquals(0, shard.getFilesPending());
+
+        // the totals reported by the Queued MBean
+        final QueuingRrdStatistics stats = strategy;
+        assertEquals(11, stats.getEnqueuedOperations());
+        assertEquals(11, stats.getSignificantOpsEnqueued());
+        assertEquals(11, stats.getSignificantOpsDequeued());
+        assertEquals(11, stats.getDequeuedOperations());
+        assertEquals(11, stats.getUpdatesCompleted());
+        assertEquals(2, stats.getDequeuedItems());
+        assertEquals(0, stats.getCreatesCompleted());
+        assertEquals(0, stats.getErrors());
+        assertTrue(stats.getStartTime() > 0);
+    }
+
+    @Test
+    public void testSignificantUpdatesFirst() throws Exception {
+        final RecordingRrdStrategy delegate = new RecordingRrdStrategy();
+        final ShardedQueuingRrdStrategy strategy = createStrategy(delegate, 1);
+        strategy.setPrioritizeSignificantUpdates(true);
+
+        delegate.m_gate = new CountDownLatch(1);
+        strategy.updateFile("busy", "test", "1000:1");
+        Thread.sleep(100);
+        strategy.updateFile("zero", "test", "1000:0");
+        strategy.updateFile("promoted", "test", "1000:0");
+        strategy.updateFile("significant", "test", "1000:1");
+        strategy.promoteEnqueuedFiles(Collections.singletonList("promoted"));
+        delegate.m_gate.countDown();
+        waitForQueue(strategy, 4);
+
+        assertEquals(Arrays.asList("busy", "significant", "promoted", "zero"), delegate.m_opened);
+        assertEquals(1, strategy.getShardStatistics().get(0).getPromotions());
+        assertEquals(1, strategy.getPromotionCount());
+        assertEquals(2, strategy.getSignificantOpsEnqueued());
+    }
+
+    @Test
+    public void testQueueHighWaterMark() throws Exception {
+        final RecordingRrdStrategy delegate = new RecordingRrdStrategy();
+        final ShardedQueuingRrdStrategy strategy = createStrategy(delegate, 1);
+        strategy.setQueueHighWaterMark(2);
+
+        delegate.m_gate = new CountDownLatch(1);
+        strategy.updateFile("busy", "test", "1000:1");
+        Thread.sleep(100);
+        strategy.updateFile("a", "test", "1000:1");
+        strategy.updateFile("b", "test", "1000:1");
+        strategy.updateFile("c", "test", "1000:1");
+        assertEquals(1, strategy.getDiscardedOperations());
+        delegate.m_gate.countDown();
+        waitForQueue(strategy, 3);
+        assertFalse(delegate.m_updates.containsKey("c"));
+    }
+
+    @Test
+    public void testIsSignificant() {
+        assertFalse(ShardedQueuingRrdStrategy.isSignificant("1000:0"));
+        assertFalse(ShardedQueuingRrdStrategy.isSignificant("1000:0.0"));
+        assertTrue(ShardedQueuingRrdStrategy.isSignificant("1000:1"));
+        assertTrue(ShardedQueuingRrdStrategy.isSignificant("1000:0:0"));
+        assertTrue(ShardedQueuingRrdStrategy.isSignificant("1000:U"));
+    }
+}
@@ -0,0 +1,364 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.rrd.jrobin;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jrobin.core.RrdDb;
+import org.jrobin.core.RrdException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded LRU pool of open {@link RrdDb} handles.
+ *
+ * <p>Opening an RrdDb reads and validates the file header and the
+ * datasource/archive definitions, so opening and closing a file around every
+ * update costs several reads per sample. The pool keeps recently used handles
+ * open instead:</p>
+ * <ul>
+ * <li>{@link #acquire(String)} hands out the pooled handle for a path and
+ * increments its reference count, opening the file only on a miss;</li>
+ * <li>{@link #release(RrdDb)} decrements the reference count but leaves the
+ * file open;</li>
+ * <li>when more than <code>capacity</code> files are open, the least recently
+ * used handles that are not referenced are closed;</li>
+ * <li>handles that have not been referenced for <code>idleTimeout</code>
+ * milliseconds are closed, so files that are no longer collected (or that
+ * have been deleted) do not hold on to file descriptors.</li>
+ * </ul>
+ *
+ * <p>Handles that are still referenced are never closed, so the number of open
+ * files may temporarily exceed the capacity when more files are being written
+ * concurrently than the pool can hold.  The pool does not serialize access to
+ * a shared handle; callers that may update the same file from several threads
+ * at once must synchronize on the handle.</p>
+ */
+public class JRobinRrdDbPool {
+    private static final Logger LOG = LoggerFactory.getLogger(JRobinRrdDbPool.class);
+
+    private static final class Entry {
+        private final String m_path;
+        private RrdDb m_rrdDb;
+        private int m_references = 0;
+        private long m_lastUsed;
+        private boolean m_evicted = false;
+
+        private Entry(final String path) {
+            m_path = path;
+        }
+    }
+
+    private final int m_capacity;
+    private final long m_idleTimeout;
+
+    /** Pooled entries, in access order (least recently used first). */
+    private final LinkedHashMap<String, Entry> m_entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    /** Every open handle handed out by this pool, including evicted ones that are still referenced. */
+    private final Map<RrdDb, Entry> m_handles = new IdentityHashMap<RrdDb, Entry>();
+    private long m_lastIdleCheck = System.currentTimeMillis();
+
+    private final AtomicLong m_hits = new AtomicLong();
+    private final AtomicLong m_misses = new AtomicLong();
+    private final AtomicLong m_evictions = new AtomicLong();
+
+    /**
+     * @param capacity the number of open files to keep around once they are released
+     * @param idleTimeout how long (in milliseconds) an unreferenced handle stays open, 0 to never expire handles
+     */
+    public JRobinRrdDbPool(final int capacity, final long idleTimeout) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        m_capacity = capacity;
+        m_idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Returns an open handle for the given file, opening it if it is not
+     * already in the pool.  Every successful call must be matched by a call
+     * to {@link #release(RrdDb)}.
+     *
+     * @param path the path of the RRD file
+     * @return an open {@link RrdDb}
+     * @throws IOException if the file cannot be opened
+     * @throws RrdException if the file is not a valid RRD file
+     */
+    public RrdDb acquire(final String path) throws IOException, RrdException {
+        final Entry entry;
+        final List<Entry> toClose;
+        synchronized (this) {
+            Entry existing = m_entries.get(path);
+            if (existing == null) {
+                existing = new Entry(path);
+                m_entries.put(path, existing);
+                m_misses.incrementAndGet();
+            } else {
+                m_hits.incrementAndGet();
+            }
+            existing.m_references++;
+            existing.m_lastUsed = System.currentTimeMillis();
+            entry = existing;
+            toClose = collectEvictable(entry.m_lastUsed);
+        }
+        closeAll(toClose);
+
+        // Open outside of the pool lock so that a slow disk only blocks
+        // the threads that are waiting for this particular file.
+        synchronized (entry) {
+            if (entry.m_rrdDb == null) {
+                try {
+                    final RrdDb rrdDb = open(path);
+                    synchronized (this) {
+                        entry.m_rrdDb = rrdDb;
+                        m_handles.put(rrdDb, entry);
+                    }
+                } catch (final IOException | RrdException | RuntimeException e) {
+                    synchronized (this) {
+                        entry.m_references--;
+                        if (entry.m_references == 0 && m_entries.get(path) == entry) {
+                            m_entries.remove(path);
+                        }
+                    }
+                    throw e;
+                }
+            }
+            return entry.m_rrdDb;
+        }
+    }
+
+    /**
+     * Opens the file for a pool miss.
+     *
+     * @param path the path of the RRD file
+     * @return a new {@link RrdDb}
+     * @throws IOException if the file cannot be opened
+     * @throws RrdException if the file is not a valid RRD file
+     */
+    protected RrdDb open(final String path) throws IOException, RrdException {
+        return new RrdDb(path);
+    }
+
+    /**
+     * Releases a handle obtained from {@link #acquire(String)}.  The file is
+     * only closed if it was evicted while it was in use.  Handles that were
+     * not obtained from this pool are simply closed.
+     *
+     * @param rrdDb the handle to release
+     * @throws IOException if the file had to be closed and closing it failed
+     */
+    public void release(final RrdDb rrdDb) throws IOException {
+        boolean close = false;
+        final List<Entry> toClose;
+        synchronized (this) {
+            final Entry entry = m_handles.get(rrdDb);
+            if (entry == null) {
+                close = true;
+                toClose = null;
+            } else {
+                if (entry.m_references > 0) {
+                    entry.m_references--;
+                }
+                final long now = System.currentTimeMillis();
+                entry.m_lastUsed = now;
+                if (!entry.m_evicted) {
+                    // refresh the access order
+                    m_entries.get(entry.m_path);
+                } else if (entry.m_references == 0) {
+                    m_handles.remove(rrdDb);
+                    close = true;
+                }
+                toClose = collectEvictable(now);
+            }
+        }
+        closeAll(toClose);
+        if (close) {
+            rrdDb.close();
+        }
+    }
+
+    /**
+     * Removes the handle for the given file from the pool, closing it as soon
+     * as it is no longer referenced.  This must be called before a file is
+     * (re)created or removed so that the stale handle is not reused.
+     *
+     * @param path the path of the RRD file
+     */
+    public void evict(final String path) {
+        final List<Entry> toClose = new ArrayList<Entry>(1);
+        synchronized (this) {
+            final Entry entry = m_entries.remove(path);
+            if (entry != null) {
+                evict(entry, toClose);
+            }
+        }
+        closeAll(toClose);
+    }
+
+    /**
+     * Closes every handle that is not currently referenced.  Referenced
+     * handles are closed when they are released.
+     */
+    public void close() {
+        final List<Entry> toClose = new ArrayList<Entry>();
+        synchronized (this) {
+            for (final Entry entry : m_entries.values()) {
+                evict(entry, toClose);
+            }
+            m_entries.clear();
+        }
+        closeAll(toClose);
+    }
+
+    /**
+     * @return the number of files this pool currently holds open
+     */
+    public synchronized int getOpenFiles() {
+        return m_handles.size();
+    }
+
+    /**
+     * @return the number of pooled files that are currently referenced
+     */
+    public synchronized int getFilesInUse() {
+        int inUse = 0;
+        for (final Entry entry : m_handles.values()) {
+            if (entry.m_references > 0) {
+                inUse++;
+            }
+        }
+        return inUse;
+    }
+
+    public int getCapacity() {
+        return m_capacity;
+    }
+
+    public long getHits() {
+        return m_hits.get();
+    }
+
+    public long getMisses() {
+        return m_misses.get();
+    }
+
+    public long getEvictions() {
+        return m_evictions.get();
+    }
+
+    /**
+     * @return the fraction of {@link #acquire(String)} calls that were served by an already open handle
+     */
+    public double getHitRate() {
+        final long hits = m_hits.get();
+        final long total = hits + m_misses.get();
+        return total == 0 ? 0.0 : (double)hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("JRobinRrdDbPool: capacity=%d, openFiles=%d, filesInUse=%d, hits=%d, misses=%d, hitRate=%.3f, evictions=%d",
+                             m_capacity, getOpenFiles(), getFilesInUse(), getHits(), getMisses(), getHitRate(), getEvictions());
+    }
+
+    /**
+     * Removes entries over capacity (least recently used first) and, at most
+     * once every half idle timeout, entries that have been idle for too long.
+     * Must be called while holding the pool lock.
+     */
+    private List<Entry> collectEvictable(final long now) {
+        List<Entry> toClose = null;
+        final boolean checkIdle = m_idleTimeout > 0 && now - m_lastIdleCheck >= m_idleTimeout / 2;
+        if (checkIdle) {
+            m_lastIdleCheck = now;
+        }
+        if (!checkIdle && m_entries.size() <= m_capacity) {
+            return null;
+        }
+
+        int excess = m_entries.size() - m_capacity;
+        for (final Iterator<Entry> it = m_entries.values().iterator(); it.hasNext(); ) {
+            if (excess <= 0 && !checkIdle) {
+                break;
+            }
+            final Entry entry = it.next();
+            if (entry.m_references > 0) {
+                // still in use, try the next least recently used entry
+                continue;
+            }
+            if (excess > 0 || now - entry.m_lastUsed >= m_idleTimeout) {
+                it.remove();
+                excess--;
+                if (toClose == null) {
+                    toClose = new ArrayList<Entry>();
+                }
+                evict(entry, toClose);
+            }
+        }
+        if (excess > 0) {
+            LOG.debug("{} files are in use, exceeding the pool capacity of {}", m_entries.size(), m_capacity);
+        }
+        return toClose;
+    }
+
+    /**
+     * Marks an entry that has already been removed from the pool as evicted
+     * and queues its handle for closing if it is unreferenced.  Must be
+     * called while holding the pool lock.
+     */
+    private void evict(final Entry entry, final List<Entry> toClose) {
+        entry.m_evicted = true;
+        m_evictions.incrementAndGet();
+        if (entry.m_references == 0 && entry.m_rrdDb != null) {
+            m_handles.remove(entry.m_rrdDb);
+            toClose.add(entry);
+        }
+    }
+
+    private static void closeAll(final List<Entry> entries) {
+        if (entries == null) {
+            return;
+        }
+        for (final Entry entry : entries) {
+            try {
+                entry.m_rrdDb.close();
+            } catch (final IOException e) {
+                LOG.warn("Failed to close RRD file {}", entry.m_path, e);
+            }
+        }
+    }
+}
@@ -44,6 +44,7 @@ import java.util.Map.Entry;
 import java.util.Properties;
 
 import org.jrobin.core.FetchData;
+import org.jrobin.core.RrdBackendFactory;
 import org.jrobin.core.RrdDb;
 import org.jrobin.core.RrdDef;
 import org.jrobin.core.RrdException;
@@ -73,6 +74,10 @@ public class JRobinRrdStrategy implements RrdStrategy<RrdDef,RrdDb> {
     private static final Logger LOG = LoggerFactory.getLogger(JRobinRrdStrategy.class);
     private static final String BACKEND_FACTORY_PROPERTY = "org.jrobin.core.RrdBackendFactory";
     private static final String DEFAULT_BACKEND_FACTORY = "FILE";
+    private static final String POOL_SIZE_PROPERTY = "org.opennms.rrd.jrobin.pool.size";
+    private static final String DEFAULT_POOL_SIZE = "1024";
+    private static final String POOL_IDLE_TIMEOUT_PROPERTY = "org.opennms.rrd.jrobin.pool.idleTimeout";
+    private static final String DEFAULT_POOL_IDLE_TIMEOUT = "600000";
 
     /*
      * Ensure that we only initialize certain things *once* per
@@ -82,6 +87,12 @@ public class JRobinRrdStrategy implements RrdStrategy<RrdDef,RrdDb> {
 
     private Properties m_configurationProperties;
 
+    /**
+     * Pool of open files used by {@link #openFile(String)}, or null
+     * if every update opens and closes its file.
+     */
+    private volatile JRobinRrdDbPool m_pool;
+
     /**
      * An extremely simple Plottable for holding static datasources that
      * can't be represented with an SDEF -- currently used only for PERCENT
@@ -138,17 +149,85 @@ public class JRobinRrdStrategy implements RrdStrategy<RrdDef,RrdDb> {
                 LOG.error("Could not set default JRobin RRD factory", e);
             }
         }
+
+        final JRobinRrdDbPool oldPool = m_pool;
+        m_pool = createPool(m_configurationProperties);
+        if (oldPool != null) {
+            oldPool.close();
+        }
+    }
+
+    private JRobinRrdDbPool createPool(final Properties properties) {
+        final Properties props = properties == null ? new Properties() : properties;
+        final int size = Integer.parseInt(props.getProperty(POOL_SIZE_PROPERTY, DEFAULT_POOL_SIZE).trim());
+        final long idleTimeout = Long.parseLong(props.getProperty(POOL_IDLE_TIMEOUT_PROPERTY, DEFAULT_POOL_IDLE_TIMEOUT).trim());
+        if (size <= 0) {
+            LOG.debug("RRD file pool is disabled");
+            return null;
+        }
+        if (!isPoolingSupported()) {
+            LOG.info("Not pooling RRD files since the {} backend does not support keeping files open", RrdBackendFactory.getDefaultFactory().getFactoryName());
+            return null;
+        }
+        LOG.debug("Pooling up to {} open RRD files, idle timeout {}ms", size, idleTimeout);
+        return new JRobinRrdDbPool(size, idleTimeout) {
+            @Override
+            protected RrdDb open(final String path) throws IOException, RrdException {
+                return openRrdDb(path);
+            }
+        };
+    }
+
+    /**
+     * Files are only kept open with the FILE backend, which writes through to
+     * disk: the SAFE backend locks the file for as long as it is open (which
+     * would block graphing and value lookups) and the NIO backends map every
+     * open file into memory.
+     *
+     * @return whether files opened by {@link #openRrdDb(String)} may be kept open between updates
+     */
+    protected boolean isPoolingSupported() {
+        return "FILE".equals(RrdBackendFactory.getDefaultFactory().getFactoryName());
+    }
+
+    /**
+     * Opens an existing RRD file for writing.
+     *
+     * @param path the path of the RRD file
+     * @return the opened {@link org.jrobin.core.RrdDb}
+     * @throws java.io.IOException if any.
+     * @throws org.jrobin.core.RrdException if any.
+     */
+    protected RrdDb openRrdDb(final String path) throws IOException, RrdException {
+        return new RrdDb(path);
+    }
+
+    /**
+     * Creates a new RRD file from the given definition.
+     *
+     * @param rrdDef the definition of the RRD file
+     * @return the opened {@link org.jrobin.core.RrdDb}
+     * @throws java.io.IOException if any.
+     * @throws org.jrobin.core.RrdException if any.
+     */
+    protected RrdDb createRrdDb(final RrdDef rrdDef) throws IOException, RrdException {
+        return new RrdDb(rrdDef);
     }
 
     /**
-     * Closes the JRobin RrdDb.
+     * Closes the JRobin RrdDb, or returns it to the pool of open files.
      *
      * @param rrdFile a {@link org.jrobin.core.RrdDb} object.
      * @throws java.lang.Exception if any.
      */
     @Override
     public void closeFile(final RrdDb rrdFile) throws Exception {
-        rrdFile.close();
+        final JRobinRrdDbPool pool = m_pool;
+        if (pool == null) {
+            rrdFile.close();
+        } else {
+            pool.release(rrdFile);
+        }
     }
 
     /** {@inheritDoc} */
@@ -203,7 +282,13 @@ public class JRobinRrdStrategy implements RrdStrategy<RrdDef,RrdDb> {
         }
         LOG.info("createRRD: creating RRD file {}", rrdDef.getPath());
 
-        RrdDb rrd = new RrdDb(rrdDef);
+        // never hand out a handle to the file we are about to replace
+        final JRobinRrdDbPool pool = m_pool;
+        if (pool != null) {
+            pool.evict(rrdDef.getPath());
+        }
+
+        RrdDb rrd = createRrdDb(rrdDef);
         rrd.close();
 
         String filenameWithoutExtension = rrdDef.getPath().replace(getDefaultFileExtension(), "");
@@ -219,11 +304,17 @@ public class JRobinRrdStrategy implements RrdStrategy<RrdDef,RrdDb> {
     /**
      * {@inheritDoc}
      *
-     * Opens the JRobin RrdDb by name and returns it.
+     * Opens the JRobin RrdDb by name and returns it.  When pooling is enabled
+     * the handle may be shared with other callers until it is passed to
+     * {@link #closeFile(RrdDb)}.
      */
     @Override
     public RrdDb openFile(final String fileName) throws Exception {
-        return new RrdDb(fileName);
+        final JRobinRrdDbPool pool = m_pool;
+        if (pool == null) {
+            return openRrdDb(fileName);
+        }
+        return pool.acquire(fileName);
     }
 
     /**
@@ -233,8 +324,11 @@ public class JRobinRrdStrategy implements RrdStrategy<RrdDef,RrdDb> {
      */
     @Override
     public void updateFile(final RrdDb rrdFile, final String owner, final String data) throws Exception {
-        Sample sample = rrdFile.createSample();
-        sample.setAndUpdate(data);
+        // pooled handles can be shared by concurrent writers
+        synchronized (rrdFile) {
+            Sample sample = rrdFile.createSample();
+            sample.setAndUpdate(data);
+        }
     }
 
     /**
@@ -871,13 +965,23 @@ public class JRobinRrdStrategy implements RrdStrategy<RrdDef,RrdDb> {
     }
 
     /**
-     * This implementation does not track any stats.
+     * Returns the statistics of the pool of open files, if enabled.
      *
      * @return a {@link java.lang.String} object.
      */
     @Override
     public String getStats() {
-        return "";
+        final JRobinRrdDbPool pool = m_pool;
+        return pool == null ? "" : pool.toString();
+    }
+
+    /**
+     * <p>getPool</p>
+     *
+     * @return the pool of open files, or null if pooling is disabled
+     */
+    public JRobinRrdDbPool getPool() {
+        return m_pool;
     }
 
     /*
@@ -0,0 +1,210 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.rrd.jrobin;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jrobin.core.RrdDb;
+import org.jrobin.core.RrdDef;
+import org.jrobin.core.RrdException;
+import org.jrobin.core.Util;
+
+/**
+ * A {@link JRobinRrdStrategy} that writes through memory-mapped files.
+ *
+ * <p>Files are mapped by a {@link MappedRrdBackendFactory} and kept open in
+ * the pool of the parent strategy, so the memory and file descriptors used
+ * are bounded by <code>org.opennms.rrd.jrobin.pool.size</code> (the window
+ * of hot files) rather than by the number of RRD files.  Modified pages are
+ * forced to disk every <code>org.opennms.rrd.jrobin.mmap.syncPeriod</code>
+ * milliseconds.</p>
+ *
+ * <p>Updates passed to {@link #updateFile(RrdDb, String, String)} are
+ * buffered until the file is closed; consecutive updates for the same
+ * timestamp (for example datasources of the same file that were collected
+ * separately) are merged into a single sample instead of failing with a
+ * "bad sample timestamp" error.</p>
+ *
+ * <p>The files are regular JRobin files; graphing and value lookups are
+ * inherited unchanged.</p>
+ */
+public class MappedJRobinRrdStrategy extends JRobinRrdStrategy {
+    private static final String SYNC_PERIOD_PROPERTY = "org.opennms.rrd.jrobin.mmap.syncPeriod";
+    private static final String DEFAULT_SYNC_PERIOD = "10000";
+
+    private volatile MappedRrdBackendFactory m_backendFactory;
+
+    private final Map<RrdDb, PendingUpdates> m_pendingUpdates = new ConcurrentHashMap<RrdDb, PendingUpdates>();
+
+    /**
+     * The updates made to a file since it was opened, merged by timestamp.
+     */
+    static class PendingUpdates {
+        private final List<String[]> m_samples = new ArrayList<String[]>();
+
+        synchronized void add(final String data) {
+            final String[] tokens = data.split(":");
+            if ("N".equalsIgnoreCase(tokens[0])) {
+                tokens[0] = Long.toString(Util.getTime());
+            }
+            if (!m_samples.isEmpty()) {
+                final String[] last = m_samples.get(m_samples.size() - 1);
+                if (last.length == tokens.length && last[0].equals(tokens[0])) {
+                    for (int i = 1; i < tokens.length; i++) {
+                        if (!"U".equalsIgnoreCase(tokens[i])) {
+                            last[i] = tokens[i];
+                        }
+                    }
+                    return;
+                }
+            }
+            m_samples.add(tokens);
+        }
+
+        synchronized List<String> getSamples() {
+            final List<String> samples = new ArrayList<String>(m_samples.size());
+            for (final String[] tokens : m_samples) {
+                samples.add(String.join(":", tokens));
+            }
+            return samples;
+        }
+    }
+
+    /**
+     * <p>Constructor for MappedJRobinRrdStrategy.</p>
+     *
+     * @throws java.lang.Exception if any.
+     */
+    public MappedJRobinRrdStrategy() throws Exception {
+        super();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void setConfigurationProperties(final Properties configurationParameters) {
+        final long syncPeriod = Long.parseLong((configurationParameters == null ? new Properties() : configurationParameters)
+                                               .getProperty(SYNC_PERIOD_PROPERTY, DEFAULT_SYNC_PERIOD).trim());
+        final MappedRrdBackendFactory oldFactory = m_backendFactory;
+        m_backendFactory = new MappedRrdBackendFactory(syncPeriod);
+
+        // this closes the files that were opened with the old factory
+        super.setConfigurationProperties(configurationParameters);
+        if (oldFactory != null) {
+            oldFactory.shutdown();
+        }
+    }
+
+    /**
+     * Mapped files are only released when they are closed, so they are always
+     * pooled.
+     */
+    @Override
+    protected boolean isPoolingSupported() {
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected RrdDb openRrdDb(final String path) throws IOException, RrdException {
+        return new RrdDb(path, getBackendFactory());
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected RrdDb createRrdDb(final RrdDef rrdDef) throws IOException, RrdException {
+        return new RrdDb(rrdDef, getBackendFactory());
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Buffers the update until the file is closed.
+     */
+    @Override
+    public void updateFile(final RrdDb rrdFile, final String owner, final String data) throws Exception {
+        m_pendingUpdates.computeIfAbsent(rrdFile, k -> new PendingUpdates()).add(data);
+    }
+
+    /**
+     * Writes the buffered updates and releases the file.
+     *
+     * @param rrdFile a {@link org.jrobin.core.RrdDb} object.
+     * @throws java.lang.Exception if any.
+     */
+    @Override
+    public void closeFile(final RrdDb rrdFile) throws Exception {
+        try {
+            final PendingUpdates pending = m_pendingUpdates.remove(rrdFile);
+            if (pending != null) {
+                for (final String sample : pending.getSamples()) {
+                    super.updateFile(rrdFile, "", sample);
+                }
+            }
+        } finally {
+            super.closeFile(rrdFile);
+        }
+    }
+
+    /**
+     * Returns the statistics of the pool of open files and of the mapped
+     * file syncs.
+     *
+     * @return a {@link java.lang.String} object.
+     */
+    @Override
+    public String getStats() {
+        final String poolStats = super.getStats();
+        final String backendStats = getBackendFactory().toString();
+        return poolStats.isEmpty() ? backendStats : poolStats + ", " + backendStats;
+    }
+
+    /**
+     * <p>getBackendFactory</p>
+     *
+     * @return the factory used to map the RRD files
+     */
+    public MappedRrdBackendFactory getBackendFactory() {
+        MappedRrdBackendFactory factory = m_backendFactory;
+        if (factory == null) {
+            synchronized (this) {
+                if (m_backendFactory == null) {
+                    m_backendFactory = new MappedRrdBackendFactory(Long.parseLong(DEFAULT_SYNC_PERIOD));
+                }
+                factory = m_backendFactory;
+            }
+        }
+        return factory;
+    }
+}
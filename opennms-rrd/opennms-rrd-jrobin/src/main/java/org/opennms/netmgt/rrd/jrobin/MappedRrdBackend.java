@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.rrd.jrobin;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.jrobin.core.RrdBackend;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * JRobin backend that maps the whole RRD file into memory.
+ *
+ * <p>Updates only touch the mapped pages; they are forced to disk by the
+ * {@link MappedRrdBackendFactory} on its sync cadence and when the file is
+ * closed, so every update made to a file during a sync period ends up in a
+ * single write.  Other readers of the file (graphing, value lookups) go
+ * through the page cache and see the updates right away.</p>
+ *
+ * <p>The mapping is released as soon as the file is closed instead of
+ * waiting for the garbage collector, since a busy collector can go through
+ * far more files than the kernel allows mappings for between two
+ * collections.</p>
+ */
+class MappedRrdBackend extends RrdBackend {
+    private static final Logger LOG = LoggerFactory.getLogger(MappedRrdBackend.class);
+
+    private final MappedRrdBackendFactory m_factory;
+    private final RandomAccessFile m_file;
+    private final boolean m_readOnly;
+    private MappedByteBuffer m_buffer;
+    private boolean m_dirty = false;
+
+    MappedRrdBackend(final String path, final boolean readOnly, final MappedRrdBackendFactory factory) throws IOException {
+        super(path);
+        m_factory = factory;
+        m_readOnly = readOnly;
+        m_file = new RandomAccessFile(path, readOnly ? "r" : "rw");
+        try {
+            final long length = m_file.length();
+            if (length > 0) {
+                map(length);
+            }
+        } catch (final IOException e) {
+            m_file.close();
+            throw e;
+        }
+    }
+
+    @Override
+    protected synchronized void setLength(final long length) throws IOException {
+        if (m_readOnly) {
+            throw new IOException("Cannot resize read-only RRD file " + getPath());
+        }
+        m_file.setLength(length);
+        map(length);
+    }
+
+    @Override
+    public synchronized long getLength() throws IOException {
+        return m_file.length();
+    }
+
+    @Override
+    protected synchronized void write(final long offset, final byte[] b) throws IOException {
+        checkOpen();
+        m_buffer.position((int)offset);
+        m_buffer.put(b);
+        if (!m_dirty) {
+            m_dirty = true;
+            m_factory.markDirty(this);
+        }
+    }
+
+    @Override
+    protected synchronized void read(final long offset, final byte[] b) throws IOException {
+        checkOpen();
+        m_buffer.position((int)offset);
+        m_buffer.get(b);
+    }
+
+    @Override
+    protected boolean isCachingAllowed() {
+        return true;
+    }
+
+    /**
+     * Forces the modified pages of this file to disk.
+     */
+    synchronized void sync() {
+        if (m_dirty && m_buffer != null) {
+            m_buffer.force();
+            m_dirty = false;
+            m_factory.synced(this);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            sync();
+        } finally {
+            unmap();
+            m_file.close();
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (m_buffer == null) {
+            throw new IOException("RRD file " + getPath() + " is not mapped");
+        }
+    }
+
+    private void map(final long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("RRD file " + getPath() + " is too large to be mapped");
+        }
+        if (m_buffer != null && m_dirty) {
+            m_buffer.force();
+        }
+        unmap();
+        m_buffer = m_file.getChannel().map(m_readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE, 0, length);
+    }
+
+    private void unmap() {
+        final MappedByteBuffer buffer = m_buffer;
+        m_buffer = null;
+        if (buffer == null) {
+            return;
+        }
+        // There is no public API to release a mapping on Java 8; fall back to
+        // the garbage collector if the JDK internals are not accessible.
+        try {
+            final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            final Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                final Method cleanMethod = cleaner.getClass().getMethod("clean");
+                cleanMethod.setAccessible(true);
+                cleanMethod.invoke(cleaner);
+            }
+        } catch (final Exception e) {
+            LOG.debug("Unable to unmap RRD file {}, leaving it to the garbage collector", getPath(), e);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.rrd.jrobin;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jrobin.core.RrdBackend;
+import org.jrobin.core.RrdBackendFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * JRobin backend factory for {@link MappedRrdBackend}s.
+ *
+ * <p>Unlike the NIO backend shipped with JRobin, which schedules a timer task
+ * per open file, all dirty files of a factory are flushed by a single thread
+ * every <code>syncPeriod</code> milliseconds.  The factory is not registered
+ * with {@link RrdBackendFactory#registerFactory(RrdBackendFactory)}; it is
+ * passed to the {@link org.jrobin.core.RrdDb} constructors directly so that
+ * several strategies can use their own settings.</p>
+ */
+public class MappedRrdBackendFactory extends RrdBackendFactory {
+    private static final Logger LOG = LoggerFactory.getLogger(MappedRrdBackendFactory.class);
+
+    public static final String NAME = "OPENNMS_MMAP";
+
+    private final long m_syncPeriod;
+    private final Set<MappedRrdBackend> m_dirty = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService m_syncer;
+    private final AtomicLong m_syncs = new AtomicLong();
+
+    /**
+     * @param syncPeriod how often (in milliseconds) modified files are forced to disk, 0 to only force them when they are closed
+     */
+    public MappedRrdBackendFactory(final long syncPeriod) {
+        m_syncPeriod = syncPeriod;
+        if (syncPeriod > 0) {
+            m_syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread thread = new Thread(r, "MappedRrdBackendSync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            m_syncer.scheduleWithFixedDelay(this::syncAll, syncPeriod, syncPeriod, TimeUnit.MILLISECONDS);
+        } else {
+            m_syncer = null;
+        }
+    }
+
+    @Override
+    protected RrdBackend open(final String path, final boolean readOnly) throws IOException {
+        return new MappedRrdBackend(path, readOnly, this);
+    }
+
+    @Override
+    protected boolean exists(final String path) throws IOException {
+        return new File(path).exists();
+    }
+
+    @Override
+    public String getFactoryName() {
+        return NAME;
+    }
+
+    public long getSyncPeriod() {
+        return m_syncPeriod;
+    }
+
+    /**
+     * @return the number of files with changes that have not been forced to disk yet
+     */
+    public int getDirtyFiles() {
+        return m_dirty.size();
+    }
+
+    /**
+     * @return how many times a modified file has been forced to disk
+     */
+    public long getSyncs() {
+        return m_syncs.get();
+    }
+
+    /**
+     * Forces every modified file to disk.
+     */
+    public void syncAll() {
+        for (final Iterator<MappedRrdBackend> it = m_dirty.iterator(); it.hasNext(); ) {
+            final MappedRrdBackend backend = it.next();
+            it.remove();
+            try {
+                backend.sync();
+            } catch (final Throwable t) {
+                LOG.warn("Failed to sync RRD file {}", backend.getPath(), t);
+            }
+        }
+    }
+
+    /**
+     * Stops the sync thread after forcing every modified file to disk.
+     */
+    public void shutdown() {
+        if (m_syncer != null) {
+            m_syncer.shutdown();
+        }
+        syncAll();
+    }
+
+    void markDirty(final MappedRrdBackend backend) {
+        m_dirty.add(backend);
+    }
+
+    void synced(final MappedRrdBackend backend) {
+        m_dirty.remove(backend);
+        m_syncs.incrementAndGet();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MappedRrdBackendFactory: syncPeriod=%d, dirtyFiles=%d, syncs=%d", m_syncPeriod, getDirtyFiles(), getSyncs());
+    }
+}
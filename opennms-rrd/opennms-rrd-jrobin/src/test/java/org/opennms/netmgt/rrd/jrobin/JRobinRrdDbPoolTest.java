@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.rrd.jrobin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.jrobin.core.RrdDb;
+import org.jrobin.core.RrdDef;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.test.FileAnticipator;
+
+public class JRobinRrdDbPoolTest {
+
+    private FileAnticipator m_fileAnticipator;
+
+    @Before
+    public void setUp() throws Exception {
+        m_fileAnticipator = new FileAnticipator();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        m_fileAnticipator.deleteExpected();
+        m_fileAnticipator.tearDown();
+    }
+
+    @Test
+    public void testReleasedHandleIsReused() throws Exception {
+        final String path = createRrdFile("foo");
+        final JRobinRrdDbPool pool = new JRobinRrdDbPool(10, 0);
+
+        final RrdDb first = pool.acquire(path);
+        pool.release(first);
+        final RrdDb second = pool.acquire(path);
+        final RrdDb third = pool.acquire(path);
+        assertSame(first, second);
+        assertSame(first, third);
+        assertEquals(1, pool.getFilesInUse());
+
+        pool.release(second);
+        pool.release(third);
+        assertFalse(first.isClosed());
+        assertEquals(1, pool.getOpenFiles());
+        assertEquals(0, pool.getFilesInUse());
+        assertEquals(2, pool.getHits());
+        assertEquals(1, pool.getMisses());
+        assertEquals(2.0 / 3.0, pool.getHitRate(), 0.0001);
+
+        pool.close();
+        assertTrue(first.isClosed());
+        assertEquals(0, pool.getOpenFiles());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsClosedOverCapacity() throws Exception {
+        final String a = createRrdFile("a");
+        final String b = createRrdFile("b");
+        final String c = createRrdFile("c");
+        final JRobinRrdDbPool pool = new JRobinRrdDbPool(2, 0);
+
+        final RrdDb rrdA = pool.acquire(a);
+        pool.release(rrdA);
+        final RrdDb rrdB = pool.acquire(b);
+        pool.release(rrdB);
+        // touch a again so that b becomes the least recently used file
+        pool.release(pool.acquire(a));
+        final RrdDb rrdC = pool.acquire(c);
+        pool.release(rrdC);
+
+        assertFalse(rrdA.isClosed());
+        assertTrue(rrdB.isClosed());
+        assertFalse(rrdC.isClosed());
+        assertEquals(2, pool.getOpenFiles());
+        assertEquals(1, pool.getEvictions());
+        pool.close();
+    }
+
+    @Test
+    public void testReferencedHandlesAreNotClosed() throws Exception {
+        final String a = createRrdFile("a");
+        final String b = createRrdFile("b");
+        final JRobinRrdDbPool pool = new JRobinRrdDbPool(1, 0);
+
+        final RrdDb rrdA = pool.acquire(a);
+        final RrdDb rrdB = pool.acquire(b);
+        assertEquals(2, pool.getOpenFiles());
+        assertFalse(rrdA.isClosed());
+
+        // the pool is over capacity, so b is closed as soon as it is released
+        pool.release(rrdB);
+        assertTrue(rrdB.isClosed());
+        assertFalse(rrdA.isClosed());
+        pool.release(rrdA);
+        assertFalse(rrdA.isClosed());
+        assertEquals(1, pool.getOpenFiles());
+        pool.close();
+    }
+
+    @Test
+    public void testEvictWhileInUse() throws Exception {
+        final String a = createRrdFile("a");
+        final JRobinRrdDbPool pool = new JRobinRrdDbPool(10, 0);
+
+        final RrdDb rrdA = pool.acquire(a);
+        pool.evict(a);
+        assertFalse(rrdA.isClosed());
+
+        // a new caller gets a fresh handle rather than the evicted one
+        final RrdDb newA = pool.acquire(a);
+        assertNotSame(rrdA, newA);
+
+        pool.release(rrdA);
+        assertTrue(rrdA.isClosed());
+        pool.release(newA);
+        assertFalse(newA.isClosed());
+        pool.close();
+    }
+
+    @Test
+    public void testIdleHandlesAreClosed() throws Exception {
+        final String a = createRrdFile("a");
+        final String b = createRrdFile("b");
+        final JRobinRrdDbPool pool = new JRobinRrdDbPool(10, 1);
+
+        final RrdDb rrdA = pool.acquire(a);
+        pool.release(rrdA);
+        Thread.sleep(10);
+        final RrdDb rrdB = pool.acquire(b);
+
+        assertTrue(rrdA.isClosed());
+        assertFalse(rrdB.isClosed());
+        pool.release(rrdB);
+        pool.close();
+    }
+
+    @Test
+    public void testUnpooledHandleIsClosedOnRelease() throws Exception {
+        final String a = createRrdFile("a");
+        final JRobinRrdDbPool pool = new JRobinRrdDbPool(10, 0);
+
+        final RrdDb rrdA = new RrdDb(a);
+        pool.release(rrdA);
+        assertTrue(rrdA.isClosed());
+    }
+
+    private String createRrdFile(final String name) throws Exception {
+        final File file = m_fileAnticipator.expecting(name + ".jrb");
+        final RrdDef def = new RrdDef(file.getAbsolutePath());
+        def.setStartTime(1000);
+        def.setStep(300);
+        def.addDatasource("bar", "GAUGE", 3000, Double.NaN, Double.NaN);
+        def.addArchive("RRA:AVERAGE:0.5:1:2016");
+        new RrdDb(def).close();
+        return file.getAbsolutePath();
+    }
+}
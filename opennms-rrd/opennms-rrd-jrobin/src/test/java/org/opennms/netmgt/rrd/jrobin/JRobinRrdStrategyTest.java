@@ -38,6 +38,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
+import java.util.Properties;
 
 import org.jrobin.core.RrdDb;
 import org.jrobin.core.RrdDef;
@@ -174,6 +175,40 @@ public class JRobinRrdStrategyTest {
         m_strategy.closeFile(openedFile);
     }
 
+    @Test
+    public void testPooledUpdates() throws Exception {
+        final Properties props = new Properties();
+        props.setProperty("org.jrobin.core.RrdBackendFactory", "FILE");
+        props.setProperty("org.opennms.rrd.jrobin.pool.size", "10");
+        m_strategy.setConfigurationProperties(props);
+        final JRobinRrdDbPool pool = ((JRobinRrdStrategy)m_strategy).getPool();
+        assertNotNull("pool should be enabled", pool);
+
+        File rrdFile = createRrdFile();
+
+        RrdDb first = m_strategy.openFile(rrdFile.getAbsolutePath());
+        m_strategy.updateFile(first, "huh?", "1200:1.5");
+        m_strategy.closeFile(first);
+        assertFalse("pooled file should stay open", first.isClosed());
+
+        RrdDb second = m_strategy.openFile(rrdFile.getAbsolutePath());
+        assertTrue("handle should be reused", first == second);
+        m_strategy.updateFile(second, "huh?", "1500:2.5");
+        m_strategy.closeFile(second);
+
+        // updates through the pooled handle are visible to other readers
+        RrdDb reader = new RrdDb(rrdFile.getAbsolutePath(), true);
+        assertEquals(1500, reader.getLastUpdateTime());
+        reader.close();
+
+        assertEquals(1, pool.getHits());
+        assertEquals(1, pool.getMisses());
+        assertTrue(m_strategy.getStats().contains("openFiles=1"));
+
+        pool.close();
+        assertTrue(first.isClosed());
+    }
+
     @Test
     public void testSampleSetFloatingPointValueGood() throws Exception {
         File rrdFile = createRrdFile();
@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.rrd.jrobin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import org.jrobin.core.RrdDb;
+import org.jrobin.core.RrdDef;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.core.test.MockLogAppender;
+import org.opennms.netmgt.rrd.RrdDataSource;
+import org.opennms.test.FileAnticipator;
+
+public class MappedJRobinRrdStrategyTest {
+
+    private MappedJRobinRrdStrategy m_strategy;
+    private FileAnticipator m_fileAnticipator;
+
+    @Before
+    public void setUp() throws Exception {
+        MockLogAppender.setupLogging(true, "DEBUG");
+
+        final Properties props = new Properties();
+        props.setProperty("org.jrobin.core.RrdBackendFactory", "FILE");
+        props.setProperty("org.opennms.rrd.jrobin.pool.size", "10");
+        props.setProperty("org.opennms.rrd.jrobin.mmap.syncPeriod", "0");
+        m_strategy = new MappedJRobinRrdStrategy();
+        m_strategy.setConfigurationProperties(props);
+
+        m_fileAnticipator = new FileAnticipator();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        m_strategy.getPool().close();
+        m_strategy.getBackendFactory().shutdown();
+        m_fileAnticipator.deleteExpected();
+        m_fileAnticipator.tearDown();
+    }
+
+    @Test
+    public void testUpdatesAreVisibleToReaders() throws Exception {
+        final String path = createRrdFile();
+
+        RrdDb rrd = m_strategy.openFile(path);
+        m_strategy.updateFile(rrd, "test", "1200:1:2");
+        m_strategy.updateFile(rrd, "test", "1500:3:4");
+        m_strategy.closeFile(rrd);
+
+        // the mapped file stays open in the pool
+        assertFalse(rrd.isClosed());
+        assertSame(rrd, m_strategy.getPool().acquire(path));
+        m_strategy.getPool().release(rrd);
+
+        // a reader using the default backend sees the data before it is synced
+        final RrdDb reader = new RrdDb(path, true);
+        assertEquals(1500, reader.getLastUpdateTime());
+        assertEquals(4.0, reader.getLastDatasourceValue("b"), 0.0);
+        reader.close();
+    }
+
+    @Test
+    public void testUpdatesForTheSameTimestampAreMerged() throws Exception {
+        final String path = createRrdFile();
+
+        RrdDb rrd = m_strategy.openFile(path);
+        m_strategy.updateFile(rrd, "test", "1200:1:U");
+        m_strategy.updateFile(rrd, "test", "1200:U:2");
+        m_strategy.closeFile(rrd);
+
+        final RrdDb reader = new RrdDb(path, true);
+        assertEquals(1200, reader.getLastUpdateTime());
+        assertEquals(1.0, reader.getLastDatasourceValue("a"), 0.0);
+        assertEquals(2.0, reader.getLastDatasourceValue("b"), 0.0);
+        reader.close();
+    }
+
+    @Test
+    public void testPendingUpdates() throws Exception {
+        final MappedJRobinRrdStrategy.PendingUpdates pending = new MappedJRobinRrdStrategy.PendingUpdates();
+        pending.add("1200:1:U:U");
+        pending.add("1200:U:2:U");
+        pending.add("1200:U:U:3");
+        pending.add("1500:4:5:6");
+        pending.add("1500:7:U:U");
+        pending.add("1800:8");
+        assertEquals(Arrays.asList("1200:1:2:3", "1500:7:5:6", "1800:8"), pending.getSamples());
+    }
+
+    @Test
+    public void testSyncOnClose() throws Exception {
+        final String path = createRrdFile();
+
+        final RrdDb rrd = m_strategy.openFile(path);
+        m_strategy.updateFile(rrd, "test", "1200:1:2");
+        m_strategy.closeFile(rrd);
+        assertEquals(1, m_strategy.getBackendFactory().getDirtyFiles());
+
+        m_strategy.getPool().close();
+        assertTrue(rrd.isClosed());
+        assertEquals(0, m_strategy.getBackendFactory().getDirtyFiles());
+        assertTrue(m_strategy.getStats().contains("syncs="));
+    }
+
+    private String createRrdFile() throws Exception {
+        final List<RrdDataSource> dataSources = new ArrayList<RrdDataSource>();
+        dataSources.add(new RrdDataSource("a", "GAUGE", 3000, "U", "U"));
+        dataSources.add(new RrdDataSource("b", "GAUGE", 3000, "U", "U"));
+        final RrdDef def = m_strategy.createDefinition("test", m_fileAnticipator.getTempDir().getAbsolutePath(), "foo", 300, dataSources, Arrays.asList("RRA:AVERAGE:0.5:1:2016"));
+        assertNotNull(def);
+        m_strategy.createFile(def, null);
+        final File file = m_fileAnticipator.expecting("foo" + m_strategy.getDefaultFileExtension());
+        return file.getAbsolutePath();
+    }
+}
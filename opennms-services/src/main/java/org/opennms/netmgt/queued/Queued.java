@@ -28,14 +28,23 @@
 
 package org.opennms.netmgt.queued;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import org.opennms.netmgt.daemon.AbstractServiceDaemon;
 import org.opennms.netmgt.events.api.EventConstants;
 import org.opennms.netmgt.events.api.EventIpcManager;
 import org.opennms.netmgt.events.api.EventListener;
 import org.opennms.netmgt.model.events.EventUtils;
+import org.opennms.netmgt.queued.jmx.QueuedShard;
 import org.opennms.netmgt.rrd.RrdStrategy;
+import org.opennms.netmgt.rrd.ShardedQueuingRrdStrategy;
 import org.opennms.netmgt.xml.event.Event;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -64,6 +73,8 @@ public class Queued extends AbstractServiceDaemon implements EventListener {
      */
     private volatile RrdStrategy<?,?> m_rrdStrategy;
 
+    private final List<ObjectName> m_shardMBeans = new ArrayList<>();
+
     /**
      * <p>Constructor for Queued.</p>
      */
@@ -109,6 +120,51 @@ public class Queued extends AbstractServiceDaemon implements EventListener {
         m_eventMgr.addEventListener(this, EventConstants.PROMOTE_QUEUE_DATA_UEI);
     }
 
+    @Override
+    protected void onStart() {
+        if (m_rrdStrategy instanceof ShardedQueuingRrdStrategy) {
+            registerShardMBeans((ShardedQueuingRrdStrategy)m_rrdStrategy);
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        unregisterShardMBeans();
+    }
+
+    /**
+     * Registers the statistics of every shard next to the Queued MBean,
+     * which only reports the totals.
+     */
+    private void registerShardMBeans(final ShardedQueuingRrdStrategy strategy) {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (final ShardedQueuingRrdStrategy.ShardStatistics stats : strategy.getShardStatistics()) {
+            final QueuedShard shard = new QueuedShard(stats);
+            try {
+                final ObjectName name = shard.getObjectName();
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+                server.registerMBean(shard, name);
+                m_shardMBeans.add(name);
+            } catch (final JMException e) {
+                LOG.warn("Could not register the statistics of RRD queue shard {}", stats.getIndex(), e);
+            }
+        }
+    }
+
+    private void unregisterShardMBeans() {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (final ObjectName name : m_shardMBeans) {
+            try {
+                server.unregisterMBean(name);
+            } catch (final JMException e) {
+                LOG.debug("Could not unregister {}", name, e);
+            }
+        }
+        m_shardMBeans.clear();
+    }
+
     /** {@inheritDoc} */
     @Override
     public void onEvent(Event e) {
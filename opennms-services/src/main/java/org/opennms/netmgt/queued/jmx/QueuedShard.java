@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.queued.jmx;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.opennms.netmgt.rrd.ShardedQueuingRrdStrategy.ShardStatistics;
+
+/**
+ * Exposes the statistics of one shard of the
+ * {@link org.opennms.netmgt.rrd.ShardedQueuingRrdStrategy}.
+ */
+public class QueuedShard implements QueuedShardMBean {
+
+    private final ShardStatistics m_stats;
+
+    public QueuedShard(final ShardStatistics stats) {
+        m_stats = stats;
+    }
+
+    public ObjectName getObjectName() throws MalformedObjectNameException {
+        return new ObjectName("OpenNMS:Name=Queued,Shard=" + m_stats.getIndex());
+    }
+
+    @Override
+    public long getOperationsPending() {
+        return m_stats.getOperationsPending();
+    }
+
+    @Override
+    public long getFilesPending() {
+        return m_stats.getFilesPending();
+    }
+
+    @Override
+    public long getFileWrites() {
+        return m_stats.getFileWrites();
+    }
+
+    @Override
+    public long getOperationsWritten() {
+        return m_stats.getOperationsWritten();
+    }
+
+    @Override
+    public long getCreatesCompleted() {
+        return m_stats.getCreatesCompleted();
+    }
+
+    @Override
+    public long getUpdatesCompleted() {
+        return m_stats.getUpdatesCompleted();
+    }
+
+    @Override
+    public double getMergeRatio() {
+        return m_stats.getMergeRatio();
+    }
+
+    @Override
+    public double getAverageWriteMillis() {
+        return m_stats.getAverageWriteMillis();
+    }
+
+    @Override
+    public double getMaxWriteMillis() {
+        return m_stats.getMaxWriteMillis();
+    }
+
+    @Override
+    public long getPromotions() {
+        return m_stats.getPromotions();
+    }
+
+    @Override
+    public long getErrors() {
+        return m_stats.getErrors();
+    }
+}
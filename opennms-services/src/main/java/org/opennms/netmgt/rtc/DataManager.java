@@ -33,15 +33,20 @@ import java.net.InetAddress;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.opennms.core.utils.InetAddressUtils;
 import org.opennms.netmgt.config.RTCConfigFactory;
@@ -49,6 +54,7 @@ import org.opennms.netmgt.dao.api.MonitoredServiceDao;
 import org.opennms.netmgt.events.api.EventConstants;
 import org.opennms.netmgt.filter.api.FilterDao;
 import org.opennms.netmgt.filter.api.FilterParseException;
+import org.opennms.netmgt.model.OnmsMonitoredService;
 import org.opennms.netmgt.rtc.datablock.RTCCategory;
 import org.opennms.netmgt.rtc.datablock.RTCHashMap;
 import org.opennms.netmgt.rtc.datablock.RTCNode;
@@ -80,6 +86,14 @@ import org.springframework.transaction.support.TransactionTemplate;
  * 'nodeGainedService' event would result in the 'nodeGainedService()' method
  * being called by the DataUpdater(s).
  *
+ * Reads (values and service counts) do not take any lock: the map and the
+ * nodes publish their state through concurrent collections and immutable
+ * snapshots so that the availability of a category can be calculated while
+ * events are being applied. Changes are serialized by a single writer lock.
+ * Outage events are queued and applied in batches by whichever event thread
+ * gets to the queue first, so a burst of outages only takes the writer lock
+ * once per batch.
+ *
  * @author <A HREF="mailto:sowmya@opennms.org">Sowmya Nataraj </A>
  * @author <A HREF="http://www.opennms.org">OpenNMS.org </A>
  */
@@ -87,6 +101,12 @@ public class DataManager implements AvailabilityService, InitializingBean {
     
     private static final Logger LOG = LoggerFactory.getLogger(DataManager.class);
 
+    /**
+     * The maximum number of queued outage events applied under one
+     * acquisition of the writer lock
+     */
+    private static final int MAX_OUTAGE_BATCH_SIZE = 1000;
+
     @Autowired
 	private FilterDao m_filterDao;
 
@@ -107,6 +127,43 @@ public class DataManager implements AvailabilityService, InitializingBean {
      */
     private final LegacyEuiLevelMapper m_euiMapper;
 
+    /**
+     * Serializes all changes to the map and the categories
+     */
+    private final Object m_writeLock = new Object();
+
+    /**
+     * Outage events that have not yet been applied to the map
+     */
+    private final Queue<OutageUpdate> m_pendingOutages = new ConcurrentLinkedQueue<OutageUpdate>();
+
+    /**
+     * Set while a thread is applying the pending outage events
+     */
+    private final AtomicBoolean m_draining = new AtomicBoolean(false);
+
+    private final AtomicLong m_outageUpdates = new AtomicLong();
+    private final AtomicLong m_outageBatches = new AtomicLong();
+    private final AtomicLong m_maxOutageBatchSize = new AtomicLong();
+    private final AtomicLong m_totalUpdateLatency = new AtomicLong();
+    private final AtomicLong m_maxUpdateLatency = new AtomicLong();
+
+    /**
+     * A lost or regained service that is waiting to be applied
+     */
+    private static class OutageUpdate {
+        private final RTCNodeKey m_key;
+        private final long m_time;
+        private final boolean m_lost;
+        private final long m_queued = System.nanoTime();
+
+        private OutageUpdate(RTCNodeKey key, long time, boolean lost) {
+            m_key = key;
+            m_time = time;
+            m_lost = lost;
+        }
+    }
+
 	private class RTCNodeProcessor implements RowCallbackHandler {
 		RTCNodeKey m_currentKey = null;
 
@@ -208,10 +265,10 @@ public class DataManager implements AvailabilityService, InitializingBean {
 		m_map.add(rtcN);
 	}
 
-	private static void addNodeToCategory(RTCCategory cat, RTCNode rtcN) {
+	private void addNodeToCategory(RTCCategory cat, RTCNode rtcN) {
 
 		// add the category info to the node
-        rtcN.addCategory(cat.getLabel());
+		m_map.addToCategory(rtcN, cat.getLabel());
 
 		// Add node to category
 		cat.addNode(rtcN);
@@ -353,11 +410,12 @@ public class DataManager implements AvailabilityService, InitializingBean {
      * @param svcName
      *            the service name
      */
-    public synchronized void nodeGainedService(int nodeid, InetAddress ip, String svcName) {
+    public void nodeGainedService(int nodeid, InetAddress ip, String svcName) {
         //
         // check the 'status' flag for the service
         //
-        String svcStatus = m_monitoredServiceDao.get((int)nodeid, ip, svcName).getStatus();
+        OnmsMonitoredService svc = m_monitoredServiceDao.get((int)nodeid, ip, svcName);
+        String svcStatus = svc == null ? null : svc.getStatus();
 
         //
         // Include only service status 'A' and where service is not SNMP
@@ -414,18 +472,9 @@ public class DataManager implements AvailabilityService, InitializingBean {
      * @param t
      *            the time at which service was lost
      */
-    public synchronized void outageCreated(int nodeid, InetAddress ip, String svcName, long t) {
-        RTCNodeKey key = new RTCNodeKey(nodeid, ip, svcName);
-        RTCNode rtcN = m_map.getRTCNode(key);
-        if (rtcN == null) {
-            // oops! got a lost/regained service for a node that is not known?
-            LOG.info("Received a outageCreated event for an unknown/irrelevant node: {}", key.toString());
-            return;
-        }
-
-        // inform node
-        rtcN.nodeLostService(t);
-
+    public void outageCreated(int nodeid, InetAddress ip, String svcName, long t) {
+        m_pendingOutages.add(new OutageUpdate(new RTCNodeKey(nodeid, ip, svcName), t, true));
+        drainOutages();
     }
 
     /**
@@ -441,17 +490,71 @@ public class DataManager implements AvailabilityService, InitializingBean {
      * @param t
      *            the time at which service was regained
      */
-    public synchronized void outageResolved(int nodeid, InetAddress ip, String svcName, long t) {
-        RTCNodeKey key = new RTCNodeKey(nodeid, ip, svcName);
-        RTCNode rtcN = m_map.getRTCNode(key);
-        if (rtcN == null) {
-            // oops! got a lost/regained service for a node that is not known?
-            LOG.info("Received a outageResolved event for an unknown/irrelevant node: {}", key.toString());
-            return;
+    public void outageResolved(int nodeid, InetAddress ip, String svcName, long t) {
+        m_pendingOutages.add(new OutageUpdate(new RTCNodeKey(nodeid, ip, svcName), t, false));
+        drainOutages();
+    }
+
+    /**
+     * Apply the queued outage events. Only one thread drains the queue at a
+     * time; a thread that finds the queue being drained leaves its event to
+     * the draining thread, which checks the queue again before it gives up
+     * the drain.
+     */
+    private void drainOutages() {
+        while (!m_pendingOutages.isEmpty() && m_draining.compareAndSet(false, true)) {
+            try {
+                final List<OutageUpdate> batch = new ArrayList<OutageUpdate>();
+                OutageUpdate update;
+                while (batch.size() < MAX_OUTAGE_BATCH_SIZE && (update = m_pendingOutages.poll()) != null) {
+                    batch.add(update);
+                }
+                if (!batch.isEmpty()) {
+                    applyOutages(batch);
+                }
+            } finally {
+                m_draining.set(false);
+            }
         }
+    }
+
+    private void applyOutages(List<OutageUpdate> batch) {
+        synchronized (m_writeLock) {
+            for (OutageUpdate update : batch) {
+                RTCNode rtcN = m_map.getRTCNode(update.m_key);
+                if (rtcN == null) {
+                    // oops! got a lost/regained service for a node that is not known?
+                    LOG.info("Received a {} event for an unknown/irrelevant node: {}", update.m_lost ? "outageCreated" : "outageResolved", update.m_key);
+                    continue;
+                }
 
-        // inform node
-        rtcN.nodeRegainedService(t);
+                // inform node
+                if (update.m_lost) {
+                    rtcN.nodeLostService(update.m_time);
+                } else {
+                    rtcN.nodeRegainedService(update.m_time);
+                }
+            }
+        }
+
+        final long now = System.nanoTime();
+        for (OutageUpdate update : batch) {
+            final long latency = now - update.m_queued;
+            m_totalUpdateLatency.addAndGet(latency);
+            updateMax(m_maxUpdateLatency, latency);
+        }
+        m_outageUpdates.addAndGet(batch.size());
+        m_outageBatches.incrementAndGet();
+        updateMax(m_maxOutageBatchSize, batch.size());
+
+        LOG.debug("Applied {} outage events, max latency {}ms", batch.size(), TimeUnit.NANOSECONDS.toMillis(m_maxUpdateLatency.get()));
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // retry
+        }
     }
 
     /**
@@ -464,7 +567,13 @@ public class DataManager implements AvailabilityService, InitializingBean {
      * @param svcName
      *            the service that was deleted
      */
-    public synchronized void serviceDeleted(int nodeid, InetAddress ip, String svcName) {
+    public void serviceDeleted(int nodeid, InetAddress ip, String svcName) {
+        synchronized (m_writeLock) {
+            doServiceDeleted(nodeid, ip, svcName);
+        }
+    }
+
+    private void doServiceDeleted(int nodeid, InetAddress ip, String svcName) {
         // create lookup key
         RTCNodeKey key = new RTCNodeKey(nodeid, ip, svcName);
 
@@ -480,10 +589,7 @@ public class DataManager implements AvailabilityService, InitializingBean {
         // Go through from all the categories this node belongs to
         // and delete the service
         //
-        List<String> categories = rtcN.getCategories();
-        ListIterator<String> catIter = categories.listIterator();
-        while (catIter.hasNext()) {
-            String catlabel = (String) catIter.next();
+        for (String catlabel : rtcN.getCategories()) {
 
             RTCCategory cat = (RTCCategory) m_categories.get(catlabel);
 
@@ -500,7 +606,7 @@ public class DataManager implements AvailabilityService, InitializingBean {
                 }
 
                 // let the node know that this category is out
-                catIter.remove();
+                m_map.removeFromCategory(rtcN, catlabel);
             }
         }
 
@@ -515,7 +621,7 @@ public class DataManager implements AvailabilityService, InitializingBean {
      *
      * @param nodeid a long.
      */
-    public synchronized void assetInfoChanged(int nodeid) {
+    public void assetInfoChanged(int nodeid) {
         try {
         	rtcNodeRescan(nodeid);
         } catch (FilterParseException ex) {
@@ -537,7 +643,7 @@ public class DataManager implements AvailabilityService, InitializingBean {
      *
      * @param nodeid a long.
      */
-    public synchronized void nodeCategoryMembershipChanged(int nodeid) {
+    public void nodeCategoryMembershipChanged(int nodeid) {
         try {
         	rtcNodeRescan(nodeid);
         } catch (FilterParseException ex) {
@@ -567,16 +673,16 @@ public class DataManager implements AvailabilityService, InitializingBean {
      *             if the database read or filtering the data against the
      *             category rule fails for some reason
      */
-    public synchronized void rtcNodeRescan(int nodeid) throws SQLException, FilterParseException, RTCException {
-    	
-    	for (RTCCategory cat : m_categories.values()) {
-			cat.deleteNode(nodeid);
-		}
-    	
-    	m_map.deleteNode(nodeid);
-    	
-    	populateNodesFromDB("ifsvc.nodeid = ?", new Object[] { Long.valueOf(nodeid) });
-    	
+    public void rtcNodeRescan(int nodeid) throws SQLException, FilterParseException, RTCException {
+        synchronized (m_writeLock) {
+            for (RTCCategory cat : m_categories.values()) {
+                cat.deleteNode(nodeid);
+            }
+
+            m_map.deleteNode(nodeid);
+
+            populateNodesFromDB("ifsvc.nodeid = ?", new Object[] { Long.valueOf(nodeid) });
+        }
     }
 
     /**
@@ -599,7 +705,13 @@ public class DataManager implements AvailabilityService, InitializingBean {
      * @param newNodeId
      *            the node that the IP now belongs to
      */
-    public synchronized void interfaceReparented(InetAddress ip, int oldNodeId, int newNodeId) {
+    public void interfaceReparented(InetAddress ip, int oldNodeId, int newNodeId) {
+        synchronized (m_writeLock) {
+            doInterfaceReparented(ip, oldNodeId, newNodeId);
+        }
+    }
+
+    private void doInterfaceReparented(InetAddress ip, int oldNodeId, int newNodeId) {
         // get all RTCNodes with the IP/old node ID
         for (RTCNode rtcN : m_map.getRTCNodes(oldNodeId, ip)) {
 
@@ -636,7 +748,7 @@ public class DataManager implements AvailabilityService, InitializingBean {
      * @return the value(uptime) for the category in the last 'rollingWindow'
      *         starting at current time
      */
-    public synchronized double getValue(RTCCategory category, long curTime, long rollingWindow) {
+    public double getValue(RTCCategory category, long curTime, long rollingWindow) {
         return m_map.getValue(category.getLabel(), curTime, rollingWindow);
     }
 
@@ -655,7 +767,7 @@ public class DataManager implements AvailabilityService, InitializingBean {
      * @return the value(uptime) for the node in the last 'rollingWindow'
      *         starting at current time in the context of the passed category
      */
-    public synchronized double getValue(int nodeid, RTCCategory category, long curTime, long rollingWindow) {
+    public double getValue(int nodeid, RTCCategory category, long curTime, long rollingWindow) {
         return m_map.getValue(nodeid, category.getLabel(), curTime, rollingWindow);
     }
 
@@ -670,7 +782,7 @@ public class DataManager implements AvailabilityService, InitializingBean {
      * @return the service count for the nodeid in the context of the passed
      *         category
      */
-    public synchronized int getServiceCount(int nodeid, RTCCategory category) {
+    public int getServiceCount(int nodeid, RTCCategory category) {
         return m_map.getServiceCount(nodeid, category.getLabel());
     }
 
@@ -685,7 +797,7 @@ public class DataManager implements AvailabilityService, InitializingBean {
      * @return the service down count for the nodeid in the context of the
      *         passed category
      */
-    public synchronized int getServiceDownCount(int nodeid, RTCCategory category) {
+    public int getServiceDownCount(int nodeid, RTCCategory category) {
         return m_map.getServiceDownCount(nodeid, category.getLabel());
     }
 
@@ -695,10 +807,48 @@ public class DataManager implements AvailabilityService, InitializingBean {
      * @return the categories
      */
     @Override
-    public synchronized Map<String, RTCCategory> getCategories() {
+    public Map<String, RTCCategory> getCategories() {
         return m_categories;
     }
 
+    /**
+     * @return the number of outage events applied so far
+     */
+    public long getOutageUpdateCount() {
+        return m_outageUpdates.get();
+    }
+
+    /**
+     * @return the number of batches the outage events were applied in
+     */
+    public long getOutageBatchCount() {
+        return m_outageBatches.get();
+    }
+
+    /**
+     * @return the largest number of outage events applied in one batch
+     */
+    public long getMaxOutageBatchSize() {
+        return m_maxOutageBatchSize.get();
+    }
+
+    /**
+     * @return the average time in milliseconds between an outage event
+     *         being received and being applied
+     */
+    public double getAverageUpdateLatency() {
+        final long updates = m_outageUpdates.get();
+        return updates == 0 ? 0.0 : (double)m_totalUpdateLatency.get() / updates / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @return the longest time in milliseconds between an outage event
+     *         being received and being applied
+     */
+    public long getMaxUpdateLatency() {
+        return TimeUnit.NANOSECONDS.toMillis(m_maxUpdateLatency.get());
+    }
+
     public Collection<Integer> getNodes(RTCCategory category) {
         return category.getNodes();
     }
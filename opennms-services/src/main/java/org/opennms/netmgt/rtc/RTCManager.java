@@ -88,6 +88,12 @@ public final class RTCManager extends AbstractServiceDaemon {
     @Autowired
     private RTCConfigFactory m_configFactory;
 
+    /**
+     * The legacy, event based, availability calculation, only present when enabled in the context
+     */
+    @Autowired(required=false)
+    private DataManager m_dataManager;
+
     /**
      * The scheduled task that runs and triggers the {@link DataSender}.
      */
@@ -184,4 +190,13 @@ public final class RTCManager extends AbstractServiceDaemon {
             log().error(e.getLocalizedMessage(), e);
         }
     }
+
+    /**
+     * <p>getDataManager</p>
+     *
+     * @return the legacy {@link DataManager}, or null if it is not enabled
+     */
+    public DataManager getDataManager() {
+        return m_dataManager;
+    }
 }
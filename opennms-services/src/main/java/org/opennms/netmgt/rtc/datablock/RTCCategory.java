@@ -28,11 +28,10 @@
 
 package org.opennms.netmgt.rtc.datablock;
 
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.opennms.netmgt.config.categories.Category;
 
@@ -52,9 +51,10 @@ public class RTCCategory extends Category {
     private final String m_effectiveRule;
 
     /**
-     * The nodes list - list of node IDs
+     * The nodes list - list of node IDs, iterated without locking while
+     * availability is calculated
      */
-    private final List<Integer> m_nodes = Collections.synchronizedList(new ArrayList<Integer>());
+    private final List<Integer> m_nodes = new CopyOnWriteArrayList<Integer>();
 
     /**
      * The default constructor - initializes the values
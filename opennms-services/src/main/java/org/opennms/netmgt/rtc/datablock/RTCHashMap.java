@@ -31,11 +31,11 @@ package org.opennms.netmgt.rtc.datablock;
 import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.opennms.netmgt.rtc.NodeNotInCategoryException;
 import org.opennms.netmgt.rtc.RTCUtils;
@@ -45,6 +45,9 @@ import org.opennms.netmgt.rtc.RTCUtils;
  * convenience methods to add and remove 'RTCNodes' with these values - each key
  * points to a list of 'RTCNode's
  *
+ * The map can be read while it is being modified: the values and counts are
+ * calculated without locking. Changes must be serialized by the caller.
+ *
  * @author <A HREF="mailto:sowmya@opennms.org">Sowmya Kumaraswamy </A>
  * @author <A HREF="http://www.opennms.org">OpenNMS.org </A>
  */
@@ -53,6 +56,11 @@ import org.opennms.netmgt.rtc.RTCUtils;
 public class RTCHashMap {
 	
     private final Map<RTCNodeKey,List<RTCNode>> m_map;
+
+    /**
+     * The RTC nodes in each category, keyed by category label
+     */
+    private final ConcurrentMap<String,Map<RTCNodeKey,RTCNode>> m_categoryNodes = new ConcurrentHashMap<String,Map<RTCNodeKey,RTCNode>>();
 	
     /**
      * constructor
@@ -60,16 +68,20 @@ public class RTCHashMap {
      * @param initialCapacity a int.
      */
     public RTCHashMap(int initialCapacity) {
-        m_map = new HashMap<RTCNodeKey,List<RTCNode>>(initialCapacity);
+        m_map = new ConcurrentHashMap<RTCNodeKey,List<RTCNode>>(initialCapacity);
     }
 
-    private List<Integer> getNodeIDs() {
-    	List<Integer> nodes = new LinkedList<Integer>();
-    	for (Iterator<RTCNodeKey> it = m_map.keySet().iterator(); it.hasNext();) {
-			RTCNodeKey key = it.next();
-			nodes.add(key.getNodeID());
-		}
-    	return nodes;
+    private static RTCNodeKey getKey(RTCNode rtcN) {
+        return new RTCNodeKey(rtcN.getNodeID(), rtcN.getIP(), rtcN.getSvcName());
+    }
+
+    private Map<RTCNodeKey,RTCNode> getCategoryNodes(String catLabel) {
+        Map<RTCNodeKey,RTCNode> nodes = m_categoryNodes.get(catLabel);
+        if (nodes == null) {
+            m_categoryNodes.putIfAbsent(catLabel, new ConcurrentHashMap<RTCNodeKey,RTCNode>());
+            nodes = m_categoryNodes.get(catLabel);
+        }
+        return nodes;
     }
     
     /**
@@ -88,7 +100,7 @@ public class RTCHashMap {
             nodesList.add(rtcN);
         } else {
             // add current node to list
-            nodesList = new ArrayList<RTCNode>();
+            nodesList = new CopyOnWriteArrayList<RTCNode>();
             nodesList.add(rtcN);
 
             // add list to map
@@ -114,7 +126,7 @@ public class RTCHashMap {
             nodesList.add(rtcN);
         } else {
             // add current node to list
-            nodesList = new ArrayList<RTCNode>();
+            nodesList = new CopyOnWriteArrayList<RTCNode>();
             nodesList.add(rtcN);
 
             // add list to map
@@ -135,6 +147,31 @@ public class RTCHashMap {
     	add(rtcN.getNodeID(), rtcN);
     	add(rtcN.getNodeID(), rtcN.getIP(), rtcN);
     	add(rtcN.getNodeID(), rtcN.getIP(), rtcN.getSvcName(), rtcN);
+    	for (String catLabel : rtcN.getCategories()) {
+    	    getCategoryNodes(catLabel).put(getKey(rtcN), rtcN);
+    	}
+    }
+
+    /**
+     * Add an rtc node that is already in the map to a category
+     *
+     * @param rtcN the rtcNode
+     * @param catLabel the label of the category
+     */
+    public void addToCategory(RTCNode rtcN, String catLabel) {
+        rtcN.addCategory(catLabel);
+        getCategoryNodes(catLabel).put(getKey(rtcN), rtcN);
+    }
+
+    /**
+     * Remove an rtc node that is in the map from a category
+     *
+     * @param rtcN the rtcNode
+     * @param catLabel the label of the category
+     */
+    public void removeFromCategory(RTCNode rtcN, String catLabel) {
+        rtcN.removeCategory(catLabel);
+        getCategoryNodes(catLabel).remove(getKey(rtcN));
     }
     
     /**
@@ -146,6 +183,10 @@ public class RTCHashMap {
     	delete(rtcN.getNodeID(), rtcN);
     	delete(rtcN.getNodeID(), rtcN.getIP(), rtcN);
     	delete(rtcN.getNodeID(), rtcN.getIP(), rtcN.getSvcName(), rtcN);
+    	final RTCNodeKey key = getKey(rtcN);
+    	for (Map<RTCNodeKey,RTCNode> nodes : m_categoryNodes.values()) {
+    	    nodes.remove(key);
+    	}
     }
     
     
@@ -209,22 +250,15 @@ public class RTCHashMap {
         // number of entries for this node
         int count = 0;
 
-        // get all nodes in the hashtable
-        for (Integer key : getNodeIDs()) {
-            List<RTCNode> valList = getRTCNodes(key);
-            if (valList == null || valList.size() == 0) {
+        // get all nodes in the category
+        for (RTCNode node : getCategoryNodes(catLabel).values()) {
+            try {
+                long downTime = node.getDownTime(catLabel, curTime, rollingWindow);
+                count++;
+                outageTime += downTime;
+            } catch (NodeNotInCategoryException e) {
                 continue;
             }
-
-            for (RTCNode node : valList) {
-                try {
-                    long downTime = node.getDownTime(catLabel, curTime, rollingWindow);
-                    count++;
-                    outageTime += downTime;
-                } catch (NodeNotInCategoryException e) {
-                    continue;
-                }
-            }
         }
 
         return RTCUtils.getOutagePercentage(outageTime, rollingWindow, count);
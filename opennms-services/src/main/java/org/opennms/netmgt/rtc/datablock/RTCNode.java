@@ -29,8 +29,8 @@
 package org.opennms.netmgt.rtc.datablock;
 
 import java.net.InetAddress;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.commons.lang.builder.HashCodeBuilder;
 import org.opennms.netmgt.rtc.NodeNotInCategoryException;
@@ -49,6 +49,12 @@ import org.opennms.netmgt.rtc.NodeNotInCategoryException;
  * belongs to
  * </p>
  *
+ * <p>
+ * Changes to the service times are serialized on the node and published as
+ * an immutable snapshot, so the down time and status can be read without
+ * locking.
+ * </p>
+ *
  * @author <A HREF="mailto:sowmya@opennms.org">Sowmya Kumaraswamy </A>
  * @author <A HREF="http://www.opennms.org">OpenNMS.org </A>
  * 
@@ -59,7 +65,7 @@ public class RTCNode {
     /**
      * The node ID.
      */
-    private int m_nodeID;
+    private volatile int m_nodeID;
 
     /**
      * The ip address of the interface of the node.
@@ -74,12 +80,18 @@ public class RTCNode {
     /**
      * List of the lost/regained service times for this node.
      */
-    private RTCNodeSvcTimesList m_svcTimesList;
+    private final RTCNodeSvcTimesList m_svcTimesList;
+
+    /**
+     * Snapshot of m_svcTimesList, replaced whenever the list changes. The
+     * entries are never modified once published.
+     */
+    private volatile RTCNodeSvcTime[] m_svcTimes = new RTCNodeSvcTime[0];
 
     /**
      * List of the categories this node belongs to
      */
-    private final List<String> m_categories = new ArrayList<String>();
+    private final List<String> m_categories = new CopyOnWriteArrayList<String>();
 
     /**
      * <p>Constructor for RTCNode.</p>
@@ -128,8 +140,13 @@ public class RTCNode {
      * @param regainedtime
      *            time at which service was regained
      */
-    public void addSvcTime(long losttime, long regainedtime) {
+    public synchronized void addSvcTime(long losttime, long regainedtime) {
         m_svcTimesList.addSvcTime(losttime, regainedtime);
+        publishSvcTimes();
+    }
+
+    private void publishSvcTimes() {
+        m_svcTimes = m_svcTimesList.toArray(new RTCNodeSvcTime[m_svcTimesList.size()]);
     }
 
     /**
@@ -182,9 +199,9 @@ public class RTCNode {
             }
         }
 
-        // create a new entry
-        RTCNodeSvcTime newStime = new RTCNodeSvcTime(t);
-        m_svcTimesList.add(newStime);
+        // create a new entry, dropping the ones that left the rolling window
+        m_svcTimesList.addSvcTime(t);
+        publishSvcTimes();
     }
 
     /**
@@ -206,7 +223,9 @@ public class RTCNode {
                 return;
             }
 
-            stime.setRegainedTime(t);
+            // published entries are never modified, replace the entry instead
+            m_svcTimesList.set(listsize - 1, new RTCNodeSvcTime(stime.getLostTime(), t));
+            publishSvcTimes();
         }
     }
 
@@ -283,7 +302,16 @@ public class RTCNode {
             throw new NodeNotInCategoryException();
         }
 
-        return m_svcTimesList.getDownTime(curTime, rollingWindow);
+        // the start of the rolling window
+        final long startTime = curTime - rollingWindow;
+
+        long outTime = 0;
+        for (final RTCNodeSvcTime svcTime : m_svcTimes) {
+            if (!svcTime.hasExpired(startTime)) {
+                outTime += svcTime.getDownTime(curTime, rollingWindow);
+            }
+        }
+        return outTime;
     }
 
     /**
@@ -292,13 +320,14 @@ public class RTCNode {
      * @return true if the service is currently down
      */
     public boolean isServiceCurrentlyDown() {
-        int size = m_svcTimesList.size();
+        final RTCNodeSvcTime[] svcTimes = m_svcTimes;
+        int size = svcTimes.length;
         if (size == 0) {
             return false;
         }
 
         // else get last entry
-        RTCNodeSvcTime svctime = (RTCNodeSvcTime) m_svcTimesList.get(size - 1);
+        RTCNodeSvcTime svctime = svcTimes[size - 1];
         if (svctime.getRegainedTime() != -1) {
             // node has regained service - so service not currently down
             return false;
@@ -29,6 +29,7 @@
 package org.opennms.netmgt.rtc.jmx;
 
 import org.opennms.netmgt.daemon.AbstractSpringContextJmxServiceDaemon;
+import org.opennms.netmgt.rtc.DataManager;
 
 /**
  * <p>Rtcd class.</p>
@@ -50,4 +51,42 @@ public class Rtcd extends AbstractSpringContextJmxServiceDaemon<org.opennms.netm
         return "rtcContext";
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public long getOutageUpdateCount() {
+        final DataManager dataManager = getDataManager();
+        return dataManager == null ? 0L : dataManager.getOutageUpdateCount();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getOutageBatchCount() {
+        final DataManager dataManager = getDataManager();
+        return dataManager == null ? 0L : dataManager.getOutageBatchCount();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getMaxOutageBatchSize() {
+        final DataManager dataManager = getDataManager();
+        return dataManager == null ? 0L : dataManager.getMaxOutageBatchSize();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public double getAverageUpdateLatency() {
+        final DataManager dataManager = getDataManager();
+        return dataManager == null ? 0.0 : dataManager.getAverageUpdateLatency();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getMaxUpdateLatency() {
+        final DataManager dataManager = getDataManager();
+        return dataManager == null ? 0L : dataManager.getMaxUpdateLatency();
+    }
+
+    private DataManager getDataManager() {
+        return getDaemon().getDataManager();
+    }
 }
@@ -37,4 +37,33 @@ import org.opennms.netmgt.daemon.BaseOnmsMBean;
  * @version $Id: $
  */
 public interface RtcdMBean extends BaseOnmsMBean {
+    /*
+     * The outage statistics are only maintained by the legacy DataManager,
+     * they remain 0 when it is not enabled in applicationContext-rtc.xml.
+     */
+
+    /**
+     * @return The number of outage events applied so far
+     */
+    public long getOutageUpdateCount();
+
+    /**
+     * @return The number of batches the outage events were applied in
+     */
+    public long getOutageBatchCount();
+
+    /**
+     * @return The largest number of outage events applied in one batch
+     */
+    public long getMaxOutageBatchSize();
+
+    /**
+     * @return The average time in milliseconds between an outage event being received and being applied
+     */
+    public double getAverageUpdateLatency();
+
+    /**
+     * @return The longest time in milliseconds between an outage event being received and being applied
+     */
+    public long getMaxUpdateLatency();
 }
@@ -0,0 +1,619 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.scheduler;
+
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opennms.core.concurrent.LogPreservingThreadFactory;
+import org.opennms.core.fiber.PausableFiber;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * A {@link Scheduler} backed by a hashed timing wheel.
+ *
+ * Unlike the {@link LegacyScheduler}, which repeatedly walks the queues of every interval
+ * looking for ready runnables, the runnables are placed in the bucket of the wheel that
+ * corresponds to the tick in which they expire, and the worker thread only visits the
+ * bucket of the current tick. Delays that are longer than a full rotation of the wheel are
+ * handled by keeping track of the number of remaining rotations. Scheduling is O(1), and
+ * lock free: new runnables are handed to the worker thread through a concurrent queue.
+ *
+ * Expired runnables that are not ready yet are checked again on the following tick.
+ *
+ * Runnables scheduled with no delay (i.e. when a daemon schedules all of its services on
+ * start) are spread over a random delay of up to {@link #getMaxStartJitter()} milliseconds,
+ * to avoid having all of them run at once.
+ *
+ * The lag between the time a runnable should have run and the time it was handed to the thread
+ * pool is tracked per interval, see {@link #getLagStatistics()}. The statistics are also registered
+ * as gauges named &lt;parent&gt;.lag.&lt;interval&gt;.(count|average|max) in the {@link #getMetricRegistry()},
+ * which is reported over JMX in the org.opennms.netmgt.scheduler domain while the scheduler runs.
+ */
+public class TimingWheelScheduler implements Runnable, PausableFiber, Scheduler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TimingWheelScheduler.class);
+
+    /**
+     * System property used by the daemons to use this scheduler instead of the {@link LegacyScheduler}.
+     */
+    public static final String ENABLED_SYS_PROP = "org.opennms.scheduler.timingWheel";
+
+    /**
+     * System property used to override the default tick duration, in milliseconds.
+     */
+    public static final String TICK_DURATION_SYS_PROP = "org.opennms.scheduler.timingWheel.tickDuration";
+
+    public static final long DEFAULT_TICK_DURATION = 100;
+
+    /**
+     * System property used to override the default number of buckets in the wheel.
+     */
+    public static final String WHEEL_SIZE_SYS_PROP = "org.opennms.scheduler.timingWheel.wheelSize";
+
+    public static final int DEFAULT_WHEEL_SIZE = 4096;
+
+    /**
+     * System property used to override the default maximum start jitter, in milliseconds.
+     */
+    public static final String MAX_START_JITTER_SYS_PROP = "org.opennms.scheduler.timingWheel.maxStartJitter";
+
+    public static final long DEFAULT_MAX_START_JITTER = 0;
+
+    /**
+     * Use {@link #isEnabled()} to determine whether the daemons should use this scheduler.
+     *
+     * @return <code>true</code> if the {@link #ENABLED_SYS_PROP} system property is set to true
+     */
+    public static boolean isEnabled() {
+        return Boolean.getBoolean(ENABLED_SYS_PROP);
+    }
+
+    private static final class Entry {
+        private final ReadyRunnable m_runnable;
+        private final long m_interval;
+        private final long m_deadline;
+        private long m_remainingRounds;
+
+        private Entry(ReadyRunnable runnable, long interval, long deadline) {
+            m_runnable = runnable;
+            m_interval = interval;
+            m_deadline = deadline;
+        }
+    }
+
+    /**
+     * Lag statistics for the runnables scheduled at a given interval.
+     */
+    public static final class LagStatistics {
+        private final AtomicLong m_count = new AtomicLong(0);
+        private final AtomicLong m_totalLag = new AtomicLong(0);
+        private final AtomicLong m_maxLag = new AtomicLong(0);
+
+        private void update(long lag) {
+            m_count.incrementAndGet();
+            m_totalLag.addAndGet(lag);
+            long max;
+            while (lag > (max = m_maxLag.get()) && !m_maxLag.compareAndSet(max, lag));
+        }
+
+        /**
+         * @return the number of runnables that were run
+         */
+        public long getCount() {
+            return m_count.get();
+        }
+
+        /**
+         * @return the average lag, in milliseconds
+         */
+        public double getAverageLag() {
+            final long count = m_count.get();
+            return count > 0 ? (double)m_totalLag.get() / count : 0;
+        }
+
+        /**
+         * @return the maximum lag, in milliseconds
+         */
+        public long getMaxLag() {
+            return m_maxLag.get();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("LagStatistics[count=%d, averageLag=%.1fms, maxLag=%dms]", getCount(), getAverageLag(), getMaxLag());
+        }
+    }
+
+    private final String m_parent;
+
+    private final long m_tickDuration;
+
+    private final ArrayDeque<Entry>[] m_wheel;
+
+    private final int m_mask;
+
+    private final long m_maxStartJitter;
+
+    /**
+     * Runnables that were scheduled, but were not placed on the wheel yet.
+     */
+    private final Queue<Entry> m_pending = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The total number of runnables currently scheduled.
+     */
+    private final AtomicInteger m_scheduled = new AtomicInteger(0);
+
+    private final Map<Long, LagStatistics> m_lagByInterval = new ConcurrentHashMap<>();
+
+    private final MetricRegistry m_metrics = new MetricRegistry();
+
+    private JmxReporter m_jmxReporter;
+
+    /**
+     * The pool of threads that are used to executed the runnable instances
+     * scheduled by the class' instance.
+     */
+    private final ExecutorService m_runner;
+
+    private volatile int m_status;
+
+    private volatile Thread m_worker;
+
+    private volatile long m_numTasksExecuted = 0;
+
+    /**
+     * Time at which the first tick started, only used by the worker thread.
+     */
+    private long m_startTime;
+
+    /**
+     * The current tick, only used by the worker thread.
+     */
+    private long m_tick;
+
+    /**
+     * Constructs a new instance of the scheduler, using the tick duration, wheel size and
+     * maximum start jitter set by the system properties, or their defaults.
+     *
+     * @param parent
+     *            String prepended to "Scheduler" to create fiber name
+     * @param maxSize
+     *            The maximum size of the thread pool.
+     */
+    public TimingWheelScheduler(final String parent, final int maxSize) {
+        this(parent, maxSize,
+                Long.getLong(TICK_DURATION_SYS_PROP, DEFAULT_TICK_DURATION),
+                Integer.getInteger(WHEEL_SIZE_SYS_PROP, DEFAULT_WHEEL_SIZE),
+                Long.getLong(MAX_START_JITTER_SYS_PROP, DEFAULT_MAX_START_JITTER));
+    }
+
+    /**
+     * Constructs a new instance of the scheduler.
+     *
+     * @param parent
+     *            String prepended to "Scheduler" to create fiber name
+     * @param maxSize
+     *            The maximum size of the thread pool.
+     * @param tickDuration
+     *            The duration of a tick, in milliseconds. Runnables are run at most one
+     *            tick after they expire.
+     * @param wheelSize
+     *            The number of buckets in the wheel, rounded up to the next power of 2.
+     * @param maxStartJitter
+     *            The maximum delay, in milliseconds, added to runnables that are scheduled
+     *            with no delay. Use 0 to disable.
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheelScheduler(final String parent, final int maxSize, final long tickDuration, final int wheelSize, final long maxStartJitter) {
+        Assert.isTrue(tickDuration > 0, "tickDuration must be positive");
+        Assert.isTrue(wheelSize > 0 && wheelSize <= (1 << 30), "wheelSize must be between 1 and 2^30");
+        Assert.isTrue(maxStartJitter >= 0, "maxStartJitter cannot be negative");
+
+        m_parent = parent;
+        m_status = START_PENDING;
+        m_runner = Executors.newFixedThreadPool(maxSize, new LogPreservingThreadFactory(parent, maxSize));
+        m_tickDuration = tickDuration;
+        m_maxStartJitter = maxStartJitter;
+
+        int normalizedWheelSize = 1;
+        while (normalizedWheelSize < wheelSize) {
+            normalizedWheelSize <<= 1;
+        }
+        m_wheel = new ArrayDeque[normalizedWheelSize];
+        for (int i = 0; i < normalizedWheelSize; i++) {
+            m_wheel[i] = new ArrayDeque<>();
+        }
+        m_mask = normalizedWheelSize - 1;
+    }
+
+    /**
+     * This method is used to schedule a ready runnable in the system. The
+     * runnable is run as soon as it is ready, the interval is only used to
+     * keep track of the lag.
+     *
+     * @param runnable
+     *            The element to run when it is ready.
+     * @param interval
+     *            The interval used to track the lag.
+     */
+    public void schedule(ReadyRunnable runnable, long interval) {
+        LOG.debug("schedule: Adding ready runnable {} at interval {}", runnable, interval);
+        enqueue(new Entry(runnable, interval, getCurrentTime()));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void schedule(long interval, final ReadyRunnable runnable) {
+        long delay = interval;
+        if (delay <= 0 && m_maxStartJitter > 0) {
+            delay = ThreadLocalRandom.current().nextLong(m_maxStartJitter);
+        }
+        LOG.debug("schedule: Adding ready runnable {} at interval {} to run in {}ms", runnable, interval, delay);
+        enqueue(new Entry(runnable, interval, getCurrentTime() + delay));
+    }
+
+    private void enqueue(Entry entry) {
+        m_pending.add(entry);
+        if (m_scheduled.getAndIncrement() == 0) {
+            // Wake up the worker thread if it is waiting for runnables
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * <p>getCurrentTime</p>
+     *
+     * @return a long.
+     */
+    @Override
+    public long getCurrentTime() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * <p>start</p>
+     */
+    @Override
+    public synchronized void start() {
+        Assert.state(m_worker == null, "The fiber has already run or is running");
+
+        m_jmxReporter = JmxReporter.forRegistry(m_metrics).inDomain("org.opennms.netmgt.scheduler").build();
+        m_jmxReporter.start();
+
+        m_worker = new Thread(this, getName());
+        m_worker.start();
+        m_status = STARTING;
+
+        LOG.info("start: scheduler started");
+    }
+
+    /**
+     * <p>stop</p>
+     */
+    @Override
+    public synchronized void stop() {
+        Assert.state(m_worker != null, "The fiber has never been started");
+
+        m_status = STOP_PENDING;
+        m_worker.interrupt();
+        m_runner.shutdown();
+        m_jmxReporter.stop();
+
+        LOG.info("stop: scheduler stopped");
+    }
+
+    /**
+     * <p>pause</p>
+     */
+    @Override
+    public synchronized void pause() {
+        Assert.state(m_worker != null, "The fiber has never been started");
+        Assert.state(m_status != STOPPED && m_status != STOP_PENDING, "The fiber is not running or a stop is pending");
+
+        if (m_status == PAUSED) {
+            return;
+        }
+
+        m_status = PAUSE_PENDING;
+        notifyAll();
+    }
+
+    /**
+     * <p>resume</p>
+     */
+    @Override
+    public synchronized void resume() {
+        Assert.state(m_worker != null, "The fiber has never been started");
+        Assert.state(m_status != STOPPED && m_status != STOP_PENDING, "The fiber is not running or a stop is pending");
+
+        if (m_status == RUNNING) {
+            return;
+        }
+
+        m_status = RESUME_PENDING;
+        notifyAll();
+    }
+
+    /**
+     * <p>getStatus</p>
+     *
+     * @return a int.
+     */
+    @Override
+    public synchronized int getStatus() {
+        if (m_worker != null && m_worker.isAlive() == false) {
+            m_status = STOPPED;
+        }
+        return m_status;
+    }
+
+    /**
+     * Returns the name of this fiber.
+     *
+     * @return a {@link java.lang.String} object.
+     */
+    @Override
+    public String getName() {
+        return m_parent + "-Scheduler";
+    }
+
+    /**
+     * Returns total number of elements currently scheduled.
+     *
+     * @return the number of runnables that were scheduled, but not run yet
+     */
+    public int getScheduled() {
+        return m_scheduled.get();
+    }
+
+    /**
+     * Returns the pool of threads that are used to executed the runnable
+     * instances scheduled by the class' instance.
+     *
+     * @return thread pool
+     */
+    public ExecutorService getRunner() {
+        return m_runner;
+    }
+
+    public long getTickDuration() {
+        return m_tickDuration;
+    }
+
+    public int getWheelSize() {
+        return m_wheel.length;
+    }
+
+    public long getMaxStartJitter() {
+        return m_maxStartJitter;
+    }
+
+    /**
+     * Returns the lag statistics, keyed by the interval at which the runnables were scheduled.
+     *
+     * @return an unmodifiable view of the statistics
+     */
+    public Map<Long, LagStatistics> getLagStatistics() {
+        return Collections.unmodifiableMap(m_lagByInterval);
+    }
+
+    /**
+     * Returns the registry in which the lag statistics are registered.
+     *
+     * @return the metric registry
+     */
+    public MetricRegistry getMetricRegistry() {
+        return m_metrics;
+    }
+
+    private LagStatistics newLagStatistics(long interval) {
+        final LagStatistics stats = new LagStatistics();
+        final String prefix = MetricRegistry.name(m_parent, "lag", Long.toString(interval));
+        m_metrics.register(MetricRegistry.name(prefix, "count"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return stats.getCount();
+            }
+        });
+        m_metrics.register(MetricRegistry.name(prefix, "average"), new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                return stats.getAverageLag();
+            }
+        });
+        m_metrics.register(MetricRegistry.name(prefix, "max"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return stats.getMaxLag();
+            }
+        });
+        return stats;
+    }
+
+    /**
+     * The main method of the scheduler. This method advances the wheel one tick at
+     * a time, and enqueues the runnables that are ready into the thread pool for
+     * execution.
+     */
+    @Override
+    public void run() {
+        synchronized (this) {
+            m_status = RUNNING;
+        }
+
+        LOG.debug("run: scheduler running");
+
+        m_startTime = getCurrentTime();
+        m_tick = 0;
+
+        for (;;) {
+            synchronized (this) {
+                if (m_status != RUNNING && m_status != PAUSED && m_status != PAUSE_PENDING && m_status != RESUME_PENDING) {
+                    LOG.debug("run: status = {}, time to exit", m_status);
+                    break;
+                }
+
+                // if paused or pause pending then block
+                while (m_status == PAUSE_PENDING || m_status == PAUSED) {
+                    if (m_status == PAUSE_PENDING) {
+                        LOG.debug("run: pausing.");
+                    }
+                    m_status = PAUSED;
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        // exit
+                        break;
+                    }
+                }
+
+                // if resume pending then change to running
+                if (m_status == RESUME_PENDING) {
+                    LOG.debug("run: resuming.");
+                    m_status = RUNNING;
+                }
+
+                try {
+                    if (m_scheduled.get() == 0) {
+                        LOG.debug("run: no ready runnables scheduled, waiting...");
+                        wait();
+                        // Don't try to catch up on the ticks we slept through
+                        m_startTime = getCurrentTime() - m_tick * m_tickDuration;
+                        continue;
+                    }
+
+                    // Wait for the next tick
+                    final long sleepTime = m_startTime + (m_tick + 1) * m_tickDuration - getCurrentTime();
+                    if (sleepTime > 0) {
+                        wait(sleepTime);
+                        continue;
+                    }
+                } catch (InterruptedException ex) {
+                    break;
+                }
+            }
+
+            try {
+                transferPending();
+                expireBucket();
+            } catch (InterruptedException e) {
+                break;
+            }
+            m_tick++;
+        }
+
+        LOG.debug("run: scheduler exiting, state = STOPPED");
+        synchronized (this) {
+            m_status = STOPPED;
+        }
+    }
+
+    /**
+     * Places the runnables that were scheduled since the last tick on the wheel.
+     */
+    private void transferPending() {
+        Entry entry;
+        while ((entry = m_pending.poll()) != null) {
+            place(entry, Math.max(0, entry.m_deadline - m_startTime) / m_tickDuration);
+        }
+    }
+
+    private void place(Entry entry, long expirationTick) {
+        // Runnables that should have already run are placed in the current bucket
+        final long tick = Math.max(expirationTick, m_tick);
+        entry.m_remainingRounds = (tick - m_tick) / m_wheel.length;
+        m_wheel[(int)(tick & m_mask)].addLast(entry);
+    }
+
+    /**
+     * Enqueues the runnables in the current bucket that have expired
+     * and are ready into the thread pool.
+     */
+    private void expireBucket() throws InterruptedException {
+        final ArrayDeque<Entry> bucket = m_wheel[(int)(m_tick & m_mask)];
+        final long now = getCurrentTime();
+        int numEntries = bucket.size();
+        while (numEntries-- > 0) {
+            final Entry entry = bucket.pollFirst();
+            if (entry.m_remainingRounds > 0) {
+                entry.m_remainingRounds--;
+                bucket.addLast(entry);
+                continue;
+            }
+
+            if (!entry.m_runnable.isReady()) {
+                // Check again on the next tick
+                place(entry, m_tick + 1);
+                continue;
+            }
+
+            LOG.debug("run: found ready runnable {}", entry.m_runnable);
+            try {
+                m_runner.execute(entry.m_runnable);
+            } catch (RejectedExecutionException e) {
+                if (m_runner.isShutdown()) {
+                    throw new InterruptedException("The thread pool was shut down.");
+                }
+                throw new UndeclaredThrowableException(e);
+            }
+            m_scheduled.decrementAndGet();
+            m_numTasksExecuted++;
+            m_lagByInterval.computeIfAbsent(entry.m_interval, this::newLagStatistics)
+                .update(Math.max(0, now - entry.m_deadline));
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getNumTasksExecuted() {
+        return m_numTasksExecuted;
+    }
+}
@@ -30,6 +30,7 @@ package org.opennms.netmgt.collectd;
 
 import static org.easymock.EasyMock.anyInt;
 import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.isA;
 import static org.easymock.EasyMock.matches;
 
@@ -62,6 +63,7 @@ import org.opennms.netmgt.dao.api.ResourceStorageDao;
 import org.opennms.netmgt.mock.MockDataCollectionConfig;
 import org.opennms.netmgt.model.OnmsIpInterface;
 import org.opennms.netmgt.model.OnmsNode;
+import org.opennms.netmgt.model.ResourcePath;
 import org.opennms.netmgt.rrd.RrdDataSource;
 import org.opennms.netmgt.rrd.RrdRepository;
 import org.opennms.netmgt.rrd.RrdStrategy;
@@ -163,6 +165,9 @@ public class SnmpAttributeTest {
         m_rrdStrategy.updateFile(isA(Object.class), isA(String.class), matches(".*:" + matchValue));
         m_rrdStrategy.closeFile(isA(Object.class));
 
+        m_resourceStorageDao.metricsPersisted(isA(ResourcePath.class));
+        expectLastCall().anyTimes();
+
         m_mocks.replayAll();
 
         SnmpCollectionAgent agent = DefaultCollectionAgent.create(ipInterface.getId(), m_ipInterfaceDao, new MockPlatformTransactionManager());
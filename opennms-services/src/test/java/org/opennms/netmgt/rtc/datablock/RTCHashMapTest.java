@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.rtc.datablock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.core.utils.InetAddressUtils;
+
+public class RTCHashMapTest {
+    private static final long WINDOW = 24L * 60L * 60L * 1000L;
+    private static final String CATEGORY = "Web Servers";
+
+    private final InetAddress m_addr = InetAddressUtils.addr("192.168.1.1");
+    private long m_now;
+    private RTCHashMap m_map;
+
+    @Before
+    public void setUp() {
+        m_now = System.currentTimeMillis();
+        m_map = new RTCHashMap(10);
+    }
+
+    private RTCNode addNode(int nodeId, String svcName, String... categories) {
+        final RTCNode rtcN = new RTCNode(nodeId, m_addr, svcName, WINDOW);
+        for (final String category : categories) {
+            rtcN.addCategory(category);
+        }
+        m_map.add(rtcN);
+        return rtcN;
+    }
+
+    @Test
+    public void testCategoryValueCountsEachServiceOnce() {
+        final RTCNode http = addNode(1, "HTTP", CATEGORY);
+        addNode(1, "HTTPS", CATEGORY);
+        addNode(2, "ICMP", "Other");
+
+        assertEquals(100.0, m_map.getValue(CATEGORY, m_now, WINDOW), 0.0);
+
+        // one of two services down for a quarter of the window
+        http.addSvcTime(m_now - WINDOW / 4, m_now);
+        assertEquals(87.5, m_map.getValue(CATEGORY, m_now, WINDOW), 0.0001);
+        assertEquals(100.0, m_map.getValue("Other", m_now, WINDOW), 0.0);
+        assertEquals(87.5, m_map.getValue(1, CATEGORY, m_now, WINDOW), 0.0001);
+    }
+
+    @Test
+    public void testCategoryMembership() {
+        final RTCNode http = addNode(1, "HTTP");
+        http.addSvcTime(m_now - WINDOW / 2, -1);
+        assertEquals(100.0, m_map.getValue(CATEGORY, m_now, WINDOW), 0.0);
+
+        m_map.addToCategory(http, CATEGORY);
+        assertTrue(http.belongsTo(CATEGORY));
+        assertEquals(50.0, m_map.getValue(CATEGORY, m_now, WINDOW), 0.0001);
+        assertEquals(1, m_map.getServiceDownCount(1, CATEGORY));
+
+        m_map.removeFromCategory(http, CATEGORY);
+        assertFalse(http.belongsTo(CATEGORY));
+        assertEquals(100.0, m_map.getValue(CATEGORY, m_now, WINDOW), 0.0);
+        assertEquals(0, m_map.getServiceCount(1, CATEGORY));
+    }
+
+    @Test
+    public void testDeleteAndReparent() {
+        final RTCNode http = addNode(1, "HTTP", CATEGORY);
+        http.nodeLostService(m_now - WINDOW / 2);
+
+        m_map.delete(http);
+        http.setNodeID(2);
+        m_map.add(http);
+
+        assertEquals(0, m_map.getRTCNodes(1).size());
+        assertEquals(1, m_map.getServiceDownCount(2, CATEGORY));
+        assertEquals(50.0, m_map.getValue(CATEGORY, m_now, WINDOW), 0.0001);
+
+        m_map.deleteNode(2);
+        assertEquals(0, m_map.getRTCNodes(2).size());
+        assertEquals(100.0, m_map.getValue(CATEGORY, m_now, WINDOW), 0.0);
+    }
+
+    @Test
+    public void testOutagesOutsideOfWindow() {
+        final RTCNode http = addNode(1, "HTTP", CATEGORY);
+        http.addSvcTime(m_now - 2 * WINDOW, m_now - WINDOW - 1000);
+        assertEquals(100.0, m_map.getValue(CATEGORY, m_now, WINDOW), 0.0);
+        assertFalse(http.isServiceCurrentlyDown());
+
+        http.nodeLostService(m_now - WINDOW / 4);
+        assertTrue(http.isServiceCurrentlyDown());
+        http.nodeRegainedService(m_now);
+        assertFalse(http.isServiceCurrentlyDown());
+        assertEquals(75.0, m_map.getValue(CATEGORY, m_now, WINDOW), 0.0001);
+    }
+
+    @Test
+    public void testReadWhileWriting() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            addNode(i, "HTTP", CATEGORY);
+        }
+
+        final Thread writer = new Thread() {
+            @Override
+            public void run() {
+                for (int n = 0; n < 200; n++) {
+                    for (final RTCNode rtcN : m_map.getRTCNodes(n % 100)) {
+                        rtcN.nodeLostService(m_now - 1000);
+                        rtcN.nodeRegainedService(m_now);
+                    }
+                    final List<RTCNode> nodes = m_map.getRTCNodes(n % 100);
+                    for (final RTCNode rtcN : nodes) {
+                        m_map.delete(rtcN);
+                        m_map.add(rtcN);
+                    }
+                }
+            }
+        };
+        writer.start();
+        while (writer.isAlive()) {
+            final double value = m_map.getValue(CATEGORY, m_now, WINDOW);
+            assertTrue(value >= 0.0 && value <= 100.0);
+        }
+        writer.join();
+        // every service was down twice for a second
+        assertEquals(100.0 * (1.0 - 2000.0 / WINDOW), m_map.getValue(CATEGORY, m_now, WINDOW), 0.0001);
+    }
+}
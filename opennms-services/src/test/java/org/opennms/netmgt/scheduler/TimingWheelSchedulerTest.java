@@ -0,0 +1,225 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2016 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2016 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.netmgt.scheduler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class TimingWheelSchedulerTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TimingWheelSchedulerTest.class);
+
+    private TimingWheelScheduler m_scheduler;
+
+    @After
+    public void tearDown() {
+        if (m_scheduler != null) {
+            m_scheduler.stop();
+        }
+    }
+
+    private static class LatchRunnable implements ReadyRunnable {
+        private final CountDownLatch m_latch;
+        private final List<Long> m_runTimes;
+
+        private LatchRunnable(CountDownLatch latch, List<Long> runTimes) {
+            m_latch = latch;
+            m_runTimes = runTimes;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void run() {
+            if (m_runTimes != null) {
+                m_runTimes.add(System.currentTimeMillis());
+            }
+            m_latch.countDown();
+        }
+    }
+
+    @Test(timeout=30000)
+    public void canRunAfterInterval() throws InterruptedException {
+        m_scheduler = new TimingWheelScheduler("test", 1, 10, 8, 0);
+        m_scheduler.start();
+
+        final List<Long> runTimes = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch latch = new CountDownLatch(1);
+        final long start = System.currentTimeMillis();
+        m_scheduler.schedule(500, new LatchRunnable(latch, runTimes));
+        assertEquals(1, m_scheduler.getScheduled());
+
+        latch.await();
+        final long delay = runTimes.get(0) - start;
+        assertTrue("ran too early: " + delay, delay >= 500);
+        assertEquals(0, m_scheduler.getScheduled());
+        assertEquals(1, m_scheduler.getNumTasksExecuted());
+        assertEquals(1, m_scheduler.getLagStatistics().get(500L).getCount());
+        assertEquals(1L, m_scheduler.getMetricRegistry().getGauges().get("test.lag.500.count").getValue());
+        assertEquals(m_scheduler.getLagStatistics().get(500L).getMaxLag(),
+                m_scheduler.getMetricRegistry().getGauges().get("test.lag.500.max").getValue());
+    }
+
+    @Test(timeout=30000)
+    public void canRunAfterMultipleRotations() throws InterruptedException {
+        // 4 buckets of 10ms, the delays span several rotations of the wheel
+        m_scheduler = new TimingWheelScheduler("test", 4, 10, 4, 0);
+        m_scheduler.start();
+
+        final List<Long> runTimes = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch latch = new CountDownLatch(3);
+        final long start = System.currentTimeMillis();
+        m_scheduler.schedule(300, new LatchRunnable(latch, runTimes));
+        m_scheduler.schedule(100, new LatchRunnable(latch, runTimes));
+        m_scheduler.schedule(200, new LatchRunnable(latch, runTimes));
+
+        latch.await();
+        assertTrue("ran too early", runTimes.get(0) - start >= 100);
+        assertTrue("ran too early", runTimes.get(1) - start >= 200);
+        assertTrue("ran too early", runTimes.get(2) - start >= 300);
+    }
+
+    @Test(timeout=30000)
+    public void canWaitUntilReady() throws InterruptedException {
+        m_scheduler = new TimingWheelScheduler("test", 1, 10, 8, 0);
+        m_scheduler.start();
+
+        final AtomicBoolean ready = new AtomicBoolean(false);
+        final AtomicInteger readyChecks = new AtomicInteger(0);
+        final CountDownLatch latch = new CountDownLatch(1);
+        m_scheduler.schedule(0, new ReadyRunnable() {
+            @Override
+            public boolean isReady() {
+                readyChecks.incrementAndGet();
+                return ready.get();
+            }
+
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+
+        // The runnable is checked again on every tick until it is ready
+        while (readyChecks.get() < 5) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, latch.getCount());
+        ready.set(true);
+        latch.await();
+    }
+
+    @Test(timeout=30000)
+    public void canJitterStartTimes() throws InterruptedException {
+        m_scheduler = new TimingWheelScheduler("test", 4, 10, 64, 1000);
+        m_scheduler.start();
+
+        final int numRunnables = 100;
+        final List<Long> runTimes = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch latch = new CountDownLatch(numRunnables);
+        final long start = System.currentTimeMillis();
+        for (int i = 0; i < numRunnables; i++) {
+            m_scheduler.schedule(0, new LatchRunnable(latch, runTimes));
+        }
+
+        latch.await();
+        // The runnables should have been spread over the jitter window
+        final long first = Collections.min(runTimes) - start;
+        final long last = Collections.max(runTimes) - start;
+        assertTrue("runnables were not spread: first=" + first + " last=" + last, last - first >= 500);
+        assertTrue("runnables ran too late: " + last, last < 2000);
+    }
+
+    /**
+     * Compares the time needed to schedule a large number of runnables, spread
+     * over a second, and how far behind the last runnable was run, with the
+     * {@link LegacyScheduler}.
+     *
+     * Run with -DrunSchedulerBenchmarks=true, and use
+     * -Dorg.opennms.scheduler.benchmark.sizes=100000,500000,1000000 to run
+     * with larger numbers of runnables.
+     */
+    @Test(timeout=10*60000)
+    public void testTimingVersusLegacyScheduler() throws InterruptedException {
+        Assume.assumeTrue(Boolean.getBoolean("runSchedulerBenchmarks"));
+
+        for (String size : System.getProperty("org.opennms.scheduler.benchmark.sizes", "100000").split(",")) {
+            final int numRunnables = Integer.parseInt(size.trim());
+
+            final TimingWheelScheduler timingWheelScheduler = new TimingWheelScheduler("timingWheel", 4);
+            final long[] timingWheelResults = scheduleAndRun(timingWheelScheduler, numRunnables);
+            timingWheelScheduler.stop();
+
+            final LegacyScheduler legacyScheduler = new LegacyScheduler("legacy", 4);
+            final long[] legacyResults = scheduleAndRun(legacyScheduler, numRunnables);
+            legacyScheduler.stop();
+
+            LOG.info("{} runnables: TimingWheelScheduler: scheduled in {}ms, done {}ms after the last was due. " +
+                    "LegacyScheduler: scheduled in {}ms, done {}ms after the last was due.",
+                    numRunnables, timingWheelResults[0], timingWheelResults[1], legacyResults[0], legacyResults[1]);
+        }
+    }
+
+    /**
+     * @return the time needed to schedule the runnables, and the time between the
+     * moment the last runnable was due and the moment all of them ran, in milliseconds
+     */
+    private static long[] scheduleAndRun(Scheduler scheduler, int numRunnables) throws InterruptedException {
+        scheduler.start();
+        final CountDownLatch latch = new CountDownLatch(numRunnables);
+        final LatchRunnable runnable = new LatchRunnable(latch, null);
+
+        final long start = System.currentTimeMillis();
+        for (int i = 0; i < numRunnables; i++) {
+            scheduler.schedule(i % 1000, runnable);
+        }
+        final long scheduled = System.currentTimeMillis();
+        latch.await();
+        final long done = System.currentTimeMillis();
+        return new long[] { scheduled - start, Math.max(0, done - (scheduled + 999)) };
+    }
+}